@@ -50,12 +50,14 @@ import uk.ac.susx.mlcl.byblo.enumerators.EnumeratorType;
 import uk.ac.susx.mlcl.byblo.measures.CrMi;
 import uk.ac.susx.mlcl.byblo.measures.Lee;
 import uk.ac.susx.mlcl.byblo.measures.Lp;
+import uk.ac.susx.mlcl.byblo.tasks.ChunkPairJournal;
 import uk.ac.susx.mlcl.lib.Checks;
 import uk.ac.susx.mlcl.lib.MiscUtil;
 import uk.ac.susx.mlcl.lib.commands.AbstractCommand;
 import uk.ac.susx.mlcl.lib.commands.DoubleConverter;
 import uk.ac.susx.mlcl.lib.commands.FileDelegate;
 import uk.ac.susx.mlcl.lib.commands.InputFileValidator;
+import uk.ac.susx.mlcl.lib.commands.MemorySizeConverter;
 import uk.ac.susx.mlcl.lib.commands.TempFileFactoryConverter;
 import uk.ac.susx.mlcl.lib.io.FileFactory;
 import uk.ac.susx.mlcl.lib.io.TempFileFactory;
@@ -195,6 +197,13 @@ public final class FullBuild extends AbstractCommand {
     hidden = HIDE_UNCOMMON_PARAMETERS)
     private boolean outputIdentityPairs = false;
 
+    @Parameter(names = {"--memory-budget"},
+    description = "Heap memory available to all-pairs for vector chunks, e.g \"4g\". "
+    + "0 uses the free memory when all-pairs starts.",
+    converter = MemorySizeConverter.class,
+    hidden = HIDE_UNCOMMON_PARAMETERS)
+    private long memoryBudget = 0;
+
     /*
      * === K-NEAREST-NEIGHBOURS PARAMATERISATION ===
      */
@@ -203,6 +212,30 @@ public final class FullBuild extends AbstractCommand {
     description = "The maximum number of neighbours to produce per word.")
     private int k = ExternalKnnSimsCommand.DEFAULT_K;
 
+    @Parameter(names = {"--fused-knn"},
+    description = "Select the nearest neighbours during all-pairs, rather than "
+    + "writing every similarity to file and sorting them afterwards.",
+    hidden = HIDE_UNCOMMON_PARAMETERS)
+    private boolean fusedKnn = false;
+
+    @Parameter(names = {"--checkpoint"},
+    description = "Journal the chunk pairs completed during all-pairs, so that an "
+    + "interrupted build can be resumed.",
+    hidden = HIDE_UNCOMMON_PARAMETERS)
+    private boolean checkpoint = false;
+
+    @Parameter(names = {"--resume"},
+    description = "Resume an interrupted build from its all-pairs checkpoint. The "
+    + "enumerating, counting and filtering stages are skipped if one is found.",
+    hidden = HIDE_UNCOMMON_PARAMETERS)
+    private boolean resume = false;
+
+    @Parameter(names = {"--count-in-memory"},
+    description = "Count the instances in memory, partitioned across threads, rather "
+    + "than through temporary files.",
+    hidden = HIDE_UNCOMMON_PARAMETERS)
+    private boolean countInMemory = false;
+
     /**
      * Should only be instantiated through the main method.
      */
@@ -268,13 +301,6 @@ public final class FullBuild extends AbstractCommand {
                 new File(outputDir, instancesFile.getName() + ".enumerated");
 
 
-        if (LOG.isInfoEnabled())
-            LOG.info("\n=== Stage 1 of 6: Enumerating Strings ===\n");
-
-        System.gc();
-        runIndex(instancesEnumeratedFile, featureEnumeratorFile, entryEnumeratorFile);
-        System.gc();
-
         File entriesFile = new File(outputDir,
                                     instancesFile.getName() + ".entries");
         File featuresFile = new File(outputDir,
@@ -282,39 +308,78 @@ public final class FullBuild extends AbstractCommand {
         File eventsFile = new File(outputDir,
                                    instancesFile.getName() + ".events");
 
-        if (LOG.isInfoEnabled())
-            LOG.info("\n=== Stage 2 of 6: Counting ===\n");
-        System.gc();
-        runCount(instancesEnumeratedFile, entriesFile, featuresFile, eventsFile);
-        System.gc();
-
         File entriesFilteredFile = suffixed(entriesFile, ".filtered");
         File featuresFilteredFile = suffixed(featuresFile, ".filtered");
         File eventsFilteredFile = suffixed(eventsFile, ".filtered");
-        if (LOG.isInfoEnabled())
-            LOG.info("\n=== Stage 3 of 6: Filtering ===\n");
 
-        System.gc();
-        runFilter(entriesFile, featuresFile, eventsFile, entriesFilteredFile,
-                  featuresFilteredFile, eventsFilteredFile, entryEnumeratorFile,
-                  featureEnumeratorFile);
-        System.gc();
+        File simsFile = new File(outputDir, instancesFile.getName() + ".sims");
+
+        File neighboursFile = suffixed(simsFile, ".neighbours");
+
+        // The checkpoint is only valid for the filtered events it was started
+        // on, so the stages that produce them must not be run again.
+        final File allPairsCheckpoint = AllPairsCommand.checkpointDirectory(
+                fusedKnn ? neighboursFile : simsFile);
+        final boolean resumeAllPairs = resume
+                && ChunkPairJournal.headerFile(allPairsCheckpoint).exists()
+                && eventsFilteredFile.exists();
+
+        if (resumeAllPairs) {
+            if (LOG.isInfoEnabled())
+                LOG.info("\n=== Stages 1 to 3 of 6: Enumerating, Counting, Filtering ===\n"
+                        + "Skipped; resuming all-pairs from checkpoint "
+                        + allPairsCheckpoint + "\n");
+        } else {
+            if (LOG.isInfoEnabled())
+                LOG.info("\n=== Stage 1 of 6: Enumerating Strings ===\n");
+
+            System.gc();
+            runIndex(instancesEnumeratedFile, featureEnumeratorFile, entryEnumeratorFile);
+            System.gc();
+
+            if (LOG.isInfoEnabled())
+                LOG.info("\n=== Stage 2 of 6: Counting ===\n");
+            System.gc();
+            runCount(instancesEnumeratedFile, entriesFile, featuresFile, eventsFile);
+            System.gc();
+
+            if (LOG.isInfoEnabled())
+                LOG.info("\n=== Stage 3 of 6: Filtering ===\n");
+
+            System.gc();
+            runFilter(entriesFile, featuresFile, eventsFile, entriesFilteredFile,
+                      featuresFilteredFile, eventsFilteredFile, entryEnumeratorFile,
+                      featureEnumeratorFile);
+            System.gc();
+        }
 
         if (LOG.isInfoEnabled())
             LOG.info("\n=== Stage 4 of 6: All-Pairs ===\n");
-        File simsFile = new File(outputDir, instancesFile.getName() + ".sims");
 
-        System.gc();
-        runAllPairs(entriesFilteredFile, featuresFilteredFile, eventsFilteredFile, simsFile);
-        System.gc();
+        if (fusedKnn) {
+            // All-pairs produces the neighbours directly, so there is no sims
+            // file to sort.
+            System.gc();
+            runAllPairs(entriesFilteredFile, featuresFilteredFile,
+                        eventsFilteredFile, neighboursFile, k);
+            System.gc();
+
+            if (LOG.isInfoEnabled())
+                LOG.info("\n=== Stage 5 of 6: K-Nearest-Neighbours ===\n"
+                        + "Skipped; neighbours were selected during all-pairs.\n");
+        } else {
+            System.gc();
+            runAllPairs(entriesFilteredFile, featuresFilteredFile,
+                        eventsFilteredFile, simsFile, 0);
+            System.gc();
 
-        File neighboursFile = suffixed(simsFile, ".neighbours");
-        if (LOG.isInfoEnabled())
-            LOG.info("\n=== Stage 5 of 6: K-Nearest-Neighbours ===\n");
+            if (LOG.isInfoEnabled())
+                LOG.info("\n=== Stage 5 of 6: K-Nearest-Neighbours ===\n");
 
-        System.gc();
-        runKNN(simsFile, neighboursFile);
-        System.gc();
+            System.gc();
+            runKNN(simsFile, neighboursFile);
+            System.gc();
+        }
 
         File neighboursStringsFile = suffixed(neighboursFile, ".strings");
 
@@ -441,6 +506,7 @@ public final class FullBuild extends AbstractCommand {
         countCmd.setEnumeratorType(enumeratorType);
 
         countCmd.setNumThreads(numThreads);
+        countCmd.setInMemory(countInMemory);
 
         countCmd.runCommand();
 
@@ -561,13 +627,16 @@ public final class FullBuild extends AbstractCommand {
     }
 
     private void runAllPairs(File entriesFilteredFile, File featuresFilteredFile,
-                             File eventsFilteredFile, File simsFile)
+                             File eventsFilteredFile, File simsFile, int k)
             throws Exception {
         checkValidInputFile("Filtered entries file", entriesFilteredFile);
         checkValidInputFile("Filtered features file", featuresFilteredFile);
         checkValidInputFile("Filtered events file", eventsFilteredFile);
         checkValidOutputFile("Sims file", simsFile);
 
+        File allPairsTempDir = createTempSubdirDir(tempBaseDir);
+        FileFactory allPairsTmpFact = new TempFileFactory(allPairsTempDir);
+
         final long startTime = System.currentTimeMillis();
         if (LOG.isInfoEnabled()) {
             StringBuilder sb = new StringBuilder();
@@ -580,6 +649,10 @@ public final class FullBuild extends AbstractCommand {
                                            measureReversed ? "(reversed)" : ""));
             sb.append(MessageFormat.format(" * Accept sims range: {0} to {1}\n",
                                            minSimilarity, maxSimilarity));
+            if (k > 0)
+                sb.append(MessageFormat.format(" * K (fused): {0}\n", k));
+            if (memoryBudget > 0)
+                sb.append(MessageFormat.format(" * Memory budget: {0} bytes\n", memoryBudget));
             sb.append(MessageFormat.format(" * Start time: {0,time,full} {0,date,full}\n", startTime));
             sb.append(MessageFormat.format(" * {0}\n", MiscUtil.memoryInfoString()));
             sb.append("\n");
@@ -600,6 +673,9 @@ public final class FullBuild extends AbstractCommand {
         allPairsCmd.setMinSimilarity(minSimilarity);
         allPairsCmd.setMaxSimilarity(maxSimilarity);
         allPairsCmd.setOutputIdentityPairs(outputIdentityPairs);
+        allPairsCmd.setK(k);
+        allPairsCmd.setMemoryBudget(memoryBudget);
+        allPairsCmd.setTempFiles(allPairsTmpFact);
 
         allPairsCmd.setMeasureName(measureName);
         allPairsCmd.setCrmiBeta(crmiBeta);
@@ -612,10 +688,15 @@ public final class FullBuild extends AbstractCommand {
         allPairsCmd.setEnumeratedFeatures(true);
         allPairsCmd.setEnumeratorType(enumeratorType);
 
+        allPairsCmd.setCheckpoint(checkpoint);
+        allPairsCmd.setResume(resume);
+
 
         allPairsCmd.runCommand();
         checkValidInputFile("Sims file", simsFile);
 
+        deleteTempDir(allPairsTempDir, "All-Pairs");
+
         final long endTime = System.currentTimeMillis();
         if (LOG.isInfoEnabled()) {
             StringBuilder sb = new StringBuilder();
@@ -43,6 +43,7 @@ import uk.ac.susx.mlcl.byblo.commands.IndexingCommands;
 import uk.ac.susx.mlcl.byblo.commands.MergeEntriesCommand;
 import uk.ac.susx.mlcl.byblo.commands.MergeEventsCommand;
 import uk.ac.susx.mlcl.byblo.commands.MergeInstancesCommand;
+import uk.ac.susx.mlcl.byblo.commands.MergeSimsShardsCommand;
 import uk.ac.susx.mlcl.lib.commands.AbstractCommand;
 import uk.ac.susx.mlcl.lib.commands.Command;
 
@@ -69,6 +70,7 @@ public final class Tools extends AbstractCommand {
         tmp.put("merge-ents", MergeEventsCommand.class);
         tmp.put("merge-feats", MergeEntriesCommand.class);
         tmp.put("merge-events", MergeEntriesCommand.class);
+        tmp.put("merge-sims-shards", MergeSimsShardsCommand.class);
         tmp.put("knn-sims", ExternalKnnSimsCommand.class);
         tmp.put("allpairs", AllPairsCommand.class);
         tmp.put("count", ExternalCountCommand.class);
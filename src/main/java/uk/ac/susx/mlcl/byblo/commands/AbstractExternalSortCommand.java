@@ -51,6 +51,7 @@ import uk.ac.susx.mlcl.lib.Checks;
 import uk.ac.susx.mlcl.lib.Comparators;
 import uk.ac.susx.mlcl.lib.MiscUtil;
 import uk.ac.susx.mlcl.lib.commands.FilePipeDelegate;
+import uk.ac.susx.mlcl.lib.commands.MergeFanInValidator;
 import uk.ac.susx.mlcl.lib.commands.TempFileFactoryConverter;
 import uk.ac.susx.mlcl.lib.events.ProgressAggregate;
 import uk.ac.susx.mlcl.lib.events.ProgressListener;
@@ -64,7 +65,7 @@ import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
 import uk.ac.susx.mlcl.lib.io.TempFileFactory;
 import uk.ac.susx.mlcl.lib.tasks.FileDeleteTask;
 import uk.ac.susx.mlcl.lib.tasks.FileMoveTask;
-import uk.ac.susx.mlcl.lib.tasks.ObjectMergeTask;
+import uk.ac.susx.mlcl.lib.tasks.ObjectKWayMergeTask;
 import uk.ac.susx.mlcl.lib.tasks.ObjectSortTask;
 import uk.ac.susx.mlcl.lib.tasks.Task;
 
@@ -83,14 +84,17 @@ public abstract class AbstractExternalSortCommand<T>
 
     protected static final String KEY_SRC_FILE = "sort.src.file";
 
-    protected static final String KEY_SRC_FILE_A = "sort.src.file.a";
-
-    protected static final String KEY_SRC_FILE_B = "sort.src.file.b";
+    protected static final String KEY_SRC_FILES = "sort.src.files";
 
     protected static final String KEY_DST_FILE = "sort.dst.file";
 
     private static final boolean DEBUG = false;
 
+    /**
+     * Default maximum number of sorted runs merged by a single task.
+     */
+    public static final int DEFAULT_MERGE_FAN_IN = 16;
+
     @ParametersDelegate
     private final FilePipeDelegate fileDelegate = new FilePipeDelegate();
 
@@ -103,9 +107,19 @@ public abstract class AbstractExternalSortCommand<T>
     description = "Reverse the result of comparisons.")
     private boolean reverse = false;
 
+    @Parameter(names = {"--merge-fan-in"},
+    description = "Maximum number of sorted runs that are merged at once.",
+    validateWith = MergeFanInValidator.class)
+    private int mergeFanIn = DEFAULT_MERGE_FAN_IN;
+
     private Comparator<T> comparator;
 
-    private File[] nextFileToMerge;
+    /**
+     * Sorted runs waiting to be merged, by the number of merges that produced
+     * them. Once a level holds mergeFanIn runs they are merged into one run
+     * on the next level.
+     */
+    private List<List<File>> runsToMerge;
 
     private final ProgressAggregate progress = new ProgressAggregate(this);
 
@@ -145,6 +159,15 @@ public abstract class AbstractExternalSortCommand<T>
         this.reverse = reverse;
     }
 
+    public final int getMergeFanIn() {
+        return mergeFanIn;
+    }
+
+    public final void setMergeFanIn(int mergeFanIn) {
+        Checks.checkRangeIncl("mergeFanIn", mergeFanIn, 2, Integer.MAX_VALUE);
+        this.mergeFanIn = mergeFanIn;
+    }
+
     public Comparator<T> getComparator() {
         return isReverse() ? Comparators.reverse(comparator) : comparator;
     }
@@ -195,7 +218,7 @@ public abstract class AbstractExternalSortCommand<T>
             throw new NullPointerException();
         }
 
-        nextFileToMerge = new File[64];
+        runsToMerge = new ArrayList<List<File>>();
 
         final SeekableObjectSource<T, ?> src = openSource(getFileDelegate().getSourceFile());
         final ObjectSource<Chunk<T>> chunks = Chunker.newInstance(src, maxChunkSize);
@@ -222,48 +245,38 @@ public abstract class AbstractExternalSortCommand<T>
         progress.startAdjusting();
 
 
-        // Finally merge any remaining files up the stack
-        // XXX ideal this should happen automatically.
-        for (int i = 0; i < nextFileToMerge.length - 1; i++) {
-            if (nextFileToMerge[i] == null) {
-
-               // nothing
-
-            } else if (nextFileToMerge[i + 1] == null) {
-
-                nextFileToMerge[i + 1] = nextFileToMerge[i];
-                nextFileToMerge[i] = null;
-
-            } else {
-                File tmp = getTempFileFactory().createFile();
-
-                ObjectMergeTask<T> mergeTask = createMergeTask(
-                        nextFileToMerge[i], nextFileToMerge[i + 1], tmp);
-
-                mergeTask.run();
-
-                if (mergeTask.isExceptionTrapped())
-                    mergeTask.throwTrappedException();
-                if (mergeTask.getSink() instanceof Flushable)
-                    ((Flushable) mergeTask.getSink()).flush();
-                if (mergeTask.getSink() instanceof Closeable)
-                    ((Closeable) mergeTask.getSink()).close();
-                if (mergeTask.getSourceA() instanceof Closeable)
-                    ((Closeable) mergeTask.getSourceA()).close();
-                if (mergeTask.getSourceB() instanceof Closeable)
-                    ((Closeable) mergeTask.getSourceB()).close();
-
-                nextFileToMerge[i].delete();
-                nextFileToMerge[i + 1].delete();
-                nextFileToMerge[i] = null;
-                nextFileToMerge[i + 1] = tmp;
-                progress.endAdjusting();
-                progress.startAdjusting();
-            }
-
+        // Finally merge whatever runs are left on each level, shallowest
+        // (and so smallest) first, until few enough remain for one last merge.
+        // That last merge also converts the runs to the output format, so it
+        // happens even when only one run is left.
+        final List<File> remaining = new ArrayList<File>();
+        for (List<File> level : runsToMerge)
+            remaining.addAll(level);
+        runsToMerge.clear();
+        boolean last = false;
+        while (!remaining.isEmpty() && !last) {
+            last = remaining.size() <= getMergeFanIn();
+            final int n = Math.min(remaining.size(), getMergeFanIn());
+            final List<File> srcs = new ArrayList<File>(remaining.subList(0, n));
+            remaining.subList(0, n).clear();
+            File tmp = getTempFileFactory().createFile();
+
+            ObjectKWayMergeTask<T> mergeTask = createMergeTask(srcs, tmp, last);
+
+            mergeTask.run();
+
+            if (mergeTask.isExceptionTrapped())
+                mergeTask.throwTrappedException();
+            closeMergeTask(mergeTask);
+
+            for (File run : srcs)
+                run.delete();
+            remaining.add(tmp);
+            progress.endAdjusting();
+            progress.startAdjusting();
         }
 
-        finalMoveTask.setSrcFile(nextFileToMerge[nextFileToMerge.length - 1]);
+        finalMoveTask.setSrcFile(remaining.isEmpty() ? null : remaining.get(0));
         finalMoveTask.run();
         if (finalMoveTask.isExceptionTrapped())
             finalMoveTask.throwTrappedException();
@@ -291,27 +304,18 @@ public abstract class AbstractExternalSortCommand<T>
                 ((Closeable) sortTask.getSource()).close();
             queueMergeTask(new File(task.getProperty(KEY_DST_FILE)), 0);
 
-        } else if (task instanceof ObjectMergeTask) {
+        } else if (task instanceof ObjectKWayMergeTask) {
 
-            ObjectMergeTask<?> mergeTask = (ObjectMergeTask) task;
-            if (mergeTask.getSink() instanceof Flushable)
-                ((Flushable) mergeTask.getSink()).flush();
-            if (mergeTask.getSink() instanceof Closeable)
-                ((Closeable) mergeTask.getSink()).close();
-            if (mergeTask.getSourceA() instanceof Closeable)
-                ((Closeable) mergeTask.getSourceA()).close();
-            if (mergeTask.getSourceB() instanceof Closeable)
-                ((Closeable) mergeTask.getSourceB()).close();
+            ObjectKWayMergeTask<?> mergeTask = (ObjectKWayMergeTask) task;
+            closeMergeTask(mergeTask);
 
             int depth = Integer.parseInt(mergeTask.getProperty("depth"));
             queueMergeTask(new File(task.getProperty(KEY_DST_FILE)), depth + 1);
 
 
             if (!DEBUG) {
-                submitTask(createDeleteTask(new File(task.getProperty(
-                        KEY_SRC_FILE_A))));
-                submitTask(createDeleteTask(new File(task.getProperty(
-                        KEY_SRC_FILE_B))));
+                for (String src : task.getProperty(KEY_SRC_FILES).split(File.pathSeparator))
+                    submitTask(createDeleteTask(new File(src)));
             }
 
         } else if (task instanceof FileDeleteTask) {
@@ -331,21 +335,31 @@ public abstract class AbstractExternalSortCommand<T>
     protected void queueMergeTask(File file, int depth) throws IOException, Exception {
         Checks.checkNotNull("file", file);
 
-        if (nextFileToMerge[depth] == null) {
+        while (runsToMerge.size() <= depth)
+            runsToMerge.add(new ArrayList<File>());
+        final List<File> level = runsToMerge.get(depth);
+        level.add(file);
 
-            nextFileToMerge[depth] = file;
+        if (level.size() >= getMergeFanIn()) {
 
-        } else {
-
-            File srcA = nextFileToMerge[depth];
-            nextFileToMerge[depth] = null;
-            File srcB = file;
+            final List<File> srcs = new ArrayList<File>(level);
+            level.clear();
             File dst = getTempFileFactory().createFile();
-            ObjectMergeTask<T> mergeTask = createMergeTask(srcA, srcB, dst);
+            ObjectKWayMergeTask<T> mergeTask = createMergeTask(srcs, dst, false);
             mergeTask.setProperty("depth", Integer.toString(depth));
             submitTask(mergeTask);
 
+        }
+    }
 
+    private static void closeMergeTask(ObjectKWayMergeTask<?> mergeTask) throws IOException {
+        if (mergeTask.getSink() instanceof Flushable)
+            ((Flushable) mergeTask.getSink()).flush();
+        if (mergeTask.getSink() instanceof Closeable)
+            ((Closeable) mergeTask.getSink()).close();
+        for (ObjectSource<?> src : mergeTask.getSources()) {
+            if (src instanceof Closeable)
+                ((Closeable) src).close();
         }
     }
 
@@ -356,7 +370,7 @@ public abstract class AbstractExternalSortCommand<T>
     }
 
     protected ObjectSortTask<T> createSortTask(Chunk<T> chunk, File dst) throws IOException {
-        ObjectSink<T> sink = openSink(dst);
+        ObjectSink<T> sink = openRunSink(dst);
         ObjectSortTask<T> task = new ObjectSortTask<T>();
         task.setSource(chunk);
         task.setSink(sink);
@@ -371,17 +385,27 @@ public abstract class AbstractExternalSortCommand<T>
         return task;
     }
 
-    protected ObjectMergeTask<T> createMergeTask(File srcA, File srcB, File dst) throws IOException {
-        ObjectSource<T> source1 = openSource(srcA);
-        ObjectSource<T> source2 = openSource(srcB);
-        ObjectSink<T> sink = openSink(dst);
+    /**
+     * @param srcs  sorted runs to merge
+     * @param dst   file to merge them to
+     * @param last  whether dst is the final output, rather than another run
+     */
+    protected ObjectKWayMergeTask<T> createMergeTask(List<File> srcs, File dst, boolean last)
+            throws IOException {
+        final List<ObjectSource<T>> sources = new ArrayList<ObjectSource<T>>(srcs.size());
+        final StringBuilder srcNames = new StringBuilder();
+        for (File src : srcs) {
+            sources.add(openRunSource(src));
+            if (srcNames.length() > 0)
+                srcNames.append(File.pathSeparator);
+            srcNames.append(src);
+        }
+        ObjectSink<T> sink = last ? openSink(dst) : openRunSink(dst);
 
-        ObjectMergeTask<T> mergeTask =
-                new ObjectMergeTask<T>(source1, source2, sink);
-        mergeTask.setComparator(this.getComparator());
+        ObjectKWayMergeTask<T> mergeTask =
+                new ObjectKWayMergeTask<T>(sources, sink, this.getComparator());
 
-        mergeTask.setProperty(KEY_SRC_FILE_A, srcA.toString());
-        mergeTask.setProperty(KEY_SRC_FILE_B, srcB.toString());
+        mergeTask.setProperty(KEY_SRC_FILES, srcNames.toString());
         mergeTask.setProperty(KEY_DST_FILE, dst.toString());
 
         progress.addChildProgressReporter(mergeTask);
@@ -395,7 +419,8 @@ public abstract class AbstractExternalSortCommand<T>
         return super.toStringHelper().
                 add("in", getFileDelegate().getSourceFile()).
                 add("out", getFileDelegate().getDestinationFile()).
-                add("temp", getTempFileFactory());
+                add("temp", getTempFileFactory()).
+                add("fanIn", getMergeFanIn());
     }
 
     public final void setCharset(Charset charset) {
@@ -426,6 +451,19 @@ public abstract class AbstractExternalSortCommand<T>
 
     protected abstract ObjectSink<T> openSink(File file) throws IOException;
 
+    /**
+     * Open a temporary run written by {@link #openRunSink(File)}. By default
+     * runs are in the same format as the input and output files; subclasses
+     * can override both methods to use something cheaper.
+     */
+    protected SeekableObjectSource<T, ?> openRunSource(File file) throws IOException {
+        return openSource(file);
+    }
+
+    protected ObjectSink<T> openRunSink(File file) throws IOException {
+        return openSink(file);
+    }
+
     @Override
     public void removeProgressListener(ProgressListener progressListener) {
         progress.removeProgressListener(progressListener);
@@ -48,17 +48,26 @@ import uk.ac.susx.mlcl.byblo.enumerators.EnumeratorType;
 import uk.ac.susx.mlcl.byblo.io.*;
 import uk.ac.susx.mlcl.byblo.io.WeightedTokenSource.WTStatsSource;
 import uk.ac.susx.mlcl.byblo.measures.*;
+import uk.ac.susx.mlcl.byblo.tasks.ChunkPairJournal;
+import uk.ac.susx.mlcl.byblo.tasks.AccumulatingApssTask;
 import uk.ac.susx.mlcl.byblo.tasks.InvertedApssTask;
+import uk.ac.susx.mlcl.byblo.tasks.LshApssTask;
+import uk.ac.susx.mlcl.byblo.tasks.PartitionedApssTask;
 import uk.ac.susx.mlcl.byblo.tasks.NaiveApssTask;
+import uk.ac.susx.mlcl.byblo.tasks.PrefixFilteringApssTask;
 import uk.ac.susx.mlcl.byblo.tasks.ThreadedApssTask;
 import uk.ac.susx.mlcl.lib.Checks;
 import uk.ac.susx.mlcl.lib.commands.*;
 import uk.ac.susx.mlcl.lib.events.ProgressEvent;
 import uk.ac.susx.mlcl.lib.events.ProgressListener;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.FileFactory;
 import uk.ac.susx.mlcl.lib.io.ObjectIO;
 import uk.ac.susx.mlcl.lib.io.ObjectSink;
 import uk.ac.susx.mlcl.lib.io.ObjectSource;
-import uk.ac.susx.mlcl.lib.io.Tell;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+import uk.ac.susx.mlcl.lib.io.TempFileFactory;
 
 import java.io.Closeable;
 import java.io.File;
@@ -128,6 +137,27 @@ public class AllPairsCommand extends AbstractCommand {
             description = "Produce similarity between pair of identical entries.")
     private boolean outputIdentityPairs = false;
 
+    @Parameter(names = {"-k"},
+            description = "Produce only the k nearest neighbours of each entry, "
+            + "instead of all similarity pairs. 0 produces all pairs.")
+    private int k = 0;
+
+    @Parameter(names = {"--memory-budget"},
+            description = "Heap memory available to hold vector chunks, e.g \"512m\" or \"4g\". "
+            + "0 uses the free memory when all-pairs starts.",
+            converter = MemorySizeConverter.class)
+    private long memoryBudget = 0;
+
+    @Parameter(names = {"--text-vectors"},
+            description = "Read vectors from the events file on every pass, "
+            + "rather than converting them to a memory-mapped binary store first.")
+    private boolean textVectors = false;
+
+    @Parameter(names = {"-T", "--temp-dir"},
+            description = "Temporary directory which will be used to store the vectors.",
+            converter = TempFileFactoryConverter.class)
+    private FileFactory tempFiles = new TempFileFactory();
+
     public static final String DEFAULT_MEASURE = "Lin";
 
     @Parameter(names = {"-m", "--measure"},
@@ -161,7 +191,11 @@ public class AllPairsCommand extends AbstractCommand {
     public enum Algorithm {
 
         Naive(NaiveApssTask.class),
-        Inverted(InvertedApssTask.class);
+        Inverted(InvertedApssTask.class),
+        Accumulating(AccumulatingApssTask.class),
+        Prefix(PrefixFilteringApssTask.class),
+        Lsh(LshApssTask.class),
+        Partitioned(PartitionedApssTask.class);
 
         private Class<? extends NaiveApssTask> implementation;
 
@@ -180,10 +214,68 @@ public class AllPairsCommand extends AbstractCommand {
     }
 
     @Parameter(names = {"--algorithm"},
-            hidden = true,
-            description = "APPS algorithm to use.")
+            description = "All-pairs algorithm to use. Lsh is approximate: "
+            + "it is much faster on large vocabularies, but may miss pairs. "
+            + "Partitioned divides the features between the threads, rather "
+            + "than the entries; it suits very large feature vocabularies, "
+            + "but only supports decomposable measures, and unless sharded or "
+            + "checkpointed it holds every vector in memory, ignoring "
+            + "--memory-budget.")
     private Algorithm algorithm = Algorithm.Inverted;
 
+    @Parameter(names = {"--lsh-bands"},
+            description = "Number of signature bands for the Lsh algorithm. "
+            + "More bands find more pairs, at the cost of more comparisons.")
+    private int lshBands = LshApssTask.DEFAULT_BANDS;
+
+    @Parameter(names = {"--lsh-rows"},
+            description = "Number of hash values per band for the Lsh algorithm. "
+            + "More rows compare fewer dissimilar pairs, but also find fewer pairs. "
+            + "If 0, chosen according to the signature: "
+            + LshApssTask.DEFAULT_MINHASH_ROWS + " for MinHash, "
+            + LshApssTask.DEFAULT_HYPERPLANE_ROWS + " for hyperplanes.")
+    private int lshRows = LshApssTask.DEFAULT_ROWS;
+
+    @Parameter(names = {"--lsh-seed"},
+            description = "Random seed of the Lsh algorithm's hash functions.")
+    private long lshSeed = LshApssTask.DEFAULT_SEED;
+
+    @Parameter(names = {"--shard"},
+            description = "Compute only shard i of N of the chunk pairs, given as \"i/N\" "
+            + "with i counting from 0. The output is sorted, and a manifest of the "
+            + "chunk pairs covered is written alongside it. Requires --chunk-size "
+            + "and enumerated entries; the shard outputs are combined with merge-sims-shards.",
+            converter = ShardConverter.class)
+    private int[] shard = {0, 1};
+
+    @Parameter(names = {"--chunk-size"},
+            description = "Number of vectors per chunk when the work is divided between "
+            + "threads or shards. 0 estimates it from the memory budget.")
+    private int chunkSize = 0;
+
+    @Parameter(names = {"--checkpoint"},
+            description = "Journal each completed chunk pair to a checkpoint directory "
+            + "alongside the output, so that an interrupted run can be resumed. "
+            + "Requires enumerated entries.")
+    private boolean checkpoint = false;
+
+    @Parameter(names = {"--resume"},
+            description = "Resume an interrupted run from its checkpoint, skipping the "
+            + "chunk pairs already completed. Implies --checkpoint.")
+    private boolean resume = false;
+
+    @Parameter(names = {"--previous-events"},
+            description = "Events file of a previous run. Only the entries whose vectors "
+            + "were added or changed since then are scored, and the previous output "
+            + "(--previous-sims) is patched with them. Requires enumerated entries and "
+            + "features, with the same indices as the previous run.")
+    private File previousEventsFile = null;
+
+    @Parameter(names = {"--previous-sims"},
+            description = "Output of the previous run to patch in incremental mode; "
+            + "a sims file, or a neighbours file if -k is given.")
+    private File previousSimsFile = null;
+
     public AllPairsCommand(File entriesFile, File featuresFile,
                            File eventsFile, File outputFile,
                            Charset charset, DoubleEnumerating indexDelegate) {
@@ -251,20 +343,69 @@ public class AllPairsCommand extends AbstractCommand {
             proximity = new ReversedProximity(proximity);
         }
 
+        if (isIncremental()) {
+            runIncremental(proximity);
+            return;
+        }
+
 
         // Instantiate two vector source objects than can scan and read the
         // main db. We need two because the algorithm takes all pairwise
         // combinations of vectors, so will be looking at two different points
         // in the file. Also this allows for the possibility of having different
         // files, e.g compare fruit words with cake words
-        final FastWeightedTokenPairVectorSource sourceA = openEventsSource();
-        final FastWeightedTokenPairVectorSource sourceB = openEventsSource();
+        //
+        // The threaded and naive algorithms read source B many times over, so
+        // the vectors are first converted to a binary store that can be read
+        // without parsing.
+        if (isSharded() && getChunkSize() == 0)
+            throw new IllegalStateException(
+                    "A chunk size must be given for sharded runs, so that every "
+                    + "shard divides the vectors into the same chunk pairs.");
+        // Shard outputs are sorted by entry id; ids that are enumerated on the
+        // fly differ between processes, so the shards could not be merged.
+        if (isSharded() && !isEnumeratedEntries())
+            throw new IllegalStateException(
+                    "Sharded runs require enumerated entries.");
+        // Likewise the journalled pairs of a checkpoint are stored by id.
+        if (isCheckpointed() && !isEnumeratedEntries())
+            throw new IllegalStateException(
+                    "Checkpointed runs require enumerated entries.");
+        if (isResume()) {
+            final File header = ChunkPairJournal.headerFile(getCheckpointDirectory());
+            if (header.exists()
+                    && header.lastModified() < getEventsFile().lastModified())
+                throw new IllegalStateException(
+                        "Unable to resume from checkpoint " + getCheckpointDirectory()
+                        + " because it is older than the events file " + getEventsFile());
+        }
+
+        final MappedVectorStore store = isVectorStoreUsed()
+                ? createVectorStore() : null;
+        final SeekableObjectSource<Indexed<SparseDoubleVector>, ?> sourceA =
+                store != null ? store.openSource() : openEventsSource();
+        final SeekableObjectSource<Indexed<SparseDoubleVector>, ?> sourceB =
+                store != null ? store.openSource() : openEventsSource();
 
 
         // Create a sink object that will act as a recipient for all pairs that
         // are produced by the algorithm.
 
-        final ObjectSink<Weighted<TokenPair>> sink = openSimsSink();
+        // When there are multiple workers, the sims are handed to a single
+        // writer thread so the workers don't contend for the sink.
+        //
+        // Shards write unsorted sims to a temporary file, which is sorted into
+        // the output once all pairs are done. The k nearest neighbours are
+        // chosen during the sort, and again when the shards are merged.
+        final File unsortedFile = isSharded()
+                ? tempFiles.createFile("sims", ".tmp") : null;
+        final ObjectSink<Weighted<TokenPair>> sink = isSharded()
+                ? new QueuedWeightedTokenPairSink(openSimsSink(unsortedFile))
+                : getK() > 0
+                ? new KNearestNeighboursObjectSink(openNeighboursSink(), getK())
+                : getNumThreads() > 1
+                ? new QueuedWeightedTokenPairSink(openSimsSink(getOutputFile()))
+                : openSimsSink(getOutputFile());
 
         final NaiveApssTask apss = newAlgorithmInstance();
 
@@ -275,6 +416,7 @@ public class AllPairsCommand extends AbstractCommand {
         apss.setSink(sink);
         apss.setMeasure(proximity);
         apss.setProducatePair(getProductionFilter());
+        apss.setMinSimilarity(getMinSimilarity());
 
 
         apss.addProgressListener(new ProgressListener() {
@@ -300,9 +442,30 @@ public class AllPairsCommand extends AbstractCommand {
         if (sourceB instanceof Closeable)
             ((Closeable) sourceB).close();
 
+        if (store != null) {
+            store.close();
+            if (!store.getFile().delete() && LOG.isWarnEnabled())
+                LOG.warn("Unable to delete vector store " + store.getFile());
+        }
+
         if (apss.isExceptionTrapped())
             apss.throwTrappedException();
 
+        // The output is complete, so the checkpoint is no longer needed.
+        if (isCheckpointed())
+            ((ThreadedApssTask) apss).deleteCheckpoint();
+
+        if (isSharded()) {
+            sortShard(unsortedFile);
+            final ShardManifest manifest = ((ThreadedApssTask) apss).getShardManifest();
+            manifest.store(ShardManifest.sidecarFile(getOutputFile()));
+            if (LOG.isInfoEnabled())
+                LOG.info("Wrote manifest of shard " + manifest.getShardIndex()
+                        + "/" + manifest.getShardCount() + " covering "
+                        + manifest.getChunkPairs().length + " of "
+                        + manifest.getGridSize() + " chunk pairs.");
+        }
+
         if (indexDelegate.isEnumeratorOpen()) {
             indexDelegate.saveEnumerator();
             indexDelegate.closeEnumerator();
@@ -352,20 +515,391 @@ public class AllPairsCommand extends AbstractCommand {
         return entryFreqs;
     }
 
-    private NaiveApssTask newAlgorithmInstance()
-            throws InstantiationException, IllegalAccessException {
+    private boolean isVectorStoreUsed() {
+        return !isTextVectors()
+                && (getNumThreads() > 1 || isSharded() || isCheckpointed()
+                || getAlgorithm() == Algorithm.Naive);
+    }
+
+    /**
+     * Whether the run is divided between the threaded task's chunk pairs
+     * rather than being handed to a single algorithm instance.
+     */
+    private boolean isChunked() {
+        return isSharded() || isCheckpointed();
+    }
+
+    private boolean isCheckpointed() {
+        return isCheckpoint() || isResume();
+    }
+
+    /**
+     * @return the directory in which completed chunk pairs are journalled,
+     *         alongside the output file
+     */
+    public File getCheckpointDirectory() {
+        return checkpointDirectory(getOutputFile());
+    }
+
+    /**
+     * @param outputFile output file of an all-pairs run
+     * @return the directory in which the run journals completed chunk pairs
+     */
+    public static File checkpointDirectory(File outputFile) {
+        return new File(outputFile.getPath() + ".checkpoint");
+    }
+
+    private boolean isSharded() {
+        return getShardCount() > 1;
+    }
+
+    /**
+     * Sort the sims of this shard into the output file, so that shards can be
+     * merged without sorting again.
+     */
+    private void sortShard(File unsortedFile) throws Exception {
+        if (LOG.isInfoEnabled())
+            LOG.info("Sorting shard output " + unsortedFile + " to " + getOutputFile());
+        final ExternalSortSimsCommand sortCmd = new ExternalSortSimsCommand(
+                unsortedFile, getOutputFile(), getCharset(), getIndexDelegate());
+        sortCmd.setK(getK());
+        sortCmd.setNumThreads(getNumThreads());
+        sortCmd.setTempFileFactory(getTempFiles());
+        sortCmd.runCommand();
+        if (!unsortedFile.delete() && LOG.isWarnEnabled())
+            LOG.warn("Unable to delete unsorted shard output " + unsortedFile);
+    }
+
+    private boolean isIncremental() {
+        return getPreviousEventsFile() != null || getPreviousSimsFile() != null;
+    }
+
+    /**
+     * Patch the output of a previous run, rather than scoring every pair
+     * again. Pairs between entries whose vectors are unchanged are copied
+     * from the previous output; those involving a removed entry are dropped;
+     * and the added or modified entries are scored against every entry.
+     * <p/>
+     * When the previous output holds only the k nearest neighbours, an
+     * unchanged entry that loses a neighbour can't recover the one that was
+     * next in line, so it may be left with fewer than k.
+     */
+    private void runIncremental(Proximity proximity) throws Exception {
+        if (getPreviousEventsFile() == null || getPreviousSimsFile() == null)
+            throw new IllegalStateException(
+                    "Incremental runs require both --previous-events and --previous-sims.");
+        // Vectors and pairs are matched to the previous run by id.
+        if (!isEnumeratedEntries() || !isEnumeratedFeatures())
+            throw new IllegalStateException(
+                    "Incremental runs require enumerated entries and features.");
+        if ((AbstractMIProximity.class.isAssignableFrom(getMeasureClass())
+                || KendallTau.class.isAssignableFrom(getMeasureClass()))
+                && LOG.isWarnEnabled())
+            LOG.warn("Measure " + getMeasureName() + " depends on the feature "
+                    + "frequencies; pairs between unchanged entries keep the scores "
+                    + "computed from the previous frequencies.");
+
+        if (LOG.isInfoEnabled())
+            LOG.info("Comparing events file " + getEventsFile()
+                    + " with previous events file " + getPreviousEventsFile());
+        final FastWeightedTokenPairVectorSource previousEvents =
+                BybloIO.openEventsVectorSource(
+                        getPreviousEventsFile(), getCharset(), getIndexDelegate());
+        final FastWeightedTokenPairVectorSource currentEvents = openEventsSource();
+        final VectorChanges changes = VectorChanges.compare(previousEvents, currentEvents);
+        if (previousEvents instanceof Closeable)
+            ((Closeable) previousEvents).close();
+        if (currentEvents instanceof Closeable)
+            ((Closeable) currentEvents).close();
+        if (LOG.isInfoEnabled())
+            LOG.info("Found entry vector changes: " + changes);
+
+        final File patchedFile = tempFiles.createFile("sims", ".tmp");
+        final WeightedTokenPairSink patched = openSimsSink(patchedFile);
+
+        final WeightedTokenPairSource previousSims = getK() > 0
+                ? BybloIO.openNeighboursSource(getPreviousSimsFile(), getCharset(), getIndexDelegate())
+                : BybloIO.openSimsSource(getPreviousSimsFile(), getCharset(), getIndexDelegate());
+        long keptCount = 0;
+        long droppedCount = 0;
+        while (previousSims.hasNext()) {
+            final Weighted<TokenPair> pair = previousSims.read();
+            if (changes.isStale(pair.record().id1()) || changes.isStale(pair.record().id2())) {
+                ++droppedCount;
+            } else {
+                patched.write(pair);
+                ++keptCount;
+            }
+        }
+        previousSims.close();
+        if (LOG.isInfoEnabled())
+            LOG.info("Kept " + keptCount + " previous pairs; dropped " + droppedCount
+                    + " involving changed or removed entries.");
+
+        if (!changes.getChangedVectors().isEmpty()) {
+            final File changedStoreFile = tempFiles.createFile("vectors", ".bin");
+            MappedVectorStore.write(ObjectIO.asSource(
+                    (Iterable<Indexed<SparseDoubleVector>>) changes.getChangedVectors()),
+                    changedStoreFile);
+            final MappedVectorStore changedStore = MappedVectorStore.open(changedStoreFile);
+            final MappedVectorStore store = isTextVectors() ? null : createVectorStore();
+
+            // Score every entry against the changed entries. The changed
+            // vectors are always source A, the side that is indexed, since
+            // there are usually far fewer of them; the first entry of each
+            // pair produced is from source B. A symmetric measure gives the
+            // reverse pairs for free. Otherwise they are scored in a second
+            // pass with the measure reversed, and swapped back.
+            runIncrementalPass(proximity, changedStore.openSource(),
+                    store != null ? store.openSource() : openEventsSource(),
+                    proximity.isSymmetric() ? new ReflectUnchangedSink(patched, changes) : patched,
+                    proximity.isSymmetric() ? getProductionFilter()
+                    : Predicates.<Weighted<TokenPair>>and(getProductionFilter(),
+                            Predicates.not(firstIsChanged(changes))));
+            if (!proximity.isSymmetric()) {
+                runIncrementalPass(reverse(proximity), changedStore.openSource(),
+                        store != null ? store.openSource() : openEventsSource(),
+                        new SwapPairsSink(patched), getProductionFilter());
+            }
+
+            changedStore.close();
+            if (!changedStoreFile.delete() && LOG.isWarnEnabled())
+                LOG.warn("Unable to delete vector store " + changedStoreFile);
+            if (store != null) {
+                store.close();
+                if (!store.getFile().delete() && LOG.isWarnEnabled())
+                    LOG.warn("Unable to delete vector store " + store.getFile());
+            }
+        }
+
+        patched.flush();
+        patched.close();
+
+        // Sort the patched pairs into the output, choosing the k nearest
+        // neighbours of each entry along the way.
+        final File sortedFile = getK() > 0
+                ? tempFiles.createFile("sims", ".tmp") : getOutputFile();
+        final ExternalSortSimsCommand sortCmd = new ExternalSortSimsCommand(
+                patchedFile, sortedFile, getCharset(), getIndexDelegate());
+        sortCmd.setK(getK());
+        sortCmd.setNumThreads(getNumThreads());
+        sortCmd.setTempFileFactory(getTempFiles());
+        sortCmd.runCommand();
+        if (!patchedFile.delete() && LOG.isWarnEnabled())
+            LOG.warn("Unable to delete patched sims " + patchedFile);
+
+        if (getK() > 0) {
+            final WeightedTokenPairSource sorted = BybloIO.openSimsSource(
+                    sortedFile, getCharset(), getIndexDelegate());
+            final WeightedTokenPairSink neighbours = openNeighboursSink();
+            ObjectIO.copy(sorted, neighbours);
+            sorted.close();
+            neighbours.flush();
+            neighbours.close();
+            if (!sortedFile.delete() && LOG.isWarnEnabled())
+                LOG.warn("Unable to delete sorted sims " + sortedFile);
+        }
+
+        if (indexDelegate.isEnumeratorOpen()) {
+            indexDelegate.saveEnumerator();
+            indexDelegate.closeEnumerator();
+        }
+
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Completed incremental all-pairs similarity search.");
+        }
+    }
+
+    /**
+     * The two sources may be of different kinds, with different position
+     * types, so positions are handled as plain objects. This is safe because
+     * the task only ever hands a source back positions that it produced.
+     */
+    @SuppressWarnings("unchecked")
+    private void runIncrementalPass(
+            Proximity proximity,
+            SeekableObjectSource<Indexed<SparseDoubleVector>, ?> sourceA,
+            SeekableObjectSource<Indexed<SparseDoubleVector>, ?> sourceB,
+            ObjectSink<Weighted<TokenPair>> sink,
+            Predicate<Weighted<TokenPair>> producePair) throws Exception {
+        final NaiveApssTask<Object> apss = newThreadedInstance(false);
+        apss.setSourceA((SeekableObjectSource<Indexed<SparseDoubleVector>, Object>) sourceA);
+        apss.setSourceB((SeekableObjectSource<Indexed<SparseDoubleVector>, Object>) sourceB);
+        apss.setSink(sink);
+        apss.setMeasure(proximity);
+        apss.setProducatePair(producePair);
+        apss.setMinSimilarity(getMinSimilarity());
+        apss.run();
+
+        if (sourceA instanceof Closeable)
+            ((Closeable) sourceA).close();
+        if (sourceB instanceof Closeable)
+            ((Closeable) sourceB).close();
+
+        if (apss.isExceptionTrapped())
+            apss.throwTrappedException();
+    }
+
+    private static Proximity reverse(Proximity proximity) {
+        return proximity instanceof ReversedProximity
+               ? ((ReversedProximity) proximity).getInner()
+               : new ReversedProximity(proximity);
+    }
+
+    private static Predicate<Weighted<TokenPair>> firstIsChanged(final VectorChanges changes) {
+        return new Predicate<Weighted<TokenPair>>() {
+
+            @Override
+            public boolean apply(Weighted<TokenPair> pair) {
+                return changes.getChangedIds().contains(pair.record().id1());
+            }
+
+        };
+    }
+
+    /**
+     * Writes each pair scored against a changed entry, and also its reverse
+     * when the first entry is unchanged. The reverse of a pair between two
+     * changed entries is scored in its own right, so it isn't written twice.
+     */
+    private static final class ReflectUnchangedSink implements ObjectSink<Weighted<TokenPair>> {
+
+        private final ObjectSink<Weighted<TokenPair>> inner;
+
+        private final VectorChanges changes;
+
+        ReflectUnchangedSink(ObjectSink<Weighted<TokenPair>> inner, VectorChanges changes) {
+            this.inner = inner;
+            this.changes = changes;
+        }
+
+        @Override
+        public void write(Weighted<TokenPair> pair) throws IOException {
+            inner.write(pair);
+            final TokenPair record = pair.record();
+            if (!changes.getChangedIds().contains(record.id1())) {
+                inner.write(new Weighted<TokenPair>(
+                        new TokenPair(record.id2(), record.id1()), pair.weight()));
+            }
+        }
+    }
 
-        if (getNumThreads() == 1) {
-            return getAlgorithm().newInstance();
+    /**
+     * Writes the reverse of each pair, for pairs scored with a reversed
+     * measure.
+     */
+    private static final class SwapPairsSink implements ObjectSink<Weighted<TokenPair>> {
+
+        private final ObjectSink<Weighted<TokenPair>> inner;
+
+        SwapPairsSink(ObjectSink<Weighted<TokenPair>> inner) {
+            this.inner = inner;
+        }
+
+        @Override
+        public void write(Weighted<TokenPair> pair) throws IOException {
+            inner.write(new Weighted<TokenPair>(new TokenPair(
+                    pair.record().id2(), pair.record().id1()), pair.weight()));
+        }
+    }
+
+    private MappedVectorStore createVectorStore() throws IOException {
+        final File storeFile = tempFiles.createFile("vectors", ".bin");
+        if (LOG.isInfoEnabled())
+            LOG.info("Converting events file " + getEventsFile()
+                    + " to vector store " + storeFile);
+        final FastWeightedTokenPairVectorSource events = openEventsSource();
+        MappedVectorStore.write(events, storeFile);
+        if (events instanceof Closeable)
+            ((Closeable) events).close();
+        final MappedVectorStore store = MappedVectorStore.open(storeFile);
+        if (LOG.isInfoEnabled())
+            LOG.info("Opened " + store);
+        return store;
+    }
+
+    private NaiveApssTask newAlgorithmInstance()
+            throws InstantiationException, IllegalAccessException, IOException {
+
+        if (getAlgorithm() == Algorithm.Partitioned && !isChunked()) {
+            // Does its own threading, one thread per feature partition
+            if (getMemoryBudget() > 0 && LOG.isWarnEnabled())
+                LOG.warn("The partitioned algorithm indexes all the vectors in "
+                        + "memory, ignoring the memory budget; use --checkpoint "
+                        + "to process them in chunks instead.");
+            final PartitionedApssTask<Object> apss = new PartitionedApssTask<Object>();
+            apss.setNumPartitions(getNumThreads());
+            return apss;
+        } else if (getNumThreads() == 1 && !isChunked()) {
+            return newSingleAlgorithmInstance();
         } else {
-            ThreadedApssTask<Tell> tapss = new ThreadedApssTask<Tell>();
-            tapss.setInnerAlgorithm(getAlgorithm().getImplementation());
-            tapss.setNumThreads(getNumThreads());
+            // Both sources are read from the same events file, so symmetric
+            // measures need only compute the upper triangle of chunk pairs.
+            final ThreadedApssTask<Object> tapss = newThreadedInstance(true);
+            tapss.setShard(getShardIndex(), getShardCount());
+            if (isCheckpointed()) {
+                tapss.setCheckpointDirectory(getCheckpointDirectory());
+                tapss.setResume(isResume());
+            }
             return tapss;
         }
 
     }
 
+    /**
+     * Create a task that divides the sources into chunks sized to the memory
+     * budget, and runs the chosen algorithm on pairs of them across threads.
+     */
+    private ThreadedApssTask<Object> newThreadedInstance(boolean triangular)
+            throws IOException {
+        final ThreadedApssTask<Object> tapss = new ThreadedApssTask<Object>();
+        tapss.setInnerAlgorithm(getAlgorithm().getImplementation());
+        tapss.setNumThreads(getNumThreads());
+        tapss.setTriangularScheduling(triangular);
+        tapss.setMemoryBudget(getMemoryBudget());
+        tapss.setVectorStats(loadVectorStats());
+        tapss.setLshBands(getLshBands());
+        tapss.setLshRows(getLshRows());
+        tapss.setLshSeed(getLshSeed());
+        tapss.setMaxChunkSize(getChunkSize());
+        return tapss;
+    }
+
+    private NaiveApssTask newSingleAlgorithmInstance()
+            throws InstantiationException, IllegalAccessException {
+        final NaiveApssTask apss = getAlgorithm().newInstance();
+        if (apss instanceof LshApssTask) {
+            ((LshApssTask) apss).setBands(getLshBands());
+            ((LshApssTask) apss).setRows(getLshRows());
+            ((LshApssTask) apss).setSeed(getLshSeed());
+        }
+        return apss;
+    }
+
+    /**
+     * Load the vector cardinality statistics recorded alongside the events
+     * file by the count or filter stages, if there are any.
+     */
+    private VectorCardinalityStats loadVectorStats() throws IOException {
+        final File statsFile = VectorCardinalityStats.sidecarFile(getEventsFile());
+        if (!statsFile.exists()) {
+            if (LOG.isInfoEnabled())
+                LOG.info("No vector statistics found at " + statsFile
+                        + "; chunk sizes will be estimated conservatively.");
+            return null;
+        }
+        if (statsFile.lastModified() < getEventsFile().lastModified()) {
+            if (LOG.isWarnEnabled())
+                LOG.warn("Ignoring vector statistics " + statsFile
+                        + " because they are older than the events file.");
+            return null;
+        }
+        final VectorCardinalityStats stats = VectorCardinalityStats.load(statsFile);
+        if (LOG.isInfoEnabled())
+            LOG.info("Loaded vector statistics: " + stats);
+        return stats;
+    }
+
     private WeightedTokenSource openFeaturesSource() throws IOException {
         return BybloIO.openFeaturesSource(
                 getFeaturesFile(), getCharset(),
@@ -378,13 +912,19 @@ public class AllPairsCommand extends AbstractCommand {
                 getIndexDelegate());
     }
 
-    private WeightedTokenPairSink openSimsSink() throws IOException {
+    private WeightedTokenPairSink openSimsSink(File file) throws IOException {
         return BybloIO.openSimsSink(
-                getOutputFile(), getCharset(),
+                file, getCharset(),
                 EnumeratingDelegates.toSingleEntries(getIndexDelegate()));
 
     }
 
+    private WeightedTokenPairSink openNeighboursSink() throws IOException {
+        return BybloIO.openNeighboursSink(
+                getOutputFile(), getCharset(),
+                EnumeratingDelegates.toSingleEntries(getIndexDelegate()));
+    }
+
     private Predicate<Weighted<TokenPair>> getProductionFilter() {
         List<Predicate<Weighted<TokenPair>>> pairFilters =
                 new ArrayList<Predicate<Weighted<TokenPair>>>();
@@ -461,12 +1001,98 @@ public class AllPairsCommand extends AbstractCommand {
                 add("minSimilarity", getMinSimilarity()).
                 add("maxSimilarity", getMaxSimilarity()).
                 add("outputIdentityPairs", isOutputIdentityPairs()).
+                add("k", getK()).
+                add("memoryBudget", getMemoryBudget()).
+                add("textVectors", isTextVectors()).
+                add("tempFiles", getTempFiles()).
                 add("measure", getMeasureName()).
                 add("measureReversed", isMeasureReversed()).
                 add("leeAlpha", getLeeAlpha()).
                 add("crmiBeta", getCrmiBeta()).
                 add("crmiGamma", getCrmiGamma()).
-                add("minkP", getMinkP());
+                add("minkP", getMinkP()).
+                add("algorithm", getAlgorithm()).
+                add("lshBands", getLshBands()).
+                add("lshRows", getLshRows()).
+                add("lshSeed", getLshSeed()).
+                add("shard", getShardIndex() + "/" + getShardCount()).
+                add("chunkSize", getChunkSize()).
+                add("checkpoint", isCheckpoint()).
+                add("resume", isResume()).
+                add("previousEvents", getPreviousEventsFile()).
+                add("previousSims", getPreviousSimsFile());
+    }
+
+    public int getShardIndex() {
+        return shard[0];
+    }
+
+    public int getShardCount() {
+        return shard[1];
+    }
+
+    public void setShard(int shardIndex, int shardCount) {
+        Checks.checkRangeIncl("shardCount", shardCount, 1, Integer.MAX_VALUE);
+        Checks.checkRangeIncl("shardIndex", shardIndex, 0, shardCount - 1);
+        this.shard = new int[]{shardIndex, shardCount};
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        Checks.checkRangeIncl("chunkSize", chunkSize, 0, Integer.MAX_VALUE);
+        this.chunkSize = chunkSize;
+    }
+
+    public boolean isCheckpoint() {
+        return checkpoint;
+    }
+
+    public void setCheckpoint(boolean checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    public boolean isResume() {
+        return resume;
+    }
+
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    public File getPreviousEventsFile() {
+        return previousEventsFile;
+    }
+
+    public void setPreviousEventsFile(File previousEventsFile) {
+        this.previousEventsFile = previousEventsFile;
+    }
+
+    public File getPreviousSimsFile() {
+        return previousSimsFile;
+    }
+
+    public void setPreviousSimsFile(File previousSimsFile) {
+        this.previousSimsFile = previousSimsFile;
+    }
+
+    public boolean isTextVectors() {
+        return textVectors;
+    }
+
+    public void setTextVectors(boolean textVectors) {
+        this.textVectors = textVectors;
+    }
+
+    public FileFactory getTempFiles() {
+        return tempFiles;
+    }
+
+    public void setTempFiles(FileFactory tempFiles) {
+        Checks.checkNotNull("tempFiles", tempFiles);
+        this.tempFiles = tempFiles;
     }
 
     public Algorithm getAlgorithm() {
@@ -478,6 +1104,32 @@ public class AllPairsCommand extends AbstractCommand {
         this.algorithm = algorithm;
     }
 
+    public int getLshBands() {
+        return lshBands;
+    }
+
+    public void setLshBands(int lshBands) {
+        Checks.checkRangeIncl("lshBands", lshBands, 1, Integer.MAX_VALUE);
+        this.lshBands = lshBands;
+    }
+
+    public int getLshRows() {
+        return lshRows;
+    }
+
+    public void setLshRows(int lshRows) {
+        Checks.checkRangeIncl("lshRows", lshRows, 0, Long.SIZE);
+        this.lshRows = lshRows;
+    }
+
+    public long getLshSeed() {
+        return lshSeed;
+    }
+
+    public void setLshSeed(long lshSeed) {
+        this.lshSeed = lshSeed;
+    }
+
     public final File getEventsFile() {
         return eventsFile;
     }
@@ -557,6 +1209,26 @@ public class AllPairsCommand extends AbstractCommand {
         this.outputIdentityPairs = outputIdentityPairs;
     }
 
+    public final int getK() {
+        return k;
+    }
+
+    public final void setK(int k) {
+        if (k < 0)
+            throw new IllegalArgumentException("k < 0");
+        this.k = k;
+    }
+
+    public final long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public final void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0)
+            throw new IllegalArgumentException("memoryBudget < 0");
+        this.memoryBudget = memoryBudget;
+    }
+
     public final String getMeasureName() {
         return measureName;
     }
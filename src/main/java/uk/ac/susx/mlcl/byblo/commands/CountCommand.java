@@ -260,6 +260,8 @@ public class CountCommand extends AbstractCommand {
         CountTask task = new CountTask(
                 instanceSource, eventsSink, entrySink, featureSink,
                 getEventOrder(), getEntryOrder(), getFeatureOrder());
+        task.setEventIndexOrder(indexDelegate.isEnumeratedEntries()
+                && indexDelegate.isEnumeratedFeatures());
 
 
         final ProgressListener listener = new ReportingProgressListener();
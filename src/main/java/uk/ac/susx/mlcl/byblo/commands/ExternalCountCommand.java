@@ -41,6 +41,7 @@ import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
 import uk.ac.susx.mlcl.byblo.enumerators.EnumeratorType;
 import uk.ac.susx.mlcl.byblo.io.*;
 import uk.ac.susx.mlcl.byblo.tasks.CountTask;
+import uk.ac.susx.mlcl.byblo.tasks.ParallelCountTask;
 import uk.ac.susx.mlcl.lib.AbstractParallelCommandTask;
 import uk.ac.susx.mlcl.lib.Checks;
 import uk.ac.susx.mlcl.lib.MiscUtil;
@@ -51,7 +52,7 @@ import uk.ac.susx.mlcl.lib.events.ProgressReporting;
 import uk.ac.susx.mlcl.lib.events.ReportingProgressListener;
 import uk.ac.susx.mlcl.lib.io.*;
 import uk.ac.susx.mlcl.lib.tasks.FileDeleteTask;
-import uk.ac.susx.mlcl.lib.tasks.ObjectMergeTask;
+import uk.ac.susx.mlcl.lib.tasks.ObjectKWayMergeTask;
 import uk.ac.susx.mlcl.lib.tasks.ObjectSortTask;
 import uk.ac.susx.mlcl.lib.tasks.Task;
 
@@ -75,9 +76,7 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
 
     protected static final String KEY_SRC_FILE = "KEY_SRC_FILE";
 
-    protected static final String KEY_SRC_FILE_A = "KEY_SRC_FILE_A";
-
-    protected static final String KEY_SRC_FILE_B = "KEY_SRC_FILE_B";
+    protected static final String KEY_SRC_FILES = "KEY_SRC_FILES";
 
     protected static final String KEY_DST_FILE = "KEY_DST_FILE";
 
@@ -133,6 +132,17 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
             description = "Directory used for holding temporary files.", converter = TempFileFactoryConverter.class)
     private FileFactory tempFileFactory = new TempFileFactory();
 
+    @Parameter(names = {"--in-memory"},
+            description = "Count the whole input in memory, partitioned across threads, instead of "
+                    + "counting chunks to temporary files and merging them. Faster, but the "
+                    + "distinct events must all fit in the heap.")
+    private boolean inMemory = false;
+
+    @Parameter(names = {"--merge-fan-in"},
+            description = "Maximum number of sorted runs that are merged at once.",
+            validateWith = MergeFanInValidator.class)
+    private int mergeFanIn = AbstractExternalSortCommand.DEFAULT_MERGE_FAN_IN;
+
     private Queue<File> mergeEntryQueue;
 
     private Queue<File> mergeFeaturesQueue;
@@ -179,6 +189,23 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
         this.indexDelegate = indexDelegate;
     }
 
+    public final boolean isInMemory() {
+        return inMemory;
+    }
+
+    public final void setInMemory(boolean inMemory) {
+        this.inMemory = inMemory;
+    }
+
+    public final int getMergeFanIn() {
+        return mergeFanIn;
+    }
+
+    public final void setMergeFanIn(int mergeFanIn) {
+        Checks.checkRangeIncl("mergeFanIn", mergeFanIn, 2, Integer.MAX_VALUE);
+        this.mergeFanIn = mergeFanIn;
+    }
+
     public FileFactory getTempFileFactory() {
         return tempFileFactory;
     }
@@ -247,15 +274,21 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
 
         progress.startAdjusting();
         progress.setState(State.RUNNING);
-        progress.setMessage("Mapping to small count tasks");
+        progress.setMessage(isInMemory()
+                ? "Counting in memory"
+                : "Mapping to small count tasks");
         progress.endAdjusting();
 
-        map();
+        if (isInMemory()) {
+            countInMemory();
+        } else {
+            map();
 
-        progress.setMessage("Merging and aggregating results");
+            progress.setMessage("Merging and aggregating results");
 
-        clearCompleted(true);
-        finish();
+            clearCompleted(true);
+            finish();
+        }
 
         if (indexDelegate.isEnumeratorOpen()) {
             indexDelegate.saveEnumerator();
@@ -328,6 +361,50 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
 
     }
 
+    /**
+     * Count the whole instances file with a single {@link ParallelCountTask},
+     * writing the final outputs directly.
+     */
+    protected void countInMemory() throws Exception {
+        final SeekableObjectSource<TokenPair, Tell> src = openInstancesSource(getInputFile());
+        final ObjectSink<Weighted<Token>> entrySink = openEntriesSink(getEntriesFile());
+        final ObjectSink<Weighted<Token>> featureSink = openFeaturesSink(getFeaturesFile());
+        final ObjectSink<Weighted<TokenPair>> eventsSink = openEventsSink(getEventsFile());
+
+        // The sort and merge stages of the external count leave every output
+        // in index order, so the same order is produced here; the packed event
+        // keys can then always be radix sorted.
+        final ParallelCountTask task = new ParallelCountTask(src, eventsSink, entrySink,
+                featureSink, Weighted.recordOrder(TokenPair.indexOrder()),
+                Weighted.recordOrder(Token.indexOrder()),
+                Weighted.recordOrder(Token.indexOrder()));
+        task.setEventIndexOrder(true);
+        task.setNumThreads(getNumThreads());
+
+        progress.addChildProgressReporter(task);
+        task.run();
+
+        while (task.isExceptionTrapped())
+            task.throwTrappedException();
+
+        if (entrySink instanceof Flushable)
+            ((Flushable) entrySink).flush();
+        if (entrySink instanceof Closeable)
+            ((Closeable) entrySink).close();
+        if (featureSink instanceof Flushable)
+            ((Flushable) featureSink).flush();
+        if (featureSink instanceof Closeable)
+            ((Closeable) featureSink).close();
+        if (eventsSink instanceof Flushable)
+            ((Flushable) eventsSink).flush();
+        if (eventsSink instanceof Closeable)
+            ((Closeable) eventsSink).close();
+        if (src instanceof Closeable)
+            ((Closeable) src).close();
+
+        storeVectorStats();
+    }
+
     protected void handleCompletedTask(Task task) throws Exception {
         while (task.isExceptionTrapped())
             task.throwTrappedException();
@@ -395,21 +472,10 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
 
         } else if (taskType.equals(VALUE_TASK_TYPE_MERGE)) {
 
-            final File srca = new File(task.getProperty(KEY_SRC_FILE_A));
-            final File srcb = new File(task.getProperty(KEY_SRC_FILE_B));
             final File dst = new File(task.getProperty(KEY_DST_FILE));
 
-            ObjectMergeTask<?> mergeTask = (ObjectMergeTask<?>) task;
-
-            if (mergeTask.getSink() instanceof Flushable)
-                ((Flushable) mergeTask.getSink()).flush();
-
-            if (mergeTask.getSink() instanceof Closeable)
-                ((Closeable) mergeTask.getSink()).close();
-            if (mergeTask.getSourceA() instanceof Closeable)
-                ((Closeable) mergeTask.getSourceA()).close();
-            if (mergeTask.getSourceB() instanceof Closeable)
-                ((Closeable) mergeTask.getSourceB()).close();
+            ObjectKWayMergeTask<?> mergeTask = (ObjectKWayMergeTask<?>) task;
+            closeMergeTask(mergeTask);
 
             if (dataType.equals(VALUE_DATA_TYPE_ENTRIES))
                 submitMergeEntriesTask(dst);
@@ -421,8 +487,8 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
                 throw new AssertionError();
 
             if (!DEBUG) {
-                submitDeleteTask(srca);
-                submitDeleteTask(srcb);
+                for (String src : task.getProperty(KEY_SRC_FILES).split(File.pathSeparator))
+                    submitDeleteTask(new File(src));
             }
 
         } else {
@@ -433,23 +499,68 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
     protected void finish() throws Exception {
         checkState();
 
-        File finalMerge;
-
-        finalMerge = mergeEntryQueue.poll();
-        if (finalMerge == null)
+        // Fewer than mergeFanIn runs are left of each type, so they can be
+        // merged straight into the outputs.
+        if (mergeEntryQueue.isEmpty())
             throw new AssertionError("The entry merge queue is empty but final copy has not been completed.");
-        new FileMoveCommand(finalMerge, getEntriesFile()).runCommand();
+        finishMerge(mergeEntryQueue, VALUE_DATA_TYPE_ENTRIES, getEntriesFile());
 
-        finalMerge = mergeEventQueue.poll();
-        if (finalMerge == null)
+        if (mergeEventQueue.isEmpty())
             throw new AssertionError("The entry/feature merge queue is empty but final copy has not been completed.");
-        new FileMoveCommand(finalMerge, getEventsFile()).runCommand();
+        finishMerge(mergeEventQueue, VALUE_DATA_TYPE_EVENTS, getEventsFile());
 
-        finalMerge = mergeFeaturesQueue.poll();
-        if (finalMerge == null)
+        if (mergeFeaturesQueue.isEmpty())
             throw new AssertionError("The feature merge queue is empty but final copy has not been completed.");
-        new FileMoveCommand(finalMerge, getFeaturesFile()).runCommand();
+        finishMerge(mergeFeaturesQueue, VALUE_DATA_TYPE_FEATURES, getFeaturesFile());
 
+        storeVectorStats();
+    }
+
+    // The runs are binary, so even a single one is merged, to convert it to
+    // the output format.
+    private void finishMerge(Queue<File> queue, String dataType, File output)
+            throws Exception {
+        final List<File> srcFiles = new ArrayList<File>(queue);
+        queue.clear();
+        final ObjectKWayMergeTask<?> task = createMergeTask(dataType, srcFiles, output, true);
+        task.run();
+        while (task.isExceptionTrapped())
+            task.throwTrappedException();
+        closeMergeTask(task);
+
+        if (!DEBUG) {
+            for (File src : srcFiles) {
+                if (!src.delete() && LOG.isWarnEnabled())
+                    LOG.warn("Unable to delete temporary file " + src);
+            }
+        }
+    }
+
+    private static void closeMergeTask(ObjectKWayMergeTask<?> mergeTask) throws IOException {
+        if (mergeTask.getSink() instanceof Flushable)
+            ((Flushable) mergeTask.getSink()).flush();
+        if (mergeTask.getSink() instanceof Closeable)
+            ((Closeable) mergeTask.getSink()).close();
+        for (ObjectSource<?> src : mergeTask.getSources()) {
+            if (src instanceof Closeable)
+                ((Closeable) src).close();
+        }
+    }
+
+    // Record the cardinality statistics of the event vectors, so the
+    // all-pairs stage can size its chunks from them.
+    private void storeVectorStats() throws IOException {
+        final WeightedTokenPairSource src = BybloIO.openEventsSource(
+                getEventsFile(), getCharset(), indexDelegate);
+        final VectorCardinalityStats stats;
+        try {
+            stats = VectorCardinalityStats.compute(src);
+        } finally {
+            src.close();
+        }
+        stats.store(VectorCardinalityStats.sidecarFile(getEventsFile()));
+        if (LOG.isInfoEnabled())
+            LOG.info("Vector statistics: " + stats);
     }
 
     private Comparator<Weighted<Token>> getEntryOrder() throws IOException {
@@ -474,12 +585,14 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
                                    File outEntries, File outFeatures, File outEvents)
             throws IOException, InterruptedException {
 
-        ObjectSink<Weighted<Token>> entrySink = openEntriesSink(outEntries);
-        ObjectSink<Weighted<Token>> featureSink = openFeaturesSink(outFeatures);
-        ObjectSink<Weighted<TokenPair>> eventsSink = openEventsSink(outEvents);
+        ObjectSink<Weighted<Token>> entrySink = openTokenRunSink(outEntries);
+        ObjectSink<Weighted<Token>> featureSink = openTokenRunSink(outFeatures);
+        ObjectSink<Weighted<TokenPair>> eventsSink = openEventRunSink(outEvents);
 
         CountTask task = new CountTask(instanceSource, eventsSink, entrySink,
                 featureSink, getEventOrder(), getEntryOrder(), getFeatureOrder());
+        task.setEventIndexOrder(indexDelegate.isEnumeratedEntries()
+                && indexDelegate.isEnumeratedFeatures());
 
         task.setProperty(KEY_TASK_TYPE, VALUE_TASK_TYPE_COUNT);
 
@@ -504,8 +617,8 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
         File srcFile = file;
         File dstFile = tempFileFactory.createFile("mrg.ent.", "");
 
-        ObjectSource<Weighted<Token>> src = openEntriesSource(srcFile);
-        ObjectSink<Weighted<Token>> snk = openEntriesSink(dstFile);
+        ObjectSource<Weighted<Token>> src = openTokenRunSource(srcFile);
+        ObjectSink<Weighted<Token>> snk = openTokenRunSink(dstFile);
 
         ObjectSortTask<Weighted<Token>> task = new ObjectSortTask<Weighted<Token>>(src, snk);
         task.setComparator(Weighted.recordOrder(Token.indexOrder()));
@@ -525,8 +638,8 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
         File srcFile = file;
         File dstFile = tempFileFactory.createFile("mrg.feat.", "");
 
-        ObjectSource<Weighted<Token>> src = openFeaturesSource(srcFile);
-        ObjectSink<Weighted<Token>> snk = openFeaturesSink(dstFile);
+        ObjectSource<Weighted<Token>> src = openTokenRunSource(srcFile);
+        ObjectSink<Weighted<Token>> snk = openTokenRunSink(dstFile);
 
         ObjectSortTask<Weighted<Token>> task = new ObjectSortTask<Weighted<Token>>(src, snk);
         task.setComparator(Weighted.recordOrder(Token.indexOrder()));
@@ -546,8 +659,8 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
         File srcFile = file;
         File dstFile = tempFileFactory.createFile("mrg.feat.", "");
 
-        ObjectSource<Weighted<TokenPair>> src = openEventsSource(srcFile);
-        ObjectSink<Weighted<TokenPair>> snk = openEventsSink(dstFile);
+        ObjectSource<Weighted<TokenPair>> src = openEventRunSource(srcFile);
+        ObjectSink<Weighted<TokenPair>> snk = openEventRunSink(dstFile);
 
         ObjectSortTask<Weighted<TokenPair>> task = new ObjectSortTask<Weighted<TokenPair>>(src, snk);
         task.setComparator(Weighted.recordOrder(TokenPair.indexOrder()));
@@ -565,82 +678,86 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
     private void submitMergeEntriesTask(File dst) throws IOException,
             InterruptedException {
         mergeEntryQueue.add(dst);
-        if (mergeEntryQueue.size() >= 2) {
-            File srcFileA = mergeEntryQueue.poll();
-            File srcFileB = mergeEntryQueue.poll();
-            File dstFile = tempFileFactory.createFile("mrg.ent.", "");
-
-            ObjectSource<Weighted<Token>> srcA = openEntriesSource(srcFileA);
-            ObjectSource<Weighted<Token>> srcB = openEntriesSource(srcFileB);
-            ObjectSink<Weighted<Token>> snk = openEntriesSink(dstFile);
-
-            ObjectMergeTask<Weighted<Token>> task = new ObjectMergeTask<Weighted<Token>>(srcA, srcB, snk);
-            task.setComparator(Weighted.recordOrder(Token.indexOrder()));
-
-            task.setProperty(KEY_TASK_TYPE, VALUE_TASK_TYPE_MERGE);
-            task.setProperty(KEY_DATA_TYPE, VALUE_DATA_TYPE_ENTRIES);
-            task.setProperty(KEY_SRC_FILE_A, srcFileA.toString());
-            task.setProperty(KEY_SRC_FILE_B, srcFileB.toString());
-            task.setProperty(KEY_DST_FILE, dstFile.toString());
-
-            progress.addChildProgressReporter(task);
-
-            submitTask(task);
-        }
+        if (mergeEntryQueue.size() >= getMergeFanIn())
+            submitMergeTask(VALUE_DATA_TYPE_ENTRIES, mergeEntryQueue, "mrg.ent.");
     }
 
     private void submitMergeFeaturesTask(File dst) throws IOException,
             InterruptedException {
         mergeFeaturesQueue.add(dst);
-        if (mergeFeaturesQueue.size() >= 2) {
-            File srcFileA = mergeFeaturesQueue.poll();
-            File srcFileB = mergeFeaturesQueue.poll();
-            File dstFile = tempFileFactory.createFile("mrg.feat.", "");
-
-            ObjectSource<Weighted<Token>> srcA = openFeaturesSource(srcFileA);
-            ObjectSource<Weighted<Token>> srcB = openFeaturesSource(srcFileB);
-            ObjectSink<Weighted<Token>> snk = openFeaturesSink(dstFile);
-
-            ObjectMergeTask<Weighted<Token>> task = new ObjectMergeTask<Weighted<Token>>(srcA, srcB, snk);
-            task.setComparator(Weighted.recordOrder(Token.indexOrder()));
-
-            task.setProperty(KEY_TASK_TYPE, VALUE_TASK_TYPE_MERGE);
-            task.setProperty(KEY_DATA_TYPE, VALUE_DATA_TYPE_FEATURES);
-            task.setProperty(KEY_SRC_FILE_A, srcFileA.toString());
-            task.setProperty(KEY_SRC_FILE_B, srcFileB.toString());
-            task.setProperty(KEY_DST_FILE, dstFile.toString());
-
-            progress.addChildProgressReporter(task);
-
-            submitTask(task);
-        }
+        if (mergeFeaturesQueue.size() >= getMergeFanIn())
+            submitMergeTask(VALUE_DATA_TYPE_FEATURES, mergeFeaturesQueue, "mrg.feat.");
     }
 
     private void submitMergeEventsTask(File dst) throws IOException,
             InterruptedException {
         mergeEventQueue.add(dst);
-        if (mergeEventQueue.size() >= 2) {
-            File srcFileA = mergeEventQueue.poll();
-            File srcFileB = mergeEventQueue.poll();
-            File dstFile = tempFileFactory.createFile("mrg.evnt.", "");
+        if (mergeEventQueue.size() >= getMergeFanIn())
+            submitMergeTask(VALUE_DATA_TYPE_EVENTS, mergeEventQueue, "mrg.evnt.");
+    }
+
+    private void submitMergeTask(String dataType, Queue<File> queue, String prefix)
+            throws IOException, InterruptedException {
+        final List<File> srcFiles = new ArrayList<File>(getMergeFanIn());
+        while (srcFiles.size() < getMergeFanIn() && !queue.isEmpty())
+            srcFiles.add(queue.poll());
+        final File dstFile = tempFileFactory.createFile(prefix, "");
 
-            ObjectSource<Weighted<TokenPair>> srcA = openEventsSource(srcFileA);
-            ObjectSource<Weighted<TokenPair>> srcB = openEventsSource(srcFileB);
-            ObjectSink<Weighted<TokenPair>> snk = openEventsSink(dstFile);
+        final ObjectKWayMergeTask<?> task = createMergeTask(dataType, srcFiles, dstFile, false);
+        task.setProperty(KEY_TASK_TYPE, VALUE_TASK_TYPE_MERGE);
 
-            ObjectMergeTask<Weighted<TokenPair>> task = new ObjectMergeTask<Weighted<TokenPair>>(srcA, srcB, snk);
-            task.setComparator(Weighted.recordOrder(TokenPair.indexOrder()));
+        progress.addChildProgressReporter(task);
 
-            task.setProperty(KEY_TASK_TYPE, VALUE_TASK_TYPE_MERGE);
-            task.setProperty(KEY_DATA_TYPE, VALUE_DATA_TYPE_EVENTS);
-            task.setProperty(KEY_SRC_FILE_A, srcFileA.toString());
-            task.setProperty(KEY_SRC_FILE_B, srcFileB.toString());
-            task.setProperty(KEY_DST_FILE, dstFile.toString());
+        submitTask(task);
+    }
 
-            progress.addChildProgressReporter(task);
+    /**
+     * Create a task merging the given sorted runs into dstFile, which is
+     * another run unless last is set. The sinks sum the weights of equal
+     * records, so the counts of each run are combined.
+     */
+    private ObjectKWayMergeTask<?> createMergeTask(
+            String dataType, List<File> srcFiles, File dstFile, boolean last)
+            throws IOException {
+        final ObjectKWayMergeTask<?> task;
+        if (dataType.equals(VALUE_DATA_TYPE_ENTRIES)) {
+            final List<ObjectSource<Weighted<Token>>> srcs =
+                    new ArrayList<ObjectSource<Weighted<Token>>>(srcFiles.size());
+            for (File srcFile : srcFiles)
+                srcs.add(openTokenRunSource(srcFile));
+            task = new ObjectKWayMergeTask<Weighted<Token>>(srcs,
+                    last ? openEntriesSink(dstFile) : openTokenRunSink(dstFile),
+                    Weighted.recordOrder(Token.indexOrder()));
+        } else if (dataType.equals(VALUE_DATA_TYPE_FEATURES)) {
+            final List<ObjectSource<Weighted<Token>>> srcs =
+                    new ArrayList<ObjectSource<Weighted<Token>>>(srcFiles.size());
+            for (File srcFile : srcFiles)
+                srcs.add(openTokenRunSource(srcFile));
+            task = new ObjectKWayMergeTask<Weighted<Token>>(srcs,
+                    last ? openFeaturesSink(dstFile) : openTokenRunSink(dstFile),
+                    Weighted.recordOrder(Token.indexOrder()));
+        } else if (dataType.equals(VALUE_DATA_TYPE_EVENTS)) {
+            final List<ObjectSource<Weighted<TokenPair>>> srcs =
+                    new ArrayList<ObjectSource<Weighted<TokenPair>>>(srcFiles.size());
+            for (File srcFile : srcFiles)
+                srcs.add(openEventRunSource(srcFile));
+            task = new ObjectKWayMergeTask<Weighted<TokenPair>>(srcs,
+                    last ? openEventsSink(dstFile) : openEventRunSink(dstFile),
+                    Weighted.recordOrder(TokenPair.indexOrder()));
+        } else {
+            throw new AssertionError();
+        }
 
-            submitTask(task);
+        final StringBuilder srcNames = new StringBuilder();
+        for (File srcFile : srcFiles) {
+            if (srcNames.length() > 0)
+                srcNames.append(File.pathSeparator);
+            srcNames.append(srcFile);
         }
+        task.setProperty(KEY_DATA_TYPE, dataType);
+        task.setProperty(KEY_SRC_FILES, srcNames.toString());
+        task.setProperty(KEY_DST_FILE, dstFile.toString());
+        return task;
     }
 
     protected SeekableObjectSource<Weighted<Token>, Tell> openEntriesSource(
@@ -676,6 +793,26 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
                 BybloIO.openEventsSink(file, getCharset(), indexDelegate));
     }
 
+    protected SeekableObjectSource<Weighted<Token>, Tell> openTokenRunSource(File file)
+            throws IOException {
+        return BybloIO.openWeightedTokenRunSource(file);
+    }
+
+    protected ObjectSink<Weighted<Token>> openTokenRunSink(File file)
+            throws IOException {
+        return new WeightSumReducerObjectSink<Token>(BybloIO.openWeightedTokenRunSink(file));
+    }
+
+    protected WeightedTokenPairSource openEventRunSource(File file)
+            throws IOException {
+        return BybloIO.openWeightedTokenPairRunSource(file);
+    }
+
+    protected ObjectSink<Weighted<TokenPair>> openEventRunSink(File file)
+            throws IOException {
+        return new WeightSumReducerObjectSink<TokenPair>(BybloIO.openWeightedTokenPairRunSink(file));
+    }
+
     protected SeekableObjectSource<TokenPair, Tell> openInstancesSource(
             File file) throws FileNotFoundException, IOException {
         return BybloIO.openInstancesSource(file, getCharset(), indexDelegate);
@@ -759,7 +896,9 @@ public class ExternalCountCommand extends AbstractParallelCommandTask implements
         return super.toStringHelper().add("in", inputFile)
                 .add("entriesOut", entriesFile)
                 .add("featuresOut", featuresFile).add("eventsOut", eventsFile)
-                .add("tempDir", tempFileFactory).add("fd", getFileDelegate())
+                .add("tempDir", tempFileFactory).add("inMemory", isInMemory())
+                .add("fanIn", getMergeFanIn())
+                .add("fd", getFileDelegate())
                 .add("id", getIndexDelegate());
     }
 
@@ -87,6 +87,16 @@ public class ExternalSortEntriesCommand extends AbstractExternalSortCommand<Weig
         return BybloIO.openEntriesSource(file, getCharset(), indexDelegate);
     }
 
+    @Override
+    protected SeekableObjectSource<Weighted<Token>, Tell> openRunSource(File file) throws IOException {
+        return BybloIO.openWeightedTokenRunSource(file);
+    }
+
+    @Override
+    protected ObjectSink<Weighted<Token>> openRunSink(File file) throws IOException {
+        return new WeightSumReducerObjectSink<Token>(BybloIO.openWeightedTokenRunSink(file));
+    }
+
     public final SingleEnumerating getIndexDelegate() {
         return indexDelegate;
     }
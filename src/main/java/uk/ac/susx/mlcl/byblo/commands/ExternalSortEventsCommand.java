@@ -106,6 +106,16 @@ public class ExternalSortEventsCommand extends AbstractExternalSortCommand<Weigh
         return BybloIO.openEventsSource(file, getCharset(), indexDelegate);
     }
 
+    @Override
+    protected WeightedTokenPairSource openRunSource(File file) throws IOException {
+        return BybloIO.openWeightedTokenPairRunSource(file);
+    }
+
+    @Override
+    protected ObjectSink<Weighted<TokenPair>> openRunSink(File file) throws IOException {
+        return new WeightSumReducerObjectSink<TokenPair>(BybloIO.openWeightedTokenPairRunSink(file));
+    }
+
     public final DoubleEnumerating getIndexDelegate() {
         return indexDelegate;
     }
@@ -87,6 +87,16 @@ public class ExternalSortInstancesCommand extends AbstractExternalSortCommand<To
         return BybloIO.openInstancesSource(file, getCharset(), indexDelegate);
     }
 
+    @Override
+    protected SeekableObjectSource<TokenPair, Tell> openRunSource(File file) throws IOException {
+        return BybloIO.openTokenPairRunSource(file);
+    }
+
+    @Override
+    protected ObjectSink<TokenPair> openRunSink(File file) throws IOException {
+        return BybloIO.openTokenPairRunSink(file);
+    }
+
     public final DoubleEnumerating getIndexDelegate() {
         return indexDelegate;
     }
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.commands;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.google.common.base.Objects.ToStringHelper;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumerating;
+import uk.ac.susx.mlcl.byblo.io.BybloIO;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.lib.Comparators;
+import uk.ac.susx.mlcl.lib.io.KFirstReducingObjectSink;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Comparator;
+
+/**
+ * Sort a similarity file by entry, then by descending similarity, then by
+ * neighbour. This is the order in which the k-nearest-neighbours of each entry
+ * can be read off the front of its group, and, since it is total, sorted
+ * files can be merged into exactly the same result whatever order they are
+ * merged in.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+@Parameters(commandDescription = "Sort a similarity file by entry, then by descending similarity.")
+public class ExternalSortSimsCommand extends ExternalSortEventsCommand {
+
+    @Parameter(names = {"-k"},
+    description = "Keep only the k most similar neighbours of each entry. 0 keeps them all.")
+    private int k = 0;
+
+    public ExternalSortSimsCommand(File sourceFile, File destinationFile,
+                                   Charset charset, DoubleEnumerating indexDelegate) {
+        super(sourceFile, destinationFile, charset, indexDelegate);
+        setComparator(simsOrder());
+    }
+
+    public ExternalSortSimsCommand() {
+        setComparator(simsOrder());
+    }
+
+    /**
+     * @return comparator that orders sims by entry, then by descending
+     *         similarity, then by neighbour
+     */
+    public static Comparator<Weighted<TokenPair>> simsOrder() {
+        return Comparators.fallback(
+                Comparators.fallback(
+                        entryOrder(),
+                        Comparators.reverse(Weighted.<TokenPair>weightOrder())),
+                Weighted.recordOrder(TokenPair.secondIndexOrder()));
+    }
+
+    /**
+     * @return comparator that groups sims by entry
+     */
+    public static Comparator<Weighted<TokenPair>> entryOrder() {
+        return Weighted.recordOrder(TokenPair.firstIndexOrder());
+    }
+
+    public final int getK() {
+        return k;
+    }
+
+    public final void setK(int k) {
+        if (k < 0)
+            throw new IllegalArgumentException("k < 0");
+        this.k = k;
+    }
+
+    @Override
+    protected WeightedTokenPairSource openSource(File file) throws IOException {
+        return BybloIO.openSimsSource(file, getCharset(), getIndexDelegate());
+    }
+
+    @Override
+    protected ObjectSink<Weighted<TokenPair>> openSink(File file) throws IOException {
+        return reduce(BybloIO.openSimsSink(file, getCharset(), getIndexDelegate()));
+    }
+
+    @Override
+    protected WeightedTokenPairSource openRunSource(File file) throws IOException {
+        return BybloIO.openWeightedTokenPairRunSource(file);
+    }
+
+    @Override
+    protected ObjectSink<Weighted<TokenPair>> openRunSink(File file) throws IOException {
+        return reduce(BybloIO.openWeightedTokenPairRunSink(file));
+    }
+
+    private ObjectSink<Weighted<TokenPair>> reduce(ObjectSink<Weighted<TokenPair>> sink) {
+        // Every intermediate run is sorted, so each can be cut down to the
+        // first k of each entry as it is written.
+        return k > 0
+                ? new KFirstReducingObjectSink<Weighted<TokenPair>>(sink, entryOrder(), k)
+                : sink;
+    }
+
+    @Override
+    public String getName() {
+        return "sort-sims";
+    }
+
+    @Override
+    protected ToStringHelper toStringHelper() {
+        return super.toStringHelper().add("k", k);
+    }
+
+}
@@ -378,6 +378,9 @@ public class FilterCommand extends AbstractCommand implements
                 + (eventFilterRequired ? 1 : 0) + (featureFilterRequired ? 1
                 : 0)));
 
+        progress.setMessage("Recording vector statistics.");
+        storeVectorStats();
+
         if (indexDelegate.isEnumeratorOpen()) {
             indexDelegate.saveEnumerator();
             indexDelegate.closeEnumerator();
@@ -386,6 +389,22 @@ public class FilterCommand extends AbstractCommand implements
         progress.setState(State.COMPLETED);
     }
 
+    // Record the cardinality statistics of the final event vectors, so the
+    // all-pairs stage can size its chunks from them.
+    private void storeVectorStats() throws IOException {
+        final WeightedTokenPairSource src = BybloIO.openEventsSource(
+                outputEventsFile, getCharset(), indexDelegate);
+        final VectorCardinalityStats stats;
+        try {
+            stats = VectorCardinalityStats.compute(src);
+        } finally {
+            src.close();
+        }
+        stats.store(VectorCardinalityStats.sidecarFile(outputEventsFile));
+        if (LOG.isInfoEnabled())
+            LOG.info("Vector statistics: " + stats);
+    }
+
     private static void finaliseFile(File inputFile, File activeFile,
                                      File outputFile) throws IOException {
         assert inputFile != null : "inputFile is null";
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.commands;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.beust.jcommander.ParametersDelegate;
+import com.google.common.base.Objects.ToStringHelper;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumerating;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
+import uk.ac.susx.mlcl.byblo.io.BybloIO;
+import uk.ac.susx.mlcl.byblo.io.ShardManifest;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.commands.AbstractCommand;
+import uk.ac.susx.mlcl.lib.commands.FileDelegate;
+import uk.ac.susx.mlcl.lib.commands.OutputFileValidator;
+import uk.ac.susx.mlcl.lib.commands.TempFileFactoryConverter;
+import uk.ac.susx.mlcl.lib.io.FileFactory;
+import uk.ac.susx.mlcl.lib.io.KFirstReducingObjectSink;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
+import uk.ac.susx.mlcl.lib.io.ObjectSource;
+import uk.ac.susx.mlcl.lib.io.TempFileFactory;
+import uk.ac.susx.mlcl.lib.tasks.ObjectKWayMergeTask;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Merges the sorted outputs of a sharded all-pairs run (see
+ * {@link AllPairsCommand#setShard(int, int)}) into a single similarity file.
+ * <p/>
+ * Each shard output is accompanied by a manifest of the chunk pairs it covers.
+ * The manifests are checked before anything is merged, so that a missing,
+ * duplicated or mismatched shard is reported rather than silently producing
+ * an incomplete thesaurus.
+ * <p/>
+ * Shard outputs are sorted by entry id, so the entries must be enumerated;
+ * ids enumerated on the fly would differ between the shards and the merge.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+@Parameters(commandDescription = "Merge the sorted similarity files produced by the shards of an all-pairs run.")
+public class MergeSimsShardsCommand extends AbstractCommand {
+
+    private static final Log LOG = LogFactory.getLog(MergeSimsShardsCommand.class);
+
+    @ParametersDelegate
+    private DoubleEnumerating indexDelegate = new DoubleEnumeratingDelegate();
+
+    @ParametersDelegate
+    private FileDelegate fileDelegate = new FileDelegate();
+
+    @Parameter(names = {"-i", "--input"},
+    description = "Similarity files output by each shard. Repeat the option, "
+    + "or separate the files with commas.",
+    required = true)
+    private List<File> shardFiles = new ArrayList<File>();
+
+    @Parameter(names = {"-o", "--output"},
+    description = "Output similarity file.",
+    required = true,
+    validateWith = OutputFileValidator.class)
+    private File outputFile;
+
+    @Parameter(names = {"-k"},
+    description = "Produce only the k nearest neighbours of each entry, "
+    + "instead of all similarity pairs. 0 produces all pairs.")
+    private int k = 0;
+
+    @Parameter(names = {"-T", "--temp-dir"},
+    description = "Temporary directory which will be used to store partial merges.",
+    converter = TempFileFactoryConverter.class)
+    private FileFactory tempFiles = new TempFileFactory();
+
+    public MergeSimsShardsCommand(List<File> shardFiles, File outputFile,
+                                  Charset charset, DoubleEnumerating indexDelegate) {
+        setShardFiles(shardFiles);
+        setOutputFile(outputFile);
+        setCharset(charset);
+        setIndexDelegate(indexDelegate);
+    }
+
+    public MergeSimsShardsCommand() {
+    }
+
+    @Override
+    public void runCommand() throws Exception {
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Merging " + shardFiles.size() + " all-pairs shards to \""
+                    + getOutputFile() + "\".");
+        }
+
+        if (!getIndexDelegate().isEnumeratedEntries())
+            throw new IllegalStateException(
+                    "Shards can only be merged when the entries are enumerated.");
+
+        final List<ShardManifest> manifests = new ArrayList<ShardManifest>();
+        for (File shardFile : shardFiles) {
+            manifests.add(ShardManifest.load(ShardManifest.sidecarFile(shardFile)));
+        }
+        ShardManifest.checkComplete(manifests);
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Shard manifests cover all " + manifests.get(0).getGridSize()
+                    + " chunk pairs.");
+        }
+
+        // Merge the shards in a single pass where possible; only when there
+        // are more than the fan-in are groups of them merged to temporaries
+        // first. Files are queued, so the merges form a balanced tree.
+        final LinkedList<File> pending = new LinkedList<File>(shardFiles);
+        final List<File> temporaries = new ArrayList<File>();
+        while (pending.size() > AbstractExternalSortCommand.DEFAULT_MERGE_FAN_IN) {
+            final List<File> group = new ArrayList<File>();
+            while (group.size() < AbstractExternalSortCommand.DEFAULT_MERGE_FAN_IN)
+                group.add(pending.poll());
+            final File merged = tempFiles.createFile("sims", ".tmp");
+            merge(group, openSimsSink(merged));
+            pending.add(merged);
+            temporaries.add(merged);
+            for (File file : group)
+                deleteTemporary(file, temporaries);
+        }
+
+        final ObjectSink<Weighted<TokenPair>> sink = getK() > 0
+                ? reduce(BybloIO.openNeighboursSink(getOutputFile(), getCharset(), getIndexDelegate()))
+                : openSimsSink(getOutputFile());
+        merge(pending, sink);
+        for (File file : pending)
+            deleteTemporary(file, temporaries);
+
+        if (indexDelegate.isEnumeratorOpen()) {
+            indexDelegate.saveEnumerator();
+            indexDelegate.closeEnumerator();
+        }
+
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Completed merge of all-pairs shards.");
+        }
+    }
+
+    private void merge(List<File> files, ObjectSink<Weighted<TokenPair>> sink)
+            throws Exception {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Merging " + files + ".");
+        }
+        final List<ObjectSource<Weighted<TokenPair>>> srcs =
+                new ArrayList<ObjectSource<Weighted<TokenPair>>>(files.size());
+        for (File file : files)
+            srcs.add(openSimsSource(file));
+
+        final ObjectKWayMergeTask<Weighted<TokenPair>> task =
+                new ObjectKWayMergeTask<Weighted<TokenPair>>(
+                        srcs, sink, ExternalSortSimsCommand.simsOrder());
+        task.run();
+        while (task.isExceptionTrapped())
+            task.throwTrappedException();
+
+        for (ObjectSource<Weighted<TokenPair>> src : srcs)
+            close(src);
+        close(sink);
+    }
+
+    private static void close(Object o) throws IOException {
+        if (o instanceof Flushable)
+            ((Flushable) o).flush();
+        if (o instanceof Closeable)
+            ((Closeable) o).close();
+    }
+
+    private static void deleteTemporary(File file, List<File> temporaries) {
+        if (temporaries.remove(file) && !file.delete() && LOG.isWarnEnabled()) {
+            LOG.warn("Unable to delete temporary file " + file);
+        }
+    }
+
+    private ObjectSource<Weighted<TokenPair>> openSimsSource(File file) throws IOException {
+        return BybloIO.openSimsSource(file, getCharset(), getIndexDelegate());
+    }
+
+    private ObjectSink<Weighted<TokenPair>> openSimsSink(File file) throws IOException {
+        // Shards that were themselves cut down to k neighbours each hold their
+        // own k best, so the k best overall are among the first k of the merge.
+        return reduce(BybloIO.openSimsSink(file, getCharset(), getIndexDelegate()));
+    }
+
+    private ObjectSink<Weighted<TokenPair>> reduce(ObjectSink<Weighted<TokenPair>> sink) {
+        return getK() > 0
+                ? new KFirstReducingObjectSink<Weighted<TokenPair>>(
+                sink, ExternalSortSimsCommand.entryOrder(), getK())
+                : sink;
+    }
+
+    public final List<File> getShardFiles() {
+        return shardFiles;
+    }
+
+    public final void setShardFiles(List<File> shardFiles) {
+        Checks.checkNotNull("shardFiles", shardFiles);
+        this.shardFiles = new ArrayList<File>(shardFiles);
+    }
+
+    public final File getOutputFile() {
+        return outputFile;
+    }
+
+    public final void setOutputFile(File outputFile) {
+        Checks.checkNotNull("outputFile", outputFile);
+        this.outputFile = outputFile;
+    }
+
+    public final int getK() {
+        return k;
+    }
+
+    public final void setK(int k) {
+        if (k < 0)
+            throw new IllegalArgumentException("k < 0");
+        this.k = k;
+    }
+
+    public FileFactory getTempFiles() {
+        return tempFiles;
+    }
+
+    public void setTempFiles(FileFactory tempFiles) {
+        Checks.checkNotNull("tempFiles", tempFiles);
+        this.tempFiles = tempFiles;
+    }
+
+    public final Charset getCharset() {
+        return fileDelegate.getCharset();
+    }
+
+    public final void setCharset(Charset charset) {
+        Checks.checkNotNull("charset", charset);
+        this.fileDelegate.setCharset(charset);
+    }
+
+    public final DoubleEnumerating getIndexDelegate() {
+        return indexDelegate;
+    }
+
+    public final void setIndexDelegate(DoubleEnumerating indexDelegate) {
+        Checks.checkNotNull("indexDelegate", indexDelegate);
+        this.indexDelegate = indexDelegate;
+    }
+
+    @Override
+    protected ToStringHelper toStringHelper() {
+        return super.toStringHelper().
+                add("shardsIn", getShardFiles()).
+                add("simsOut", getOutputFile()).
+                add("charset", getCharset()).
+                add("k", getK()).
+                add("tempFiles", getTempFiles());
+    }
+
+    public static void main(String[] args) throws Exception {
+        new MergeSimsShardsCommand().runCommand(args);
+    }
+
+}
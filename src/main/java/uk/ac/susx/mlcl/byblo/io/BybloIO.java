@@ -30,6 +30,7 @@
  */
 package uk.ac.susx.mlcl.byblo.io;
 
+import com.google.common.base.Predicate;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
@@ -37,6 +38,8 @@ import uk.ac.susx.mlcl.byblo.BybloSettings;
 import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumerating;
 import uk.ac.susx.mlcl.byblo.enumerators.EnumeratingDelegates;
 import uk.ac.susx.mlcl.byblo.enumerators.SingleEnumerating;
+import uk.ac.susx.mlcl.lib.io.Binary;
+import uk.ac.susx.mlcl.lib.io.Deltas;
 
 /**
  * Static utility class that provides functions for opening the various file
@@ -231,4 +234,58 @@ public final class BybloIO {
                                   EnumeratingDelegates.toSingleEntries(idx));
     }
 
+    // Runs are usually sorted on their first column, so it is delta encoded.
+    private static final Predicate<Integer> FIRST_COLUMN = new Predicate<Integer>() {
+
+        @Override
+        public boolean apply(Integer column) {
+            return column == 0;
+        }
+
+    };
+
+    /*
+     * Temporary runs, such as those written by the external sort and count,
+     * are only ever read back by the process that wrote them. They are stored
+     * in the compact binary format, whatever the settings for the user facing
+     * files, and always hold ids: any enumerator in use is still in memory
+     * when they are read.
+     */
+
+    public static WeightedTokenSource openWeightedTokenRunSource(File file)
+            throws IOException {
+        return new WeightedTokenSource(
+                Deltas.deltaInt(new Binary.Source(file), FIRST_COLUMN));
+    }
+
+    public static WeightedTokenSink openWeightedTokenRunSink(File file)
+            throws IOException {
+        return new WeightedTokenSink(
+                Deltas.deltaInt(new Binary.Sink(file), FIRST_COLUMN));
+    }
+
+    public static WeightedTokenPairSource openWeightedTokenPairRunSource(File file)
+            throws IOException {
+        return new WeightedTokenPairSource(
+                Deltas.deltaInt(new Binary.Source(file), FIRST_COLUMN));
+    }
+
+    public static WeightedTokenPairSink openWeightedTokenPairRunSink(File file)
+            throws IOException {
+        return new WeightedTokenPairSink(
+                Deltas.deltaInt(new Binary.Sink(file), FIRST_COLUMN));
+    }
+
+    public static TokenPairSource openTokenPairRunSource(File file)
+            throws IOException {
+        return new TokenPairSource(
+                Deltas.deltaInt(new Binary.Source(file), FIRST_COLUMN));
+    }
+
+    public static TokenPairSink openTokenPairRunSink(File file)
+            throws IOException {
+        return new TokenPairSink(
+                Deltas.deltaInt(new Binary.Sink(file), FIRST_COLUMN));
+    }
+
 }
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import java.io.IOException;
+import java.util.Arrays;
+import uk.ac.susx.mlcl.lib.io.ConcurrentObjectSink;
+import uk.ac.susx.mlcl.lib.io.ForwardingObjectSink;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
+
+/**
+ * Sink that retains only the k highest weighted pairs for each first token of
+ * the pair, as the k-nearest-neighbours of that entry. This produces the same
+ * neighbours as sorting all the pairs and keeping the first k of each entry
+ * (see {@link uk.ac.susx.mlcl.byblo.commands.ExternalKnnSimsCommand}), without
+ * writing or sorting the full set of pairs.
+ *
+ * Each entry's neighbours are held in a bounded min-heap of primitive arrays.
+ * The entries are partitioned into stripes, each with its own lock, so
+ * multiple threads can write concurrently with little contention.
+ *
+ * Nothing is written to the inner sink until {@link #flush()} is called;
+ * at which point every entry's neighbours are written in order of the first
+ * token, then by descending weight (ties are broken by ascending second token),
+ * and the retained pairs are discarded.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class KNearestNeighboursObjectSink
+        extends ForwardingObjectSink<ObjectSink<Weighted<TokenPair>>, Weighted<TokenPair>>
+        implements ConcurrentObjectSink<Weighted<TokenPair>> {
+
+    public static final int DEFAULT_STRIPE_COUNT = 64;
+
+    /**
+     * Initial capacity of each entry's heap. Most entries have far fewer than
+     * k neighbours, so heaps grow as required rather than being allocated at
+     * full size.
+     */
+    private static final int INITIAL_HEAP_CAPACITY = 8;
+
+    private final int k;
+
+    private final Stripe[] stripes;
+
+    public KNearestNeighboursObjectSink(
+            ObjectSink<Weighted<TokenPair>> inner, int k, int nStripes) {
+        super(inner);
+        if (k < 1)
+            throw new IllegalArgumentException("k < 1");
+        if (nStripes < 1)
+            throw new IllegalArgumentException("nStripes < 1");
+        this.k = k;
+        stripes = new Stripe[nStripes];
+        for (int i = 0; i < nStripes; i++)
+            stripes[i] = new Stripe();
+    }
+
+    public KNearestNeighboursObjectSink(
+            ObjectSink<Weighted<TokenPair>> inner, int k) {
+        this(inner, k, DEFAULT_STRIPE_COUNT);
+    }
+
+    public final int getK() {
+        return k;
+    }
+
+    @Override
+    public void write(Weighted<TokenPair> o) throws IOException {
+        final int entry = o.record().id1();
+        final Stripe stripe = stripes[(entry & Integer.MAX_VALUE) % stripes.length];
+        synchronized (stripe) {
+            Heap heap = stripe.heaps.get(entry);
+            if (heap == null) {
+                heap = new Heap(Math.min(k, INITIAL_HEAP_CAPACITY));
+                stripe.heaps.put(entry, heap);
+            }
+            heap.offer(o.record().id2(), o.weight(), k);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Gather the entries from every stripe, so they can be written in order
+        int nEntries = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                nEntries += stripe.heaps.size();
+            }
+        }
+        final int[] entries = new int[nEntries];
+        int i = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (int entry : stripe.heaps.keySet())
+                    entries[i++] = entry;
+            }
+        }
+        Arrays.sort(entries, 0, i);
+
+        for (int e = 0; e < i; e++) {
+            final int entry = entries[e];
+            final Stripe stripe = stripes[(entry & Integer.MAX_VALUE) % stripes.length];
+            final Heap heap;
+            synchronized (stripe) {
+                heap = stripe.heaps.remove(entry);
+            }
+            if (heap == null)
+                continue;
+
+            // Popping the min-heap yields neighbours from worst to best, so
+            // fill the output from the back.
+            final int n = heap.size;
+            final int[] ids = new int[n];
+            final double[] weights = new double[n];
+            for (int j = n - 1; j >= 0; j--) {
+                ids[j] = heap.ids[0];
+                weights[j] = heap.weights[0];
+                heap.pop();
+            }
+            for (int j = 0; j < n; j++) {
+                super.write(new Weighted<TokenPair>(
+                        new TokenPair(entry, ids[j]), weights[j]));
+            }
+        }
+        super.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        super.close();
+    }
+
+    /**
+     * A partition of the entries, with the neighbours heap of each.
+     */
+    private static final class Stripe {
+
+        final Int2ObjectMap<Heap> heaps = new Int2ObjectOpenHashMap<Heap>();
+
+    }
+
+    /**
+     * Bounded binary min-heap of neighbours. The root is the worst retained
+     * neighbour: the lowest weight, or with equal weights the highest id.
+     */
+    private static final class Heap {
+
+        int[] ids;
+
+        double[] weights;
+
+        int size = 0;
+
+        Heap(int capacity) {
+            ids = new int[capacity];
+            weights = new double[capacity];
+        }
+
+        /**
+         * @return true if neighbour i is worse than neighbour j
+         */
+        private boolean worse(int i, int j) {
+            return weights[i] < weights[j]
+                    || (weights[i] == weights[j] && ids[i] > ids[j]);
+        }
+
+        void offer(int id, double weight, int k) {
+            if (size < k) {
+                if (size == ids.length) {
+                    final int capacity = Math.min(k, ids.length * 2);
+                    ids = Arrays.copyOf(ids, capacity);
+                    weights = Arrays.copyOf(weights, capacity);
+                }
+                ids[size] = id;
+                weights[size] = weight;
+                siftUp(size);
+                ++size;
+            } else if (weight > weights[0]
+                    || (weight == weights[0] && id < ids[0])) {
+                ids[0] = id;
+                weights[0] = weight;
+                siftDown(0);
+            }
+        }
+
+        void pop() {
+            --size;
+            ids[0] = ids[size];
+            weights[0] = weights[size];
+            if (size > 0)
+                siftDown(0);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                final int parent = (i - 1) >>> 1;
+                if (!worse(i, parent))
+                    break;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                final int left = 2 * i + 1;
+                if (left >= size)
+                    break;
+                final int right = left + 1;
+                final int child = right < size && worse(right, left)
+                                  ? right : left;
+                if (!worse(child, i))
+                    break;
+                swap(i, child);
+                i = child;
+            }
+        }
+
+        private void swap(int i, int j) {
+            final int id = ids[i];
+            ids[i] = ids[j];
+            ids[j] = id;
+            final double weight = weights[i];
+            weights[i] = weights[j];
+            weights[j] = weight;
+        }
+
+    }
+
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import com.google.common.base.Objects;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.MessageFormat;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.ObjectSource;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+
+/**
+ * Read-only store of feature vectors in a memory-mapped binary file.
+ *
+ * All-pairs reads each vector many times, and decoding vectors from the
+ * events file means parsing text and re-assembling every vector from
+ * individual records. The store is written once from any vector source, after
+ * which reading a vector is a bulk copy of its keys and values out of the
+ * mapping.
+ *
+ * The file consists of a fixed size header, followed by one record per
+ * vector, followed by an index. Each record holds the keys of the vector as
+ * int32s, padded to a multiple of 8 bytes, then the values as doubles. The
+ * index holds the id of each vector, then the offset of each record and the
+ * end of the last one. Everything is big-endian.
+ *
+ * The file is mapped in overlapping segments, each extending past its nominal
+ * end by the length of the longest record, so that no record ever straddles
+ * two mappings. The store is safe for concurrent reading.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class MappedVectorStore implements Closeable {
+
+    private static final int MAGIC = 0x42594256;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 32;
+
+    /**
+     * Log2 of the nominal length of each mapped segment.
+     */
+    private static final int SEGMENT_SHIFT = 30;
+
+    private static final long SEGMENT_BYTES = 1L << SEGMENT_SHIFT;
+
+    private final File file;
+
+    private final RandomAccessFile raf;
+
+    private final int[] ids;
+
+    private final long[] offsets;
+
+    private final long nonZeroCount;
+
+    private MappedByteBuffer[] segments;
+
+    private MappedVectorStore(File file, RandomAccessFile raf, int[] ids,
+                              long[] offsets, long nonZeroCount,
+                              MappedByteBuffer[] segments) {
+        this.file = file;
+        this.raf = raf;
+        this.ids = ids;
+        this.offsets = offsets;
+        this.nonZeroCount = nonZeroCount;
+        this.segments = segments;
+    }
+
+    /**
+     * Write all the vectors read from the given source to a new store file.
+     *
+     * @param source vectors to store
+     * @param file destination file, which is overwritten
+     * @return number of vectors written
+     * @throws IOException
+     */
+    public static int write(ObjectSource<Indexed<SparseDoubleVector>> source,
+                            File file) throws IOException {
+        Checks.checkNotNull("source", source);
+        Checks.checkNotNull("file", file);
+
+        final IntArrayList ids = new IntArrayList();
+        final LongArrayList offsets = new LongArrayList();
+        long offset = HEADER_BYTES;
+        long nonZeroCount = 0;
+        long maxRecordBytes = 0;
+
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.write(new byte[HEADER_BYTES]);
+            while (source.hasNext()) {
+                final Indexed<SparseDoubleVector> v = source.read();
+                final SparseDoubleVector vec = v.value();
+                ids.add(v.key());
+                offsets.add(offset);
+
+                for (int i = 0; i < vec.size; i++)
+                    out.writeInt(vec.keys[i]);
+                if ((vec.size & 1) != 0)
+                    out.writeInt(0);
+                for (int i = 0; i < vec.size; i++)
+                    out.writeDouble(vec.values[i]);
+
+                final long recordBytes = recordBytes(vec.size);
+                offset += recordBytes;
+                nonZeroCount += vec.size;
+                maxRecordBytes = Math.max(maxRecordBytes, recordBytes);
+            }
+            offsets.add(offset);
+
+            if (maxRecordBytes > Integer.MAX_VALUE - SEGMENT_BYTES)
+                throw new IOException(MessageFormat.format(
+                        "Vector of {0} bytes is too large to be mapped.",
+                        maxRecordBytes));
+
+            for (int i = 0; i < ids.size(); i++)
+                out.writeInt(ids.getInt(i));
+            if ((ids.size() & 1) != 0)
+                out.writeInt(0);
+            for (int i = 0; i < offsets.size(); i++)
+                out.writeLong(offsets.getLong(i));
+        } finally {
+            out.close();
+        }
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(ids.size());
+            raf.writeInt((int) maxRecordBytes);
+            raf.writeLong(nonZeroCount);
+            raf.writeLong(offset);
+        } finally {
+            raf.close();
+        }
+
+        return ids.size();
+    }
+
+    /**
+     * Open and map a store file produced by
+     * {@link #write(ObjectSource, File)}.
+     *
+     * @param file store file
+     * @return the opened store
+     * @throws IOException if the file could not be read, or is not a store
+     */
+    public static MappedVectorStore open(File file) throws IOException {
+        Checks.checkNotNull("file", file);
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < HEADER_BYTES || raf.readInt() != MAGIC)
+                throw new IOException("Not a vector store file: " + file);
+            final int version = raf.readInt();
+            if (version != VERSION)
+                throw new IOException(MessageFormat.format(
+                        "Unsupported vector store version {0} in {1}",
+                        version, file));
+            final int vectorCount = raf.readInt();
+            final int maxRecordBytes = raf.readInt();
+            final long nonZeroCount = raf.readLong();
+            final long indexOffset = raf.readLong();
+
+            final FileChannel channel = raf.getChannel();
+
+            // The index is small enough to keep on the heap
+            final long indexBytes = 4L * (vectorCount + (vectorCount & 1))
+                    + 8L * (vectorCount + 1);
+            if (indexOffset + indexBytes != raf.length())
+                throw new IOException("Truncated vector store file: " + file);
+            final ByteBuffer index = channel.map(
+                    FileChannel.MapMode.READ_ONLY, indexOffset, indexBytes);
+            final int[] ids = new int[vectorCount];
+            index.asIntBuffer().get(ids);
+            index.position(4 * (vectorCount + (vectorCount & 1)));
+            final LongBuffer offsetBuffer = index.asLongBuffer();
+            final long[] offsets = new long[vectorCount + 1];
+            offsetBuffer.get(offsets);
+
+            final int nSegments = (int) ((indexOffset + SEGMENT_BYTES - 1) >>> SEGMENT_SHIFT);
+            final MappedByteBuffer[] segments = new MappedByteBuffer[nSegments];
+            for (int s = 0; s < nSegments; s++) {
+                final long start = (long) s << SEGMENT_SHIFT;
+                final long end = Math.min(indexOffset,
+                                          start + SEGMENT_BYTES + maxRecordBytes);
+                segments[s] = channel.map(
+                        FileChannel.MapMode.READ_ONLY, start, end - start);
+            }
+
+            return new MappedVectorStore(file, raf, ids, offsets,
+                                         nonZeroCount, segments);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        } catch (RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    private static long recordBytes(int size) {
+        return 4L * (size + (size & 1)) + 8L * size;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return number of vectors in the store
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * @return total number of non-zero elements of all vectors in the store
+     */
+    public long getNonZeroCount() {
+        return nonZeroCount;
+    }
+
+    /**
+     * Read the vector at the given ordinal position in the store.
+     *
+     * @param ordinal position of the vector, in the order it was written
+     * @return a new copy of the vector
+     */
+    public Indexed<SparseDoubleVector> get(int ordinal) {
+        if (segments == null)
+            throw new IllegalStateException("Vector store is closed.");
+        final long start = offsets[ordinal];
+        final int size = (int) ((offsets[ordinal + 1] - start) / 12);
+
+        // Duplicate the segment so concurrent readers don't share a position
+        final ByteBuffer buffer = segments[(int) (start >>> SEGMENT_SHIFT)].duplicate();
+        final int position = (int) (start & (SEGMENT_BYTES - 1));
+
+        final int[] keys = new int[size];
+        buffer.position(position);
+        buffer.asIntBuffer().get(keys);
+
+        final double[] values = new double[size];
+        buffer.position(position + 4 * (size + (size & 1)));
+        buffer.asDoubleBuffer().get(values);
+
+        final int cardinality = size == 0 ? 0 : keys[size - 1] + 1;
+        return new Indexed<SparseDoubleVector>(ids[ordinal],
+                new SparseDoubleVector(keys, values, cardinality, size));
+    }
+
+    /**
+     * Create a new source of all the vectors in the store, positioned at the
+     * first vector. Positions are vector ordinals.
+     */
+    public SeekableObjectSource<Indexed<SparseDoubleVector>, Integer> openSource() {
+        return new Source();
+    }
+
+    /**
+     * Release the file. Mapped memory is released once the mappings become
+     * unreachable.
+     */
+    @Override
+    public void close() throws IOException {
+        segments = null;
+        raf.close();
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("file", file).
+                add("vectors", size()).
+                add("nonZeros", nonZeroCount).
+                toString();
+    }
+
+    private final class Source
+            implements SeekableObjectSource<Indexed<SparseDoubleVector>, Integer> {
+
+        private int next = 0;
+
+        @Override
+        public boolean hasNext() {
+            return next < size();
+        }
+
+        @Override
+        public Indexed<SparseDoubleVector> read() {
+            return get(next++);
+        }
+
+        @Override
+        public void position(Integer offset) {
+            Checks.checkRangeIncl("offset", offset, 0, size());
+            next = offset;
+        }
+
+        @Override
+        public Integer position() {
+            return next;
+        }
+
+    }
+
+}
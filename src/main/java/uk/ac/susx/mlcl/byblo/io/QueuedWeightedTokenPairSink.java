@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.io.ConcurrentObjectSink;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A sink of weighted token pairs that can be written to by many threads at
+ * once, without them contending for the (non-thread-safe) sink it wraps.
+ * Producers hand over whole batches of pairs, which are queued and written to
+ * the inner sink by a single writer thread. The queue is bounded, so
+ * producers that get too far ahead of the writer will block rather than
+ * exhausting memory.
+ * <p/>
+ * Batches are written in the order they are received, and the pairs within
+ * each batch in their existing order.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class QueuedWeightedTokenPairSink
+        implements ConcurrentObjectSink<Weighted<TokenPair>>, Flushable, Closeable {
+
+    private static final Log LOG = LogFactory.getLog(QueuedWeightedTokenPairSink.class);
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+    /**
+     * Number of pairs written individually (using {@link #write(Weighted)})
+     * that are gathered before being queued as a batch.
+     */
+    private static final int SINGLES_BATCH_SIZE = 1 << 12;
+
+    /**
+     * Marker that tells the writer thread to stop.
+     */
+    private static final WeightedTokenPairBuffer POISON = new WeightedTokenPairBuffer(1);
+
+    /**
+     * How long a producer waits for space in the queue before checking again
+     * whether the writer has failed.
+     */
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    private final ObjectSink<Weighted<TokenPair>> inner;
+
+    private final BlockingQueue<WeightedTokenPairBuffer> queue;
+
+    private final Thread writer;
+
+    private final WeightedTokenPairBuffer singles = new WeightedTokenPairBuffer();
+
+    private final Object progressLock = new Object();
+
+    private long batchesQueued = 0;
+
+    private long batchesWritten = 0;
+
+    private volatile IOException failure = null;
+
+    /**
+     * Set when the writer thread has stopped for any reason, after which
+     * nothing will be taken from the queue again.
+     */
+    private volatile boolean writerStopped = false;
+
+    private boolean closed = false;
+
+    public QueuedWeightedTokenPairSink(ObjectSink<Weighted<TokenPair>> inner, int queueCapacity) {
+        Checks.checkNotNull("inner", inner);
+        if (queueCapacity < 1)
+            throw new IllegalArgumentException("queueCapacity < 1");
+        this.inner = inner;
+        this.queue = new ArrayBlockingQueue<WeightedTokenPairBuffer>(queueCapacity);
+        this.writer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                drain();
+            }
+
+        }, "pair-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public QueuedWeightedTokenPairSink(ObjectSink<Weighted<TokenPair>> inner) {
+        this(inner, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Queue a copy of all the pairs in the given buffer, blocking if the queue
+     * is full. The buffer can be reused as soon as this method returns.
+     *
+     * @param pairs batch of pairs to write
+     * @throws IOException if a previous batch could not be written, or the
+     *                     calling thread was interrupted
+     */
+    public void write(WeightedTokenPairBuffer pairs) throws IOException {
+        if (pairs.isEmpty())
+            return;
+        final WeightedTokenPairBuffer batch = new WeightedTokenPairBuffer(pairs.size());
+        batch.addAll(pairs);
+        enqueue(batch);
+    }
+
+    @Override
+    public void write(Weighted<TokenPair> pair) throws IOException {
+        synchronized (singles) {
+            singles.add(pair);
+            if (singles.size() >= SINGLES_BATCH_SIZE) {
+                write(singles);
+                singles.clear();
+            }
+        }
+    }
+
+    /**
+     * Block until every pair written so far has been passed to the inner
+     * sink, then flush it.
+     */
+    @Override
+    public void flush() throws IOException {
+        synchronized (singles) {
+            write(singles);
+            singles.clear();
+        }
+        try {
+            synchronized (progressLock) {
+                while (batchesWritten < batchesQueued && failure == null)
+                    progressLock.wait();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for pairs to be written.");
+        }
+        checkFailure();
+        if (inner instanceof Flushable)
+            ((Flushable) inner).flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        try {
+            flush();
+        } finally {
+            closed = true;
+            try {
+                offer(POISON);
+                writer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while closing pair writer.");
+            }
+            if (inner instanceof Closeable)
+                ((Closeable) inner).close();
+        }
+    }
+
+    private void enqueue(WeightedTokenPairBuffer batch) throws IOException {
+        checkFailure();
+        if (closed)
+            throw new IOException("Sink is closed.");
+        synchronized (progressLock) {
+            ++batchesQueued;
+        }
+        try {
+            if (!offer(batch)) {
+                synchronized (progressLock) {
+                    --batchesQueued;
+                    progressLock.notifyAll();
+                }
+                checkFailure();
+            }
+        } catch (InterruptedException ex) {
+            synchronized (progressLock) {
+                --batchesQueued;
+                progressLock.notifyAll();
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing pairs.");
+        }
+    }
+
+    /**
+     * Put the batch on the queue, blocking while the queue is full, unless
+     * the writer thread stops in the meantime.
+     *
+     * @return true if the batch was queued, or false if the writer stopped
+     */
+    private boolean offer(WeightedTokenPairBuffer batch) throws InterruptedException {
+        while (!writerStopped) {
+            if (queue.offer(batch, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+                return true;
+        }
+        return false;
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null)
+            throw new IOException("Failed to write pairs: " + failure.getMessage(), failure);
+    }
+
+    /**
+     * Body of the writer thread. After a failure batches are still taken
+     * from the queue, so producers never block indefinitely, but they are
+     * discarded; the failure is reported to the next producer call. Should
+     * the thread stop for any other reason, that is recorded as a failure
+     * too, and every waiting producer is released.
+     */
+    private void drain() {
+        boolean poisoned = false;
+        try {
+            while (true) {
+                final WeightedTokenPairBuffer batch = queue.take();
+                if (batch == POISON) {
+                    poisoned = true;
+                    return;
+                }
+                if (failure == null) {
+                    try {
+                        batch.copyTo(inner);
+                    } catch (IOException ex) {
+                        LOG.error("Failed to write pairs.", ex);
+                        failure = ex;
+                    } catch (Throwable ex) {
+                        LOG.error("Failed to write pairs.", ex);
+                        failure = new IOException(ex);
+                    }
+                }
+                synchronized (progressLock) {
+                    ++batchesWritten;
+                    progressLock.notifyAll();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!poisoned && failure == null)
+                failure = new IOException("Pair writer stopped unexpectedly.");
+            writerStopped = true;
+            synchronized (progressLock) {
+                progressLock.notifyAll();
+            }
+        }
+    }
+}
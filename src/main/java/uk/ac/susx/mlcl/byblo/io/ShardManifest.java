@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import com.google.common.base.Objects;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Properties;
+
+/**
+ * Record of the part of an all-pairs run computed by one shard: which shard
+ * it was, how the vectors were divided into chunks, and the chunk pairs from
+ * that grid whose similarities were written to the shard's output. Shards run
+ * independently, so the manifests are what allow their outputs to be checked
+ * for completeness before they are merged (see
+ * {@link #checkComplete(java.util.Collection)}).
+ * <p/>
+ * Manifests are stored as a small properties file alongside the shard output
+ * (see {@link #sidecarFile(java.io.File)}). Chunk indices start at 0.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class ShardManifest implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String SIDECAR_SUFFIX = ".manifest";
+
+    private static final String KEY_SHARD_INDEX = "shard";
+
+    private static final String KEY_SHARD_COUNT = "shards";
+
+    private static final String KEY_CHUNK_SIZE = "chunkSize";
+
+    private static final String KEY_CHUNK_COUNT_A = "chunksA";
+
+    private static final String KEY_CHUNK_COUNT_B = "chunksB";
+
+    private static final String KEY_TRIANGULAR = "triangular";
+
+    private static final String KEY_CHUNK_PAIRS = "chunkPairs";
+
+    private final int shardIndex;
+
+    private final int shardCount;
+
+    private final int chunkSize;
+
+    private final int chunkCountA;
+
+    private final int chunkCountB;
+
+    private final boolean triangular;
+
+    /**
+     * Keys of the chunk pairs covered (see {@link #pairKey(int, int)}), in
+     * ascending order.
+     */
+    private final long[] chunkPairs;
+
+    public ShardManifest(int shardIndex, int shardCount, int chunkSize,
+                         int chunkCountA, int chunkCountB, boolean triangular,
+                         long[] chunkPairs) {
+        if (shardCount < 1)
+            throw new IllegalArgumentException("shardCount < 1");
+        if (shardIndex < 0 || shardIndex >= shardCount)
+            throw new IllegalArgumentException("shardIndex out of range [0, shardCount)");
+        if (chunkSize < 1)
+            throw new IllegalArgumentException("chunkSize < 1");
+        if (chunkCountA < 0)
+            throw new IllegalArgumentException("chunkCountA < 0");
+        if (chunkCountB < 0)
+            throw new IllegalArgumentException("chunkCountB < 0");
+        if (chunkPairs == null)
+            throw new NullPointerException("chunkPairs == null");
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+        this.chunkSize = chunkSize;
+        this.chunkCountA = chunkCountA;
+        this.chunkCountB = chunkCountB;
+        this.triangular = triangular;
+        this.chunkPairs = chunkPairs.clone();
+        LongArrays.quickSort(this.chunkPairs);
+        for (long key : this.chunkPairs) {
+            if (!isInGrid(key))
+                throw new IllegalArgumentException("Chunk pair " + pairString(key)
+                        + " is outside of the chunk grid.");
+        }
+    }
+
+    public int getShardIndex() {
+        return shardIndex;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunkCountA() {
+        return chunkCountA;
+    }
+
+    public int getChunkCountB() {
+        return chunkCountB;
+    }
+
+    public boolean isTriangular() {
+        return triangular;
+    }
+
+    public long[] getChunkPairs() {
+        return chunkPairs.clone();
+    }
+
+    /**
+     * @return number of chunk pairs in the whole grid, over all shards
+     */
+    public long getGridSize() {
+        if (triangular) {
+            // Row a covers columns a to chunkCountB - 1
+            long size = 0;
+            for (int a = 0; a < chunkCountA; a++)
+                size += Math.max(0, chunkCountB - a);
+            return size;
+        } else {
+            return (long) chunkCountA * chunkCountB;
+        }
+    }
+
+    private boolean isInGrid(long key) {
+        final int a = pairA(key);
+        final int b = pairB(key);
+        return a >= 0 && a < chunkCountA && b >= 0 && b < chunkCountB
+                && (!triangular || b >= a);
+    }
+
+    /**
+     * @param a index of the chunk from source A
+     * @param b index of the chunk from source B
+     * @return a single key identifying the chunk pair
+     */
+    public static long pairKey(int a, int b) {
+        return ((long) a << Integer.SIZE) | (b & 0xffffffffL);
+    }
+
+    public static int pairA(long key) {
+        return (int) (key >>> Integer.SIZE);
+    }
+
+    public static int pairB(long key) {
+        return (int) key;
+    }
+
+    private static String pairString(long key) {
+        return pairA(key) + ":" + pairB(key);
+    }
+
+    /**
+     * Check that the given manifests describe a complete set of shards of the
+     * same run: every shard is present exactly once, they all divided the
+     * vectors into the same chunk grid, and between them they cover every
+     * chunk pair in the grid exactly once.
+     *
+     * @param manifests manifests of every shard
+     * @throws IllegalArgumentException if the shards are inconsistent or
+     *                                  incomplete
+     */
+    public static void checkComplete(Collection<ShardManifest> manifests) {
+        if (manifests.isEmpty())
+            throw new IllegalArgumentException("No shard manifests given.");
+
+        final ShardManifest first = manifests.iterator().next();
+        final boolean[] seen = new boolean[first.shardCount];
+        final LongSet covered = new LongOpenHashSet();
+        for (ShardManifest m : manifests) {
+            if (m.shardCount != first.shardCount
+                    || m.chunkSize != first.chunkSize
+                    || m.chunkCountA != first.chunkCountA
+                    || m.chunkCountB != first.chunkCountB
+                    || m.triangular != first.triangular)
+                throw new IllegalArgumentException(
+                        "Shards are from different runs or chunk grids: "
+                        + first + " and " + m);
+            if (seen[m.shardIndex])
+                throw new IllegalArgumentException(
+                        "Shard " + m.shardIndex + " given more than once.");
+            seen[m.shardIndex] = true;
+            for (long key : m.chunkPairs) {
+                if (!covered.add(key))
+                    throw new IllegalArgumentException("Chunk pair " + pairString(key)
+                            + " is covered by more than one shard.");
+            }
+        }
+
+        for (int i = 0; i < seen.length; i++) {
+            if (!seen[i])
+                throw new IllegalArgumentException("Shard " + i + " of "
+                        + first.shardCount + " is missing.");
+        }
+        if (covered.size() != first.getGridSize())
+            throw new IllegalArgumentException("Shards cover " + covered.size()
+                    + " of " + first.getGridSize() + " chunk pairs.");
+    }
+
+    /**
+     * @param outputFile output file of a shard
+     * @return the file the manifest of the given output is stored in
+     */
+    public static File sidecarFile(File outputFile) {
+        return new File(outputFile.getPath() + SIDECAR_SUFFIX);
+    }
+
+    public void store(File file) throws IOException {
+        final StringBuilder pairs = new StringBuilder();
+        for (int i = 0; i < chunkPairs.length; i++) {
+            if (i > 0)
+                pairs.append(',');
+            pairs.append(pairString(chunkPairs[i]));
+        }
+
+        final Properties props = new Properties();
+        props.setProperty(KEY_SHARD_INDEX, Integer.toString(shardIndex));
+        props.setProperty(KEY_SHARD_COUNT, Integer.toString(shardCount));
+        props.setProperty(KEY_CHUNK_SIZE, Integer.toString(chunkSize));
+        props.setProperty(KEY_CHUNK_COUNT_A, Integer.toString(chunkCountA));
+        props.setProperty(KEY_CHUNK_COUNT_B, Integer.toString(chunkCountB));
+        props.setProperty(KEY_TRIANGULAR, Boolean.toString(triangular));
+        props.setProperty(KEY_CHUNK_PAIRS, pairs.toString());
+
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            props.store(out, "Byblo all-pairs shard manifest");
+        } finally {
+            out.close();
+        }
+    }
+
+    public static ShardManifest load(File file) throws IOException {
+        final Properties props = new Properties();
+        final InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+
+        try {
+            final String pairsString = getRequired(props, KEY_CHUNK_PAIRS, file);
+            final String[] pairStrings = pairsString.isEmpty()
+                    ? new String[0] : pairsString.split(",");
+            final long[] pairs = new long[pairStrings.length];
+            for (int i = 0; i < pairStrings.length; i++) {
+                final String pair = pairStrings[i].trim();
+                final int sep = pair.indexOf(':');
+                if (sep == -1)
+                    throw new IOException("Malformed chunk pair \"" + pair
+                            + "\" in shard manifest file: " + file);
+                pairs[i] = pairKey(
+                        Integer.parseInt(pair.substring(0, sep)),
+                        Integer.parseInt(pair.substring(sep + 1)));
+            }
+
+            return new ShardManifest(
+                    Integer.parseInt(getRequired(props, KEY_SHARD_INDEX, file)),
+                    Integer.parseInt(getRequired(props, KEY_SHARD_COUNT, file)),
+                    Integer.parseInt(getRequired(props, KEY_CHUNK_SIZE, file)),
+                    Integer.parseInt(getRequired(props, KEY_CHUNK_COUNT_A, file)),
+                    Integer.parseInt(getRequired(props, KEY_CHUNK_COUNT_B, file)),
+                    Boolean.parseBoolean(getRequired(props, KEY_TRIANGULAR, file)),
+                    pairs);
+        } catch (IllegalArgumentException ex) {
+            // Includes NumberFormatException
+            throw new IOException("Malformed shard manifest file: " + file, ex);
+        }
+    }
+
+    private static String getRequired(Properties props, String key, File file)
+            throws IOException {
+        final String value = props.getProperty(key);
+        if (value == null)
+            throw new IOException("Missing key \"" + key + "\" in shard manifest file: " + file);
+        return value.trim();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null || getClass() != obj.getClass())
+            return false;
+        final ShardManifest other = (ShardManifest) obj;
+        return shardIndex == other.shardIndex
+                && shardCount == other.shardCount
+                && chunkSize == other.chunkSize
+                && chunkCountA == other.chunkCountA
+                && chunkCountB == other.chunkCountB
+                && triangular == other.triangular
+                && Arrays.equals(chunkPairs, other.chunkPairs);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(shardIndex, shardCount, chunkSize,
+                chunkCountA, chunkCountB, triangular, Arrays.hashCode(chunkPairs));
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("shard", shardIndex).
+                add("shards", shardCount).
+                add("chunkSize", chunkSize).
+                add("chunksA", chunkCountA).
+                add("chunksB", chunkCountB).
+                add("triangular", triangular).
+                add("chunkPairs", chunkPairs.length).
+                toString();
+    }
+}
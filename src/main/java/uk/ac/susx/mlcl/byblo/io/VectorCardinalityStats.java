@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import com.google.common.base.Objects;
+import it.unimi.dsi.fastutil.ints.Int2LongMap;
+import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import uk.ac.susx.mlcl.lib.io.ObjectSource;
+
+import java.io.*;
+import java.util.Properties;
+
+/**
+ * Summary statistics of the non-zero cardinality of the feature vectors in an
+ * events file: how many vectors there are, and how many non-zero features they
+ * have (max, mean and 99th percentile). The statistics are cheap to compute
+ * when an events file is produced, and allow the all-pairs stage to size its
+ * chunks from the actual data rather than from a guess.
+ * <p/>
+ * Statistics are stored as a small properties file alongside the events file
+ * (see {@link #sidecarFile(java.io.File)}).
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class VectorCardinalityStats implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String SIDECAR_SUFFIX = ".stats";
+
+    private static final String KEY_VECTOR_COUNT = "vectors";
+
+    private static final String KEY_NON_ZERO_COUNT = "nonZeros";
+
+    private static final String KEY_MAX_NON_ZEROS = "maxNonZeros";
+
+    private static final String KEY_P99_NON_ZEROS = "p99NonZeros";
+
+    private final long vectorCount;
+
+    private final long nonZeroCount;
+
+    private final int maxNonZeros;
+
+    private final int p99NonZeros;
+
+    public VectorCardinalityStats(long vectorCount, long nonZeroCount,
+                                  int maxNonZeros, int p99NonZeros) {
+        if (vectorCount < 0)
+            throw new IllegalArgumentException("vectorCount < 0");
+        if (nonZeroCount < 0)
+            throw new IllegalArgumentException("nonZeroCount < 0");
+        if (maxNonZeros < 0)
+            throw new IllegalArgumentException("maxNonZeros < 0");
+        if (p99NonZeros < 0 || p99NonZeros > maxNonZeros)
+            throw new IllegalArgumentException("p99NonZeros out of range [0, maxNonZeros]");
+        this.vectorCount = vectorCount;
+        this.nonZeroCount = nonZeroCount;
+        this.maxNonZeros = maxNonZeros;
+        this.p99NonZeros = p99NonZeros;
+    }
+
+    public long getVectorCount() {
+        return vectorCount;
+    }
+
+    public long getNonZeroCount() {
+        return nonZeroCount;
+    }
+
+    public int getMaxNonZeros() {
+        return maxNonZeros;
+    }
+
+    public int getP99NonZeros() {
+        return p99NonZeros;
+    }
+
+    public double getMeanNonZeros() {
+        return vectorCount == 0 ? 0 : (double) nonZeroCount / vectorCount;
+    }
+
+    /**
+     * Scan an events source, counting the features of each entry. The events
+     * must be grouped by entry, which is the case for every events file
+     * produced by the count and filter stages.
+     *
+     * @param events source of entry/feature events, grouped by entry
+     * @return statistics of the vectors read from the source
+     * @throws IOException if the source could not be read
+     */
+    public static VectorCardinalityStats compute(
+            ObjectSource<Weighted<TokenPair>> events) throws IOException {
+        // Histogram of vector cardinalities; there are far fewer distinct
+        // cardinalities than vectors, so this is small even for large inputs.
+        final Int2LongMap histogram = new Int2LongOpenHashMap();
+        histogram.defaultReturnValue(0);
+
+        long vectorCount = 0;
+        long nonZeroCount = 0;
+        int currentEntryId = -1;
+        int currentNonZeros = 0;
+        while (events.hasNext()) {
+            final int entryId = events.read().record().id1();
+            if (entryId != currentEntryId && currentNonZeros > 0) {
+                histogram.put(currentNonZeros, histogram.get(currentNonZeros) + 1);
+                ++vectorCount;
+                currentNonZeros = 0;
+            }
+            currentEntryId = entryId;
+            ++currentNonZeros;
+            ++nonZeroCount;
+        }
+        if (currentNonZeros > 0) {
+            histogram.put(currentNonZeros, histogram.get(currentNonZeros) + 1);
+            ++vectorCount;
+        }
+
+        final int[] cardinalities = histogram.keySet().toIntArray();
+        IntArrays.quickSort(cardinalities);
+
+        final int max = cardinalities.length == 0 ? 0 : cardinalities[cardinalities.length - 1];
+
+        // Smallest cardinality such that at least 99% of vectors are no larger
+        final long rank = (long) Math.ceil(0.99 * vectorCount);
+        int p99 = 0;
+        long seen = 0;
+        for (int i = 0; i < cardinalities.length && seen < rank; i++) {
+            seen += histogram.get(cardinalities[i]);
+            p99 = cardinalities[i];
+        }
+
+        return new VectorCardinalityStats(vectorCount, nonZeroCount, max, p99);
+    }
+
+    /**
+     * @param eventsFile events file the statistics describe
+     * @return the file the statistics for the given events file are stored in
+     */
+    public static File sidecarFile(File eventsFile) {
+        return new File(eventsFile.getPath() + SIDECAR_SUFFIX);
+    }
+
+    public void store(File file) throws IOException {
+        final Properties props = new Properties();
+        props.setProperty(KEY_VECTOR_COUNT, Long.toString(vectorCount));
+        props.setProperty(KEY_NON_ZERO_COUNT, Long.toString(nonZeroCount));
+        props.setProperty(KEY_MAX_NON_ZEROS, Integer.toString(maxNonZeros));
+        props.setProperty(KEY_P99_NON_ZEROS, Integer.toString(p99NonZeros));
+
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            props.store(out, "Byblo vector cardinality statistics");
+        } finally {
+            out.close();
+        }
+    }
+
+    public static VectorCardinalityStats load(File file) throws IOException {
+        final Properties props = new Properties();
+        final InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+
+        try {
+            return new VectorCardinalityStats(
+                    Long.parseLong(getRequired(props, KEY_VECTOR_COUNT, file)),
+                    Long.parseLong(getRequired(props, KEY_NON_ZERO_COUNT, file)),
+                    Integer.parseInt(getRequired(props, KEY_MAX_NON_ZEROS, file)),
+                    Integer.parseInt(getRequired(props, KEY_P99_NON_ZEROS, file)));
+        } catch (IllegalArgumentException ex) {
+            // Includes NumberFormatException
+            throw new IOException("Malformed vector statistics file: " + file, ex);
+        }
+    }
+
+    private static String getRequired(Properties props, String key, File file)
+            throws IOException {
+        final String value = props.getProperty(key);
+        if (value == null)
+            throw new IOException("Missing key \"" + key + "\" in vector statistics file: " + file);
+        return value.trim();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null || getClass() != obj.getClass())
+            return false;
+        final VectorCardinalityStats other = (VectorCardinalityStats) obj;
+        return vectorCount == other.vectorCount
+                && nonZeroCount == other.nonZeroCount
+                && maxNonZeros == other.maxNonZeros
+                && p99NonZeros == other.p99NonZeros;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(vectorCount, nonZeroCount, maxNonZeros, p99NonZeros);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("vectors", vectorCount).
+                add("nonZeros", nonZeroCount).
+                add("maxNonZeros", maxNonZeros).
+                add("meanNonZeros", getMeanNonZeros()).
+                add("p99NonZeros", p99NonZeros).
+                toString();
+    }
+}
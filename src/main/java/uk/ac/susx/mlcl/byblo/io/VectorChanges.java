@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import com.google.common.base.Objects;
+import it.unimi.dsi.fastutil.ints.Int2LongMap;
+import it.unimi.dsi.fastutil.ints.Int2LongOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.ObjectSource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The entry vectors that differ between two events files: those that were
+ * added, whose features or weights were modified, and those that were
+ * removed. An incremental all-pairs run need only score the added and
+ * modified vectors against the rest; every other pair is unchanged.
+ * <p/>
+ * The previous vectors are held only as a 64 bit fingerprint each, so the
+ * comparison needs little memory however large the files, and neither file
+ * need be in any particular order. Both files must have been enumerated with
+ * the same indices, since vectors are matched by id.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class VectorChanges {
+
+    private final IntSet changedIds;
+
+    private final IntSet removedIds;
+
+    private final List<Indexed<SparseDoubleVector>> changedVectors;
+
+    private final int addedCount;
+
+    private final int unchangedCount;
+
+    private VectorChanges(IntSet changedIds, IntSet removedIds,
+                          List<Indexed<SparseDoubleVector>> changedVectors,
+                          int addedCount, int unchangedCount) {
+        this.changedIds = changedIds;
+        this.removedIds = removedIds;
+        this.changedVectors = changedVectors;
+        this.addedCount = addedCount;
+        this.unchangedCount = unchangedCount;
+    }
+
+    /**
+     * Compare the vectors of a previous and a current events file.
+     *
+     * @param previous vectors of the previous events file
+     * @param current  vectors of the current events file
+     * @return the differences between them
+     * @throws IOException if either source could not be read
+     */
+    public static VectorChanges compare(
+            ObjectSource<Indexed<SparseDoubleVector>> previous,
+            ObjectSource<Indexed<SparseDoubleVector>> current) throws IOException {
+        final Int2LongMap previousPrints = new Int2LongOpenHashMap();
+        while (previous.hasNext()) {
+            final Indexed<SparseDoubleVector> v = previous.read();
+            previousPrints.put(v.key(), fingerprint(v.value()));
+        }
+
+        final IntSet changedIds = new IntOpenHashSet();
+        final List<Indexed<SparseDoubleVector>> changedVectors =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        final IntSet seenIds = new IntOpenHashSet();
+        int addedCount = 0;
+        int unchangedCount = 0;
+        while (current.hasNext()) {
+            final Indexed<SparseDoubleVector> v = current.read();
+            seenIds.add(v.key());
+            if (!previousPrints.containsKey(v.key())) {
+                ++addedCount;
+            } else if (previousPrints.get(v.key()) == fingerprint(v.value())) {
+                ++unchangedCount;
+                continue;
+            }
+            changedIds.add(v.key());
+            changedVectors.add(v);
+        }
+
+        final IntSet removedIds = new IntOpenHashSet();
+        for (int id : previousPrints.keySet()) {
+            if (!seenIds.contains(id))
+                removedIds.add(id);
+        }
+
+        return new VectorChanges(changedIds, removedIds,
+                Collections.unmodifiableList(changedVectors),
+                addedCount, unchangedCount);
+    }
+
+    /**
+     * @param vector sparse vector
+     * @return a 64 bit hash of the non-zero features and weights of the vector
+     */
+    static long fingerprint(SparseDoubleVector vector) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < vector.size; i++) {
+            h = (h ^ vector.keys[i]) * 0x100000001b3L;
+            h = (h ^ Double.doubleToLongBits(vector.values[i])) * 0x100000001b3L;
+        }
+        return h ^ vector.size;
+    }
+
+    /**
+     * @return ids of the entries that were added or modified
+     */
+    public IntSet getChangedIds() {
+        return changedIds;
+    }
+
+    /**
+     * @return ids of the entries that are no longer present
+     */
+    public IntSet getRemovedIds() {
+        return removedIds;
+    }
+
+    /**
+     * @return the current vectors of the added and modified entries
+     */
+    public List<Indexed<SparseDoubleVector>> getChangedVectors() {
+        return changedVectors;
+    }
+
+    public int getAddedCount() {
+        return addedCount;
+    }
+
+    public int getModifiedCount() {
+        return changedIds.size() - addedCount;
+    }
+
+    public int getRemovedCount() {
+        return removedIds.size();
+    }
+
+    public int getUnchangedCount() {
+        return unchangedCount;
+    }
+
+    /**
+     * @param id entry id
+     * @return true if pairs involving the entry must be dropped or recomputed
+     */
+    public boolean isStale(int id) {
+        return changedIds.contains(id) || removedIds.contains(id);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("added", getAddedCount()).
+                add("modified", getModifiedCount()).
+                add("removed", getRemovedCount()).
+                add("unchanged", getUnchangedCount()).
+                toString();
+    }
+
+}
@@ -47,6 +47,11 @@ public abstract class AbstractMIProximity extends AbstractProximity {
      */
     private static final double LOG_2 = Math.log(2.0);
 
+    /**
+     * Multiplier for conversion of natural logs to base 2
+     */
+    private static final double LOG2_E = 1.0 / LOG_2;
+
     /**
      * A mapping from feature id to frequency, stored as a double because it may
      * have been waited in a pre-processing stage.
@@ -68,6 +73,18 @@ public abstract class AbstractMIProximity extends AbstractProximity {
      */
     private long occurringFeatureCount;
 
+    /**
+     * Independent probability of each feature, indexed by feature id. Built
+     * whenever the feature frequencies or their sum are set, so the priors
+     * are not recalculated for every shared feature of every pair.
+     */
+    private double[] featurePriors;
+
+    /**
+     * Base 2 logarithm of each element of {@link #featurePriors}.
+     */
+    private double[] log2FeaturePriors;
+
     /**
      *
      */
@@ -78,6 +95,7 @@ public abstract class AbstractMIProximity extends AbstractProximity {
         if (featureFrequencies == null)
             throw new NullPointerException("featureFrequencies == null");
         this.featureFrequencies = featureFrequencies;
+        buildPriorTables();
     }
 
     public void setFeatureFrequencySum(double featureFrequencySum) {
@@ -86,6 +104,21 @@ public abstract class AbstractMIProximity extends AbstractProximity {
         if (Double.isInfinite(featureFrequencySum))
             throw new IllegalArgumentException("featureFrequencySum is infinite");
         this.featureFrequencySum = featureFrequencySum;
+        buildPriorTables();
+    }
+
+    private void buildPriorTables() {
+        if (featureFrequencies == null)
+            return;
+        final int n = featureFrequencies.length;
+        if (featurePriors == null || featurePriors.length != n) {
+            featurePriors = new double[n];
+            log2FeaturePriors = new double[n];
+        }
+        for (int k = 0; k < n; k++) {
+            featurePriors[k] = featureFrequencies[k] / featureFrequencySum;
+            log2FeaturePriors[k] = Math.log(featurePriors[k]) * LOG2_E;
+        }
     }
 
     public void setOccurringFeatureCount(int occurringFeatureCount) {
@@ -133,7 +166,7 @@ public abstract class AbstractMIProximity extends AbstractProximity {
      * @return independent probability of that feature occurring.
      */
     protected final double featurePrior(final int k) {
-        return featureFreq(k) / featureFrequencySum;
+        return featurePriors[k];
     }
 
     protected final double entryPrior(final SparseDoubleVector V) {
@@ -165,8 +198,13 @@ public abstract class AbstractMIProximity extends AbstractProximity {
      * @return information content of V at i if positive, otherwise 0
      */
     protected final double posInf(final SparseDoubleVector V, final int i) {
-        final double tmp = (V.values[i] / V.sum) / featurePrior(V.keys[i]);
-        return tmp > 1 ? (Math.log(tmp) / LOG_2) : 0;
+        // log2(p / prior) is calculated as log2(p) - log2(prior), with the
+        // log of the prior taken from the table
+        final double p = V.values[i] / V.sum;
+        final int k = V.keys[i];
+        return p > featurePriors[k]
+               ? Math.log(p) * LOG2_E - log2FeaturePriors[k]
+               : 0;
     }
 
     public boolean hasPosInf(final SparseDoubleVector V, final int i) {
@@ -30,14 +30,34 @@
  */
 package uk.ac.susx.mlcl.byblo.measures;
 
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
 /**
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public abstract class AbstractProximity implements Proximity {
+public abstract class AbstractProximity implements BatchProximity {
 
     private int filteredFeatureId = -1;
 
+    /**
+     * Size ratio above which the keys of a pair of vectors are intersected by
+     * galloping search, rather than a linear merge.
+     */
+    private double gallopRatio = Intersection.DEFAULT_GALLOP_RATIO;
+
+    /**
+     * Scratch space for batch calculations, one per thread because a single
+     * measure instance is shared between all-pairs worker threads.
+     */
+    private final ThreadLocal<DenseQuery> denseQuery = new ThreadLocal<DenseQuery>() {
+
+        @Override
+        protected DenseQuery initialValue() {
+            return new DenseQuery();
+        }
+    };
+
     /**
      * 
      */
@@ -56,4 +76,43 @@ public abstract class AbstractProximity implements Proximity {
     public boolean isFiltered(int featureId) {
         return filteredFeatureId == featureId;
     }
+
+    public double getGallopRatio() {
+        return gallopRatio;
+    }
+
+    public void setGallopRatio(double gallopRatio) {
+        if (Double.isNaN(gallopRatio) || gallopRatio < 1)
+            throw new IllegalArgumentException(
+                    "gallopRatio must be at least 1, but found " + gallopRatio);
+        this.gallopRatio = gallopRatio;
+    }
+
+    /**
+     * @return whether vectors of the given sizes should be intersected by
+     *         galloping search
+     */
+    protected final boolean isSkewed(int sizeA, int sizeB) {
+        return Intersection.isSkewed(sizeA, sizeB, gallopRatio);
+    }
+
+    /**
+     * Default batch implementation, that simply calculates the shared
+     * component of each pair in turn. Sub-classes should override this method
+     * when the query vector can be processed once for the whole block.
+     */
+    @Override
+    public void sharedBatch(SparseDoubleVector[] A, int offset, int length,
+                            SparseDoubleVector B, double[] shared) {
+        for (int k = 0; k < length; k++) {
+            shared[k] = shared(A[offset + k], B);
+        }
+    }
+
+    /**
+     * @return the calling thread's scratch space for batch calculations
+     */
+    DenseQuery denseQuery() {
+        return denseQuery.get();
+    }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * A {@link Proximity} that can calculate the shared component of a single
+ * query vector against a block of other vectors in one call. Implementations
+ * can then do the per-query work, such as scattering the query into a dense
+ * array, once for the whole block rather than once for every pair.
+ *
+ * Each value produced must be exactly the same as the value that
+ * {@link #shared(SparseDoubleVector, SparseDoubleVector)} would produce for
+ * the same pair of vectors.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public interface BatchProximity extends Proximity {
+
+    /**
+     * Calculate the shared component of the measure between each of the
+     * vectors {@code A[offset]} to {@code A[offset + length - 1]}, and the
+     * vector B. The result for {@code A[offset + k]} is written to
+     * {@code shared[k]}.
+     *
+     * @param A array containing the block of first feature vectors
+     * @param offset index in A of the first vector in the block
+     * @param length number of vectors in the block
+     * @param B the second feature vector, common to every pair
+     * @param shared destination of the shared components
+     */
+    void sharedBatch(SparseDoubleVector[] A, int offset, int length,
+                     SparseDoubleVector B, double[] shared);
+
+}
@@ -57,11 +57,12 @@ public final class Confusion extends AbstractMIProximity {
         double total = 0.0;
 
         int i = 0, j = 0;
+        final boolean skewed = isSkewed(a.size, b.size);
         while (i < a.size && j < b.size) {
             if (a.keys[i] < b.keys[j]) {
-                i++;
+                i = skewed ? Intersection.skipTo(a.keys, i, a.size, b.keys[j]) : i + 1;
             } else if (a.keys[i] > b.keys[j]) {
-                j++;
+                j = skewed ? Intersection.skipTo(b.keys, j, b.size, a.keys[i]) : j + 1;
             } else if (isFiltered(a.keys[i])) {
                 i++;
                 j++;
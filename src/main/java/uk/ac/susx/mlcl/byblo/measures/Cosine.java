@@ -37,7 +37,8 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class Cosine extends AbstractProximity {
+public class Cosine extends AbstractProximity
+        implements DecomposableProximity, PreparedProximity {
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
@@ -45,11 +46,12 @@ public class Cosine extends AbstractProximity {
 
         int i = 0;
         int j = 0;
+        final boolean skewed = isSkewed(A.size, B.size);
         while (i < A.size && j < B.size) {
             if (A.keys[i] < B.keys[j]) {
-                i++;
+                i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
             } else if (A.keys[i] > B.keys[j]) {
-                j++;
+                j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
             } else if (isFiltered(A.keys[i])) {
                 i++;
                 j++;
@@ -63,6 +65,70 @@ public class Cosine extends AbstractProximity {
         return numerator;
     }
 
+    @Override
+    public void sharedBatch(SparseDoubleVector[] A, int offset, int length,
+                            SparseDoubleVector B, double[] shared) {
+        final DenseQuery query = denseQuery();
+        query.clear(B);
+        for (int j = 0; j < B.size; j++) {
+            if (!isFiltered(B.keys[j])) {
+                query.set(B.keys[j], B.values[j] / B.sum);
+            }
+        }
+
+        for (int k = 0; k < length; k++) {
+            final SparseDoubleVector a = A[offset + k];
+            double numerator = 0;
+            for (int i = 0; i < a.size; i++) {
+                if (query.contains(a.keys[i])) {
+                    numerator += (a.values[i] / a.sum) * query.get(a.keys[i]);
+                }
+            }
+            shared[k] = numerator;
+        }
+    }
+
+    @Override
+    public double sharedComponent(SparseDoubleVector A, int i,
+                                  SparseDoubleVector B, int j) {
+        return isFiltered(A.keys[i]) ? 0
+               : (A.values[i] / A.sum) * (B.values[j] / B.sum);
+    }
+
+    @Override
+    public PreparedVector prepare(SparseDoubleVector A) {
+        final double[] probs = new double[A.size];
+        for (int i = 0; i < A.size; i++) {
+            probs[i] = A.values[i] / A.sum;
+        }
+        return new PreparedVector(A, probs);
+    }
+
+    @Override
+    public double sharedPrepared(PreparedVector A, PreparedVector B) {
+        double numerator = 0;
+
+        int i = 0;
+        int j = 0;
+        final boolean skewed = isSkewed(A.size, B.size);
+        while (i < A.size && j < B.size) {
+            if (A.keys[i] < B.keys[j]) {
+                i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
+            } else if (A.keys[i] > B.keys[j]) {
+                j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
+            } else if (isFiltered(A.keys[i])) {
+                i++;
+                j++;
+            } else {
+                numerator += A.weights[i] * B.weights[j];
+                i++;
+                j++;
+            }
+        }
+
+        return numerator;
+    }
+
     @Override
     public double left(SparseDoubleVector A) {
         double normSquared = 0;
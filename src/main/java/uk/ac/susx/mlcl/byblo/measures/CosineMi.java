@@ -35,18 +35,20 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 /**
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class CosineMi extends AbstractMIProximity {
+public class CosineMi extends AbstractMIProximity
+        implements DecomposableProximity, PreparedProximity {
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
         double numerator = 0;
 
         int i = 0, j = 0;
+        final boolean skewed = isSkewed(A.size, B.size);
         while (i < A.size && j < B.size) {
             if (A.keys[i] < B.keys[j]) {
-                i++;
+                i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
             } else if (A.keys[i] > B.keys[j]) {
-                j++;
+                j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
             } else if (isFiltered(A.keys[i])) {
                 i++;
                 j++;
@@ -60,6 +62,47 @@ public class CosineMi extends AbstractMIProximity {
         return numerator;
     }
 
+    @Override
+    public double sharedComponent(SparseDoubleVector A, int i,
+                                  SparseDoubleVector B, int j) {
+        return isFiltered(A.keys[i]) ? 0 : posInf(A, i) * posInf(B, j);
+    }
+
+    @Override
+    public PreparedVector prepare(SparseDoubleVector A) {
+        // Positive information content of each feature
+        final double[] weights = new double[A.size];
+        for (int i = 0; i < A.size; i++) {
+            weights[i] = posInf(A, i);
+        }
+        return new PreparedVector(A, weights);
+    }
+
+    @Override
+    public double sharedPrepared(PreparedVector A, PreparedVector B) {
+        double numerator = 0;
+
+        int i = 0;
+        int j = 0;
+        final boolean skewed = isSkewed(A.size, B.size);
+        while (i < A.size && j < B.size) {
+            if (A.keys[i] < B.keys[j]) {
+                i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
+            } else if (A.keys[i] > B.keys[j]) {
+                j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
+            } else if (isFiltered(A.keys[i])) {
+                i++;
+                j++;
+            } else {
+                numerator += A.weights[i] * B.weights[j];
+                i++;
+                j++;
+            }
+        }
+
+        return numerator;
+    }
+
     @Override
     public double left(SparseDoubleVector A) {
         double denominatorA = 0;
@@ -52,36 +52,22 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class CrMi extends AbstractMIProximity {
+public class CrMi extends AbstractMIProximity
+        implements PreparedProximity {
 
     public static final double DEFAULT_BETA = 0.5;
 
     public static final double DEFAULT_GAMMA = 0.5;
 
-    private final RecallMi recallMi;
-
     private double beta;
 
     private double gamma;
 
     public CrMi() {
-        recallMi = new RecallMi();
         this.beta = DEFAULT_BETA;
         this.gamma = DEFAULT_GAMMA;
     }
 
-    @Override
-    public void setFeatureFrequencies(double[] contextFrequencies) {
-        recallMi.setFeatureFrequencies(contextFrequencies);
-        super.setFeatureFrequencies(contextFrequencies);
-    }
-
-    @Override
-    public void setFeatureFrequencySum(double contextSum) {
-        recallMi.setFeatureFrequencySum(contextSum);
-        super.setFeatureFrequencySum(contextSum);
-    }
-
     public final void setBeta(final double beta) {
         if (beta < 0 || beta > 1)
             throw new IllegalArgumentException(
@@ -104,11 +90,104 @@ public class CrMi extends AbstractMIProximity {
         return gamma;
     }
 
+    /**
+     * Recall and precision are both calculated from a single pass over the
+     * two vectors. Every element must be visited, because the recall
+     * denominator of each vector is its total positive information content.
+     */
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
-        final double recall = recallMi.shared(A, B) / recallMi.left(A);
-        final double precision = recallMi.shared(B, A) / recallMi.left(B);
+        // Information content of the features of A that also occur in B,
+        // and vice versa
+        double sharedA = 0.0;
+        double sharedB = 0.0;
+        double totalA = 0.0;
+        double totalB = 0.0;
+
+        int i = 0;
+        int j = 0;
+        while (i < A.size && j < B.size) {
+            if (A.keys[i] < B.keys[j]) {
+                totalA += posInf(A, i);
+                ++i;
+            } else if (A.keys[i] > B.keys[j]) {
+                totalB += posInf(B, j);
+                ++j;
+            } else {
+                final double infA = posInf(A, i);
+                final double infB = posInf(B, j);
+                totalA += infA;
+                totalB += infB;
+                if (!isFiltered(A.keys[i])) {
+                    if (infB > 0) {
+                        sharedA += infA;
+                    }
+                    if (infA > 0) {
+                        sharedB += infB;
+                    }
+                }
+                ++i;
+                ++j;
+            }
+        }
+        while (i < A.size) {
+            totalA += posInf(A, i);
+            ++i;
+        }
+        while (j < B.size) {
+            totalB += posInf(B, j);
+            ++j;
+        }
+
+        return crmi(sharedA / totalA, sharedB / totalB);
+    }
+
+    /**
+     * The prepared form of each vector holds the positive information content
+     * of its features, and their total, so only the shared features need be
+     * visited.
+     */
+    @Override
+    public PreparedVector prepare(SparseDoubleVector A) {
+        final double[] weights = new double[A.size];
+        for (int i = 0; i < A.size; i++) {
+            weights[i] = posInf(A, i);
+        }
+        return new PreparedVector(A, weights);
+    }
+
+    @Override
+    public double sharedPrepared(PreparedVector A, PreparedVector B) {
+        double sharedA = 0.0;
+        double sharedB = 0.0;
+
+        int i = 0;
+        int j = 0;
+        final boolean skewed = isSkewed(A.size, B.size);
+        while (i < A.size && j < B.size) {
+            if (A.keys[i] < B.keys[j]) {
+                i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
+            } else if (A.keys[i] > B.keys[j]) {
+                j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
+            } else if (isFiltered(A.keys[i])) {
+                i++;
+                j++;
+            } else {
+                if (B.weights[j] > 0) {
+                    sharedA += A.weights[i];
+                }
+                if (A.weights[i] > 0) {
+                    sharedB += B.weights[j];
+                }
+                i++;
+                j++;
+            }
+        }
+
+        return crmi(sharedA / A.weightSum, sharedB / B.weightSum);
+    }
 
+    private double crmi(final double recall, final double precision) {
         // arithmetic mean
         final double am = (beta * precision) + ((1 - beta) * recall);
 
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import java.util.Arrays;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * Reusable dense array into which a query vector is scattered, so that the
+ * features of other vectors can be looked up in constant time. Entries are
+ * marked with the current generation, so the array never needs clearing
+ * between queries.
+ *
+ * Instances are not thread safe; each thread must use its own.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class DenseQuery {
+
+    private double[] values = new double[0];
+
+    private int[] marks = new int[0];
+
+    private int generation = 0;
+
+    DenseQuery() {
+    }
+
+    /**
+     * Remove all entries, and ensure there is room for every feature of the
+     * given vector.
+     *
+     * @param vector the query vector about to be scattered
+     */
+    void clear(SparseDoubleVector vector) {
+        final int capacity = vector.size == 0 ? 0 : vector.keys[vector.size - 1] + 1;
+        if (capacity > marks.length) {
+            final int newLength = Math.max(capacity, marks.length + (marks.length >> 1));
+            values = new double[newLength];
+            marks = new int[newLength];
+            generation = 0;
+        }
+        if (++generation == 0) {
+            // The generation counter has wrapped around, so stale marks
+            // could collide with the new generation.
+            Arrays.fill(marks, 0);
+            generation = 1;
+        }
+    }
+
+    void set(int key, double value) {
+        values[key] = value;
+        marks[key] = generation;
+    }
+
+    boolean contains(int key) {
+        return key < marks.length && marks[key] == generation;
+    }
+
+    double get(int key) {
+        return values[key];
+    }
+}
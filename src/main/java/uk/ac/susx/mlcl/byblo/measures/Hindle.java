@@ -35,20 +35,22 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 /**
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class Hindle extends AbstractMIProximity {
+public class Hindle extends AbstractMIProximity
+        implements DecomposableProximity, PreparedProximity {
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
         double sim = 0;
 
         int i = 0, j = 0;
+        final boolean skewed = isSkewed(A.size, B.size);
         while (i < A.size && j < B.size) {
             if (A.keys[i] < B.keys[j]) {
 
-                i++;
+                i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
             } else if (A.keys[i] > B.keys[j]) {
 
-                j++;
+                j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
             } else if (isFiltered(A.keys[i])) {
                 i++;
                 j++;
@@ -68,6 +70,66 @@ public class Hindle extends AbstractMIProximity {
         return sim;
     }
 
+    @Override
+    public double sharedComponent(SparseDoubleVector A, int i,
+                                  SparseDoubleVector B, int j) {
+        if (isFiltered(A.keys[i]))
+            return 0;
+        final double pC = featurePrior(A.keys[i]);
+        final double pA = prob(A, i);
+        if (pA > pC) {
+            final double pB = prob(B, j);
+            if (pB > pC) {
+                return Math.log(Math.min(pA / pC, pB / pC));
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public PreparedVector prepare(SparseDoubleVector A) {
+        // Ratio of each feature's probability to its prior, where that is
+        // greater than 1, otherwise 0
+        final double[] weights = new double[A.size];
+        for (int i = 0; i < A.size; i++) {
+            final double pC = featurePrior(A.keys[i]);
+            final double pA = prob(A, i);
+            weights[i] = pA > pC ? pA / pC : 0;
+        }
+        return new PreparedVector(A, weights);
+    }
+
+    @Override
+    public double sharedPrepared(PreparedVector A, PreparedVector B) {
+        double sim = 0;
+
+        int i = 0;
+        int j = 0;
+        final boolean skewed = isSkewed(A.size, B.size);
+        while (i < A.size && j < B.size) {
+            if (A.keys[i] < B.keys[j]) {
+                i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
+            } else if (A.keys[i] > B.keys[j]) {
+                j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
+            } else if (isFiltered(A.keys[i])) {
+                i++;
+                j++;
+            } else {
+                final double rA = A.weights[i];
+                if (rA > 0) {
+                    final double rB = B.weights[j];
+                    if (rB > 0) {
+                        sim += Math.log(Math.min(rA, rB));
+                    }
+                }
+                i++;
+                j++;
+            }
+        }
+
+        return sim;
+    }
+
     @Override
     public double left(SparseDoubleVector A) {
         return 0;
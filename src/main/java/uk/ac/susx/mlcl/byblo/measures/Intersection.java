@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+/**
+ * Static utility methods for intersecting the sorted key arrays of sparse
+ * vectors.
+ *
+ * The measures find shared features by merging the keys of both vectors,
+ * which costs time linear in the size of the larger vector. When one vector
+ * is many times larger than the other, most of that work is stepping over
+ * keys of the larger vector that can not match. For such pairs
+ * {@link #skipTo(int[], int, int, int)} finds the next candidate key by
+ * exponential (galloping) search instead, so the cost becomes roughly
+ * proportional to the size of the smaller vector times the logarithm of the
+ * larger.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class Intersection {
+
+    /**
+     * Default size ratio above which the keys are intersected by galloping.
+     * Below this ratio the extra comparisons of the exponential search cost
+     * about as much as the simple merge steps they save. (See
+     * IntersectionTest#testCrossover, which measures the crossover point.)
+     */
+    public static final double DEFAULT_GALLOP_RATIO = 8;
+
+    private Intersection() {
+    }
+
+    /**
+     * Whether the sizes of two vectors differ by enough that their keys
+     * should be intersected by galloping.
+     *
+     * @param sizeA number of non-zero elements in the first vector
+     * @param sizeB number of non-zero elements in the second vector
+     * @param ratio size ratio above which to gallop
+     * @return true if the larger size exceeds ratio times the smaller
+     */
+    public static boolean isSkewed(int sizeA, int sizeB, double ratio) {
+        return sizeA > sizeB
+               ? sizeA > ratio * sizeB
+               : sizeB > ratio * sizeA;
+    }
+
+    /**
+     * Find the index of the first key, after the given index, that is not
+     * less than the target key. The keys must be sorted in ascending order.
+     * The search doubles its step size until it overshoots, and then
+     * binary searches the last step, so the cost is logarithmic in the
+     * distance skipped.
+     *
+     * @param keys sorted keys to search
+     * @param from index of a key that is known to be less than the target
+     * @param to index one past the last key to search
+     * @param key the target key
+     * @return smallest index in the range (from, to) whose key is not less
+     *         than the target, or to if there is none
+     */
+    public static int skipTo(int[] keys, int from, int to, int key) {
+        int low = from + 1;
+        int step = 1;
+        // Gallop: find a range (low - 1, high] that contains the answer
+        while (low < to && keys[low] < key) {
+            from = low;
+            low = step < to - low ? low + step : to;
+            step <<= 1;
+        }
+        int high = Math.min(low, to);
+        low = from + 1;
+        // Binary search (from, high] for the first key not less than target
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (keys[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
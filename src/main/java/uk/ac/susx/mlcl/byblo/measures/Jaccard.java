@@ -38,18 +38,20 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class Jaccard extends AbstractProximity {
+public class Jaccard extends AbstractProximity
+        implements DecomposableProximity {
 
     @Override
     public double shared(final SparseDoubleVector A, final SparseDoubleVector B) {
         int shared = 0;
         int i = 0;
         int j = 0;
+        final boolean skewed = isSkewed(A.size, B.size);
         while (i < A.size && j < B.size) {
             if (A.keys[i] < B.keys[j]) {
-                i++;
+                i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
             } else if (A.keys[i] > B.keys[j]) {
-                j++;
+                j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
             } else if (isFiltered(A.keys[i])) {
                 i++;
                 j++;
@@ -62,6 +64,35 @@ public class Jaccard extends AbstractProximity {
         return shared;
     }
 
+    @Override
+    public void sharedBatch(SparseDoubleVector[] A, int offset, int length,
+                            SparseDoubleVector B, double[] shared) {
+        final DenseQuery query = denseQuery();
+        query.clear(B);
+        for (int j = 0; j < B.size; j++) {
+            if (!isFiltered(B.keys[j])) {
+                query.set(B.keys[j], 1);
+            }
+        }
+
+        for (int k = 0; k < length; k++) {
+            final SparseDoubleVector a = A[offset + k];
+            int count = 0;
+            for (int i = 0; i < a.size; i++) {
+                if (query.contains(a.keys[i])) {
+                    ++count;
+                }
+            }
+            shared[k] = count;
+        }
+    }
+
+    @Override
+    public double sharedComponent(SparseDoubleVector A, int i,
+                                  SparseDoubleVector B, int j) {
+        return isFiltered(A.keys[i]) ? 0 : 1;
+    }
+
     @Override
     public double left(final SparseDoubleVector A) {
         return A.size;
@@ -35,18 +35,20 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 /**
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class JaccardMi extends AbstractMIProximity {
+public class JaccardMi extends AbstractMIProximity
+        implements DecomposableProximity, PreparedProximity {
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
         int shared = 0;
 
         int i = 0, j = 0;
+        final boolean skewed = isSkewed(A.size, B.size);
         while (i < A.size && j < B.size) {
             if (A.keys[i] < B.keys[j]) {
-                i++;
+                i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
             } else if (A.keys[i] > B.keys[j]) {
-                j++;
+                j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
             } else if (isFiltered(A.keys[i])) {
                 i++;
                 j++;
@@ -62,6 +64,48 @@ public class JaccardMi extends AbstractMIProximity {
 
     }
 
+    @Override
+    public double sharedComponent(SparseDoubleVector A, int i,
+                                  SparseDoubleVector B, int j) {
+        return !isFiltered(A.keys[i]) && hasPosInf(A, i, B, j) ? 1 : 0;
+    }
+
+    @Override
+    public PreparedVector prepare(SparseDoubleVector A) {
+        // 1 where the feature has positive information content, otherwise 0
+        final double[] weights = new double[A.size];
+        for (int i = 0; i < A.size; i++) {
+            weights[i] = hasPosInf(A, i) ? 1 : 0;
+        }
+        return new PreparedVector(A, weights);
+    }
+
+    @Override
+    public double sharedPrepared(PreparedVector A, PreparedVector B) {
+        int shared = 0;
+
+        int i = 0;
+        int j = 0;
+        final boolean skewed = isSkewed(A.size, B.size);
+        while (i < A.size && j < B.size) {
+            if (A.keys[i] < B.keys[j]) {
+                i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
+            } else if (A.keys[i] > B.keys[j]) {
+                j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
+            } else if (isFiltered(A.keys[i])) {
+                i++;
+                j++;
+            } else {
+                if (A.weights[i] > 0 && B.weights[j] > 0)
+                    ++shared;
+                i++;
+                j++;
+            }
+        }
+
+        return shared;
+    }
+
     @Override
     public double left(SparseDoubleVector A) {
         int possible = 0;
@@ -51,7 +51,8 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  * @author David Sheldrick &lt;ds300@sussex.ac.uk&gt;
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class Jensen extends AbstractProximity {
+public class Jensen extends AbstractProximity
+        implements PreparedProximity {
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
@@ -92,6 +93,56 @@ public class Jensen extends AbstractProximity {
         return divergence / 2.;
     }
 
+    @Override
+    public PreparedVector prepare(SparseDoubleVector A) {
+        final double[] probs = new double[A.size];
+        final double[] logs = new double[A.size];
+        for (int i = 0; i < A.size; i++) {
+            probs[i] = A.values[i] / A.sum;
+            logs[i] = log2(probs[i]);
+        }
+        return new PreparedVector(A, probs, logs);
+    }
+
+    @Override
+    public double sharedPrepared(PreparedVector A, PreparedVector B) {
+        double divergence = 0;
+
+        int i = 0, j = 0;
+        while (i < A.size && j < B.size) {
+            if (A.keys[i] < B.keys[j]) {
+                divergence += A.weights[i];
+                i++;
+            } else if (A.keys[i] > B.keys[j]) {
+                divergence += B.weights[j];
+                j++;
+            } else if (isFiltered(A.keys[i])) {
+                i++;
+                j++;
+            } else {
+                final double pA = A.weights[i];
+                final double pB = B.weights[j];
+                final double lpAvg = log2(pA + pB) - 1.;
+                divergence += pA * (A.logs[i] - lpAvg);
+                divergence += pB * (B.logs[j] - lpAvg);
+                i++;
+                j++;
+            }
+        }
+
+        while (i < A.size) {
+            divergence += A.weights[i];
+            i++;
+        }
+
+        while (j < B.size) {
+            divergence += B.weights[j];
+            j++;
+        }
+
+        return divergence / 2.;
+    }
+
     @Override
     public double left(SparseDoubleVector A) {
         return 0.;
@@ -30,27 +30,42 @@
  */
 package uk.ac.susx.mlcl.byblo.measures;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
+import it.unimi.dsi.fastutil.Swapper;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
 import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 
 /**
  * tau(q,r) = sum_i_j( sign((qi - qj)(ri - rj)) / (2 * |V|)  )
  *
+ * The sum over pairs of features is calculated using Knight's algorithm: the
+ * features in the union of both vectors are sorted by their value in the
+ * first vector, and the discordant pairs are counted as the number of
+ * exchanges required to merge-sort them by their value in the second vector.
+ * This takes O(n log n) time on the size of the union, rather than the O(n^2)
+ * of comparing every pair directly. Feature values are expected to be
+ * positive (e.g. frequencies), so that features absent from a vector rank
+ * below those that occur.
+ *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
 public class KendallTau extends AbstractProximity {
 
-    private static final Log LOG = LogFactory.getLog(KendallTau.class);
-
     private int numFeatures;
 
+    /**
+     * Scratch space for the rank calculations, one per thread because a
+     * single measure instance is shared between all-pairs worker threads.
+     */
+    private final ThreadLocal<Ranks> ranks = new ThreadLocal<Ranks>() {
+
+        @Override
+        protected Ranks initialValue() {
+            return new Ranks();
+        }
+    };
+
     public KendallTau() {
         this.numFeatures = 0;
-        if (LOG.isWarnEnabled())
-            LOG.warn("The KendallTau proximity measure is extremely inefficient "
-                    + "(quadratic on the number of features). Consider using a "
-                    + "different measure.");
     }
 
     public final int getNumFeatures() {
@@ -74,155 +89,46 @@ public class KendallTau extends AbstractProximity {
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
         checkState();
 
-        int sum = 0;
+        // Lay out the union of features, taking absent values to be zero
+        final Ranks union = ranks.get();
+        union.clear(A.size + B.size);
         int intersectionSize = 0;
-        int unionSize = 0;
-        int ai = 0;
-        int bi = 0;
-
-        while (ai < A.size && bi < B.size) {
-            ++unionSize;
-            if (A.keys[ai] < B.keys[bi]) {
-                int aj = ai + 1;
-                int bj = bi;
-                while (aj < A.size && bj < B.size) {
-                    if (A.keys[aj] < B.keys[bj]) {
-                        ++aj;
-                    } else if (A.keys[aj] > B.keys[bj]) {
-                        --sum;
-                        ++bj;
-                    } else {
-                        if (A.values[ai] < A.values[aj])
-                            ++sum;
-                        else if (A.values[ai] > A.values[aj])
-                            --sum;
-                        ++aj;
-                        ++bj;
-                    }
-                }
-                sum -= B.size - bj;
-                ++ai;
-            } else if (A.keys[ai] > B.keys[bi]) {
-                int aj = ai;
-                int bj = bi + 1;
-                while (aj < A.size && bj < B.size) {
-                    if (A.keys[aj] < B.keys[bj]) {
-                        --sum;
-                        ++aj;
-                    } else if (A.keys[aj] > B.keys[bj]) {
-                        ++bj;
-                    } else {
-                        if (B.values[bi] < B.values[bj])
-                            ++sum;
-                        else if (B.values[bi] > B.values[bj])
-                            --sum;
-                        ++aj;
-                        ++bj;
-                    }
-                }
-                sum -= A.size - aj;
-                ++bi;
+        int i = 0;
+        int j = 0;
+        while (i < A.size && j < B.size) {
+            if (A.keys[i] < B.keys[j]) {
+                union.add(A.values[i], 0);
+                ++i;
+            } else if (A.keys[i] > B.keys[j]) {
+                union.add(0, B.values[j]);
+                ++j;
             } else {
+                union.add(A.values[i], B.values[j]);
                 ++intersectionSize;
-                int aj = ai + 1;
-                int bj = bi + 1;
-                while (aj < A.size && bj < B.size) {
-                    if (A.keys[aj] < B.keys[bj]) {
-                        if (A.values[ai] < A.values[aj])
-                            --sum;
-                        else if (A.values[ai] > A.values[aj])
-                            ++sum;
-                        ++aj;
-                    } else if (A.keys[aj] > B.keys[bj]) {
-                        if (B.values[bi] < B.values[bj])
-                            --sum;
-                        else if (B.values[bi] > B.values[bj])
-                            ++sum;
-                        ++bj;
-                    } else {
-                        final double diff = (A.values[ai] - A.values[aj])
-                                * (B.values[bi] - B.values[bj]);
-                        if (diff < 0)
-                            --sum;
-                        else if (diff > 0)
-                            ++sum;
-                        ++aj;
-                        ++bj;
-                    }
-                }
-                while (aj < A.size) {
-                    if (A.values[ai] < A.values[aj])
-                        --sum;
-                    else if (A.values[ai] > A.values[aj])
-                        ++sum;
-                    ++aj;
-                }
-                while (bj < B.size) {
-                    if (B.values[bi] < B.values[bj])
-                        --sum;
-                    else if (B.values[bi] > B.values[bj])
-                        ++sum;
-                    ++bj;
-                }
-                ++ai;
-                ++bi;
+                ++i;
+                ++j;
             }
         }
-        while (ai < A.size) {
-            ++unionSize;
-            int aj = ai + 1;
-            int bj = bi;
-            while (aj < A.size && bj < B.size) {
-                if (A.keys[aj] < B.keys[bj]) {
-                    ++aj;
-                } else if (A.keys[aj] > B.keys[bj]) {
-                    --sum;
-                    ++bj;
-                } else {
-                    if (A.values[ai] < A.values[aj])
-                        ++sum;
-                    else if (A.values[ai] > A.values[aj])
-                        --sum;
-                    ++aj;
-                    ++bj;
-                }
-            }
-            sum -= B.size - bj;
-            ++ai;
+        while (i < A.size) {
+            union.add(A.values[i], 0);
+            ++i;
         }
-        while (bi < B.size) {
-            ++unionSize;
-            int aj = ai;
-            int bj = bi + 1;
-            while (aj < A.size && bj < B.size) {
-                if (A.keys[aj] < B.keys[bj]) {
-                    --sum;
-                    ++aj;
-                } else if (A.keys[aj] > B.keys[bj]) {
-                    ++bj;
-                } else {
-                    if (B.values[bi] < B.values[bj])
-                        ++sum;
-                    else if (B.values[bi] > B.values[bj])
-                        --sum;
-                    ++aj;
-                    ++bj;
-                }
-            }
-            sum -= A.size - aj;
-            ++bi;
+        while (j < B.size) {
+            union.add(0, B.values[j]);
+            ++j;
         }
+        final int unionSize = union.size();
 
         // Comparisons are only done in one direction so double the result
-        sum <<= 1;
+        long sum = union.concordance() << 1;
 
         // Features that don't occur in either vector are a similarity
         // between the two sets. For each feature that they both have there
         // should be an addition +2 to the sum.
         // The relationship between these and disjoint features
-        sum += 2 * ((numFeatures - unionSize) * intersectionSize);
+        sum += 2L * (numFeatures - unionSize) * intersectionSize;
         //
-        return (double) (sum) / (double) (numFeatures * (numFeatures - 1));
+        return (double) sum / ((double) numFeatures * (numFeatures - 1));
     }
 
     @Override
@@ -249,4 +155,163 @@ public class KendallTau extends AbstractProximity {
     public String toString() {
         return "KendallTau{}";
     }
+
+    /**
+     * Reusable buffer of paired observations (x, y), from which the number of
+     * concordant minus discordant pairs is calculated. It is both the
+     * comparator and the swapper used to sort the pairs, so that no objects
+     * are allocated per calculation.
+     */
+    private static final class Ranks extends AbstractIntComparator
+            implements Swapper {
+
+        private double[] x = new double[0];
+
+        private double[] y = new double[0];
+
+        private double[] buffer = new double[0];
+
+        private int size = 0;
+
+        void clear(int capacity) {
+            if (capacity > x.length) {
+                final int newLength = Math.max(capacity, x.length + (x.length >> 1));
+                x = new double[newLength];
+                y = new double[newLength];
+                buffer = new double[newLength];
+            }
+            size = 0;
+        }
+
+        void add(double xValue, double yValue) {
+            x[size] = xValue;
+            y[size] = yValue;
+            ++size;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * Calculate the sum of sign((x[k] - x[l]) * (y[k] - y[l])) over all
+         * unordered pairs (k, l). Pairs that are tied in either x or y
+         * contribute nothing. The observations are reordered.
+         *
+         * @return number of concordant pairs minus number of discordant pairs
+         */
+        long concordance() {
+            if (size < 2)
+                return 0;
+
+            // Sort by x, breaking ties by y, so that pairs tied on x are not
+            // counted as exchanges below
+            it.unimi.dsi.fastutil.Arrays.quickSort(0, size, this, this);
+
+            long xTies = 0;
+            long xyTies = 0;
+            int xRun = 1;
+            int xyRun = 1;
+            for (int k = 1; k < size; k++) {
+                if (x[k] == x[k - 1]) {
+                    ++xRun;
+                    if (y[k] == y[k - 1]) {
+                        ++xyRun;
+                    } else {
+                        xyTies += pairs(xyRun);
+                        xyRun = 1;
+                    }
+                } else {
+                    xTies += pairs(xRun);
+                    xyTies += pairs(xyRun);
+                    xRun = 1;
+                    xyRun = 1;
+                }
+            }
+            xTies += pairs(xRun);
+            xyTies += pairs(xyRun);
+
+            final long exchanges = sortY();
+
+            long yTies = 0;
+            int yRun = 1;
+            for (int k = 1; k < size; k++) {
+                if (y[k] == y[k - 1]) {
+                    ++yRun;
+                } else {
+                    yTies += pairs(yRun);
+                    yRun = 1;
+                }
+            }
+            yTies += pairs(yRun);
+
+            // Pairs that are tied in neither x nor y are either concordant or
+            // discordant, and the discordant pairs are those exchanged
+            return pairs(size) - xTies - yTies + xyTies - 2 * exchanges;
+        }
+
+        /**
+         * Sort y by bottom-up merge sort, counting the number of exchanges of
+         * adjacent elements that an insertion sort would have made.
+         */
+        private long sortY() {
+            long exchanges = 0;
+            double[] src = y;
+            double[] dst = buffer;
+            for (int width = 1; width < size; width <<= 1) {
+                for (int low = 0; low < size; low += width << 1) {
+                    final int mid = Math.min(low + width, size);
+                    final int high = Math.min(low + (width << 1), size);
+                    int a = low;
+                    int b = mid;
+                    int k = low;
+                    while (a < mid && b < high) {
+                        if (src[b] < src[a]) {
+                            exchanges += mid - a;
+                            dst[k++] = src[b++];
+                        } else {
+                            dst[k++] = src[a++];
+                        }
+                    }
+                    while (a < mid)
+                        dst[k++] = src[a++];
+                    while (b < high)
+                        dst[k++] = src[b++];
+                }
+                final double[] tmp = src;
+                src = dst;
+                dst = tmp;
+            }
+            y = src;
+            buffer = dst;
+            return exchanges;
+        }
+
+        private static long pairs(long n) {
+            return n * (n - 1) / 2;
+        }
+
+        @Override
+        public int compare(int k, int l) {
+            if (x[k] < x[l])
+                return -1;
+            if (x[k] > x[l])
+                return 1;
+            if (y[k] < y[l])
+                return -1;
+            if (y[k] > y[l])
+                return 1;
+            return 0;
+        }
+
+        @Override
+        public void swap(int k, int l) {
+            final double tx = x[k];
+            x[k] = x[l];
+            x[l] = tx;
+            final double ty = y[k];
+            y[k] = y[l];
+            y[l] = ty;
+        }
+    }
 }
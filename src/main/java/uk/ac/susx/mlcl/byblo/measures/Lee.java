@@ -46,7 +46,8 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class Lee extends AbstractProximity {
+public class Lee extends AbstractProximity
+        implements PreparedProximity {
 
     private static final Log LOG = LogFactory.getLog(Lee.class);
 
@@ -72,11 +73,12 @@ public class Lee extends AbstractProximity {
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
         double sim = 0;
         int i = 0, j = 0;
+        final boolean skewed = isSkewed(A.size, B.size);
         while (i < A.size && j < B.size) {
             if (A.keys[i] < B.keys[j]) {
-                i++;
+                i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
             } else if (A.keys[i] > B.keys[j]) {
-                j++;
+                j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
             } else if (isFiltered(A.keys[i])) {
                 i++;
                 j++;
@@ -93,6 +95,44 @@ public class Lee extends AbstractProximity {
         return sim;
     }
 
+    @Override
+    public PreparedVector prepare(SparseDoubleVector A) {
+        final double[] probs = new double[A.size];
+        final double[] logs = new double[A.size];
+        for (int i = 0; i < A.size; i++) {
+            probs[i] = A.values[i] / A.sum;
+            logs[i] = Math.log(probs[i]);
+        }
+        return new PreparedVector(A, probs, logs);
+    }
+
+    @Override
+    public double sharedPrepared(PreparedVector A, PreparedVector B) {
+        final double logComplement = Math.log((1.0 - alpha));
+        double sim = 0;
+        int i = 0, j = 0;
+        final boolean skewed = isSkewed(A.size, B.size);
+        while (i < A.size && j < B.size) {
+            if (A.keys[i] < B.keys[j]) {
+                i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
+            } else if (A.keys[i] > B.keys[j]) {
+                j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
+            } else if (isFiltered(A.keys[i])) {
+                i++;
+                j++;
+            } else {
+                final double pA = A.weights[i];
+                final double pB = B.weights[j];
+                sim += pA * (2 * A.logs[i]
+                             - Math.log(pB * alpha + pA * (1 - alpha))
+                             + logComplement);
+                i++;
+                j++;
+            }
+        }
+        return sim;
+    }
+
     @Override
     public double left(SparseDoubleVector A) {
         double left = 0;
@@ -36,7 +36,8 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class Lin extends AbstractMIProximity {
+public class Lin extends AbstractMIProximity
+        implements DecomposableProximity, PreparedProximity {
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
@@ -44,11 +45,12 @@ public class Lin extends AbstractMIProximity {
 
         int i = 0;
         int j = 0;
+        final boolean skewed = isSkewed(A.size, B.size);
         while (i < A.size && j < B.size) {
             if (A.keys[i] < B.keys[j]) {
-                ++i;
+                i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
             } else if (A.keys[i] > B.keys[j]) {
-                ++j;
+                j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
             } else if (isFiltered(A.keys[i])) {
                 i++;
                 j++;
@@ -69,6 +71,91 @@ public class Lin extends AbstractMIProximity {
         return numerator;
     }
 
+    @Override
+    public void sharedBatch(SparseDoubleVector[] A, int offset, int length,
+                            SparseDoubleVector B, double[] shared) {
+        final DenseQuery query = denseQuery();
+        query.clear(B);
+        for (int j = 0; j < B.size; j++) {
+            if (!isFiltered(B.keys[j])) {
+                query.set(B.keys[j], posInf(B, j));
+            }
+        }
+
+        for (int k = 0; k < length; k++) {
+            final SparseDoubleVector a = A[offset + k];
+            double numerator = 0.0;
+            for (int i = 0; i < a.size; i++) {
+                if (query.contains(a.keys[i])) {
+                    final double infA = posInf(a, i);
+                    if (infA > 0) {
+                        final double infB = query.get(a.keys[i]);
+                        if (infB > 0) {
+                            numerator += infA + infB;
+                        }
+                    }
+                }
+            }
+            shared[k] = numerator;
+        }
+    }
+
+    @Override
+    public double sharedComponent(SparseDoubleVector A, int i,
+                                  SparseDoubleVector B, int j) {
+        if (isFiltered(A.keys[i]))
+            return 0;
+        final double infA = posInf(A, i);
+        if (infA > 0) {
+            final double infB = posInf(B, j);
+            if (infB > 0) {
+                return infA + infB;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public PreparedVector prepare(SparseDoubleVector A) {
+        // Positive information content of each feature
+        final double[] weights = new double[A.size];
+        for (int i = 0; i < A.size; i++) {
+            weights[i] = posInf(A, i);
+        }
+        return new PreparedVector(A, weights);
+    }
+
+    @Override
+    public double sharedPrepared(PreparedVector A, PreparedVector B) {
+        double numerator = 0.0;
+
+        int i = 0;
+        int j = 0;
+        final boolean skewed = isSkewed(A.size, B.size);
+        while (i < A.size && j < B.size) {
+            if (A.keys[i] < B.keys[j]) {
+                i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
+            } else if (A.keys[i] > B.keys[j]) {
+                j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
+            } else if (isFiltered(A.keys[i])) {
+                i++;
+                j++;
+            } else {
+                final double infA = A.weights[i];
+                if (infA > 0) {
+                    final double infB = B.weights[j];
+                    if (infB > 0) {
+                        numerator += infA + infB;
+                    }
+                }
+                i++;
+                j++;
+            }
+        }
+
+        return numerator;
+    }
+
     @Override
     public double left(SparseDoubleVector A) {
         double denominator = 0.0;
@@ -46,7 +46,8 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class Lp extends AbstractProximity {
+public class Lp extends AbstractProximity
+        implements PreparedProximity {
 
     public static final double DEFAULT_P = 2;
 
@@ -70,11 +71,12 @@ public class Lp extends AbstractProximity {
 
         if (p == 0) {
             int i = 0, j = 0;
+            final boolean skewed = isSkewed(A.size, B.size);
             while (i < A.size && j < B.size) {
                 if (A.keys[i] < B.keys[j]) {
-                    i++;
+                    i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
                 } else if (A.keys[i] > B.keys[j]) {
-                    j++;
+                    j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
                 } else if (isFiltered(A.keys[i])) {
                     i++;
                     j++;
@@ -90,11 +92,12 @@ public class Lp extends AbstractProximity {
             }
         } else if (p == 1) {
             int i = 0, j = 0;
+            final boolean skewed = isSkewed(A.size, B.size);
             while (i < A.size && j < B.size) {
                 if (A.keys[i] < B.keys[j]) {
-                    i++;
+                    i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
                 } else if (A.keys[i] > B.keys[j]) {
-                    j++;
+                    j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
                 } else if (isFiltered(A.keys[i])) {
                     i++;
                     j++;
@@ -110,11 +113,12 @@ public class Lp extends AbstractProximity {
             }
         } else if (p == 2) {
             int i = 0, j = 0;
+            final boolean skewed = isSkewed(A.size, B.size);
             while (i < A.size && j < B.size) {
                 if (A.keys[i] < B.keys[j]) {
-                    i++;
+                    i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
                 } else if (A.keys[i] > B.keys[j]) {
-                    j++;
+                    j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
                 } else if (isFiltered(A.keys[i])) {
                     i++;
                     j++;
@@ -159,11 +163,12 @@ public class Lp extends AbstractProximity {
             }
         } else {
             int i = 0, j = 0;
+            final boolean skewed = isSkewed(A.size, B.size);
             while (i < A.size && j < B.size) {
                 if (A.keys[i] < B.keys[j]) {
-                    i++;
+                    i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
                 } else if (A.keys[i] > B.keys[j]) {
-                    j++;
+                    j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
                 } else if (isFiltered(A.keys[i])) {
                     i++;
                     j++;
@@ -180,6 +185,186 @@ public class Lp extends AbstractProximity {
         return shared;
     }
 
+    /**
+     * Batch implementation for finite p. L-infinity depends on the features
+     * that are not shared as well, so it falls back to the pairwise
+     * calculation.
+     */
+    @Override
+    public void sharedBatch(SparseDoubleVector[] A, int offset, int length,
+                            SparseDoubleVector B, double[] shared) {
+        if (p == Double.POSITIVE_INFINITY) {
+            super.sharedBatch(A, offset, length, B, shared);
+            return;
+        }
+
+        final DenseQuery query = denseQuery();
+        query.clear(B);
+        for (int j = 0; j < B.size; j++) {
+            if (!isFiltered(B.keys[j])) {
+                query.set(B.keys[j], B.values[j] / B.sum);
+            }
+        }
+
+        for (int k = 0; k < length; k++) {
+            final SparseDoubleVector a = A[offset + k];
+            double sum = 0;
+            for (int i = 0; i < a.size; i++) {
+                if (!query.contains(a.keys[i])) {
+                    continue;
+                }
+                final double pA = a.values[i] / a.sum;
+                final double pB = query.get(a.keys[i]);
+                if (p == 0) {
+                    sum += Math.signum(Math.abs(pA - pB))
+                            - Math.signum(pB)
+                            - Math.signum(pA);
+                } else if (p == 1) {
+                    sum += Math.abs(pA - pB)
+                            - pB
+                            - pA;
+                } else if (p == 2) {
+                    sum += (pA - pB) * (pA - pB)
+                            - pB * pB
+                            - pA * pA;
+                } else {
+                    sum += Math.pow(Math.abs(pA - pB), p)
+                            - (Math.pow(pB, p) + Math.pow(pA, p));
+                }
+            }
+            shared[k] = sum;
+        }
+    }
+
+    @Override
+    public PreparedVector prepare(SparseDoubleVector A) {
+        final double[] probs = new double[A.size];
+        for (int i = 0; i < A.size; i++) {
+            probs[i] = A.values[i] / A.sum;
+        }
+        return new PreparedVector(A, probs);
+    }
+
+    @Override
+    public double sharedPrepared(PreparedVector A, PreparedVector B) {
+        double shared = 0;
+
+        if (p == 0) {
+            int i = 0, j = 0;
+            final boolean skewed = isSkewed(A.size, B.size);
+            while (i < A.size && j < B.size) {
+                if (A.keys[i] < B.keys[j]) {
+                    i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
+                } else if (A.keys[i] > B.keys[j]) {
+                    j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
+                } else if (isFiltered(A.keys[i])) {
+                    i++;
+                    j++;
+                } else { // Q.keys[i] == R.keys[j]
+                    final double pA = A.weights[i];
+                    final double pB = B.weights[j];
+                    shared += Math.signum(Math.abs(pA - pB))
+                            - Math.signum(pB)
+                            - Math.signum(pA);
+                    i++;
+                    j++;
+                }
+            }
+        } else if (p == 1) {
+            int i = 0, j = 0;
+            final boolean skewed = isSkewed(A.size, B.size);
+            while (i < A.size && j < B.size) {
+                if (A.keys[i] < B.keys[j]) {
+                    i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
+                } else if (A.keys[i] > B.keys[j]) {
+                    j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
+                } else if (isFiltered(A.keys[i])) {
+                    i++;
+                    j++;
+                } else { // Q.keys[i] == R.keys[j]
+                    final double pA = A.weights[i];
+                    final double pB = B.weights[j];
+                    shared += Math.abs(pA - pB)
+                            - pB
+                            - pA;
+                    i++;
+                    j++;
+                }
+            }
+        } else if (p == 2) {
+            int i = 0, j = 0;
+            final boolean skewed = isSkewed(A.size, B.size);
+            while (i < A.size && j < B.size) {
+                if (A.keys[i] < B.keys[j]) {
+                    i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
+                } else if (A.keys[i] > B.keys[j]) {
+                    j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
+                } else if (isFiltered(A.keys[i])) {
+                    i++;
+                    j++;
+                } else {
+                    final double pA = A.weights[i];
+                    final double pB = B.weights[j];
+                    shared += (pA - pB) * (pA - pB)
+                            - pB * pB
+                            - pA * pA;
+                    i++;
+                    j++;
+                }
+            }
+        } else if (p == Double.POSITIVE_INFINITY) {
+            int i = 0, j = 0;
+            while (i < A.size && j < B.size) {
+                if (A.keys[i] < B.keys[j]) {
+                    shared = Math.max(shared, A.weights[i]);
+                    i++;
+                } else if (A.keys[i] > B.keys[j]) {
+                    shared = Math.max(shared, B.weights[j]);
+                    j++;
+                } else if (isFiltered(A.keys[i])) {
+                    shared = Math.max(shared, A.weights[i]);
+                    shared = Math.max(shared, B.weights[j]);
+                    i++;
+                    j++;
+                } else {
+                    shared = Math.max(shared, Math.abs(
+                            A.weights[i] - B.weights[j]));
+                    i++;
+                    j++;
+                }
+            }
+            while (i < A.size) {
+                shared = Math.max(shared, A.weights[i]);
+                i++;
+            }
+            while (j < B.size) {
+                shared = Math.max(shared, B.weights[j]);
+                j++;
+            }
+        } else {
+            int i = 0, j = 0;
+            final boolean skewed = isSkewed(A.size, B.size);
+            while (i < A.size && j < B.size) {
+                if (A.keys[i] < B.keys[j]) {
+                    i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
+                } else if (A.keys[i] > B.keys[j]) {
+                    j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
+                } else if (isFiltered(A.keys[i])) {
+                    i++;
+                    j++;
+                } else {
+                    final double pA = A.weights[i];
+                    final double pB = B.weights[j];
+                    shared += Math.pow(Math.abs(pA - pB), p)
+                            - (Math.pow(pB, p) + Math.pow(pA, p));
+                    i++;
+                    j++;
+                }
+            }
+        }
+        return shared;
+    }
+
     @Override
     public double left(SparseDoubleVector A) {
         if (p == 0) {
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * A {@link Proximity} that can transform each vector, once, into a form from
+ * which the shared component is cheaper to calculate. Typically the
+ * transformation normalises the values to probabilities, or calculates the
+ * information content of each feature, so that the divisions and logarithms
+ * are taken once per vector rather than once per shared feature of every pair
+ * of vectors.
+ *
+ * {@link #sharedPrepared(PreparedVector, PreparedVector)} of two prepared
+ * vectors must produce exactly the same value as
+ * {@link #shared(SparseDoubleVector, SparseDoubleVector)} of the originals.
+ * The left and right components are still calculated from the originals.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public interface PreparedProximity extends Proximity {
+
+    /**
+     * Transform the given vector into the form expected by
+     * {@link #sharedPrepared(PreparedVector, PreparedVector)}. The vector
+     * should not be modified afterwards, because its keys are shared.
+     *
+     * @param vector the feature vector to prepare
+     * @return the prepared form of the vector
+     */
+    PreparedVector prepare(SparseDoubleVector vector);
+
+    /**
+     * Calculate the shared component of the measure from the prepared forms
+     * of vectors A and B.
+     *
+     * @param A the prepared form of the first feature vector
+     * @param B the prepared form of the second feature vector
+     * @return the same value as {@link #shared(SparseDoubleVector, SparseDoubleVector)}
+     */
+    double sharedPrepared(PreparedVector A, PreparedVector B);
+
+}
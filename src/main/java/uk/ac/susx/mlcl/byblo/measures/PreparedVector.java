@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * The form of a feature vector produced by
+ * {@link PreparedProximity#prepare(SparseDoubleVector)}: the keys of the
+ * original vector, with a measure-specific weight for each element, and
+ * optionally the logarithm of some per-element quantity. What the weights and
+ * logs hold is up to the measure that prepared the vector, so a prepared
+ * vector must only be passed back to the measure that prepared it.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class PreparedVector {
+
+    /**
+     * Feature ids, in ascending order. This is the key array of the original
+     * vector, which is shared rather than copied.
+     */
+    public final int[] keys;
+
+    /**
+     * Number of elements in use.
+     */
+    public final int size;
+
+    /**
+     * Measure-specific weight of each element.
+     */
+    public final double[] weights;
+
+    /**
+     * Measure-specific logarithm of each element, or null if the measure
+     * doesn't need one.
+     */
+    public final double[] logs;
+
+    /**
+     * Sum of the weights, added in element order.
+     */
+    public final double weightSum;
+
+    public PreparedVector(SparseDoubleVector vector, double[] weights,
+                          double[] logs) {
+        if (vector == null)
+            throw new NullPointerException("vector == null");
+        if (weights == null)
+            throw new NullPointerException("weights == null");
+        if (weights.length < vector.size)
+            throw new IllegalArgumentException("weights.length < vector.size");
+        if (logs != null && logs.length < vector.size)
+            throw new IllegalArgumentException("logs.length < vector.size");
+        this.keys = vector.keys;
+        this.size = vector.size;
+        this.weights = weights;
+        this.logs = logs;
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += weights[i];
+        }
+        this.weightSum = sum;
+    }
+
+    public PreparedVector(SparseDoubleVector vector, double[] weights) {
+        this(vector, weights, null);
+    }
+
+}
@@ -60,7 +60,8 @@ import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
-public class RecallMi extends AbstractMIProximity {
+public class RecallMi extends AbstractMIProximity
+        implements DecomposableProximity, PreparedProximity {
 
     @Override
     public double shared(SparseDoubleVector A, SparseDoubleVector B) {
@@ -68,11 +69,12 @@ public class RecallMi extends AbstractMIProximity {
 
         int i = 0;
         int j = 0;
+        final boolean skewed = isSkewed(A.size, B.size);
         while (i < A.size && j < B.size) {
             if (A.keys[i] < B.keys[j]) {
-                ++i;
+                i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
             } else if (A.keys[i] > B.keys[j]) {
-                ++j;
+                j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
             } else if (isFiltered(A.keys[i])) {
                 i++;
                 j++;
@@ -89,6 +91,51 @@ public class RecallMi extends AbstractMIProximity {
         return numerator;
     }
 
+    @Override
+    public double sharedComponent(SparseDoubleVector A, int i,
+                                  SparseDoubleVector B, int j) {
+        if (isFiltered(A.keys[i]))
+            return 0;
+        return posInf(B, j) > 0 ? posInf(A, i) : 0;
+    }
+
+    @Override
+    public PreparedVector prepare(SparseDoubleVector A) {
+        // Positive information content of each feature
+        final double[] weights = new double[A.size];
+        for (int i = 0; i < A.size; i++) {
+            weights[i] = posInf(A, i);
+        }
+        return new PreparedVector(A, weights);
+    }
+
+    @Override
+    public double sharedPrepared(PreparedVector A, PreparedVector B) {
+        double numerator = 0.0;
+
+        int i = 0;
+        int j = 0;
+        final boolean skewed = isSkewed(A.size, B.size);
+        while (i < A.size && j < B.size) {
+            if (A.keys[i] < B.keys[j]) {
+                i = skewed ? Intersection.skipTo(A.keys, i, A.size, B.keys[j]) : i + 1;
+            } else if (A.keys[i] > B.keys[j]) {
+                j = skewed ? Intersection.skipTo(B.keys, j, B.size, A.keys[i]) : j + 1;
+            } else if (isFiltered(A.keys[i])) {
+                i++;
+                j++;
+            } else {
+                if (B.weights[j] > 0) {
+                    numerator += A.weights[i];
+                }
+                i++;
+                j++;
+            }
+        }
+
+        return numerator;
+    }
+
     @Override
     public double left(SparseDoubleVector A) {
         double denominator = 0.0;
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairBuffer;
+import uk.ac.susx.mlcl.byblo.measures.DecomposableProximity;
+import uk.ac.susx.mlcl.byblo.measures.PreparedVector;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+
+/**
+ * An all-pairs similarity search implementation that builds an inverted index
+ * of source A, then accumulates the shared component of the measure for
+ * every candidate while walking the posting lists of each vector in source
+ * B. Unlike {@link InvertedApssTask} the candidate vectors are never
+ * merge-joined against the query vector.
+ *
+ * This only works with measures that implement {@link DecomposableProximity}.
+ * Other measures fall back to calculating the shared component of each
+ * candidate pair in full.
+ *
+ * @param <S>
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class AccumulatingApssTask<S> extends NaiveApssTask<S> {
+
+    private static final Log LOG = LogFactory.getLog(AccumulatingApssTask.class);
+
+    private InvertedIndex index = null;
+
+    /**
+     * The measure if it's decomposable, otherwise null.
+     */
+    private DecomposableProximity decomposable = null;
+
+    /**
+     * Partial shared component for each vector ordinal in the index. Only
+     * entries for the current query's candidates are meaningful.
+     */
+    private double[] accumulator = null;
+
+    /**
+     * Ordinals of the candidates found for the current query.
+     */
+    private CandidateSet candidates = null;
+
+    /**
+     * Prepared forms of the indexed vectors, filled in as each vector first
+     * becomes a candidate, or null if the measure can't prepare vectors.
+     */
+    private PreparedVector[] prepared = null;
+
+    public AccumulatingApssTask() {
+    }
+
+    @Override
+    protected void initialiseTask() throws Exception {
+        super.initialiseTask();
+        if (getMeasure() instanceof DecomposableProximity) {
+            decomposable = (DecomposableProximity) getMeasure();
+        } else {
+            decomposable = null;
+            if (LOG.isWarnEnabled()) {
+                LOG.warn("Measure " + getMeasure() + " is not decomposable, "
+                        + "so shared components will not be accumulated.");
+            }
+        }
+        if (index == null) {
+            index = buildIndex();
+        }
+        accumulator = new double[index.size()];
+        candidates = new CandidateSet(index.size());
+        // Prepared vectors are only needed when nothing is accumulated
+        prepared = decomposable == null && getPreparedMeasure() != null
+                   ? new PreparedVector[index.size()] : null;
+    }
+
+    @Override
+    protected void runTask()
+            throws IOException {
+
+        progress.startAdjusting();
+        progress.setState(State.RUNNING);
+        progress.setMessage("Running accumulating all-pairs.");
+        progress.setProgressPercent(0);
+        progress.endAdjusting();
+
+        final S startB = getSourceB().position();
+        final WeightedTokenPairBuffer pairs = new WeightedTokenPairBuffer();
+
+        while (getSourceB().hasNext()) {
+            Indexed<SparseDoubleVector> b = getSourceB().read();
+            if (!getProcessRecord().apply(b))
+                continue;
+
+            final int nCandidates = accumulate(b);
+            final PreparedVector preparedB = prepared != null && nCandidates > 0
+                                             ? getPreparedMeasure().prepare(b.value()) : null;
+            long queryCandidates = 0;
+            long queryProductions = 0;
+
+            for (int c = 0; c < nCandidates; c++) {
+                final Indexed<SparseDoubleVector> a = index.get(candidates.get(c));
+                if (!getProcessRecord().apply(a))
+                    continue;
+                ++queryCandidates;
+
+                final double sim = decomposable != null
+                                   ? sim(a, b, accumulator[candidates.get(c)])
+                                   : preparedB != null
+                                   ? sim(a, prepared(candidates.get(c)), b, preparedB)
+                                   : sim(a, b);
+                Weighted<TokenPair> pair = new Weighted<TokenPair>(
+                        new TokenPair(b.key(), a.key()), sim);
+                if (getProducatePair().apply(pair)) {
+                    pairs.add(pair);
+                    ++queryProductions;
+
+                    if (pairs.size() > PAIR_OUTPUT_BUFFER_SIZE) {
+                        writeOutPairs(pairs);
+                    }
+                }
+            }
+            getStats().recordQueryCandidates(queryCandidates);
+            getStats().addProductionCount(queryProductions);
+        }
+
+        writeOutPairs(pairs);
+
+        getSourceB().position(startB);
+
+        progress.startAdjusting();
+        progress.setState(State.COMPLETED);
+        progress.setProgressPercent(100);
+        progress.endAdjusting();
+    }
+
+    @Override
+    protected void finaliseTask() throws Exception {
+        super.finaliseTask();
+        accumulator = null;
+        candidates = null;
+        prepared = null;
+    }
+
+    /**
+     * @return prepared form of the indexed vector with the given ordinal
+     */
+    private PreparedVector prepared(int ordinal) {
+        if (prepared[ordinal] == null)
+            prepared[ordinal] = getPreparedMeasure().prepare(index.get(ordinal).value());
+        return prepared[ordinal];
+    }
+
+    /**
+     * Find all indexed vectors that share at least one feature with the given
+     * vector, and accumulate the shared component of the measure for each of
+     * them. The posting lists are walked in the feature order of b, so the
+     * terms for each candidate are summed in the same order as a merge-join
+     * would sum them.
+     *
+     * @param b query vector
+     * @return number of candidates found
+     */
+    protected int accumulate(Indexed<SparseDoubleVector> b) {
+        candidates.reset();
+
+        final SparseDoubleVector vec = b.value();
+        int slot = 0;
+        for (int j = 0; j < vec.size; j++) {
+            slot = index.featureSlot(vec.keys[j], slot);
+            if (slot < 0) {
+                slot = -slot - 1;
+                continue;
+            }
+            final int end = index.postingsEnd(slot);
+            for (int p = index.postingsStart(slot); p < end; p++) {
+                final int ordinal = index.posting(p);
+                if (candidates.add(ordinal)) {
+                    accumulator[ordinal] = 0;
+                }
+                if (decomposable != null) {
+                    accumulator[ordinal] += decomposable.sharedComponent(
+                            index.get(ordinal).value(), index.position(p),
+                            vec, j);
+                }
+            }
+        }
+        return candidates.size();
+    }
+
+    protected InvertedIndex buildIndex()
+            throws IOException {
+        SeekableObjectSource<? extends Indexed<SparseDoubleVector>, S> src = getSourceA();
+        final List<Indexed<SparseDoubleVector>> vectors =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        final S startA = src.position();
+        while (src.hasNext()) {
+            vectors.add(src.read());
+        }
+        src.position(startA);
+
+        final InvertedIndex result = InvertedIndex.build(vectors);
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Built index: " + result);
+        }
+        return result;
+    }
+
+    @Override
+    public String getName() {
+        return "accumulating-allpairs";
+    }
+
+}
@@ -31,66 +31,62 @@
 package uk.ac.susx.mlcl.byblo.tasks;
 
 import com.google.common.base.Objects;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.concurrent.atomic.AtomicLong;
+import java.text.MessageFormat;
 
 /**
  * An instance of ApssStats collects various bits of information about an an
  * All-Pairs process, that can be used for debugging and performance evaluation.
+ * <p/>
+ * A single instance is shared by every chunk task of a threaded all-pairs
+ * search, and is updated from the inner loops, so the counters and histograms
+ * are striped by thread (see {@link StripedCounter}) rather than contending on
+ * a single atomic value.
  *
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
 public final class ApssStats implements Serializable {
 
-    private static final long serialVersionUID = 4248533084667228992L;
-    private final AtomicLong candidates;
-    private final AtomicLong comparisons;
-    private final AtomicLong productions;
-    private final AtomicLong srcReads;
+    private static final long serialVersionUID = 4248533084667228993L;
+    private final StripedCounter candidates;
+    private final StripedCounter comparisons;
+    private final StripedCounter productions;
+    private final StripedCounter srcReads;
+    private final Log2Histogram chunkSizes;
+    private final Log2Histogram queryCandidates;
+    private final Log2Histogram chunkPairMillis;
 
     /**
      * Dependency injection constructor.
      *
-     * @param candidates    Count of candidate pairs
-     * @param comparisons   Count of "slow" comparisons (e.g dot products).
-     * @param productions   Count of unique pairs found.
-     * @param srcReads      Count of records read.
+     * @param candidates      Count of candidate pairs
+     * @param comparisons     Count of "slow" comparisons (e.g dot products).
+     * @param productions     Count of unique pairs found.
+     * @param srcReads        Count of records read.
+     * @param chunkSizes      Histogram of vectors per chunk.
+     * @param queryCandidates Histogram of candidates per query vector.
+     * @param chunkPairMillis Histogram of milliseconds per chunk pair.
      */
-    protected ApssStats(AtomicLong candidates, AtomicLong comparisons,
-            AtomicLong productions, AtomicLong srcReads) {
+    protected ApssStats(StripedCounter candidates, StripedCounter comparisons,
+            StripedCounter productions, StripedCounter srcReads,
+            Log2Histogram chunkSizes, Log2Histogram queryCandidates,
+            Log2Histogram chunkPairMillis) {
         this.candidates = candidates;
         this.comparisons = comparisons;
         this.productions = productions;
         this.srcReads = srcReads;
+        this.chunkSizes = chunkSizes;
+        this.queryCandidates = queryCandidates;
+        this.chunkPairMillis = chunkPairMillis;
     }
 
     /**
      * Default constructor initialises everything to 0.
      */
     public ApssStats() {
-        srcReads = new AtomicLong(0);
-        productions = new AtomicLong(0);
-        comparisons = new AtomicLong(0);
-        candidates = new AtomicLong(0);
-    }
-
-    private void writeObject(final ObjectOutputStream out)
-            throws IOException {
-        out.writeLong(candidates.get());
-        out.writeLong(comparisons.get());
-        out.writeLong(productions.get());
-        out.writeLong(srcReads.get());
-    }
-
-    private void readObject(final ObjectInputStream in)
-            throws IOException, ClassNotFoundException {
-        candidates.set(in.readLong());
-        comparisons.set(in.readLong());
-        productions.set(in.readLong());
-        srcReads.set(in.readLong());
+        this(new StripedCounter(), new StripedCounter(),
+                new StripedCounter(), new StripedCounter(),
+                new Log2Histogram(), new Log2Histogram(), new Log2Histogram());
     }
 
     public long getCandidatesCount() {
@@ -98,11 +94,11 @@ public final class ApssStats implements Serializable {
     }
 
     public void incrementCandidatesCount() {
-        candidates.incrementAndGet();
+        candidates.increment();
     }
 
     public void addCandidatesCount(long delta) {
-        candidates.addAndGet(delta);
+        candidates.add(delta);
     }
 
     public long getComparisonCount() {
@@ -110,11 +106,11 @@ public final class ApssStats implements Serializable {
     }
 
     public void incrementComparisonCount() {
-        comparisons.incrementAndGet();
+        comparisons.increment();
     }
 
     public void addComparisonCount(long delta) {
-        comparisons.addAndGet(delta);
+        comparisons.add(delta);
     }
 
     public long getProductionCount() {
@@ -122,11 +118,11 @@ public final class ApssStats implements Serializable {
     }
 
     public void incrementProductionCount() {
-        productions.incrementAndGet();
+        productions.increment();
     }
 
     public void addProductionCount(long delta) {
-        productions.addAndGet(delta);
+        productions.add(delta);
     }
 
     public long getSourceReads() {
@@ -134,11 +130,71 @@ public final class ApssStats implements Serializable {
     }
 
     public void incrementSourceReads() {
-        srcReads.incrementAndGet();
+        srcReads.increment();
     }
 
     public void addSourceReads(long delta) {
-        srcReads.addAndGet(delta);
+        srcReads.add(delta);
+    }
+
+    /**
+     * @return histogram of the number of vectors in each chunk read.
+     */
+    public Log2Histogram getChunkSizes() {
+        return chunkSizes;
+    }
+
+    public void recordChunkSize(int vectors) {
+        chunkSizes.record(vectors);
+    }
+
+    /**
+     * @return histogram of the number of candidates considered for each query
+     *         vector.
+     */
+    public Log2Histogram getQueryCandidates() {
+        return queryCandidates;
+    }
+
+    /**
+     * Record the candidates considered for a single query vector. This also
+     * adds them to the candidates count, so callers that use this method
+     * should not increment the count themselves.
+     *
+     * @param n number of candidates
+     */
+    public void recordQueryCandidates(long n) {
+        candidates.add(n);
+        queryCandidates.record(n);
+    }
+
+    /**
+     * @return histogram of the wall-clock time taken by each chunk pair.
+     */
+    public Log2Histogram getChunkPairMillis() {
+        return chunkPairMillis;
+    }
+
+    public void recordChunkPairMillis(long millis) {
+        chunkPairMillis.record(millis);
+    }
+
+    /**
+     * @return a one line summary of the statistics, suitable for progress
+     *         reports.
+     */
+    public String getReport() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(MessageFormat.format(
+                "candidates={0,number,#}, comparisons={1,number,#}, productions={2,number,#}",
+                getCandidatesCount(), getComparisonCount(), getProductionCount()));
+        if (queryCandidates.getCount() > 0)
+            sb.append("; candidates/query: ").append(queryCandidates);
+        if (chunkSizes.getCount() > 0)
+            sb.append("; vectors/chunk: ").append(chunkSizes);
+        if (chunkPairMillis.getCount() > 0)
+            sb.append("; ms/chunk pair: ").append(chunkPairMillis);
+        return sb.toString();
     }
 
     @Override
@@ -151,6 +207,9 @@ public final class ApssStats implements Serializable {
                 add("candidates", candidates).
                 add("comparisons", comparisons).
                 add("productions", productions).
-                add("srcReads", srcReads);
+                add("srcReads", srcReads).
+                add("chunkSizes", chunkSizes).
+                add("queryCandidates", queryCandidates).
+                add("chunkPairMillis", chunkPairMillis);
     }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.util.Arrays;
+
+/**
+ * Set of candidate vector ordinals for a single query, which can be reset
+ * in constant time between queries. Each ordinal is marked with the current
+ * generation when it is added, so the marks never need clearing except when
+ * the generation counter wraps around. The candidates are listed in the
+ * order they were first added. The set must be reset before each query,
+ * including the first.
+ *
+ * Instances are not thread safe; each thread must use its own.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+final class CandidateSet {
+
+    private final int[] marks;
+
+    private final int[] ordinals;
+
+    private int size = 0;
+
+    private int generation = 0;
+
+    /**
+     * @param capacity one more than the largest ordinal that will be added
+     */
+    CandidateSet(int capacity) {
+        marks = new int[capacity];
+        ordinals = new int[capacity];
+    }
+
+    /**
+     * Remove all candidates, ready for the next query.
+     */
+    void reset() {
+        size = 0;
+        if (++generation == 0) {
+            // The generation counter has wrapped around, so stale marks
+            // could collide with the new generation.
+            Arrays.fill(marks, 0);
+            generation = 1;
+        }
+    }
+
+    /**
+     * Add the given ordinal, unless it has been added since the last reset.
+     *
+     * @param ordinal vector ordinal
+     * @return true if the ordinal was not already a candidate
+     */
+    boolean add(int ordinal) {
+        if (marks[ordinal] == generation)
+            return false;
+        marks[ordinal] = generation;
+        ordinals[size++] = ordinal;
+        return true;
+    }
+
+    /**
+     * Remove the most recently added candidate from the list. It stays
+     * marked, so it will not be added again until the next reset.
+     */
+    void removeLast() {
+        assert size > 0;
+        --size;
+    }
+
+    boolean contains(int ordinal) {
+        return marks[ordinal] == generation;
+    }
+
+    /**
+     * @return number of candidates listed since the last reset
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param index position in the list, from zero to size() exclusive
+     * @return ordinal of the candidate at the given position
+     */
+    int get(int index) {
+        assert index < size;
+        return ordinals[index];
+    }
+
+    @VisibleForTesting
+    void setGeneration(int generation) {
+        this.generation = generation;
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.io.ShardManifest;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Properties;
+
+/**
+ * Durable record of the chunk pairs completed by a {@link ThreadedApssTask},
+ * so that an interrupted run can be resumed without repeating them.
+ * <p/>
+ * The journal is a directory holding a header, which records how the vectors
+ * were divided into chunks, a part file for each completed chunk pair, and a
+ * journal file listing the completed pairs. Pairs are written to a temporary
+ * part file, which is only renamed into place once the pair is finished, and
+ * the pair is appended to the journal (and synced to disk) after that. So a
+ * pair listed in the journal always has a complete part file, and anything
+ * left over from an interrupted pair is simply written again.
+ * <p/>
+ * Part files hold the pairs in a simple binary form (two ids and a weight)
+ * so that they are independent of the output format and enumeration.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class ChunkPairJournal implements Closeable {
+
+    private static final Log LOG = LogFactory.getLog(ChunkPairJournal.class);
+
+    private static final Charset JOURNAL_CHARSET = Charset.forName("UTF-8");
+
+    private static final String HEADER_NAME = "checkpoint.properties";
+
+    private static final String JOURNAL_NAME = "journal";
+
+    private static final String PART_PREFIX = "part-";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String KEY_CHUNK_SIZE = "chunkSize";
+
+    private static final String KEY_TRIANGULAR = "triangular";
+
+    private static final String KEY_SHARD_INDEX = "shard";
+
+    private static final String KEY_SHARD_COUNT = "shards";
+
+    private final File directory;
+
+    private final LongSet completed = new LongOpenHashSet();
+
+    private Properties header = null;
+
+    private FileOutputStream journalOut = null;
+
+    private ChunkPairJournal(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Open the journal in the given directory, creating the directory if
+     * necessary.
+     *
+     * @param directory directory holding the journal
+     * @param resume    true if the pairs completed by a previous run should be
+     *                  kept, or false if the journal should be started afresh
+     * @return the journal
+     * @throws IOException if the journal could not be read or created
+     */
+    public static ChunkPairJournal open(File directory, boolean resume) throws IOException {
+        final ChunkPairJournal journal = new ChunkPairJournal(directory);
+        if (!resume)
+            journal.clear();
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create checkpoint directory: " + directory);
+        if (resume)
+            journal.read();
+        return journal;
+    }
+
+    /**
+     * @param directory directory holding a journal
+     * @return the file recording how the vectors of the journal's run were
+     *         divided into chunks, which exists once the run has started
+     */
+    public static File headerFile(File directory) {
+        return new File(directory, HEADER_NAME);
+    }
+
+    private File journalFile() {
+        return new File(directory, JOURNAL_NAME);
+    }
+
+    private File partFile(long key) {
+        return new File(directory, PART_PREFIX
+                + ShardManifest.pairA(key) + "-" + ShardManifest.pairB(key));
+    }
+
+    private void read() throws IOException {
+        final File headerFile = headerFile(directory);
+        if (!headerFile.exists())
+            return;
+
+        header = new Properties();
+        final InputStream in = new BufferedInputStream(new FileInputStream(headerFile));
+        try {
+            header.load(in);
+        } finally {
+            in.close();
+        }
+
+        final File journalFile = journalFile();
+        if (!journalFile.exists())
+            return;
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(journalFile), JOURNAL_CHARSET));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int sep = line.indexOf(':');
+                final long key;
+                try {
+                    key = ShardManifest.pairKey(
+                            Integer.parseInt(line.substring(0, sep)),
+                            Integer.parseInt(line.substring(sep + 1)));
+                } catch (RuntimeException ex) {
+                    // A line cut short by the interruption; the pair will be
+                    // computed again.
+                    if (LOG.isWarnEnabled())
+                        LOG.warn("Ignoring malformed checkpoint journal line \""
+                                + line + "\" in " + journalFile);
+                    continue;
+                }
+                if (partFile(key).exists())
+                    completed.add(key);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Record how the vectors are divided into chunks, or if the journal was
+     * resumed, check that they are divided the same way as before.
+     *
+     * @throws IllegalStateException if the journal was made by a run with
+     *                               different settings
+     */
+    public void begin(int chunkSize, boolean triangular,
+                      int shardIndex, int shardCount) throws IOException {
+        final Properties props = new Properties();
+        props.setProperty(KEY_CHUNK_SIZE, Integer.toString(chunkSize));
+        props.setProperty(KEY_TRIANGULAR, Boolean.toString(triangular));
+        props.setProperty(KEY_SHARD_INDEX, Integer.toString(shardIndex));
+        props.setProperty(KEY_SHARD_COUNT, Integer.toString(shardCount));
+
+        if (header != null) {
+            if (!header.equals(props))
+                throw new IllegalStateException("Checkpoint in " + directory
+                        + " was made with different settings: " + header
+                        + "; resuming with: " + props);
+        } else {
+            final OutputStream out = new BufferedOutputStream(
+                    new FileOutputStream(headerFile(directory)));
+            try {
+                props.store(out, "Byblo all-pairs checkpoint");
+            } finally {
+                out.close();
+            }
+            header = props;
+        }
+
+        journalOut = new FileOutputStream(journalFile(), true);
+    }
+
+    /**
+     * @return the chunk size recorded by a previous run, or 0 if there was no
+     *         previous run
+     */
+    public int getChunkSize() {
+        return header == null ? 0 : Integer.parseInt(header.getProperty(KEY_CHUNK_SIZE, "0"));
+    }
+
+    public int getCompletedCount() {
+        return completed.size();
+    }
+
+    public boolean isCompleted(int a, int b) {
+        return completed.contains(ShardManifest.pairKey(a, b));
+    }
+
+    /**
+     * @return sink to which the pairs of the given chunk pair are written until
+     *         it is committed; safe for use by several threads
+     */
+    public PartSink openPart(int a, int b) throws IOException {
+        final long key = ShardManifest.pairKey(a, b);
+        return new PartSink(key, new File(partFile(key).getPath() + TEMP_SUFFIX));
+    }
+
+    /**
+     * Close the part file of a finished chunk pair, move it into place, and
+     * record the pair in the journal. The part's data is synced to disk
+     * before it is renamed and recorded, so a journal entry never refers to a
+     * part whose contents could be truncated by a crash. (Java 6 offers no
+     * way to sync the directory itself after the rename.)
+     */
+    public synchronized void commit(PartSink part) throws IOException {
+        part.sync();
+        part.close();
+        final File partFile = partFile(part.key);
+        if (partFile.exists() && !partFile.delete())
+            throw new IOException("Unable to replace part file " + partFile);
+        if (!part.file.renameTo(partFile))
+            throw new IOException("Unable to rename " + part.file + " to " + partFile);
+
+        journalOut.write((ShardManifest.pairA(part.key) + ":"
+                + ShardManifest.pairB(part.key) + "\n").getBytes(JOURNAL_CHARSET));
+        journalOut.flush();
+        journalOut.getFD().sync();
+        completed.add(part.key);
+    }
+
+    /**
+     * Write the pairs of a completed chunk pair to the given sink.
+     */
+    public void replay(int a, int b, ObjectSink<Weighted<TokenPair>> sink) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(partFile(ShardManifest.pairKey(a, b)))));
+        try {
+            while (true) {
+                final int id1;
+                try {
+                    id1 = in.readInt();
+                } catch (EOFException ex) {
+                    break;
+                }
+                final int id2 = in.readInt();
+                final double weight = in.readDouble();
+                sink.write(new Weighted<TokenPair>(new TokenPair(id1, id2), weight));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (journalOut != null) {
+            journalOut.close();
+            journalOut = null;
+        }
+    }
+
+    /**
+     * Close the journal and delete every file in it, along with the directory.
+     */
+    public void delete() throws IOException {
+        close();
+        clear();
+    }
+
+    private void clear() throws IOException {
+        completed.clear();
+        header = null;
+        final File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (!file.delete())
+                throw new IOException("Unable to delete checkpoint file " + file);
+        }
+        if (!directory.delete())
+            throw new IOException("Unable to delete checkpoint directory " + directory);
+    }
+
+    /**
+     * Sink that writes the pairs of one chunk pair to a temporary part file.
+     */
+    public static final class PartSink implements ObjectSink<Weighted<TokenPair>>, Closeable {
+
+        private final long key;
+
+        private final File file;
+
+        private final FileOutputStream fileOut;
+
+        private final DataOutputStream out;
+
+        private PartSink(long key, File file) throws IOException {
+            this.key = key;
+            this.file = file;
+            this.fileOut = new FileOutputStream(file);
+            this.out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        }
+
+        @Override
+        public synchronized void write(Weighted<TokenPair> pair) throws IOException {
+            out.writeInt(pair.record().id1());
+            out.writeInt(pair.record().id2());
+            out.writeDouble(pair.weight());
+        }
+
+        /**
+         * Flush the buffered pairs and force them to the storage device.
+         */
+        public synchronized void sync() throws IOException {
+            out.flush();
+            fileOut.getFD().sync();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -31,10 +31,13 @@
 package uk.ac.susx.mlcl.byblo.tasks;
 
 import it.unimi.dsi.fastutil.Hash;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
 import it.unimi.dsi.fastutil.ints.Int2IntMap;
 import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
-import it.unimi.dsi.fastutil.objects.Object2IntMap;
-import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrays;
 
 import java.io.Flushable;
 import java.io.Serializable;
@@ -63,6 +66,13 @@ import com.google.common.base.Objects;
  * Read in a raw feature instances, to produce three frequency counts: entries,
  * features, and event pairs.
  * </p>
+ * <p>
+ * Events are counted against their two ids packed into a single long key (see
+ * {@link #packEvent(int, int)}), so no object is allocated per instance. When
+ * the events are to be written in index order, the packed keys are simply
+ * sorted as numbers; otherwise the entries and features are ranked in the
+ * required order first, and the keys sorted by their ranks.
+ * </p>
  * 
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
  */
@@ -75,9 +85,11 @@ public final class CountTask extends AbstractTask implements Serializable,
 
 	/**
 	 * A very rough guess at the amount of memory required of each event read
-	 * from the source.
+	 * from the source: the instance itself while it waits in a chunk, a slot
+	 * of the packed event map (12 bytes at a load factor of 0.5, and twice
+	 * that while the map grows), and the sorted key array.
 	 */
-	public static long BYTES_REQUIRED_PER_EVENT = 268L;
+	public static long BYTES_REQUIRED_PER_EVENT = 72L;
 
 	private ObjectSource<TokenPair> source;
 
@@ -93,6 +105,13 @@ public final class CountTask extends AbstractTask implements Serializable,
 
 	private Comparator<Weighted<Token>> featureComparator;
 
+	/**
+	 * Whether the event comparator orders events by the id of the entry and
+	 * then by the id of the feature, so the packed keys can be sorted
+	 * directly.
+	 */
+	private boolean eventIndexOrder = false;
+
 	public CountTask(ObjectSource<TokenPair> source,
 			ObjectSink<Weighted<TokenPair>> eventSink,
 			ObjectSink<Weighted<Token>> entrySink,
@@ -175,6 +194,32 @@ public final class CountTask extends AbstractTask implements Serializable,
 		this.featureComparator = featureComparator;
 	}
 
+	public final boolean isEventIndexOrder() {
+		return eventIndexOrder;
+	}
+
+	public final void setEventIndexOrder(boolean eventIndexOrder) {
+		this.eventIndexOrder = eventIndexOrder;
+	}
+
+	/**
+	 * @param entryId id of the entry
+	 * @param featureId id of the feature
+	 * @return both ids packed into a single key, which orders as the entry id
+	 *         and then the feature id
+	 */
+	static long packEvent(int entryId, int featureId) {
+		return ((long) entryId << 32) | (featureId & 0xFFFFFFFFL);
+	}
+
+	static int unpackEntry(long event) {
+		return (int) (event >>> 32);
+	}
+
+	static int unpackFeature(long event) {
+		return (int) event;
+	}
+
 	protected void checkState() {
 		Checks.checkNotNull("source", source);
 		Checks.checkNotNull("featureSink", featureSink);
@@ -198,11 +243,8 @@ public final class CountTask extends AbstractTask implements Serializable,
 		float loadFactor = Hash.FAST_LOAD_FACTOR;
 		int initSize = Hash.DEFAULT_INITIAL_SIZE;// * 100;
 
-		// Int2ObjectOpenHashMap<Int2IntOpenHashMap> eventFreq =
-		// new Int2ObjectOpenHashMap<Int2IntOpenHashMap>(initSize, loadFactor);
-
-		Object2IntOpenHashMap<TokenPair> eventFreq = new Object2IntOpenHashMap<TokenPair>(
-				initSize, loadFactor);
+		Long2IntOpenHashMap eventFreq = new Long2IntOpenHashMap(initSize,
+				loadFactor);
 		eventFreq.defaultReturnValue(0);
 
 		Int2IntOpenHashMap featureFreq = new Int2IntOpenHashMap(initSize,
@@ -220,11 +262,7 @@ public final class CountTask extends AbstractTask implements Serializable,
 			entryFreq.add(instance.id1(), 1);
 			featureFreq.add(instance.id2(), 1);
 
-			// if(!eventFreq.containsKey(instance.id1()))
-			// eventFreq.put(instance.id1(), new Int2IntOpenHashMap());
-			// eventFreq.get(instance.id1()).add(instance.id2(), 1);
-
-			eventFreq.add(instance, 1);
+			eventFreq.add(packEvent(instance.id1(), instance.id2()), 1);
 
 			++instanceCount;
 			if (instanceCount % 1000000 == 0 || !getSource().hasNext()) {
@@ -286,11 +324,18 @@ public final class CountTask extends AbstractTask implements Serializable,
 		progress.endAdjusting();
 
 		{
-			List<Weighted<TokenPair>> events = Obj2IntMapToWeightedObjList(eventFreq);
+			final long[] events = eventFreq.keySet().toLongArray();
+			if (isEventIndexOrder()) {
+				LongArrays.radixSort(events);
+			} else {
+				sortByRank(events, getEventComparator());
+			}
+			for (long event : events) {
+				getEventSink().write(new Weighted<TokenPair>(new TokenPair(
+						unpackEntry(event), unpackFeature(event)), eventFreq
+						.get(event)));
+			}
 			eventFreq = null;
-			Collections.sort(events, getEventComparator());
-			ObjectIO.copy(events, getEventSink());
-			events = null;
 		}
 		if (getEventSink() instanceof Flushable)
 			((Flushable) getEventSink()).flush();
@@ -319,13 +364,74 @@ public final class CountTask extends AbstractTask implements Serializable,
 		return out;
 	}
 
-	private static <T> List<Weighted<T>> Obj2IntMapToWeightedObjList(
-            final Object2IntMap<T> map) {
-		final List<Weighted<T>> out = new ArrayList<Weighted<T>>(map.size());
-		for (Object2IntMap.Entry<T> e : map.object2IntEntrySet()) {
-			out.add(new Weighted<T>(e.getKey(), e.getIntValue()));
+	/**
+	 * Sort packed events into the order of a comparator of weighted events,
+	 * such as a string order. The comparator must order events by entry and
+	 * then by feature, ignoring the weight, as every event order does. The
+	 * distinct entries and features are ranked once each with the comparator,
+	 * so it is called only O(k log k) times for k distinct ids; the events are
+	 * then re-packed as pairs of ranks and radix-sorted without allocating.
+	 */
+	static void sortByRank(final long[] events,
+			final Comparator<Weighted<TokenPair>> comparator) {
+		if (events.length == 0)
+			return;
+		final int anyEntry = unpackEntry(events[0]);
+		final int anyFeature = unpackFeature(events[0]);
+
+		final IntOpenHashSet entrySet = new IntOpenHashSet();
+		final IntOpenHashSet featureSet = new IntOpenHashSet();
+		for (long event : events) {
+			entrySet.add(unpackEntry(event));
+			featureSet.add(unpackFeature(event));
 		}
-		return out;
+
+		// Entries are ranked against a fixed feature, and features against a
+		// fixed entry, so only the id being ranked differs.
+		final int[] entries = entrySet.toIntArray();
+		IntArrays.quickSort(entries, new AbstractIntComparator() {
+
+			@Override
+			public int compare(int a, int b) {
+				return comparator.compare(
+						new Weighted<TokenPair>(new TokenPair(a, anyFeature), 0),
+						new Weighted<TokenPair>(new TokenPair(b, anyFeature), 0));
+			}
+
+		});
+		final int[] features = featureSet.toIntArray();
+		IntArrays.quickSort(features, new AbstractIntComparator() {
+
+			@Override
+			public int compare(int a, int b) {
+				return comparator.compare(
+						new Weighted<TokenPair>(new TokenPair(anyEntry, a), 0),
+						new Weighted<TokenPair>(new TokenPair(anyEntry, b), 0));
+			}
+
+		});
+
+		final Int2IntOpenHashMap entryRank = ranks(entries);
+		final Int2IntOpenHashMap featureRank = ranks(features);
+		for (int i = 0; i < events.length; i++) {
+			events[i] = packEvent(entryRank.get(unpackEntry(events[i])),
+					featureRank.get(unpackFeature(events[i])));
+		}
+		LongArrays.radixSort(events);
+		for (int i = 0; i < events.length; i++) {
+			events[i] = packEvent(entries[unpackEntry(events[i])],
+					features[unpackFeature(events[i])]);
+		}
+	}
+
+	/**
+	 * @return map from each of the given ids to its offset in the array
+	 */
+	private static Int2IntOpenHashMap ranks(int[] ids) {
+		final Int2IntOpenHashMap ranks = new Int2IntOpenHashMap(ids.length);
+		for (int i = 0; i < ids.length; i++)
+			ranks.put(ids[i], i);
+		return ranks;
 	}
 
 	@Override
@@ -376,7 +482,8 @@ public final class CountTask extends AbstractTask implements Serializable,
 				.add("eventsSink", getEventSink())
 				.add("entriesComparator", getEntryComparator())
 				.add("featuresComparator", getFeatureComparator())
-				.add("eventsComparator", getEventComparator());
+				.add("eventsComparator", getEventComparator())
+				.add("eventIndexOrder", isEventIndexOrder());
 	}
 
 }
@@ -30,22 +30,18 @@
  */
 package uk.ac.susx.mlcl.byblo.tasks;
 
-import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
-import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.Set;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import uk.ac.susx.mlcl.byblo.io.TokenPair;
 import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairBuffer;
+import uk.ac.susx.mlcl.byblo.measures.PreparedVector;
 import uk.ac.susx.mlcl.lib.Checks;
 import uk.ac.susx.mlcl.lib.collect.Indexed;
 import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
-import uk.ac.susx.mlcl.lib.io.ObjectIO;
 import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
 
 /**
@@ -60,7 +56,29 @@ public final class InvertedApssTask<S> extends NaiveApssTask<S> {
 
     private static final Log LOG = LogFactory.getLog(InvertedApssTask.class);
 
-    private Int2ObjectMap<Set<Indexed<SparseDoubleVector>>> index;
+    private InvertedIndex index;
+
+    /**
+     * Ordinals of the candidates found for the current query.
+     */
+    private CandidateSet candidates = null;
+
+    /**
+     * Prepared forms of the indexed vectors, filled in as each vector first
+     * becomes a candidate, or null if the measure can't prepare vectors.
+     */
+    private PreparedVector[] prepared = null;
+
+    /**
+     * Vectors of the candidates for the current query, laid out contiguously
+     * for the batch calculation, or null when prepared vectors are used.
+     */
+    private SparseDoubleVector[] candidateVectors = null;
+
+    /**
+     * Shared components of the candidates for the current query.
+     */
+    private double[] shared = null;
 
     public InvertedApssTask() {
         index = null;
@@ -72,6 +90,13 @@ public final class InvertedApssTask<S> extends NaiveApssTask<S> {
         if (index == null) {
             index = buildIndex();
         }
+        candidates = new CandidateSet(index.size());
+        prepared = getPreparedMeasure() != null
+                   ? new PreparedVector[index.size()] : null;
+        if (prepared == null) {
+            candidateVectors = new SparseDoubleVector[index.size()];
+            shared = new double[index.size()];
+        }
     }
 
     @Override
@@ -85,26 +110,35 @@ public final class InvertedApssTask<S> extends NaiveApssTask<S> {
         progress.endAdjusting();
 
         final S startB = getSourceB().position();
-        List<Weighted<TokenPair>> pairs = new ArrayList<Weighted<TokenPair>>();
+        final WeightedTokenPairBuffer pairs = new WeightedTokenPairBuffer();
 
         while (getSourceB().hasNext()) {
             Indexed<SparseDoubleVector> b = getSourceB().read();
             if (!getProcessRecord().apply(b))
                 continue;
 
-            Set<Indexed<SparseDoubleVector>> candidates = findCandidates(b);
+            final int nCandidates = findCandidates(b);
+            final PreparedVector preparedB = prepared != null && nCandidates > 0
+                                             ? getPreparedMeasure().prepare(b.value()) : null;
+            if (prepared == null && nCandidates > 0) {
+                for (int c = 0; c < nCandidates; c++) {
+                    candidateVectors[c] = index.get(candidates.get(c)).value();
+                }
+                sharedBatch(candidateVectors, 0, nCandidates, b.value(), shared);
+            }
+            long queryProductions = 0;
 
-            for (Indexed<SparseDoubleVector> a : candidates) {
-                if (!getProcessRecord().apply(a))
-                    continue;
-                getStats().incrementCandidatesCount();
+            for (int c = 0; c < nCandidates; c++) {
+                final Indexed<SparseDoubleVector> a = index.get(candidates.get(c));
 
-                double sim = sim(a, b);
+                double sim = preparedB != null
+                             ? sim(a, prepared(candidates.get(c)), b, preparedB)
+                             : sim(a, b, shared[c]);
                 Weighted<TokenPair> pair = new Weighted<TokenPair>(
                         new TokenPair(b.key(), a.key()), sim);
                 if (getProducatePair().apply(pair)) {
                     pairs.add(pair);
-                    getStats().incrementProductionCount();
+                    ++queryProductions;
 
                     if (pairs.size() > PAIR_OUTPUT_BUFFER_SIZE) {
                         writeOutPairs(pairs);
@@ -113,6 +147,8 @@ public final class InvertedApssTask<S> extends NaiveApssTask<S> {
 
                 }
             }
+            getStats().recordQueryCandidates(nCandidates);
+            getStats().addProductionCount(queryProductions);
         }
 
         writeOutPairs(pairs);
@@ -127,46 +163,80 @@ public final class InvertedApssTask<S> extends NaiveApssTask<S> {
 
     }
 
-    protected Set<Indexed<SparseDoubleVector>> findCandidates(
-            Indexed<SparseDoubleVector> b) {
+    @Override
+    protected void finaliseTask() throws Exception {
+        super.finaliseTask();
+        candidates = null;
+        prepared = null;
+        candidateVectors = null;
+        shared = null;
+    }
 
-        final Set<Indexed<SparseDoubleVector>> candidates =
-                new ObjectOpenHashSet<Indexed<SparseDoubleVector>>();
+    /**
+     * @return prepared form of the indexed vector with the given ordinal
+     */
+    private PreparedVector prepared(int ordinal) {
+        if (prepared[ordinal] == null)
+            prepared[ordinal] = getPreparedMeasure().prepare(index.get(ordinal).value());
+        return prepared[ordinal];
+    }
 
-        for (int k : b.value().keys) {
-            if (index.containsKey(k)) {
-                candidates.addAll(index.get(k));
+    /**
+     * Find the ordinals of all indexed vectors that share at least one
+     * feature with the given vector, and are accepted by the record filter.
+     * The ordinals are added to the candidates, in the order they are first
+     * encountered.
+     *
+     * @param b query vector
+     * @return number of candidates found
+     */
+    protected int findCandidates(Indexed<SparseDoubleVector> b) {
+        candidates.reset();
+
+        final SparseDoubleVector vec = b.value();
+        int slot = 0;
+        for (int i = 0; i < vec.size; i++) {
+            slot = index.featureSlot(vec.keys[i], slot);
+            if (slot < 0) {
+                slot = -slot - 1;
+                continue;
+            }
+            final int end = index.postingsEnd(slot);
+            for (int p = index.postingsStart(slot); p < end; p++) {
+                final int ordinal = index.posting(p);
+                if (candidates.add(ordinal)
+                        && !getProcessRecord().apply(index.get(ordinal))) {
+                    candidates.removeLast();
+                }
             }
         }
-        return candidates;
+        return candidates.size();
     }
 
-    protected Int2ObjectMap<Set<Indexed<SparseDoubleVector>>> buildIndex()
+    protected InvertedIndex buildIndex()
             throws IOException {
         SeekableObjectSource<? extends Indexed<SparseDoubleVector>, S> src = getSourceA();
-        final Int2ObjectMap<Set<Indexed<SparseDoubleVector>>> result =
-                new Int2ObjectOpenHashMap<Set<Indexed<SparseDoubleVector>>>();
+        final List<Indexed<SparseDoubleVector>> vectors =
+                new ArrayList<Indexed<SparseDoubleVector>>();
         final S startA = src.position();
         while (src.hasNext()) {
-            final Indexed<SparseDoubleVector> a = src.read();
-            for (int k : a.value().keys) {
-                if (!result.containsKey(k)) {
-                    result.put(k,
-                               new ObjectOpenHashSet<Indexed<SparseDoubleVector>>());
-                }
-                result.get(k).add(a);
-            }
+            vectors.add(src.read());
         }
         src.position(startA);
+
+        final InvertedIndex result = InvertedIndex.build(vectors);
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Built index: " + result);
+        }
         return result;
     }
 
-    protected void setIndex(Int2ObjectMap<Set<Indexed<SparseDoubleVector>>> index) {
+    protected void setIndex(InvertedIndex index) {
         Checks.checkNotNull("index is null", index);
         this.index = index;
     }
 
-    protected Int2ObjectMap<Set<Indexed<SparseDoubleVector>>> getIndex() {
+    protected InvertedIndex getIndex() {
         return index;
     }
 
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.base.Objects;
+import java.util.Arrays;
+import java.util.List;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+/**
+ * An immutable inverted index from feature ids to the vectors that contain
+ * them. It is stored in compressed-sparse-row form: the postings for every
+ * feature are held contiguously in a single <tt>int</tt> array of vector
+ * ordinals, and a second array of offsets marks where each feature's postings
+ * begin and end.
+ *
+ * Only the features that actually occur in the indexed vectors are stored.
+ * Each is given a slot, in ascending feature id order, so the offsets array
+ * is sized by the number of distinct features rather than by the largest
+ * feature id. Callers find the slot of a feature with
+ * {@link #featureSlot(int, int)}, and then walk its postings.
+ *
+ * Each posting also records the offset of the feature within the vector, so
+ * the vector's value for that feature can be found without searching.
+ *
+ * Compared to a map of hash sets this uses only 8 bytes per posting, plus 8
+ * bytes per distinct feature, and walking a posting list is a sequential
+ * array scan.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class InvertedIndex {
+
+    /**
+     * The indexed vectors, such that the ordinal of a vector is its offset
+     * in this array.
+     */
+    private final Indexed<SparseDoubleVector>[] vectors;
+
+    /**
+     * Distinct feature ids of the indexed vectors in ascending order, such
+     * that the slot of a feature is its offset in this array.
+     */
+    private final int[] featureIds;
+
+    /**
+     * Postings for the feature in slot <tt>k</tt> are stored in
+     * <tt>postings[offsets[k]]</tt> to <tt>postings[offsets[k+1]-1]</tt>.
+     */
+    private final int[] offsets;
+
+    /**
+     * Vector ordinals for every feature, concatenated in feature id order.
+     * Within each feature the ordinals are ascending.
+     */
+    private final int[] postings;
+
+    /**
+     * For every posting, the offset of the feature within the keys of the
+     * posted vector.
+     */
+    private final int[] positions;
+
+    private InvertedIndex(Indexed<SparseDoubleVector>[] vectors,
+                          int[] featureIds, int[] offsets,
+                          int[] postings, int[] positions) {
+        this.vectors = vectors;
+        this.featureIds = featureIds;
+        this.offsets = offsets;
+        this.postings = postings;
+        this.positions = positions;
+    }
+
+    /**
+     * Build an index over the given vectors. The distinct feature ids are
+     * found first; then two passes are made: the first counts the postings of
+     * each feature, and the second fills them in.
+     *
+     * @param vectors vectors to index
+     * @return a new index
+     * @throws NullPointerException if vectors is null
+     * @throws IllegalArgumentException if any feature id is negative
+     */
+    public static InvertedIndex build(
+            List<? extends Indexed<SparseDoubleVector>> vectors) {
+        Checks.checkNotNull("vectors", vectors);
+
+        final Indexed<SparseDoubleVector>[] vectorArray =
+                vectors.toArray(newVectorArray(vectors.size()));
+
+        long nPostings = 0;
+        for (Indexed<SparseDoubleVector> v : vectorArray) {
+            final SparseDoubleVector vec = v.value();
+            for (int i = 0; i < vec.size; i++) {
+                if (vec.keys[i] < 0)
+                    throw new IllegalArgumentException(
+                            "negative feature id " + vec.keys[i]
+                            + " in vector " + v.key());
+            }
+            nPostings += vec.size;
+        }
+        if (nPostings > Integer.MAX_VALUE)
+            throw new IllegalArgumentException(
+                    "too many postings to index: " + nPostings);
+
+        final int[] postings = new int[(int) nPostings];
+        final int[] positions = new int[(int) nPostings];
+
+        // Find the distinct feature ids, using the postings array as scratch
+        // space since it is exactly large enough to hold every key.
+        int n = 0;
+        for (Indexed<SparseDoubleVector> v : vectorArray) {
+            final SparseDoubleVector vec = v.value();
+            System.arraycopy(vec.keys, 0, postings, n, vec.size);
+            n += vec.size;
+        }
+        Arrays.sort(postings);
+        int nFeatures = 0;
+        for (int p = 0; p < postings.length; p++) {
+            if (p == 0 || postings[p] != postings[p - 1])
+                postings[nFeatures++] = postings[p];
+        }
+        final int[] featureIds = Arrays.copyOf(postings, nFeatures);
+
+        // Count the postings of each feature, shifted by one place so the
+        // prefix sum below turns counts into start offsets.
+        final int[] offsets = new int[nFeatures + 1];
+        for (Indexed<SparseDoubleVector> v : vectorArray) {
+            final SparseDoubleVector vec = v.value();
+            int k = 0;
+            for (int i = 0; i < vec.size; i++) {
+                k = Arrays.binarySearch(featureIds, k, nFeatures, vec.keys[i]);
+                ++offsets[k + 1];
+            }
+        }
+        for (int k = 1; k < offsets.length; k++)
+            offsets[k] += offsets[k - 1];
+
+        // Fill the postings, using a copy of the offsets as insertion cursors
+        final int[] cursor = Arrays.copyOf(offsets, nFeatures);
+        for (int ordinal = 0; ordinal < vectorArray.length; ordinal++) {
+            final SparseDoubleVector vec = vectorArray[ordinal].value();
+            int k = 0;
+            for (int i = 0; i < vec.size; i++) {
+                k = Arrays.binarySearch(featureIds, k, nFeatures, vec.keys[i]);
+                final int p = cursor[k]++;
+                postings[p] = ordinal;
+                positions[p] = i;
+            }
+        }
+
+        return new InvertedIndex(vectorArray, featureIds, offsets,
+                                 postings, positions);
+    }
+
+    /**
+     * Estimate of the heap size in bytes of an index over the given number of
+     * postings and distinct features, not including the vectors themselves.
+     *
+     * @param nVectors number of indexed vectors
+     * @param nPostings number of postings over all vectors
+     * @param nFeatures number of distinct feature ids
+     * @return approximate size in bytes
+     */
+    public static long estimateSizeInBytes(long nVectors, long nPostings,
+                                           long nFeatures) {
+        return 4L * (2 * nFeatures + 1 + 2 * nPostings) + 8L * nVectors;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Indexed<SparseDoubleVector>[] newVectorArray(int length) {
+        return (Indexed<SparseDoubleVector>[]) new Indexed<?>[length];
+    }
+
+    /**
+     * @return number of indexed vectors
+     */
+    public int size() {
+        return vectors.length;
+    }
+
+    /**
+     * @return number of distinct feature ids, and so of feature slots
+     */
+    public int featureCount() {
+        return featureIds.length;
+    }
+
+    /**
+     * @param slot slot of the feature in the index
+     * @return the feature id stored in the given slot
+     */
+    public int featureId(int slot) {
+        return featureIds[slot];
+    }
+
+    /**
+     * Find the slot of the given feature, searching only from the given slot
+     * onwards. Because slots are in ascending feature id order, the features
+     * of a sorted vector can be looked up in turn by passing the last slot
+     * found as the starting point.
+     *
+     * @param featureId feature to look up
+     * @param fromSlot first slot to search
+     * @return slot of the feature if it is indexed, otherwise
+     *         <tt>(-(insertion point) - 1)</tt> as for
+     *         {@link Arrays#binarySearch(int[], int, int, int)}
+     */
+    public int featureSlot(int featureId, int fromSlot) {
+        return Arrays.binarySearch(featureIds, fromSlot, featureIds.length,
+                                   featureId);
+    }
+
+    /**
+     * @param featureId feature to look up
+     * @return slot of the feature if it is indexed, otherwise negative
+     */
+    public int featureSlot(int featureId) {
+        return featureSlot(featureId, 0);
+    }
+
+    /**
+     * @return total number of postings over all features
+     */
+    public int postingsCount() {
+        return postings.length;
+    }
+
+    /**
+     * @param ordinal offset of the vector in the index
+     * @return the vector at the given ordinal
+     */
+    public Indexed<SparseDoubleVector> get(int ordinal) {
+        return vectors[ordinal];
+    }
+
+    /**
+     * @param slot slot of the feature, as found by {@link #featureSlot(int)}
+     * @return offset of the first posting for the feature
+     */
+    public int postingsStart(int slot) {
+        return offsets[slot];
+    }
+
+    /**
+     * @param slot slot of the feature, as found by {@link #featureSlot(int)}
+     * @return offset one past the last posting for the feature
+     */
+    public int postingsEnd(int slot) {
+        return offsets[slot + 1];
+    }
+
+    /**
+     * @param offset position in the postings array, between
+     *               {@link #postingsStart(int)} and {@link #postingsEnd(int)}
+     * @return the vector ordinal stored at the given offset
+     */
+    public int posting(int offset) {
+        return postings[offset];
+    }
+
+    /**
+     * @param offset position in the postings array, between
+     *               {@link #postingsStart(int)} and {@link #postingsEnd(int)}
+     * @return offset of the feature within the keys of the posted vector
+     */
+    public int position(int offset) {
+        return positions[offset];
+    }
+
+    /**
+     * Estimate of the heap size of the index structure in bytes, not including
+     * the vectors themselves.
+     *
+     * @return approximate size in bytes
+     */
+    public long sizeInBytes() {
+        return estimateSizeInBytes(vectors.length, postings.length,
+                                   featureIds.length);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("vectors", vectors.length).
+                add("features", featureIds.length).
+                add("postings", postings.length).
+                toString();
+    }
+
+}
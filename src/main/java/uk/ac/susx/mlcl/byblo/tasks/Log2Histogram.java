@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.text.MessageFormat;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values with power-of-two bucket boundaries,
+ * that can be recorded to by many threads at once. Like
+ * {@link StripedCounter}, each thread updates its own stripe of buckets, and
+ * the stripes are merged when the histogram is read.
+ * <p/>
+ * Bucket 0 holds the value 0, and bucket i (for i &gt; 0) holds values in the
+ * range [2<sup>i-1</sup>, 2<sup>i</sup>). Percentiles are therefore reported
+ * as the upper bound of the bucket they fall in; they are accurate to within a
+ * factor of two, which is plenty to see where time goes.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class Log2Histogram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int BUCKETS = 64;
+
+    /**
+     * Offset of the running sum within a stripe, after the buckets.
+     */
+    private static final int SUM = BUCKETS;
+
+    /**
+     * Number of longs per stripe: the buckets, the sum, and padding up to a
+     * whole number of cache lines.
+     */
+    private static final int STRIDE = ((BUCKETS + 1 + StripedCounter.PADDING - 1)
+            / StripedCounter.PADDING) * StripedCounter.PADDING;
+
+    private transient AtomicLongArray cells;
+
+    private transient AtomicLong max;
+
+    public Log2Histogram() {
+        cells = new AtomicLongArray(StripedCounter.STRIPES * STRIDE);
+        max = new AtomicLong(0);
+    }
+
+    public void record(long value) {
+        if (value < 0)
+            throw new IllegalArgumentException("value < 0");
+        final int base = StripedCounter.stripe() * STRIDE;
+        cells.incrementAndGet(base + bucket(value));
+        cells.addAndGet(base + SUM, value);
+
+        // Only contended while the maximum is still growing
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+        }
+    }
+
+    /**
+     * @return the number of values recorded in each bucket
+     */
+    public long[] getBucketCounts() {
+        final long[] counts = new long[BUCKETS];
+        for (int s = 0; s < StripedCounter.STRIPES; s++)
+            for (int b = 0; b < BUCKETS; b++)
+                counts[b] += cells.get(s * STRIDE + b);
+        return counts;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (long c : getBucketCounts())
+            count += c;
+        return count;
+    }
+
+    public long getSum() {
+        long sum = 0;
+        for (int s = 0; s < StripedCounter.STRIPES; s++)
+            sum += cells.get(s * STRIDE + SUM);
+        return sum;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        final long count = getCount();
+        return count == 0 ? 0 : (double) getSum() / count;
+    }
+
+    /**
+     * @param p percentile, in the range [0, 1]
+     * @return an upper bound on the value at the given percentile, or 0 if
+     *         nothing has been recorded.
+     */
+    public long getPercentile(double p) {
+        if (!(p >= 0 && p <= 1))
+            throw new IllegalArgumentException("p not in range [0, 1]");
+        final long[] counts = getBucketCounts();
+        long count = 0;
+        for (long c : counts)
+            count += c;
+        if (count == 0)
+            return 0;
+        final long rank = Math.max(1, (long) Math.ceil(p * count));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts[b];
+            if (seen >= rank)
+                return Math.min(getMax(), upperBound(b));
+        }
+        return getMax();
+    }
+
+    static int bucket(long value) {
+        return value == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    private static long upperBound(int bucket) {
+        return bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    private void writeObject(final ObjectOutputStream out)
+            throws IOException {
+        out.defaultWriteObject();
+        final long[] counts = getBucketCounts();
+        for (long c : counts)
+            out.writeLong(c);
+        out.writeLong(getSum());
+        out.writeLong(getMax());
+    }
+
+    private void readObject(final ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        cells = new AtomicLongArray(StripedCounter.STRIPES * STRIDE);
+        for (int b = 0; b < BUCKETS; b++)
+            cells.set(b, in.readLong());
+        cells.set(SUM, in.readLong());
+        max = new AtomicLong(in.readLong());
+    }
+
+    @Override
+    public String toString() {
+        final long count = getCount();
+        if (count == 0)
+            return "n=0";
+        return MessageFormat.format("n={0,number,#}, mean={1,number,#.#}, p50<={2,number,#}, p99<={3,number,#}, max={4,number,#}",
+                count, getMean(), getPercentile(0.5), getPercentile(0.99), getMax());
+    }
+}
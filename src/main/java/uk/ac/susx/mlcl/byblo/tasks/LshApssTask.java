@@ -0,0 +1,545 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.base.Objects.ToStringHelper;
+import it.unimi.dsi.fastutil.Swapper;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairBuffer;
+import uk.ac.susx.mlcl.byblo.measures.AbstractProximity;
+import uk.ac.susx.mlcl.byblo.measures.Cosine;
+import uk.ac.susx.mlcl.byblo.measures.PreparedVector;
+import uk.ac.susx.mlcl.byblo.measures.Proximity;
+import uk.ac.susx.mlcl.byblo.measures.Tanimoto;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+
+/**
+ * An approximate all-pairs similarity search implementation, using locality
+ * sensitive hashing to choose the candidate pairs.
+ *
+ * Every vector is summarised by a signature of
+ * <tt>bands &times; rows</tt> hash values, such that similar vectors are
+ * likely to agree on each value. The signature is cut into bands of
+ * <tt>rows</tt> values, and two vectors become a candidate pair when they
+ * agree on every value of at least one band. Candidates are then scored
+ * exactly with the measure, so every pair produced has the correct
+ * similarity, but pairs whose vectors never collide are lost.
+ *
+ * If each hash value agrees with probability <i>p</i>, a pair is found with
+ * probability <tt>1 - (1 - p<sup>rows</sup>)<sup>bands</sup></tt>. More bands
+ * improve recall at the cost of more candidates; more rows reduce the
+ * candidates, mostly among dissimilar pairs. Unless set explicitly, the
+ * number of rows depends on the signature, since a hyperplane row agrees with
+ * probability at least one half even for unrelated vectors, so it needs many
+ * more rows than a MinHash row to reject them.
+ *
+ * Two kinds of signature are supported:
+ * <ul>
+ * <li>{@link Signature#MINHASH} hash values agree with probability equal to
+ * the Jaccard co-efficient of the feature sets. This is the default, and
+ * suits set based measures such as Jaccard and Dice.</li>
+ * <li>{@link Signature#HYPERPLANE} values are the signs of random
+ * projections, which agree with probability <tt>1 - &theta;/&pi;</tt> where
+ * <tt>&theta;</tt> is the angle between the vectors. This is chosen by
+ * default for {@link Cosine} and {@link Tanimoto}.</li>
+ * </ul>
+ *
+ * Vectors with no features have no signature, and so are never paired.
+ *
+ * @param <S>
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class LshApssTask<S> extends NaiveApssTask<S> {
+
+    private static final Log LOG = LogFactory.getLog(LshApssTask.class);
+
+    public static final int DEFAULT_BANDS = 32;
+
+    /**
+     * Choose the number of rows according to the signature.
+     */
+    public static final int DEFAULT_ROWS = 0;
+
+    /**
+     * Rows per band for {@link Signature#MINHASH}; pairs with a Jaccard
+     * co-efficient of 0.1 become candidates with probability 0.3%.
+     */
+    public static final int DEFAULT_MINHASH_ROWS = 4;
+
+    /**
+     * Rows per band for {@link Signature#HYPERPLANE}; orthogonal pairs
+     * become candidates with probability 0.8%, while pairs with a cosine of
+     * 0.8 are found with probability 88%.
+     */
+    public static final int DEFAULT_HYPERPLANE_ROWS = 12;
+
+    public static final long DEFAULT_SEED = 0x2545F4914F6CDD1DL;
+
+    /**
+     * Odd constant used to space out the seeds of successive hash functions.
+     */
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    /**
+     * Family of hash functions used to produce the signatures.
+     */
+    public enum Signature {
+
+        /**
+         * Minimum hash of the feature set, under random permutations.
+         */
+        MINHASH,
+        /**
+         * Signs of the projections of the vector onto random hyperplanes.
+         */
+        HYPERPLANE
+
+    }
+
+    private int bands = DEFAULT_BANDS;
+
+    private int rows = DEFAULT_ROWS;
+
+    private long seed = DEFAULT_SEED;
+
+    /**
+     * Signature to use, or null to choose one according to the measure.
+     */
+    private Signature signature = null;
+
+    private Signature chosenSignature = null;
+
+    private int chosenRows = 0;
+
+    /**
+     * Per-row seeds of the hash functions.
+     */
+    private long[] rowSeeds = null;
+
+    /**
+     * The vectors of source A, indexed by ordinal.
+     */
+    private List<Indexed<SparseDoubleVector>> vectors = null;
+
+    /**
+     * For each band, the band keys of the indexed vectors in ascending order,
+     * and the ordinal of the vector each key belongs to.
+     */
+    private long[][] bandKeys = null;
+
+    private int[][] bandOrdinals = null;
+
+    /**
+     * Ordinals of the candidates found for the current query.
+     */
+    private CandidateSet candidates = null;
+
+    /**
+     * Prepared forms of the indexed vectors, filled in as each vector first
+     * becomes a candidate, or null if the measure can't prepare vectors.
+     */
+    private PreparedVector[] prepared = null;
+
+    public LshApssTask() {
+    }
+
+    public int getBands() {
+        return bands;
+    }
+
+    public void setBands(int bands) {
+        Checks.checkRangeIncl("bands", bands, 1, Integer.MAX_VALUE);
+        this.bands = bands;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Set the number of hash values per band, or {@link #DEFAULT_ROWS} to
+     * choose one according to the signature.
+     */
+    public void setRows(int rows) {
+        Checks.checkRangeIncl("rows", rows, 0, Long.SIZE);
+        this.rows = rows;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public Signature getSignature() {
+        return signature;
+    }
+
+    /**
+     * Set the signature to use, or null to choose one according to the
+     * measure.
+     */
+    public void setSignature(Signature signature) {
+        this.signature = signature;
+    }
+
+    @Override
+    protected void initialiseTask() throws Exception {
+        super.initialiseTask();
+        chosenSignature = signature != null ? signature
+                          : isAngular(getMeasure()) ? Signature.HYPERPLANE
+                          : Signature.MINHASH;
+        chosenRows = rows != DEFAULT_ROWS ? rows
+                     : chosenSignature == Signature.HYPERPLANE
+                       ? DEFAULT_HYPERPLANE_ROWS : DEFAULT_MINHASH_ROWS;
+        rowSeeds = new long[bands * chosenRows];
+        for (int i = 0; i < rowSeeds.length; i++)
+            rowSeeds[i] = mix(seed + (i + 1) * GOLDEN_GAMMA);
+        buildIndex();
+        candidates = new CandidateSet(vectors.size());
+        prepared = getPreparedMeasure() != null
+                   ? new PreparedVector[vectors.size()] : null;
+    }
+
+    @Override
+    protected void runTask()
+            throws IOException {
+
+        progress.startAdjusting();
+        progress.setState(State.RUNNING);
+        progress.setMessage("Running locality sensitive hashing all-pairs.");
+        progress.setProgressPercent(0);
+        progress.endAdjusting();
+
+        final S startB = getSourceB().position();
+        final WeightedTokenPairBuffer pairs = new WeightedTokenPairBuffer();
+        final long[] keys = new long[bands];
+
+        while (getSourceB().hasNext()) {
+            Indexed<SparseDoubleVector> b = getSourceB().read();
+            if (!getProcessRecord().apply(b))
+                continue;
+
+            if (!bandKeys(b.value(), keys))
+                continue;
+            final int nCandidates = findCandidates(keys);
+            final PreparedVector preparedB = prepared != null && nCandidates > 0
+                                             ? getPreparedMeasure().prepare(b.value()) : null;
+            long queryCandidates = 0;
+            long queryProductions = 0;
+
+            for (int c = 0; c < nCandidates; c++) {
+                final Indexed<SparseDoubleVector> a = vectors.get(candidates.get(c));
+                if (!getProcessRecord().apply(a))
+                    continue;
+                ++queryCandidates;
+
+                double sim = preparedB != null
+                             ? sim(a, prepared(candidates.get(c)), b, preparedB)
+                             : sim(a, b);
+                Weighted<TokenPair> pair = new Weighted<TokenPair>(
+                        new TokenPair(b.key(), a.key()), sim);
+                if (getProducatePair().apply(pair)) {
+                    pairs.add(pair);
+                    ++queryProductions;
+
+                    if (pairs.size() > PAIR_OUTPUT_BUFFER_SIZE) {
+                        writeOutPairs(pairs);
+                    }
+                }
+            }
+            getStats().recordQueryCandidates(queryCandidates);
+            getStats().addProductionCount(queryProductions);
+        }
+
+        writeOutPairs(pairs);
+
+        getSourceB().position(startB);
+
+        progress.startAdjusting();
+        progress.setState(State.COMPLETED);
+        progress.setProgressPercent(100);
+        progress.endAdjusting();
+    }
+
+    @Override
+    protected void finaliseTask() throws Exception {
+        super.finaliseTask();
+        rowSeeds = null;
+        vectors = null;
+        bandKeys = null;
+        bandOrdinals = null;
+        candidates = null;
+        prepared = null;
+    }
+
+    /**
+     * @return prepared form of the indexed vector with the given ordinal
+     */
+    private PreparedVector prepared(int ordinal) {
+        if (prepared[ordinal] == null)
+            prepared[ordinal] = getPreparedMeasure().prepare(vectors.get(ordinal).value());
+        return prepared[ordinal];
+    }
+
+    /**
+     * Whether the measure is a function of the angle between vectors, so
+     * random hyperplane signatures are the better choice. Exact class
+     * matches only, because sub-classes may override combine.
+     */
+    private static boolean isAngular(Proximity measure) {
+        return measure.getClass() == Cosine.class
+                || measure.getClass() == Tanimoto.class;
+    }
+
+    /**
+     * Find the ordinals of all indexed vectors that share at least one band
+     * key with the query. The ordinals are added to the candidates,
+     * in the order they are first encountered.
+     *
+     * @param keys band keys of the query vector
+     * @return number of candidates found
+     */
+    private int findCandidates(long[] keys) {
+        candidates.reset();
+
+        for (int band = 0; band < bands; band++) {
+            final long[] sortedKeys = bandKeys[band];
+            final int[] ordinals = bandOrdinals[band];
+            for (int p = lowerBound(sortedKeys, keys[band]);
+                 p < sortedKeys.length && sortedKeys[p] == keys[band]; p++) {
+                candidates.add(ordinals[p]);
+            }
+        }
+        return candidates.size();
+    }
+
+    /**
+     * Offset of the first element of the sorted array that is not less than
+     * the key.
+     */
+    private static int lowerBound(long[] sorted, long key) {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < key)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private void buildIndex() throws IOException {
+        final SeekableObjectSource<? extends Indexed<SparseDoubleVector>, S> src = getSourceA();
+        vectors = new ArrayList<Indexed<SparseDoubleVector>>();
+        final S startA = src.position();
+        while (src.hasNext()) {
+            vectors.add(src.read());
+        }
+        src.position(startA);
+
+        // Band keys are produced vector by vector, then transposed into one
+        // sorted table per band.
+        final long[][] keysByBand = new long[bands][vectors.size()];
+        final int[][] ordinalsByBand = new int[bands][vectors.size()];
+        final long[] keys = new long[bands];
+        int n = 0;
+        for (int ordinal = 0; ordinal < vectors.size(); ordinal++) {
+            if (!bandKeys(vectors.get(ordinal).value(), keys))
+                continue;
+            for (int band = 0; band < bands; band++) {
+                keysByBand[band][n] = keys[band];
+                ordinalsByBand[band][n] = ordinal;
+            }
+            ++n;
+        }
+
+        bandKeys = new long[bands][];
+        bandOrdinals = new int[bands][];
+        for (int band = 0; band < bands; band++) {
+            final long[] k = Arrays.copyOf(keysByBand[band], n);
+            final int[] o = Arrays.copyOf(ordinalsByBand[band], n);
+            keysByBand[band] = null;
+            ordinalsByBand[band] = null;
+            it.unimi.dsi.fastutil.Arrays.quickSort(0, n, new AbstractIntComparator() {
+
+                @Override
+                public int compare(int i, int j) {
+                    return k[i] < k[j] ? -1 : k[i] > k[j] ? 1
+                           : o[i] < o[j] ? -1 : o[i] > o[j] ? 1 : 0;
+                }
+
+            }, new Swapper() {
+
+                @Override
+                public void swap(int i, int j) {
+                    final long tk = k[i];
+                    k[i] = k[j];
+                    k[j] = tk;
+                    final int to = o[i];
+                    o[i] = o[j];
+                    o[j] = to;
+                }
+
+            });
+            bandKeys[band] = k;
+            bandOrdinals[band] = o;
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Indexed " + n + " of " + vectors.size()
+                    + " vectors in " + bands + " bands of " + chosenRows
+                    + " " + chosenSignature + " rows.");
+        }
+    }
+
+    /**
+     * Calculate the band keys of the given vector.
+     *
+     * @param vec vector to hash
+     * @param keys destination for the key of each band
+     * @return false if the vector has no features, so has no signature
+     */
+    private boolean bandKeys(SparseDoubleVector vec, long[] keys) {
+        final AbstractProximity measure = getMeasure() instanceof AbstractProximity
+                                          ? (AbstractProximity) getMeasure() : null;
+        switch (chosenSignature) {
+            case HYPERPLANE:
+                return hyperplaneBandKeys(vec, measure, keys);
+            case MINHASH:
+                return minHashBandKeys(vec, measure, keys);
+            default:
+                throw new AssertionError(chosenSignature);
+        }
+    }
+
+    private boolean minHashBandKeys(SparseDoubleVector vec,
+                                    AbstractProximity measure, long[] keys) {
+        final long[] minima = new long[rowSeeds.length];
+        Arrays.fill(minima, Long.MAX_VALUE);
+        boolean empty = true;
+        for (int i = 0; i < vec.size; i++) {
+            if (measure != null && measure.isFiltered(vec.keys[i]))
+                continue;
+            empty = false;
+            for (int r = 0; r < rowSeeds.length; r++) {
+                final long h = mix(vec.keys[i] ^ rowSeeds[r]);
+                if (h < minima[r])
+                    minima[r] = h;
+            }
+        }
+        if (empty)
+            return false;
+
+        for (int band = 0; band < bands; band++) {
+            long key = band;
+            for (int r = band * chosenRows; r < (band + 1) * chosenRows; r++)
+                key = mix(key * GOLDEN_GAMMA + minima[r]);
+            keys[band] = key;
+        }
+        return true;
+    }
+
+    private boolean hyperplaneBandKeys(SparseDoubleVector vec,
+                                       AbstractProximity measure, long[] keys) {
+        // Each hyperplane has a random +1 or -1 component for every feature,
+        // taken from the bits of a hash of the feature id, so the planes are
+        // never materialised.
+        final double[] projections = new double[rowSeeds.length];
+        boolean empty = true;
+        for (int i = 0; i < vec.size; i++) {
+            if (measure != null && measure.isFiltered(vec.keys[i]))
+                continue;
+            if (vec.values[i] == 0)
+                continue;
+            empty = false;
+            final double v = vec.values[i];
+            final long featureHash = mix(vec.keys[i] ^ seed);
+            long bits = 0;
+            for (int r = 0; r < projections.length; r++) {
+                if ((r & (Long.SIZE - 1)) == 0)
+                    bits = mix(featureHash + (r + 1) * GOLDEN_GAMMA);
+                projections[r] += (bits & 1) != 0 ? v : -v;
+                bits >>>= 1;
+            }
+        }
+        if (empty)
+            return false;
+
+        for (int band = 0; band < bands; band++) {
+            long key = 0;
+            for (int r = band * chosenRows; r < (band + 1) * chosenRows; r++)
+                key = (key << 1) | (projections[r] >= 0 ? 1 : 0);
+            keys[band] = key;
+        }
+        return true;
+    }
+
+    /**
+     * 64 bit finalisation step of MurmurHash3; every bit of the input
+     * affects every bit of the output.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+
+    @Override
+    public String getName() {
+        return "lsh-allpairs";
+    }
+
+    @Override
+    protected ToStringHelper toStringHelper() {
+        return super.toStringHelper().
+                add("bands", bands).
+                add("rows", rows).
+                add("seed", seed).
+                add("signature", signature);
+    }
+
+}
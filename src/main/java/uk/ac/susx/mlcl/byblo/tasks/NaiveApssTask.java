@@ -36,19 +36,21 @@ import com.google.common.base.Predicates;
 import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
 import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.io.QueuedWeightedTokenPairSink;
 import uk.ac.susx.mlcl.byblo.io.TokenPair;
 import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairBuffer;
+import uk.ac.susx.mlcl.byblo.measures.BatchProximity;
 import uk.ac.susx.mlcl.byblo.measures.Jaccard;
+import uk.ac.susx.mlcl.byblo.measures.PreparedProximity;
+import uk.ac.susx.mlcl.byblo.measures.PreparedVector;
 import uk.ac.susx.mlcl.byblo.measures.Proximity;
 import uk.ac.susx.mlcl.lib.Checks;
 import uk.ac.susx.mlcl.lib.collect.Indexed;
 import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
-import uk.ac.susx.mlcl.lib.io.ObjectIO;
+import uk.ac.susx.mlcl.lib.io.ConcurrentObjectSink;
 import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
 import uk.ac.susx.mlcl.lib.io.ObjectSink;
 import uk.ac.susx.mlcl.lib.tasks.AbstractTask;
@@ -108,6 +110,20 @@ public class NaiveApssTask<P> extends AbstractTask
 
     private Int2DoubleMap precalcB = null;
 
+    /**
+     * Whether every produced pair should also be written out in reverse
+     * order. This allows a caller to skip the mirror image of a task, when the
+     * measure is known to be symmetric.
+     */
+    private boolean reflectPairs = false;
+
+    /**
+     * Lower bound on the similarity of pairs that will be produced. This is
+     * only a hint: it allows algorithms to skip pairs that can not reach the
+     * threshold, but pairs are still filtered by {@link #pruducePair}.
+     */
+    private double minSimilarity = Double.NEGATIVE_INFINITY;
+
     /**
      * Constructor of minimal parameterisation, taking arguments that must be
      * given to the algorithm for it to be in a runnable state.
@@ -200,6 +216,25 @@ public class NaiveApssTask<P> extends AbstractTask
         this.measure = measure;
     }
 
+    public final boolean isReflectPairs() {
+        return reflectPairs;
+    }
+
+    public final void setReflectPairs(boolean reflectPairs) {
+        this.reflectPairs = reflectPairs;
+    }
+
+    public final double getMinSimilarity() {
+        return minSimilarity;
+    }
+
+    public final void setMinSimilarity(double minSimilarity) {
+        if (Double.isNaN(minSimilarity)) {
+            throw new IllegalArgumentException("minSimilarity is NaN");
+        }
+        this.minSimilarity = minSimilarity;
+    }
+
     public final ObjectSink<Weighted<TokenPair>> getSink() {
         return sink;
     }
@@ -219,21 +254,40 @@ public class NaiveApssTask<P> extends AbstractTask
 
     protected final int PAIR_OUTPUT_BUFFER_SIZE = 100000;
 
-    protected void writeOutPairs(List<Weighted<TokenPair>> pairs) throws IOException {
+    /**
+     * Number of vectors from source A that are compared against each vector
+     * from source B in a single batch. Source B is also re-read once per
+     * block, rather than once per vector.
+     */
+    protected final int BATCH_SIZE = 256;
+
+    protected void writeOutPairs(WeightedTokenPairBuffer pairs) throws IOException {
         if (pairs.isEmpty())
             return;
+        if (reflectPairs) {
+            stats.addProductionCount(pairs.size());
+            pairs.reflect();
+        }
         // Sorting the pairs reduces disk space usage due to compact format and
         // skip indexing.
-        Collections.sort(pairs, Weighted.recordOrder(TokenPair.indexOrder()));
-        synchronized (getSink()) {
-            ObjectIO.copy(pairs, getSink());
+        pairs.sort();
+        if (getSink() instanceof QueuedWeightedTokenPairSink) {
+            // Hand the batch over to the writer thread, rather than waiting
+            // on the other workers to finish writing
+            ((QueuedWeightedTokenPairSink) getSink()).write(pairs);
+        } else if (getSink() instanceof ConcurrentObjectSink) {
+            pairs.copyTo(getSink());
+        } else {
+            synchronized (getSink()) {
+                pairs.copyTo(getSink());
+            }
         }
         pairs.clear();
     }
 
     @Override
     protected void runTask() throws Exception {
-        List<Weighted<TokenPair>> pairBuffer = new ArrayList<Weighted<TokenPair>>();
+        final WeightedTokenPairBuffer pairBuffer = new WeightedTokenPairBuffer();
         final P restartB = getSourceB().position();
 
         progress.startAdjusting();
@@ -242,37 +296,58 @@ public class NaiveApssTask<P> extends AbstractTask
         progress.setProgressPercent(0);
         progress.endAdjusting();
 
-        // for every vector (a) in source A
-        while (getSourceA().hasNext()) {
-            Indexed<SparseDoubleVector> a = getSourceA().read();
+        final Indexed<SparseDoubleVector>[] blockA = newVectorArray(BATCH_SIZE);
+        final SparseDoubleVector[] blockVectors = new SparseDoubleVector[BATCH_SIZE];
+        final double[] shared = new double[BATCH_SIZE];
+        final long[] blockProductions = new long[BATCH_SIZE];
 
-            if (!processRecord.apply(a)) {
+        // for every block of vectors (a) in source A
+        while (getSourceA().hasNext()) {
+            int blockSize = 0;
+            while (blockSize < BATCH_SIZE && getSourceA().hasNext()) {
+                Indexed<SparseDoubleVector> a = getSourceA().read();
+                if (processRecord.apply(a)) {
+                    blockA[blockSize] = a;
+                    blockVectors[blockSize] = a.value();
+                    ++blockSize;
+                }
+            }
+            if (blockSize == 0) {
                 continue;
             }
 
             // for every vector (b) in source B
-            if (sourceB.position() != restartB) {
-                sourceB.position(restartB);
-            }
+            sourceB.position(restartB);
+            long queryCandidates = 0;
             while (getSourceB().hasNext()) {
-                stats.incrementCandidatesCount();
-
                 Indexed<SparseDoubleVector> b = sourceB.read();
                 if (!processRecord.apply(b)) {
                     continue;
                 }
-
-                double sim = sim(a, b);
-                Weighted<TokenPair> pair = new Weighted<TokenPair>(
-                        new TokenPair(b.key(), a.key()), sim);
-                if (pruducePair.apply(pair)) {
-                    pairBuffer.add(pair);
-                    stats.incrementProductionCount();
-                    if (pairBuffer.size() > PAIR_OUTPUT_BUFFER_SIZE) {
-                        writeOutPairs(pairBuffer);
+                ++queryCandidates;
+
+                sharedBatch(blockVectors, 0, blockSize, b.value(), shared);
+                for (int k = 0; k < blockSize; k++) {
+                    final Indexed<SparseDoubleVector> a = blockA[k];
+                    double sim = sim(a, b, shared[k]);
+                    Weighted<TokenPair> pair = new Weighted<TokenPair>(
+                            new TokenPair(b.key(), a.key()), sim);
+                    if (pruducePair.apply(pair)) {
+                        pairBuffer.add(pair);
+                        ++blockProductions[k];
+                        if (pairBuffer.size() > PAIR_OUTPUT_BUFFER_SIZE) {
+                            writeOutPairs(pairBuffer);
+                        }
                     }
                 }
             }
+            for (int k = 0; k < blockSize; k++) {
+                stats.recordQueryCandidates(queryCandidates);
+                stats.addProductionCount(blockProductions[k]);
+                blockProductions[k] = 0;
+                blockA[k] = null;
+                blockVectors[k] = null;
+            }
         }
 
         writeOutPairs(pairBuffer);
@@ -376,6 +451,66 @@ public class NaiveApssTask<P> extends AbstractTask
                 precalcB.get(b.key()));
     }
 
+    /**
+     * Calculate the shared component between each of the vectors
+     * {@code A[offset]} to {@code A[offset + length - 1]} and the vector B,
+     * using the batch form of the measure when it has one.
+     */
+    protected final void sharedBatch(
+            final SparseDoubleVector[] A, final int offset, final int length,
+            final SparseDoubleVector B, final double[] shared) {
+        if (measure instanceof BatchProximity) {
+            ((BatchProximity) measure).sharedBatch(A, offset, length, B, shared);
+        } else {
+            for (int k = 0; k < length; k++) {
+                shared[k] = measure.shared(A[offset + k], B);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Indexed<SparseDoubleVector>[] newVectorArray(int length) {
+        return (Indexed<SparseDoubleVector>[]) new Indexed<?>[length];
+    }
+
+    /**
+     * @return the measure if it can prepare vectors, otherwise null
+     */
+    protected final PreparedProximity getPreparedMeasure() {
+        return measure instanceof PreparedProximity
+               ? (PreparedProximity) measure : null;
+    }
+
+    /**
+     * Calculate the similarity of a pair of vectors from their prepared
+     * forms. The prepared forms must have been produced by the measure
+     * returned from {@link #getPreparedMeasure()}.
+     */
+    protected final double sim(
+            final Indexed<SparseDoubleVector> a, final PreparedVector preparedA,
+            final Indexed<SparseDoubleVector> b, final PreparedVector preparedB) {
+        stats.incrementComparisonCount();
+        return measure.combine(
+                ((PreparedProximity) measure).sharedPrepared(preparedA, preparedB),
+                precalcA.get(a.key()),
+                precalcB.get(b.key()));
+    }
+
+    /**
+     * Complete the similarity calculation for a pair of vectors when the
+     * shared component has already been calculated by some other means.
+     */
+    protected final double sim(
+            final Indexed<SparseDoubleVector> a,
+            final Indexed<SparseDoubleVector> b,
+            final double shared) {
+        stats.incrementComparisonCount();
+        return measure.combine(
+                shared,
+                precalcA.get(a.key()),
+                precalcB.get(b.key()));
+    }
+
     @Override
     public void removeProgressListener(ProgressListener progressListener) {
         progress.removeProgressListener(progressListener);
@@ -388,7 +523,7 @@ public class NaiveApssTask<P> extends AbstractTask
 
     @Override
     public String getProgressReport() {
-        return progress.getProgressReport();
+        return progress.getProgressReport() + " [" + stats.getReport() + "]";
     }
 
     @Override
@@ -425,6 +560,8 @@ public class NaiveApssTask<P> extends AbstractTask
                 add("sink", sink).
                 add("processRecord", processRecord).
                 add("pruducePair", pruducePair).
+                add("reflectPairs", reflectPairs).
+                add("minSimilarity", minSimilarity).
                 add("stats", stats);
     }
 
@@ -0,0 +1,526 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.base.Objects;
+import it.unimi.dsi.fastutil.Hash;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.AbstractLongComparator;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.io.Token;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.events.ProgressDelegate;
+import uk.ac.susx.mlcl.lib.events.ProgressListener;
+import uk.ac.susx.mlcl.lib.events.ProgressReporting;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
+import uk.ac.susx.mlcl.lib.io.ObjectSource;
+import uk.ac.susx.mlcl.lib.tasks.AbstractTask;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.*;
+
+/**
+ * Count the entries, features, and events of an instances source entirely in
+ * memory, using several threads.
+ * <p/>
+ * The instances are read on the calling thread and dealt out by a hash of the
+ * entry id to one partition per thread, in batches of packed event keys (see
+ * {@link CountTask#packEvent(int, int)}). Each partition counts its own
+ * entries and events, so there are no shared maps and no locks, and sorts its
+ * events once the input is exhausted. The sorted partitions are then merged
+ * straight into the sinks, without any temporary files.
+ * <p/>
+ * Unlike the chunked external count, every event is held in memory at once,
+ * so this only suits inputs whose vocabulary fits.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class ParallelCountTask extends AbstractTask implements ProgressReporting {
+
+    private static final Log LOG = LogFactory.getLog(ParallelCountTask.class);
+
+    /**
+     * Number of instances passed to a partition at a time.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1 << 14;
+
+    /**
+     * Number of batches that may wait for each partition before reading
+     * blocks.
+     */
+    private static final int QUEUED_BATCHES = 4;
+
+    private static final long[] END_OF_INPUT = new long[0];
+
+    private final ProgressDelegate progress = new ProgressDelegate(this, true);
+
+    private ObjectSource<TokenPair> source;
+
+    private ObjectSink<Weighted<TokenPair>> eventSink;
+
+    private ObjectSink<Weighted<Token>> entrySink;
+
+    private ObjectSink<Weighted<Token>> featureSink;
+
+    private Comparator<Weighted<TokenPair>> eventComparator;
+
+    private Comparator<Weighted<Token>> entryComparator;
+
+    private Comparator<Weighted<Token>> featureComparator;
+
+    /**
+     * Whether the event comparator orders events by the id of the entry and
+     * then by the id of the feature, so the packed keys can be sorted
+     * directly.
+     */
+    private boolean eventIndexOrder = false;
+
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    public ParallelCountTask(ObjectSource<TokenPair> source,
+                             ObjectSink<Weighted<TokenPair>> eventSink,
+                             ObjectSink<Weighted<Token>> entrySink,
+                             ObjectSink<Weighted<Token>> featureSink,
+                             Comparator<Weighted<TokenPair>> eventComparator,
+                             Comparator<Weighted<Token>> entryComparator,
+                             Comparator<Weighted<Token>> featureComparator) {
+        setSource(source);
+        setEventSink(eventSink);
+        setEntrySink(entrySink);
+        setFeatureSink(featureSink);
+        setEventComparator(eventComparator);
+        setEntryComparator(entryComparator);
+        setFeatureComparator(featureComparator);
+    }
+
+    public final ObjectSource<TokenPair> getSource() {
+        return source;
+    }
+
+    public final void setSource(ObjectSource<TokenPair> source) {
+        Checks.checkNotNull("source", source);
+        this.source = source;
+    }
+
+    public final ObjectSink<Weighted<TokenPair>> getEventSink() {
+        return eventSink;
+    }
+
+    public final void setEventSink(ObjectSink<Weighted<TokenPair>> eventSink) {
+        Checks.checkNotNull("eventSink", eventSink);
+        this.eventSink = eventSink;
+    }
+
+    public final ObjectSink<Weighted<Token>> getEntrySink() {
+        return entrySink;
+    }
+
+    public final void setEntrySink(ObjectSink<Weighted<Token>> entrySink) {
+        Checks.checkNotNull("entrySink", entrySink);
+        this.entrySink = entrySink;
+    }
+
+    public final ObjectSink<Weighted<Token>> getFeatureSink() {
+        return featureSink;
+    }
+
+    public final void setFeatureSink(ObjectSink<Weighted<Token>> featureSink) {
+        Checks.checkNotNull("featureSink", featureSink);
+        this.featureSink = featureSink;
+    }
+
+    public final Comparator<Weighted<TokenPair>> getEventComparator() {
+        return eventComparator;
+    }
+
+    public final void setEventComparator(Comparator<Weighted<TokenPair>> eventComparator) {
+        Checks.checkNotNull("eventComparator", eventComparator);
+        this.eventComparator = eventComparator;
+    }
+
+    public final Comparator<Weighted<Token>> getEntryComparator() {
+        return entryComparator;
+    }
+
+    public final void setEntryComparator(Comparator<Weighted<Token>> entryComparator) {
+        Checks.checkNotNull("entryComparator", entryComparator);
+        this.entryComparator = entryComparator;
+    }
+
+    public final Comparator<Weighted<Token>> getFeatureComparator() {
+        return featureComparator;
+    }
+
+    public final void setFeatureComparator(Comparator<Weighted<Token>> featureComparator) {
+        Checks.checkNotNull("featureComparator", featureComparator);
+        this.featureComparator = featureComparator;
+    }
+
+    public final boolean isEventIndexOrder() {
+        return eventIndexOrder;
+    }
+
+    public final void setEventIndexOrder(boolean eventIndexOrder) {
+        this.eventIndexOrder = eventIndexOrder;
+    }
+
+    public final int getNumThreads() {
+        return numThreads;
+    }
+
+    public final void setNumThreads(int numThreads) {
+        Checks.checkRangeIncl("numThreads", numThreads, 1, Integer.MAX_VALUE);
+        this.numThreads = numThreads;
+    }
+
+    public final int getBatchSize() {
+        return batchSize;
+    }
+
+    public final void setBatchSize(int batchSize) {
+        Checks.checkRangeIncl("batchSize", batchSize, 1, Integer.MAX_VALUE);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param entryId       id of the entry
+     * @param numPartitions number of partitions
+     * @return the partition that counts the entry
+     */
+    static int partitionOf(int entryId, int numPartitions) {
+        // Enumerated ids are dense, so mix the bits before taking the
+        // remainder, lest some stride of ids all land in one partition.
+        int h = entryId * 0x9E3779B9;
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % numPartitions;
+    }
+
+    @Override
+    protected void initialiseTask() throws Exception {
+        Checks.checkNotNull("source", source);
+        Checks.checkNotNull("eventSink", eventSink);
+        Checks.checkNotNull("entrySink", entrySink);
+        Checks.checkNotNull("featureSink", featureSink);
+    }
+
+    @Override
+    protected void runTask() throws Exception {
+        progress.setState(State.RUNNING);
+
+        final int numPartitions = getNumThreads();
+        final Partition[] partitions = new Partition[numPartitions];
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>(numPartitions);
+        final ExecutorService executor = Executors.newFixedThreadPool(numPartitions);
+        try {
+            for (int p = 0; p < numPartitions; p++) {
+                partitions[p] = new Partition();
+                futures.add(executor.submit(partitions[p]));
+            }
+
+            // Features aren't partitioned, so they are counted here as the
+            // instances are read.
+            final Int2IntOpenHashMap featureFreq = new Int2IntOpenHashMap(
+                    Hash.DEFAULT_INITIAL_SIZE, Hash.FAST_LOAD_FACTOR);
+            featureFreq.defaultReturnValue(0);
+
+            final long[][] batches = new long[numPartitions][batchSize];
+            final int[] batchSizes = new int[numPartitions];
+            long instanceCount = 0;
+            while (getSource().hasNext()) {
+                final TokenPair instance = getSource().read();
+                featureFreq.add(instance.id2(), 1);
+
+                final int p = partitionOf(instance.id1(), numPartitions);
+                batches[p][batchSizes[p]++] = CountTask.packEvent(instance.id1(), instance.id2());
+                if (batchSizes[p] == batchSize) {
+                    dispatch(partitions[p], futures.get(p), batches[p]);
+                    batches[p] = new long[batchSize];
+                    batchSizes[p] = 0;
+                }
+
+                ++instanceCount;
+                if (instanceCount % 1000000 == 0) {
+                    progress.setMessage(MessageFormat.format(
+                            "Read {0} instances", instanceCount));
+                }
+            }
+            for (int p = 0; p < numPartitions; p++) {
+                if (batchSizes[p] > 0) {
+                    final long[] last = new long[batchSizes[p]];
+                    System.arraycopy(batches[p], 0, last, 0, batchSizes[p]);
+                    dispatch(partitions[p], futures.get(p), last);
+                }
+                dispatch(partitions[p], futures.get(p), END_OF_INPUT);
+            }
+            for (Future<Void> future : futures)
+                future.get();
+
+            if (LOG.isInfoEnabled()) {
+                long nEntries = 0;
+                long nEvents = 0;
+                for (Partition partition : partitions) {
+                    nEntries += partition.entryFreq.size();
+                    nEvents += partition.events.length;
+                }
+                LOG.info(MessageFormat.format(
+                        "Counted {0} instances: {1} entries, {2} features, {3} events.",
+                        instanceCount, nEntries, featureFreq.size(), nEvents));
+            }
+
+            progress.setMessage("Writing entries.");
+            final List<Weighted<Token>> entries = new ArrayList<Weighted<Token>>();
+            for (Partition partition : partitions) {
+                addWeightedTokens(partition.entryFreq, entries);
+                partition.entryFreq = null;
+            }
+            Collections.sort(entries, getEntryComparator());
+            ObjectIO.copy(entries, getEntrySink());
+            entries.clear();
+            if (getEntrySink() instanceof Flushable)
+                ((Flushable) getEntrySink()).flush();
+
+            progress.setMessage("Writing features.");
+            final List<Weighted<Token>> features = new ArrayList<Weighted<Token>>(featureFreq.size());
+            addWeightedTokens(featureFreq, features);
+            Collections.sort(features, getFeatureComparator());
+            ObjectIO.copy(features, getFeatureSink());
+            features.clear();
+            if (getFeatureSink() instanceof Flushable)
+                ((Flushable) getFeatureSink()).flush();
+
+            progress.setMessage("Writing events.");
+            mergeEvents(partitions);
+            if (getEventSink() instanceof Flushable)
+                ((Flushable) getEventSink()).flush();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        progress.startAdjusting();
+        progress.setProgressPercent(100);
+        progress.setState(State.COMPLETED);
+        progress.endAdjusting();
+    }
+
+    /**
+     * Hand a batch to a partition, waiting while its queue is full. If the
+     * partition has failed in the meantime its exception is thrown here,
+     * rather than waiting forever.
+     */
+    private static void dispatch(Partition partition, Future<Void> future, long[] batch)
+            throws InterruptedException, ExecutionException {
+        while (!partition.queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            if (future.isDone()) {
+                future.get();
+                throw new IllegalStateException("Partition stopped before the end of the input.");
+            }
+        }
+    }
+
+    /**
+     * Merge the sorted events of every partition into the event sink.
+     */
+    private void mergeEvents(Partition[] partitions) throws IOException {
+        final PriorityQueue<Partition> heads = new PriorityQueue<Partition>(
+                partitions.length, new Comparator<Partition>() {
+
+            @Override
+            public int compare(Partition a, Partition b) {
+                return compareEvents(a.head(), a.eventFreq, b.head(), b.eventFreq);
+            }
+
+        });
+        for (Partition partition : partitions) {
+            if (partition.events.length > 0)
+                heads.add(partition);
+        }
+        while (!heads.isEmpty()) {
+            final Partition partition = heads.poll();
+            getEventSink().write(toWeighted(partition.head(), partition.eventFreq));
+            if (++partition.next < partition.events.length)
+                heads.add(partition);
+        }
+    }
+
+    private int compareEvents(long a, Long2IntOpenHashMap freqA,
+                              long b, Long2IntOpenHashMap freqB) {
+        return isEventIndexOrder()
+                ? (a < b ? -1 : a > b ? 1 : 0)
+                : getEventComparator().compare(toWeighted(a, freqA), toWeighted(b, freqB));
+    }
+
+    private static Weighted<TokenPair> toWeighted(long event, Long2IntOpenHashMap eventFreq) {
+        return new Weighted<TokenPair>(new TokenPair(
+                CountTask.unpackEntry(event), CountTask.unpackFeature(event)),
+                eventFreq.get(event));
+    }
+
+    private static void addWeightedTokens(Int2IntMap map, List<Weighted<Token>> out) {
+        for (Int2IntMap.Entry e : map.int2IntEntrySet()) {
+            out.add(new Weighted<Token>(new Token(e.getIntKey()), e.getIntValue()));
+        }
+    }
+
+    /**
+     * Counts the entries and events of one partition of the input, then sorts
+     * its events.
+     */
+    private final class Partition implements Callable<Void> {
+
+        private final BlockingQueue<long[]> queue =
+                new ArrayBlockingQueue<long[]>(QUEUED_BATCHES);
+
+        private final Long2IntOpenHashMap eventFreq = new Long2IntOpenHashMap(
+                Hash.DEFAULT_INITIAL_SIZE, Hash.FAST_LOAD_FACTOR);
+
+        private Int2IntOpenHashMap entryFreq = new Int2IntOpenHashMap(
+                Hash.DEFAULT_INITIAL_SIZE, Hash.FAST_LOAD_FACTOR);
+
+        /**
+         * Sorted event keys, once the input is exhausted.
+         */
+        private long[] events = null;
+
+        /**
+         * Position of the next event to be merged.
+         */
+        private int next = 0;
+
+        Partition() {
+            eventFreq.defaultReturnValue(0);
+            entryFreq.defaultReturnValue(0);
+        }
+
+        long head() {
+            return events[next];
+        }
+
+        @Override
+        public Void call() throws Exception {
+            long[] batch;
+            while ((batch = queue.take()) != END_OF_INPUT) {
+                for (long event : batch) {
+                    eventFreq.add(event, 1);
+                    entryFreq.add(CountTask.unpackEntry(event), 1);
+                }
+            }
+            events = eventFreq.keySet().toLongArray();
+            if (isEventIndexOrder()) {
+                LongArrays.radixSort(events);
+            } else {
+                LongArrays.quickSort(events, new AbstractLongComparator() {
+
+                    @Override
+                    public int compare(long a, long b) {
+                        return compareEvents(a, eventFreq, b, eventFreq);
+                    }
+
+                });
+            }
+            return null;
+        }
+    }
+
+    @Override
+    protected void finaliseTask() throws Exception {
+    }
+
+    @Override
+    public String getName() {
+        return "parallel-count";
+    }
+
+    @Override
+    public void removeProgressListener(ProgressListener progressListener) {
+        progress.removeProgressListener(progressListener);
+    }
+
+    @Override
+    public boolean isProgressPercentageSupported() {
+        return progress.isProgressPercentageSupported();
+    }
+
+    @Override
+    public String getProgressReport() {
+        return progress.getProgressReport();
+    }
+
+    @Override
+    public int getProgressPercent() {
+        return progress.getProgressPercent();
+    }
+
+    @Override
+    public ProgressListener[] getProgressListeners() {
+        return progress.getProgressListeners();
+    }
+
+    @Override
+    public void addProgressListener(ProgressListener progressListener) {
+        progress.addProgressListener(progressListener);
+    }
+
+    @Override
+    public State getState() {
+        return progress.getState();
+    }
+
+    @Override
+    protected Objects.ToStringHelper toStringHelper() {
+        return super.toStringHelper().add("source", getSource())
+                .add("entriesSink", getEntrySink())
+                .add("featuresSink", getFeatureSink())
+                .add("eventsSink", getEventSink())
+                .add("entriesComparator", getEntryComparator())
+                .add("featuresComparator", getFeatureComparator())
+                .add("eventsComparator", getEventComparator())
+                .add("eventIndexOrder", isEventIndexOrder())
+                .add("threads", getNumThreads())
+                .add("batchSize", getBatchSize());
+    }
+
+}
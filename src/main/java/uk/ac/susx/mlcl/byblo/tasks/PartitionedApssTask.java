@@ -0,0 +1,462 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.base.Objects.ToStringHelper;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairBuffer;
+import uk.ac.susx.mlcl.byblo.measures.DecomposableProximity;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+
+/**
+ * An all-pairs similarity search implementation that partitions the feature
+ * space, rather than the vectors. The features are divided into contiguous
+ * ranges of ids, balanced by the number of postings in each, and every range
+ * is handled by a separate thread. For each block of query vectors from
+ * source B, every partition accumulates the shared component of the measure
+ * over its own features only, for every candidate in source A. The partial
+ * sums are then merged for each pair, and combined with the pre-calculated
+ * left and right components.
+ *
+ * This suits corpora with very wide feature vocabularies, where each query
+ * touches many long posting lists: the work for a single query is spread
+ * across cores, and source A is indexed only once rather than once per chunk.
+ * Because the shared component must be the sum of independent per-feature
+ * terms, it only works with measures that implement
+ * {@link DecomposableProximity}.
+ *
+ * The whole of source A is indexed in memory, with no regard to any memory
+ * budget. When that is too large, run it as the inner algorithm of a
+ * {@link ThreadedApssTask}, which chunks the sources; the threaded task then
+ * provides the parallelism, so each chunk pair uses a single partition.
+ *
+ * The partial sums of each pair are added in feature range order, so the
+ * results are the same from run to run, but may differ in the last bits from
+ * those of algorithms that sum all the terms in a single pass.
+ *
+ * @param <S>
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class PartitionedApssTask<S> extends NaiveApssTask<S> {
+
+    private static final Log LOG = LogFactory.getLog(PartitionedApssTask.class);
+
+    public static final int DEFAULT_NUM_PARTITIONS =
+            Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Number of query vectors from source B that are handed to the partitions
+     * at a time. Larger blocks reduce the synchronisation between threads, at
+     * the cost of holding more partial sums in memory.
+     */
+    public static final int QUERY_BLOCK_SIZE = 1024;
+
+    private int numPartitions = DEFAULT_NUM_PARTITIONS;
+
+    private InvertedIndex index = null;
+
+    private DecomposableProximity decomposable = null;
+
+    private Partition[] partitions = null;
+
+    private ExecutorService executor = null;
+
+    /**
+     * Merged shared component for each vector ordinal in the index. Only
+     * entries for the current query's candidates are meaningful.
+     */
+    private double[] accumulator = null;
+
+    /**
+     * Ordinals of the candidates found for the current query.
+     */
+    private CandidateSet candidates = null;
+
+    public PartitionedApssTask() {
+    }
+
+    public int getNumPartitions() {
+        return numPartitions;
+    }
+
+    public void setNumPartitions(int numPartitions) {
+        if (numPartitions < 1)
+            throw new IllegalArgumentException("numPartitions < 1");
+        this.numPartitions = numPartitions;
+    }
+
+    @Override
+    protected void initialiseTask() throws Exception {
+        super.initialiseTask();
+        if (!(getMeasure() instanceof DecomposableProximity))
+            throw new IllegalStateException(
+                    "Partitioned all-pairs requires a decomposable measure, "
+                    + "but found " + getMeasure());
+        decomposable = (DecomposableProximity) getMeasure();
+
+        if (index == null) {
+            index = buildIndex();
+        }
+        accumulator = new double[index.size()];
+        candidates = new CandidateSet(index.size());
+
+        partitions = createPartitions();
+        if (partitions.length > 1) {
+            executor = new ThreadPoolExecutor(
+                    partitions.length, partitions.length,
+                    0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+        }
+    }
+
+    @Override
+    protected void runTask() throws Exception {
+
+        progress.startAdjusting();
+        progress.setState(State.RUNNING);
+        progress.setMessage("Running partitioned all-pairs.");
+        progress.setProgressPercent(0);
+        progress.endAdjusting();
+
+        final S startB = getSourceB().position();
+        final WeightedTokenPairBuffer pairs = new WeightedTokenPairBuffer();
+        final List<Indexed<SparseDoubleVector>> block =
+                new ArrayList<Indexed<SparseDoubleVector>>(QUERY_BLOCK_SIZE);
+        final List<Future<Partition>> futures =
+                new ArrayList<Future<Partition>>(partitions.length);
+
+        while (getSourceB().hasNext()) {
+            block.clear();
+            while (block.size() < QUERY_BLOCK_SIZE && getSourceB().hasNext()) {
+                final Indexed<SparseDoubleVector> b = getSourceB().read();
+                if (getProcessRecord().apply(b))
+                    block.add(b);
+            }
+            if (block.isEmpty())
+                continue;
+
+            // Calculate the partial sums of every partition
+            for (Partition partition : partitions)
+                partition.setBlock(block);
+            if (executor == null) {
+                partitions[0].call();
+            } else {
+                futures.clear();
+                for (Partition partition : partitions)
+                    futures.add(executor.submit(partition));
+                for (Future<Partition> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException ex) {
+                        if (ex.getCause() instanceof Exception)
+                            throw (Exception) ex.getCause();
+                        throw ex;
+                    }
+                }
+            }
+
+            for (int q = 0; q < block.size(); q++) {
+                final Indexed<SparseDoubleVector> b = block.get(q);
+                final int nCandidates = merge(q);
+                long queryCandidates = 0;
+                long queryProductions = 0;
+
+                for (int c = 0; c < nCandidates; c++) {
+                    final Indexed<SparseDoubleVector> a = index.get(candidates.get(c));
+                    if (!getProcessRecord().apply(a))
+                        continue;
+                    ++queryCandidates;
+
+                    final double sim = sim(a, b, accumulator[candidates.get(c)]);
+                    Weighted<TokenPair> pair = new Weighted<TokenPair>(
+                            new TokenPair(b.key(), a.key()), sim);
+                    if (getProducatePair().apply(pair)) {
+                        pairs.add(pair);
+                        ++queryProductions;
+
+                        if (pairs.size() > PAIR_OUTPUT_BUFFER_SIZE) {
+                            writeOutPairs(pairs);
+                        }
+                    }
+                }
+                getStats().recordQueryCandidates(queryCandidates);
+                getStats().addProductionCount(queryProductions);
+            }
+        }
+
+        writeOutPairs(pairs);
+
+        getSourceB().position(startB);
+
+        progress.startAdjusting();
+        progress.setState(State.COMPLETED);
+        progress.setProgressPercent(100);
+        progress.endAdjusting();
+    }
+
+    @Override
+    protected void finaliseTask() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        super.finaliseTask();
+        partitions = null;
+        accumulator = null;
+        candidates = null;
+    }
+
+    /**
+     * Divide the feature slots of the index into contiguous ranges, such that
+     * each range holds roughly the same number of postings.
+     */
+    private Partition[] createPartitions() {
+        final int nFeatures = index.featureCount();
+        final int n = Math.max(1, Math.min(numPartitions, nFeatures));
+        final Partition[] result = new Partition[n];
+        int start = 0;
+        for (int k = 0; k < n; k++) {
+            int end;
+            if (k == n - 1) {
+                end = nFeatures;
+            } else {
+                // Find the first feature at which the cumulative postings
+                // reach this partition's share
+                final long target = (long) index.postingsCount() * (k + 1) / n;
+                int low = start;
+                int high = nFeatures;
+                while (low < high) {
+                    final int mid = (low + high) >>> 1;
+                    if (index.postingsStart(mid) < target)
+                        low = mid + 1;
+                    else
+                        high = mid;
+                }
+                end = low;
+            }
+            result[k] = new Partition(index, decomposable, start, end);
+            start = end;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Feature partitions: " + Arrays.toString(result));
+        }
+        return result;
+    }
+
+    /**
+     * Merge the partial sums of every partition for the given query, in
+     * partition order.
+     *
+     * @param q offset of the query in the current block
+     * @return number of candidates found
+     */
+    private int merge(int q) {
+        candidates.reset();
+
+        for (Partition partition : partitions) {
+            final int end = partition.queryEnds[q];
+            for (int p = q == 0 ? 0 : partition.queryEnds[q - 1]; p < end; p++) {
+                final int ordinal = partition.ordinals[p];
+                if (candidates.add(ordinal)) {
+                    accumulator[ordinal] = partition.partials[p];
+                } else {
+                    accumulator[ordinal] += partition.partials[p];
+                }
+            }
+        }
+        return candidates.size();
+    }
+
+    protected InvertedIndex buildIndex()
+            throws Exception {
+        SeekableObjectSource<? extends Indexed<SparseDoubleVector>, S> src = getSourceA();
+        final List<Indexed<SparseDoubleVector>> vectors =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        final S startA = src.position();
+        while (src.hasNext()) {
+            vectors.add(src.read());
+        }
+        src.position(startA);
+
+        final InvertedIndex result = InvertedIndex.build(vectors);
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Built index: " + result);
+        }
+        return result;
+    }
+
+    @Override
+    protected ToStringHelper toStringHelper() {
+        return super.toStringHelper().
+                add("partitions", getNumPartitions());
+    }
+
+    @Override
+    public String getName() {
+        return "partitioned-allpairs";
+    }
+
+    /**
+     * The calculation of partial shared components over one range of
+     * feature ids, for every query in a block. Each partition has its own
+     * accumulator, so partitions can run concurrently.
+     */
+    private static final class Partition implements Callable<Partition> {
+
+        private final InvertedIndex index;
+
+        private final DecomposableProximity decomposable;
+
+        /**
+         * First feature slot in the range.
+         */
+        private final int start;
+
+        /**
+         * One past the last feature slot in the range.
+         */
+        private final int end;
+
+        private final double[] sums;
+
+        private final CandidateSet found;
+
+        private List<Indexed<SparseDoubleVector>> block = null;
+
+        /**
+         * Candidate ordinals and partial sums for every query in the block,
+         * concatenated. Those of query q are held between queryEnds[q - 1]
+         * (or zero) and queryEnds[q].
+         */
+        int[] ordinals = new int[0];
+
+        double[] partials = new double[0];
+
+        final int[] queryEnds = new int[QUERY_BLOCK_SIZE];
+
+        Partition(InvertedIndex index, DecomposableProximity decomposable,
+                  int start, int end) {
+            this.index = index;
+            this.decomposable = decomposable;
+            this.start = start;
+            this.end = end;
+            sums = new double[index.size()];
+            found = new CandidateSet(index.size());
+        }
+
+        void setBlock(List<Indexed<SparseDoubleVector>> block) {
+            this.block = block;
+        }
+
+        @Override
+        public Partition call() {
+            int size = 0;
+            for (int q = 0; q < block.size(); q++) {
+                final int nFound = accumulate(block.get(q).value());
+                if (size + nFound > ordinals.length) {
+                    final int newLength = Math.max(size + nFound,
+                                                   ordinals.length + (ordinals.length >> 1));
+                    ordinals = Arrays.copyOf(ordinals, newLength);
+                    partials = Arrays.copyOf(partials, newLength);
+                }
+                for (int c = 0; c < nFound; c++) {
+                    ordinals[size] = found.get(c);
+                    partials[size] = sums[found.get(c)];
+                    ++size;
+                }
+                queryEnds[q] = size;
+            }
+            return this;
+        }
+
+        /**
+         * Accumulate the shared component over the features of the query
+         * that fall in this partition's range.
+         *
+         * @return number of candidates found
+         */
+        private int accumulate(SparseDoubleVector vec) {
+            found.reset();
+
+            if (start == end)
+                return 0;
+            int j = Arrays.binarySearch(vec.keys, 0, vec.size,
+                                        index.featureId(start));
+            if (j < 0)
+                j = -j - 1;
+
+            int slot = start;
+            for (; j < vec.size; j++) {
+                slot = index.featureSlot(vec.keys[j], slot);
+                if (slot < 0) {
+                    slot = -slot - 1;
+                    if (slot >= end)
+                        break;
+                    continue;
+                }
+                if (slot >= end)
+                    break;
+                final int pEnd = index.postingsEnd(slot);
+                for (int p = index.postingsStart(slot); p < pEnd; p++) {
+                    final int ordinal = index.posting(p);
+                    if (found.add(ordinal)) {
+                        sums[ordinal] = 0;
+                    }
+                    sums[ordinal] += decomposable.sharedComponent(
+                            index.get(ordinal).value(), index.position(p),
+                            vec, j);
+                }
+            }
+            return found.size();
+        }
+
+        @Override
+        public String toString() {
+            return "[" + start + ", " + end + ")";
+        }
+    }
+
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairBuffer;
+import uk.ac.susx.mlcl.byblo.measures.AbstractProximity;
+import uk.ac.susx.mlcl.byblo.measures.Cosine;
+import uk.ac.susx.mlcl.byblo.measures.Dice;
+import uk.ac.susx.mlcl.byblo.measures.Jaccard;
+import uk.ac.susx.mlcl.byblo.measures.PreparedVector;
+import uk.ac.susx.mlcl.byblo.measures.Proximity;
+import uk.ac.susx.mlcl.byblo.measures.Tanimoto;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+
+/**
+ * An all-pairs similarity search implementation that uses the minimum
+ * similarity threshold to reduce the number of candidate pairs, in the style
+ * of the AllPairs algorithm (Bayardo et al., 2007.)
+ *
+ * Only a prefix of each vector in source A is indexed: the prefix is chosen
+ * such that any vector which does not share a feature with it can not reach
+ * the threshold. The remaining candidates are pruned by a bound on their
+ * size before the similarity is calculated. Features are ordered by
+ * ascending frequency within source A, so the indexed prefixes contain the
+ * rarest features and the posting lists stay short.
+ *
+ * The bounds are only sound for some measures: {@link Jaccard},
+ * {@link Dice}, {@link Cosine} and {@link Tanimoto}. For other measures, or
+ * when no positive minimum similarity is set, the whole of every vector is
+ * indexed and the task behaves like {@link InvertedApssTask}.
+ * {@link uk.ac.susx.mlcl.byblo.measures.Overlap} is not supported because
+ * its value is bounded only by the smaller of the two vectors, so no prefix
+ * can be left out.
+ *
+ * @param <S>
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class PrefixFilteringApssTask<S> extends NaiveApssTask<S> {
+
+    private static final Log LOG = LogFactory.getLog(PrefixFilteringApssTask.class);
+
+    /**
+     * Slack applied to every bound, so that floating point rounding can never
+     * prune a pair whose calculated similarity would reach the threshold.
+     */
+    private static final double EPSILON = 1e-9;
+
+    /**
+     * The kind of bound that is sound for the measure.
+     */
+    private enum Bound {
+
+        /**
+         * No bound; index the whole of every vector.
+         */
+        NONE,
+        /**
+         * Set overlap bound of the Jaccard co-efficient.
+         */
+        JACCARD,
+        /**
+         * Set overlap bound of the Dice co-efficient.
+         */
+        DICE,
+        /**
+         * Suffix norm bound of the cosine.
+         */
+        COSINE
+
+    }
+
+    private Bound bound = Bound.NONE;
+
+    /**
+     * Threshold that the bound is calculated against. This is usually the
+     * minimum similarity, but can be a transformation of it when the measure
+     * is bounded above by another measure.
+     */
+    private double threshold = Double.NEGATIVE_INFINITY;
+
+    /**
+     * The full vectors of source A, indexed by ordinal.
+     */
+    private List<Indexed<SparseDoubleVector>> vectors = null;
+
+    /**
+     * Index of the prefixes of vectors in source A.
+     */
+    private InvertedIndex index = null;
+
+    /**
+     * Ordinals of the candidates found for the current query.
+     */
+    private CandidateSet candidates = null;
+
+    /**
+     * Prepared forms of the indexed vectors, filled in as each vector first
+     * becomes a candidate, or null if the measure can't prepare vectors.
+     */
+    private PreparedVector[] prepared = null;
+
+    public PrefixFilteringApssTask() {
+    }
+
+    @Override
+    protected void initialiseTask() throws Exception {
+        super.initialiseTask();
+        chooseBound();
+        buildIndex();
+        candidates = new CandidateSet(index.size());
+        prepared = getPreparedMeasure() != null
+                   ? new PreparedVector[vectors.size()] : null;
+    }
+
+    @Override
+    protected void runTask()
+            throws IOException {
+
+        progress.startAdjusting();
+        progress.setState(State.RUNNING);
+        progress.setMessage("Running prefix filtering all-pairs.");
+        progress.setProgressPercent(0);
+        progress.endAdjusting();
+
+        final S startB = getSourceB().position();
+        final WeightedTokenPairBuffer pairs = new WeightedTokenPairBuffer();
+
+        while (getSourceB().hasNext()) {
+            Indexed<SparseDoubleVector> b = getSourceB().read();
+            if (!getProcessRecord().apply(b))
+                continue;
+
+            final int nCandidates = findCandidates(b);
+            final PreparedVector preparedB = prepared != null && nCandidates > 0
+                                             ? getPreparedMeasure().prepare(b.value()) : null;
+            long queryCandidates = 0;
+            long queryProductions = 0;
+
+            for (int c = 0; c < nCandidates; c++) {
+                final Indexed<SparseDoubleVector> a = vectors.get(candidates.get(c));
+                if (!getProcessRecord().apply(a))
+                    continue;
+                if (!sizeBoundHolds(a.value(), b.value()))
+                    continue;
+                ++queryCandidates;
+
+                double sim = preparedB != null
+                             ? sim(a, prepared(candidates.get(c)), b, preparedB)
+                             : sim(a, b);
+                Weighted<TokenPair> pair = new Weighted<TokenPair>(
+                        new TokenPair(b.key(), a.key()), sim);
+                if (getProducatePair().apply(pair)) {
+                    pairs.add(pair);
+                    ++queryProductions;
+
+                    if (pairs.size() > PAIR_OUTPUT_BUFFER_SIZE) {
+                        writeOutPairs(pairs);
+                    }
+                }
+            }
+            getStats().recordQueryCandidates(queryCandidates);
+            getStats().addProductionCount(queryProductions);
+        }
+
+        writeOutPairs(pairs);
+
+        getSourceB().position(startB);
+
+        progress.startAdjusting();
+        progress.setState(State.COMPLETED);
+        progress.setProgressPercent(100);
+        progress.endAdjusting();
+    }
+
+    @Override
+    protected void finaliseTask() throws Exception {
+        super.finaliseTask();
+        vectors = null;
+        index = null;
+        candidates = null;
+        prepared = null;
+    }
+
+    /**
+     * @return prepared form of the indexed vector with the given ordinal
+     */
+    private PreparedVector prepared(int ordinal) {
+        if (prepared[ordinal] == null)
+            prepared[ordinal] = getPreparedMeasure().prepare(vectors.get(ordinal).value());
+        return prepared[ordinal];
+    }
+
+    private void chooseBound() {
+        final Proximity measure = getMeasure();
+        final double t = getMinSimilarity();
+
+        // Exact class matches only, because sub-classes may override combine
+        if (!(t > 0)) {
+            bound = Bound.NONE;
+        } else if (measure.getClass() == Jaccard.class) {
+            bound = Bound.JACCARD;
+            threshold = t;
+        } else if (measure.getClass() == Dice.class) {
+            bound = Bound.DICE;
+            threshold = t;
+        } else if (measure.getClass() == Cosine.class) {
+            bound = Bound.COSINE;
+            threshold = t;
+        } else if (measure.getClass() == Tanimoto.class) {
+            // Tanimoto(x,y) >= t implies cosine(x,y) >= 2t/(1+t)
+            bound = Bound.COSINE;
+            threshold = 2 * t / (1 + t);
+        } else {
+            bound = Bound.NONE;
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Prefix filtering bound: " + bound
+                    + " (threshold " + threshold + ")");
+        }
+    }
+
+    /**
+     * Find the ordinals of all indexed vectors whose prefix shares at least
+     * one feature with the given vector. The ordinals are added to the
+     * candidates, in the order they are first encountered.
+     *
+     * @param b query vector
+     * @return number of candidates found
+     */
+    private int findCandidates(Indexed<SparseDoubleVector> b) {
+        candidates.reset();
+
+        final SparseDoubleVector vec = b.value();
+        int slot = 0;
+        for (int i = 0; i < vec.size; i++) {
+            slot = index.featureSlot(vec.keys[i], slot);
+            if (slot < 0) {
+                slot = -slot - 1;
+                continue;
+            }
+            final int end = index.postingsEnd(slot);
+            for (int p = index.postingsStart(slot); p < end; p++) {
+                candidates.add(index.posting(p));
+            }
+        }
+        return candidates.size();
+    }
+
+    /**
+     * Whether the sizes of the given vectors allow their similarity to reach
+     * the threshold.
+     */
+    private boolean sizeBoundHolds(SparseDoubleVector a, SparseDoubleVector b) {
+        switch (bound) {
+            case JACCARD:
+                // J(a,b) <= min(|a|,|b|) / max(|a|,|b|)
+                return Math.min(a.size, b.size)
+                        >= (threshold - EPSILON) * Math.max(a.size, b.size);
+            case DICE:
+                // D(a,b) <= 2 min(|a|,|b|) / (|a| + |b|)
+                return 2d * Math.min(a.size, b.size)
+                        >= (threshold - EPSILON) * (a.size + b.size);
+            default:
+                return true;
+        }
+    }
+
+    private void buildIndex() throws IOException {
+        final SeekableObjectSource<? extends Indexed<SparseDoubleVector>, S> src = getSourceA();
+        vectors = new ArrayList<Indexed<SparseDoubleVector>>();
+        final S startA = src.position();
+        while (src.hasNext()) {
+            vectors.add(src.read());
+        }
+        src.position(startA);
+
+        if (bound == Bound.NONE) {
+            // Without a bound every prefix is the whole vector, so there is
+            // nothing to order or copy.
+            index = InvertedIndex.build(vectors);
+            return;
+        }
+
+        // Frequency of each feature within source A, used as the global
+        // feature ordering.
+        final Int2IntMap featureFreqs = new Int2IntOpenHashMap();
+        for (Indexed<SparseDoubleVector> v : vectors) {
+            final SparseDoubleVector vec = v.value();
+            for (int i = 0; i < vec.size; i++) {
+                featureFreqs.put(vec.keys[i], featureFreqs.get(vec.keys[i]) + 1);
+            }
+        }
+
+        final List<Indexed<SparseDoubleVector>> prefixes =
+                new ArrayList<Indexed<SparseDoubleVector>>(vectors.size());
+        long nFeatures = 0;
+        long nIndexed = 0;
+        for (Indexed<SparseDoubleVector> v : vectors) {
+            final Indexed<SparseDoubleVector> p = prefix(v, featureFreqs);
+            prefixes.add(p);
+            nFeatures += v.value().size;
+            nIndexed += p.value().size;
+        }
+
+        index = InvertedIndex.build(prefixes);
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Indexed " + nIndexed + " of " + nFeatures
+                    + " features in prefixes of " + vectors.size()
+                    + " vectors.");
+        }
+    }
+
+    /**
+     * Produce the prefix of the given vector that must be indexed. Any vector
+     * which shares no feature with the prefix can not reach the threshold.
+     */
+    private Indexed<SparseDoubleVector> prefix(
+            final Indexed<SparseDoubleVector> v,
+            final Int2IntMap featureFreqs) {
+        final SparseDoubleVector vec = v.value();
+        final AbstractProximity measure = bound == Bound.NONE
+                                          ? null : (AbstractProximity) getMeasure();
+
+        // Offsets of the features that can contribute to the similarity, in
+        // ascending order of frequency, with ties broken by feature id.
+        int[] order = new int[vec.size];
+        int n = 0;
+        for (int i = 0; i < vec.size; i++) {
+            if (measure == null || !measure.isFiltered(vec.keys[i]))
+                order[n++] = i;
+        }
+        order = Arrays.copyOf(order, n);
+        IntArrays.quickSort(order, new AbstractIntComparator() {
+
+            @Override
+            public int compare(int i, int j) {
+                final int fi = featureFreqs.get(vec.keys[i]);
+                final int fj = featureFreqs.get(vec.keys[j]);
+                return fi < fj ? -1 : fi > fj ? 1
+                       : vec.keys[i] < vec.keys[j] ? -1
+                       : vec.keys[i] > vec.keys[j] ? 1 : 0;
+            }
+
+        });
+
+        int prefixLength;
+        if (bound != Bound.NONE && threshold > 1) {
+            // None of the supported measures can exceed 1
+            prefixLength = 0;
+        } else {
+            switch (bound) {
+                case JACCARD: {
+                    // J(x,y) >= t implies |x & y| >= t|x|
+                    final int minOverlap = (int) Math.ceil(
+                            threshold * vec.size - EPSILON);
+                    prefixLength = n - minOverlap + 1;
+                    break;
+                }
+                case DICE: {
+                    // D(x,y) >= t implies |x & y| >= t|x| / (2 - t)
+                    final int minOverlap = (int) Math.ceil(
+                            threshold * vec.size / (2 - threshold) - EPSILON);
+                    prefixLength = n - minOverlap + 1;
+                    break;
+                }
+                case COSINE: {
+                    // By Cauchy-Schwarz the unindexed suffix can contribute
+                    // at most its own norm to the cosine, so it is left out
+                    // for as long as that stays below the threshold.
+                    double normSquared = 0;
+                    for (int i = 0; i < vec.size; i++)
+                        normSquared += vec.values[i] * vec.values[i];
+                    final double limit = threshold * threshold
+                            * normSquared * (1 - EPSILON);
+                    double suffixSquared = 0;
+                    prefixLength = n;
+                    while (prefixLength > 0) {
+                        final double w = vec.values[order[prefixLength - 1]];
+                        if (suffixSquared + w * w >= limit)
+                            break;
+                        suffixSquared += w * w;
+                        --prefixLength;
+                    }
+                    break;
+                }
+                default:
+                    prefixLength = n;
+            }
+        }
+        prefixLength = Math.max(0, Math.min(n, prefixLength));
+
+        final int[] offsets = Arrays.copyOf(order, prefixLength);
+        Arrays.sort(offsets);
+        final int[] keys = new int[prefixLength];
+        final double[] values = new double[prefixLength];
+        for (int i = 0; i < prefixLength; i++) {
+            keys[i] = vec.keys[offsets[i]];
+            values[i] = vec.values[offsets[i]];
+        }
+        return new Indexed<SparseDoubleVector>(v.key(), new SparseDoubleVector(
+                keys, values, vec.cardinality, prefixLength));
+    }
+
+    @Override
+    public String getName() {
+        return "prefix-filtering-allpairs";
+    }
+
+}
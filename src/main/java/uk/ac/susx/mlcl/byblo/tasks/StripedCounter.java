@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can update at once without contending for a
+ * single memory location. Updates are spread over a number of cells (stripes),
+ * chosen by thread, each on its own cache line; the cells are summed when the
+ * counter is read. Reads are therefore more expensive than updates, which is
+ * the right trade-off for statistics that are updated in inner loops and read
+ * only for reporting.
+ * <p/>
+ * Reads are not atomic with respect to concurrent updates, so a value read
+ * while the counter is being updated may be slightly stale.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class StripedCounter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of longs between adjacent cells, so each occupies its own 64
+     * byte cache line.
+     */
+    static final int PADDING = 8;
+
+    /**
+     * Number of stripes; a power of two at least twice the number of
+     * processors, so concurrent threads rarely share a stripe.
+     */
+    static final int STRIPES = stripeCount();
+
+    private transient AtomicLongArray cells;
+
+    public StripedCounter(long initialValue) {
+        cells = new AtomicLongArray(STRIPES * PADDING);
+        cells.set(0, initialValue);
+    }
+
+    public StripedCounter() {
+        this(0);
+    }
+
+    public void add(long delta) {
+        cells.addAndGet(stripe() * PADDING, delta);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++)
+            sum += cells.get(i * PADDING);
+        return sum;
+    }
+
+    /**
+     * @return index of the stripe the current thread should update
+     */
+    static int stripe() {
+        // Thread ids are allocated sequentially, so the low bits spread well
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    private static int stripeCount() {
+        final int target = Math.min(64, 2 * Runtime.getRuntime().availableProcessors());
+        int n = 1;
+        while (n < target)
+            n <<= 1;
+        return n;
+    }
+
+    private void writeObject(final ObjectOutputStream out)
+            throws IOException {
+        out.defaultWriteObject();
+        out.writeLong(get());
+    }
+
+    private void readObject(final ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        cells = new AtomicLongArray(STRIPES * PADDING);
+        cells.set(0, in.readLong());
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(get());
+    }
+}
@@ -33,8 +33,12 @@ package uk.ac.susx.mlcl.byblo.tasks;
 import com.google.common.base.Objects.ToStringHelper;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import uk.ac.susx.mlcl.byblo.io.ShardManifest;
 import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.VectorCardinalityStats;
 import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.measures.PreparedProximity;
 import uk.ac.susx.mlcl.lib.MiscUtil;
 import uk.ac.susx.mlcl.lib.collect.Indexed;
 import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
@@ -44,18 +48,40 @@ import uk.ac.susx.mlcl.lib.io.ObjectSink;
 import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
 import uk.ac.susx.mlcl.lib.tasks.Task;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.MessageFormat;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * An all pairs similarity search implementation that parallelises another
  * implementation. This is achieved by breaking the work down into chunks that
  * are run concurrently.
+ * <p/>
+ * Chunk pairs are not uniformly expensive; with Zipfian vector cardinalities a
+ * few pairs can take much longer than the rest. To keep workers busy, a chunk
+ * pair that is started while other workers are idle splits itself in two,
+ * balanced by non-zero count rather than vector count, and forks one half back
+ * onto the pool. Splitting recurses until either the pool has work queued, or
+ * the estimated work (the product of the non-zero counts) drops below
+ * {@link #getMinSplitWork()}.
+ * <p/>
+ * The chunk-pair grid can also be divided between several independent
+ * processes with {@link #setShard(int, int)}. Shard i of N computes every
+ * chunk pair whose position in the schedule is i modulo N, and records the
+ * pairs it covered in a {@link ShardManifest}. Every shard must divide the
+ * vectors the same way, so the chunk size should be fixed with
+ * {@link #setMaxChunkSize(int)} rather than estimated from free memory.
+ * <p/>
+ * When a checkpoint directory is set, each chunk pair is written to its own
+ * part file, and recorded in a {@link ChunkPairJournal} once it is complete.
+ * A run that is resumed from the journal skips the chunk pairs it lists. The
+ * part files are copied to the sink, in schedule order, once every chunk pair
+ * is done.
  *
  * @param <S> Type of "tell" object used to seek into the data source.
  * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
@@ -70,12 +96,84 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
 
     private int nThreads = DEFAULT_NUM_THREADS;
 
-    private ExecutorService executor = null;
+    private ThreadPoolExecutor executor = null;
 
-    private Queue<Future<? extends Task>> futureQueue = new ArrayDeque<Future<? extends Task>>();
+    private Queue<Future<ChunkPairWork>> futureQueue = new ConcurrentLinkedQueue<Future<ChunkPairWork>>();
 
     private Semaphore throttle;
 
+    /**
+     * Whether only the upper triangle of the chunk-pair grid should be
+     * scheduled, when the measure is symmetric. This is only valid when source
+     * A and source B produce the same vectors, in the same order. Pairs from
+     * off-diagonal chunks are reflected so the sink still receives both (a,b)
+     * and (b,a).
+     */
+    private boolean triangularScheduling = false;
+
+    /**
+     * Upper bound on the number of vectors per chunk, or 0 if the chunk size
+     * should be estimated from available memory.
+     */
+    private int maxChunkSize = 0;
+
+    private static final long DEFAULT_MIN_SPLIT_WORK = 1L << 28;
+
+    /**
+     * Chunk pairs whose estimated work (the product of the non-zero counts of
+     * each side) is less than this are never split. The product badly
+     * over-estimates the real cost of sparse pairs, so the default is set high
+     * enough that pairs taking well under a second are left whole, and their
+     * output keeps the order a single thread would produce.
+     */
+    private long minSplitWork = DEFAULT_MIN_SPLIT_WORK;
+
+    /**
+     * Number of bytes of heap the chunks may occupy, or 0 if the budget should
+     * be taken from the free memory available when the task starts.
+     */
+    private long memoryBudget = 0;
+
+    /**
+     * Cardinality statistics of the input vectors, used to size chunks, or
+     * null if they are not known.
+     */
+    private VectorCardinalityStats vectorStats = null;
+
+    /**
+     * Parameters passed on to the inner tasks when the inner algorithm is
+     * {@link LshApssTask}.
+     */
+    private int lshBands = LshApssTask.DEFAULT_BANDS;
+
+    private int lshRows = LshApssTask.DEFAULT_ROWS;
+
+    private long lshSeed = LshApssTask.DEFAULT_SEED;
+
+    /**
+     * Index of the shard of the chunk-pair grid computed by this task, and the
+     * number of shards the grid is divided into.
+     */
+    private int shardIndex = 0;
+
+    private int shardCount = 1;
+
+    private ShardManifest shardManifest = null;
+
+    /**
+     * Directory in which completed chunk pairs are journalled, or null if the
+     * run should not be checkpointed.
+     */
+    private File checkpointDirectory = null;
+
+    /**
+     * Whether the chunk pairs completed by a previous run, according to the
+     * journal in the checkpoint directory, should be skipped.
+     */
+    private boolean resume = false;
+
+    private ChunkPairJournal journal = null;
+
     public ThreadedApssTask(
             SeekableObjectSource<Indexed<SparseDoubleVector>, S> A,
             SeekableObjectSource<Indexed<SparseDoubleVector>, S> B,
@@ -101,13 +199,170 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
         this.innerAlgorithm = innerAlgorithm;
     }
 
+    public boolean isTriangularScheduling() {
+        return triangularScheduling;
+    }
+
+    public void setTriangularScheduling(boolean triangularScheduling) {
+        this.triangularScheduling = triangularScheduling;
+    }
+
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    public void setMaxChunkSize(int maxChunkSize) {
+        if (maxChunkSize < 0) {
+            throw new IllegalArgumentException("maxChunkSize < 0");
+        }
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    public long getMinSplitWork() {
+        return minSplitWork;
+    }
+
+    public void setMinSplitWork(long minSplitWork) {
+        if (minSplitWork < 0) {
+            throw new IllegalArgumentException("minSplitWork < 0");
+        }
+        this.minSplitWork = minSplitWork;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("memoryBudget < 0");
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    public VectorCardinalityStats getVectorStats() {
+        return vectorStats;
+    }
+
+    public void setVectorStats(VectorCardinalityStats vectorStats) {
+        this.vectorStats = vectorStats;
+    }
+
+    public int getLshBands() {
+        return lshBands;
+    }
+
+    public void setLshBands(int lshBands) {
+        if (lshBands < 1) {
+            throw new IllegalArgumentException("lshBands < 1");
+        }
+        this.lshBands = lshBands;
+    }
+
+    public int getLshRows() {
+        return lshRows;
+    }
+
+    public void setLshRows(int lshRows) {
+        if (lshRows < 0 || lshRows > Long.SIZE) {
+            throw new IllegalArgumentException("lshRows not in range [0, 64]");
+        }
+        this.lshRows = lshRows;
+    }
+
+    public long getLshSeed() {
+        return lshSeed;
+    }
+
+    public void setLshSeed(long lshSeed) {
+        this.lshSeed = lshSeed;
+    }
+
+    public int getShardIndex() {
+        return shardIndex;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public void setShard(int shardIndex, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount < 1");
+        }
+        if (shardIndex < 0 || shardIndex >= shardCount) {
+            throw new IllegalArgumentException("shardIndex not in range [0, shardCount)");
+        }
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+    }
+
+    public File getCheckpointDirectory() {
+        return checkpointDirectory;
+    }
+
+    public void setCheckpointDirectory(File checkpointDirectory) {
+        this.checkpointDirectory = checkpointDirectory;
+    }
+
+    public boolean isResume() {
+        return resume;
+    }
+
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Delete the checkpoint of the last run. This should be done once the
+     * output of the run has been safely written, since the run can't be
+     * resumed afterwards.
+     */
+    public void deleteCheckpoint() throws IOException {
+        if (journal != null) {
+            journal.delete();
+            journal = null;
+        }
+    }
+
+    /**
+     * @return the chunk grid and the chunk pairs computed by the last run of
+     *         this task, or null if it has not completed.
+     */
+    public ShardManifest getShardManifest() {
+        return shardManifest;
+    }
+
+    /**
+     * @return number of chunk pair work units completed so far, including
+     *         those that were split off from other units.
+     */
+    public long getCompletedWorkUnits() {
+        return getStats().getChunkPairMillis().getCount();
+    }
+
+    /**
+     * @return total wall-clock time spent by workers running work units.
+     */
+    public long getTotalWorkUnitMillis() {
+        return getStats().getChunkPairMillis().getSum();
+    }
+
+    /**
+     * @return wall-clock time of the slowest work unit.
+     */
+    public long getMaxWorkUnitMillis() {
+        return getStats().getChunkPairMillis().getMax();
+    }
+
     @Override
     protected void initialiseTask() throws Exception {
         super.initialiseTask();
+        shardManifest = null;
         executor = new ThreadPoolExecutor(
                 nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
                 new LinkedBlockingQueue<Runnable>());
-        futureQueue = new ArrayDeque<Future<? extends Task>>();
+        futureQueue = new ConcurrentLinkedQueue<Future<ChunkPairWork>>();
         throttle = new Semaphore(getThrottleSize());
     }
 
@@ -115,7 +370,11 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
 
     int queuedCount = 0;
 
-    int completedCount = 0;
+    /**
+     * Completed chunk pairs; fractional because split work units each
+     * account for their share of the chunk pair they came from.
+     */
+    double completedCount = 0;
 
     @Override
     protected void runTask() throws Exception {
@@ -125,9 +384,40 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
         progress.setMessage("Reading threaded all-pairs.");
         progress.endAdjusting();
 
-        final int maxChunkSize = estimateChunkSize();
-        if (LOG.isInfoEnabled()) {
-            LOG.info("Chunk-size estimated as: " + maxChunkSize + " vectors per work unit.");
+        journal = checkpointDirectory == null
+                ? null : ChunkPairJournal.open(checkpointDirectory, resume);
+
+        // A resumed run must divide the vectors exactly as before, so the chunk
+        // size is taken from the checkpoint rather than estimated again.
+        final int maxChunkSize;
+        if (journal != null && journal.getChunkSize() > 0) {
+            if (getMaxChunkSize() > 0 && getMaxChunkSize() != journal.getChunkSize()) {
+                throw new IllegalStateException("Checkpoint chunk-size "
+                        + journal.getChunkSize() + " differs from requested "
+                        + getMaxChunkSize());
+            }
+            maxChunkSize = journal.getChunkSize();
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Resuming from checkpoint " + checkpointDirectory + " with "
+                        + journal.getCompletedCount() + " completed chunk pairs, and "
+                        + maxChunkSize + " vectors per work unit.");
+            }
+        } else {
+            maxChunkSize = estimateChunkSize();
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Chunk-size estimated as: " + maxChunkSize + " vectors per work unit.");
+            }
+        }
+
+        // When the measure is symmetric the lower triangle of chunk-pair grid
+        // is the mirror image of the upper triangle, so it can be skipped.
+        final boolean triangular = isTriangularScheduling()
+                && getMeasure().isSymmetric();
+        if (triangular && LOG.isInfoEnabled()) {
+            LOG.info("Measure is symmetric; scheduling upper triangle of chunk pairs only.");
+        }
+        if (journal != null) {
+            journal.begin(maxChunkSize, triangular, shardIndex, shardCount);
         }
 
         if (LOG.isTraceEnabled()) {
@@ -142,41 +432,56 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
         SeekableObjectSource<Chunk<Indexed<SparseDoubleVector>>, S> chunkerB =
                 Chunker.newSeekableInstance(getSourceB(), maxChunkSize);
 
+        // Position of each chunk pair in the schedule, which decides the shard
+        // it belongs to.
+        long pairOrdinal = 0;
+        final LongArrayList coveredPairs = new LongArrayList();
+
         int i = 0;
+        S restartPos = chunkerB.position();
         while (chunkerA.hasNext()) {
             if (LOG.isTraceEnabled()) {
                 LOG.trace("Reading chunk A" + i);
             }
-            Chunk<Indexed<SparseDoubleVector>> chunkA = chunkerA.read();
+            final List<Indexed<SparseDoubleVector>> chunkA = readChunk(chunkerA.read());
             i++;
-            chunkA.setName(Integer.toString(i));
 
-            int j = 0;
-            S restartPos = chunkerB.position();
+            // In triangular mode each row starts from the diagonal, so row i
+            // starts at B chunk i
+            int j = triangular ? i - 1 : 0;
+            S nextRestartPos = restartPos;
             while (chunkerB.hasNext()) {
                 if (LOG.isTraceEnabled()) {
                     LOG.trace("Reading chunk B" + j);
                 }
-                Chunk<Indexed<SparseDoubleVector>> chunkB = chunkerB.read();
+                final Chunk<Indexed<SparseDoubleVector>> rawChunkB = chunkerB.read();
                 j++;
-                chunkB.setName(Integer.toString(j));
+                if (triangular && j == i) {
+                    nextRestartPos = chunkerB.position();
+                }
+                if (pairOrdinal++ % shardCount != shardIndex) {
+                    continue;
+                }
+                coveredPairs.add(ShardManifest.pairKey(i - 1, j - 1));
+                if (journal != null && journal.isCompleted(i - 1, j - 1)) {
+                    // Completed by an earlier run; its part file is copied to
+                    // the sink at the end.
+                    ++queuedCount;
+                    ++completedCount;
+                    continue;
+                }
+                final List<Indexed<SparseDoubleVector>> chunkB = readChunk(rawChunkB);
 
                 progress.startAdjusting();
                 progress.setMessage(MessageFormat.format("Queueing chunk pair {0,number} and {1,number}", i, j));
                 updateProgress();
                 progress.endAdjusting();
 
-                @SuppressWarnings("unchecked")
-                NaiveApssTask<Integer> task = innerAlgorithm.newInstance();
-                task.setSourceA(chunkA.clone());
-                task.setSourceB(chunkB);
-                task.setMeasure(getMeasure());
-                task.setProducatePair(getProducatePair());
-                task.setProcessRecord(getProcessRecord());
-                task.setSink(getSink());
-                task.setStats(getStats());
-                task.setProperty("chunkPair", MessageFormat.format("{0,number} and {1,number}", i, j));
-                queueTask(task);
+                queueWork(new ChunkPairWork(
+                        MessageFormat.format("{0,number} and {1,number}", i, j),
+                        chunkA, 0, chunkA.size(), chunkB,
+                        triangular && j != i, 1, true,
+                        journal == null ? null : new CheckpointPart(journal.openPart(i - 1, j - 1))));
                 ++queuedCount;
 
                 // retrieve the results
@@ -184,14 +489,27 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
             }
 
             nChunks = j;
+            restartPos = nextRestartPos;
             chunkerB.position(restartPos);
         }
-        getExecutor().shutdown();
-
+        // Work units may still be forking, so the executor can't be shut down
+        // until every future has been collected.
         clearCompleted(true);
 
+        getExecutor().shutdown();
         getExecutor().awaitTermination(Integer.MAX_VALUE, TimeUnit.DAYS);
 
+        if (journal != null) {
+            progress.setMessage("Copying checkpointed chunk pairs to the sink.");
+            for (long key : coveredPairs) {
+                journal.replay(ShardManifest.pairA(key), ShardManifest.pairB(key), getSink());
+            }
+            journal.close();
+        }
+
+        shardManifest = new ShardManifest(shardIndex, shardCount, maxChunkSize,
+                i, nChunks, triangular, coveredPairs.toLongArray());
+
         progress.startAdjusting();
         progress.setState(State.COMPLETED);
         progress.setProgressPercent(90);
@@ -201,8 +519,17 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
 
     void updateProgress() {
         if (nChunks != 0) {
-            double prog = (completedCount + queuedCount) / (double) (nChunks * nChunks * 2);
-            progress.setProgressPercent((int) (100 * prog));
+            final double nChunkPairs = isTriangularScheduling() && getMeasure().isSymmetric()
+                    ? nChunks * (nChunks + 1) / 2d
+                    : (double) nChunks * nChunks;
+            // Chunk pairs scheduled for this shard: those whose ordinal is
+            // congruent to the shard index
+            final double nShardPairs = Math.floor(
+                    (nChunkPairs - shardIndex + shardCount - 1) / shardCount);
+            if (nShardPairs > 0) {
+                double prog = (completedCount + queuedCount) / (nShardPairs * 2);
+                progress.setProgressPercent((int) (100 * prog));
+            }
         }
     }
 
@@ -210,23 +537,14 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
 
         if (!block) {
 
-            List<Future<? extends Task>> completed = null;
-            for (Future<? extends Task> future : getFutureQueue()) {
+            List<Future<ChunkPairWork>> completed = null;
+            for (Future<ChunkPairWork> future : getFutureQueue()) {
                 if (future.isDone()) {
-                    Task t = future.get();
-                    while (t.isExceptionTrapped()) {
-                        t.throwTrappedException();
-                    }
-                    ++completedCount;
+                    completeWork(future.get());
 
                     if (completed == null)
-                        completed = new ArrayList<Future<? extends Task>>();
+                        completed = new ArrayList<Future<ChunkPairWork>>();
                     completed.add(future);
-
-                    progress.startAdjusting();
-                    progress.setMessage("Completed chunk pair " + t.getProperty("chunkPair"));
-                    updateProgress();
-                    progress.endAdjusting();
                 }
             }
             if (completed != null && !completed.isEmpty())
@@ -235,23 +553,36 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
         } else {
 
             while (!getFutureQueue().isEmpty()) {
+                completeWork(getFutureQueue().poll().get());
+            }
 
-                Future<? extends Task> completed = getFutureQueue().poll();
-                Task t = completed.get();
-                while (t.isExceptionTrapped()) {
-                    t.throwTrappedException();
-                }
-                ++completedCount;
+        }
 
-                progress.startAdjusting();
-                progress.setMessage("Completed chunk pair " + t.getProperty("chunkPair"));
-                updateProgress();
-                progress.endAdjusting();
-            }
 
+    }
+
+    private void completeWork(ChunkPairWork work) throws Exception {
+        final Task t = work.getTask();
+        while (t.isExceptionTrapped()) {
+            t.throwTrappedException();
+        }
+        completedCount += work.getShare();
+        if (work.part != null && work.part.pieces.decrementAndGet() == 0) {
+            journal.commit(work.part.sink);
         }
+        getStats().recordChunkPairMillis(work.getElapsedMillis());
 
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(MessageFormat.format("Chunk pair {0} completed in {1,number} ms.",
+                    work.getName(), work.getElapsedMillis()));
+        }
 
+        progress.startAdjusting();
+        progress.setMessage(MessageFormat.format(
+                "Completed chunk pair {0} in {1,number} ms",
+                work.getName(), work.getElapsedMillis()));
+        updateProgress();
+        progress.endAdjusting();
     }
 
     @Override
@@ -259,36 +590,16 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
         if (getExecutor() != null) {
             getExecutor().shutdownNow();
         }
+        if (journal != null) {
+            journal.close();
+        }
         super.finaliseTask();
     }
 
-    protected <T extends Task> void queueTask(final T task) throws InterruptedException {
-        if (task == null) {
-            throw new NullPointerException("task is null");
-        }
-
+    private void queueWork(final ChunkPairWork work) throws InterruptedException {
         throttle.acquire();
-        final Runnable wrapper = new Runnable() {
-
-            @Override
-            public void run() {
-                try {
-                    progress.startAdjusting();
-                    progress.setMessage("Starting chunk pair " + task.getProperty("chunkPair"));
-                    updateProgress();
-                    progress.endAdjusting();
-
-                    task.run();
-                } finally {
-                    throttle.release();
-                }
-            }
-
-        };
-
         try {
-            Future<T> future = getExecutor().submit(wrapper, task);
-            getFutureQueue().offer(future);
+            getFutureQueue().offer(getExecutor().submit(work));
         } catch (RejectedExecutionException e) {
             throttle.release();
             throw e;
@@ -298,6 +609,252 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
         }
     }
 
+    /**
+     * Submit work that was split off from a running work unit. Forked work
+     * does not hold a throttle permit, since it would otherwise be possible
+     * for a worker to block waiting on itself.
+     */
+    private void forkWork(final ChunkPairWork work) {
+        getFutureQueue().offer(getExecutor().submit(work));
+    }
+
+    /**
+     * @return true if there are idle workers and nothing queued for them.
+     */
+    private boolean isStarving() {
+        final ThreadPoolExecutor exec = (ThreadPoolExecutor) getExecutor();
+        return exec.getQueue().isEmpty()
+                && exec.getActiveCount() < exec.getMaximumPoolSize();
+    }
+
+    private List<Indexed<SparseDoubleVector>> readChunk(
+            Chunk<Indexed<SparseDoubleVector>> chunk) throws IOException {
+        final List<Indexed<SparseDoubleVector>> vectors = new ArrayList<Indexed<SparseDoubleVector>>();
+        while (chunk.hasNext()) {
+            vectors.add(chunk.read());
+        }
+        getStats().recordChunkSize(vectors.size());
+        return vectors;
+    }
+
+    private static long nonZeros(List<Indexed<SparseDoubleVector>> vectors, int start, int end) {
+        long n = 0;
+        for (int i = start; i < end; i++) {
+            n += vectors.get(i).value().size;
+        }
+        return n;
+    }
+
+    /**
+     * The part file of a checkpointed chunk pair, and the number of work units
+     * split from the pair that are still to complete. The part is committed
+     * to the journal when the last of them completes.
+     */
+    private static final class CheckpointPart {
+
+        private final ChunkPairJournal.PartSink sink;
+
+        private final AtomicInteger pieces = new AtomicInteger(1);
+
+        CheckpointPart(ChunkPairJournal.PartSink sink) {
+            this.sink = sink;
+        }
+    }
+
+    /**
+     * A unit of work for the scheduler: the comparison of a range of vectors
+     * from chunk A against all of chunk B.
+     */
+    private final class ChunkPairWork implements Callable<ChunkPairWork> {
+
+        private final String chunkPair;
+
+        private final List<Indexed<SparseDoubleVector>> chunkA;
+
+        private final int startA;
+
+        private int endA;
+
+        private final List<Indexed<SparseDoubleVector>> chunkB;
+
+        private final boolean reflect;
+
+        /**
+         * Fraction of the original chunk pair this unit is responsible for.
+         */
+        private double share;
+
+        private final boolean throttled;
+
+        /**
+         * Part file shared by every unit split from the same chunk pair, or
+         * null if the run is not checkpointed.
+         */
+        private final CheckpointPart part;
+
+        private NaiveApssTask<Integer> task = null;
+
+        private long elapsedMillis = 0;
+
+        ChunkPairWork(String chunkPair,
+                      List<Indexed<SparseDoubleVector>> chunkA, int startA, int endA,
+                      List<Indexed<SparseDoubleVector>> chunkB,
+                      boolean reflect, double share, boolean throttled,
+                      CheckpointPart part) {
+            this.chunkPair = chunkPair;
+            this.chunkA = chunkA;
+            this.startA = startA;
+            this.endA = endA;
+            this.chunkB = chunkB;
+            this.reflect = reflect;
+            this.share = share;
+            this.throttled = throttled;
+            this.part = part;
+        }
+
+        String getName() {
+            return (startA == 0 && endA == chunkA.size())
+                    ? chunkPair
+                    : MessageFormat.format("{0} [{1,number,#}..{2,number,#})", chunkPair, startA, endA);
+        }
+
+        double getShare() {
+            return share;
+        }
+
+        long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        NaiveApssTask<Integer> getTask() {
+            return task;
+        }
+
+        @Override
+        public ChunkPairWork call() throws Exception {
+            try {
+                split();
+
+                progress.startAdjusting();
+                progress.setMessage("Starting chunk pair " + getName());
+                updateProgress();
+                progress.endAdjusting();
+
+                @SuppressWarnings("unchecked")
+                NaiveApssTask<Integer> t = innerAlgorithm.newInstance();
+                t.setSourceA(new ListSource<Indexed<SparseDoubleVector>>(chunkA, startA, endA));
+                t.setSourceB(new ListSource<Indexed<SparseDoubleVector>>(chunkB, 0, chunkB.size()));
+                t.setMeasure(getMeasure());
+                t.setProducatePair(getProducatePair());
+                t.setProcessRecord(getProcessRecord());
+                t.setSink(part != null ? part.sink : getSink());
+                t.setStats(getStats());
+                t.setReflectPairs(reflect);
+                t.setMinSimilarity(getMinSimilarity());
+                if (t instanceof LshApssTask) {
+                    ((LshApssTask) t).setBands(lshBands);
+                    ((LshApssTask) t).setRows(lshRows);
+                    ((LshApssTask) t).setSeed(lshSeed);
+                }
+                if (t instanceof PartitionedApssTask) {
+                    // The workers are already one per thread, so a pool of
+                    // partition threads per chunk pair would oversubscribe
+                    ((PartitionedApssTask<?>) t).setNumPartitions(1);
+                }
+                t.setProperty("chunkPair", getName());
+                task = t;
+
+                final long startTime = System.currentTimeMillis();
+                t.run();
+                elapsedMillis = System.currentTimeMillis() - startTime;
+                t.setProperty("elapsedMillis", Long.toString(elapsedMillis));
+                return this;
+            } finally {
+                if (throttled)
+                    throttle.release();
+            }
+        }
+
+        /**
+         * While other workers are idle, halve the A range (by non-zero count)
+         * and fork the upper half.
+         */
+        private void split() {
+            final long nonZerosB = nonZeros(chunkB, 0, chunkB.size());
+            long nonZerosA = nonZeros(chunkA, startA, endA);
+            while (endA - startA > 1
+                    && nonZerosA * nonZerosB >= minSplitWork
+                    && isStarving()) {
+
+                int mid = startA;
+                long lowerNonZeros = 0;
+                while (mid < endA - 1 && 2 * lowerNonZeros < nonZerosA) {
+                    lowerNonZeros += chunkA.get(mid).value().size;
+                    ++mid;
+                }
+                if (mid == startA) {
+                    lowerNonZeros += chunkA.get(mid).value().size;
+                    ++mid;
+                }
+
+                share /= 2;
+                if (LOG.isTraceEnabled()) {
+                    LOG.trace(MessageFormat.format("Splitting chunk pair {0} at {1,number,#}",
+                            getName(), mid));
+                }
+                if (part != null) {
+                    part.pieces.incrementAndGet();
+                }
+                forkWork(new ChunkPairWork(chunkPair, chunkA, mid, endA, chunkB,
+                        reflect, share, false, part));
+                endA = mid;
+                nonZerosA = lowerNonZeros;
+            }
+        }
+    }
+
+    /**
+     * A seekable source over a range of a list. Each work unit gets its own
+     * instance, so the underlying chunk can be shared between threads.
+     */
+    private static final class ListSource<T> implements SeekableObjectSource<T, Integer> {
+
+        private final List<T> list;
+
+        private final int start;
+
+        private final int end;
+
+        private int next;
+
+        ListSource(List<T> list, int start, int end) {
+            this.list = list;
+            this.start = start;
+            this.end = end;
+            this.next = start;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < end;
+        }
+
+        @Override
+        public T read() {
+            return list.get(next++);
+        }
+
+        @Override
+        public Integer position() {
+            return next - start;
+        }
+
+        @Override
+        public void position(Integer offset) {
+            next = start + offset;
+        }
+    }
+
     public final int getNumThreads() {
         return nThreads;
     }
@@ -306,7 +863,7 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
         return executor;
     }
 
-    protected synchronized final Queue<Future<? extends Task>> getFutureQueue() {
+    protected synchronized final Queue<Future<ChunkPairWork>> getFutureQueue() {
         return futureQueue;
     }
 
@@ -322,13 +879,50 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
     }
 
 
-    private int estimateChunkSize() {
-
-        // Maximum possible non-zero cardinality of any feature vector. In theory this is Integer.MAX_VALUE, through
-        // with real data that bound never occurs since feature vectors are typically very sparse, especially if
-        // filtering has been performed.
-        // TODO: filtering stage should record the largest non-zero cardinality, which should be used for nFeatures.
-        final double nFeatures = 10000;
+    /**
+     * Approximate heap overhead of a single vector, excluding its feature
+     * arrays: the Indexed and SparseDoubleVector objects plus two array
+     * headers.
+     */
+    private static final int VECTOR_OVERHEAD_BYTES = 96;
+
+    /**
+     * Heap size of a buffered output pair: 2 x int32 + 1 x double (see
+     * WeightedTokenPairBuffer.)
+     */
+    private static final int PAIR_BYTES = 4 + 4 + 8;
+
+    /**
+     * Fallback number of non-zeros per vector, used when no vector statistics
+     * are available. In theory the bound is Integer.MAX_VALUE, though with real
+     * data that never occurs since feature vectors are typically very sparse,
+     * especially if filtering has been performed.
+     */
+    private static final int DEFAULT_NON_ZEROS_PER_VECTOR = 10000;
+
+    /**
+     * Chunk size cap used only when neither vector statistics nor a memory
+     * budget are given, in which case the estimate is little more than a
+     * guess.
+     */
+    private static final int DEFAULT_CHUNK_SIZE_CAP = 4000;
+
+    int estimateChunkSize() {
+
+        if (maxChunkSize > 0)
+            return maxChunkSize;
+
+        final boolean measured = vectorStats != null && vectorStats.getVectorCount() > 0;
+
+        // Non-zeros per vector; when the statistics are known the 99th
+        // percentile is used, with headroom in every chunk for the single
+        // largest vector.
+        final double nonZerosPerVector = measured
+                ? Math.max(1, vectorStats.getP99NonZeros())
+                : DEFAULT_NON_ZEROS_PER_VECTOR;
+        final double nonZerosHeadroom = measured
+                ? vectorStats.getMaxNonZeros()
+                : 0;
 
         // number of concurrent worker units that can exist at one time
         final double nWorkUnits = getThrottleSize();
@@ -338,25 +932,65 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
 
         // theoretical number of bytes per feature is: 1 x int32 + 1 x double
         // note that arrays should be packed even on 64 bit platforms
-        final double bytesPerFeature = 4 + 8;
-
-        // It's a tad conservative to use free memory rather than total memory,
-        // but we can't be sure what else is going on
-        System.gc();
-        final double availableMemory = MiscUtil.freeMaxMemory();
-
-        double chunkSize = availableMemory / (nFeatures * nWorkUnits * pairMultiplier * bytesPerFeature);
-        assert chunkSize > 0;
+        // The inverted index adds an int32 posting and an int32 position per
+        // feature of the indexed chunk, plus an int32 feature id and an int32
+        // offset per distinct feature; there can be no more distinct features
+        // than there are postings, so these are counted per feature too
+        // (see InvertedIndex.estimateSizeInBytes.)
+        final boolean indexed = InvertedApssTask.class.isAssignableFrom(innerAlgorithm)
+                || AccumulatingApssTask.class.isAssignableFrom(innerAlgorithm)
+                || PrefixFilteringApssTask.class.isAssignableFrom(innerAlgorithm)
+                || PartitionedApssTask.class.isAssignableFrom(innerAlgorithm);
+        // Indexed tasks also keep the prepared form of each vector, of up to
+        // two doubles per feature, for measures that prepare vectors.
+        final boolean prepared = indexed && getMeasure() instanceof PreparedProximity;
+        final double bytesPerFeature = 4 + 8 + (indexed ? 4 + 4 + 4 + 4 : 0)
+                + (prepared ? 8 + 8 : 0);
+        // LSH keeps a long band key and an int32 ordinal per band per vector.
+        final double bytesPerSignature = LshApssTask.class.isAssignableFrom(innerAlgorithm)
+                ? lshBands * (8 + 4) : 0;
+        final double bytesPerVector = VECTOR_OVERHEAD_BYTES + bytesPerSignature
+                + (indexed ? 8 : 0)
+                + nonZerosPerVector * bytesPerFeature;
+
+        // Use the explicit budget if there is one. Otherwise it's a tad
+        // conservative to use free memory rather than total memory, but we
+        // can't be sure what else is going on.
+        final double availableMemory = memoryBudget > 0
+                ? memoryBudget
+                : MiscUtil.freeMaxMemory();
+
+        // Each work unit buffers produced pairs before writing them out
+        final double outputBufferMemory = nWorkUnits * PAIR_OUTPUT_BUFFER_SIZE * PAIR_BYTES;
+
+        final double memoryPerChunk = (availableMemory - outputBufferMemory) / (nWorkUnits * pairMultiplier)
+                - nonZerosHeadroom * bytesPerFeature;
+
+        double chunkSize = memoryPerChunk / bytesPerVector;
 
         // It's possible that we don't even enough memory for a single
         if (chunkSize < 1)
             chunkSize = 1;
 
-        // Finally, we've only really calculated an upper bound. It's conceivable that the software is running in an
-        // environment where it would be preferable not to just use all memory, just because it's there.
-        chunkSize = Math.min(chunkSize, 4000);
+        if (measured) {
+            // There's no point in chunks larger than the input
+            chunkSize = Math.min(chunkSize, vectorStats.getVectorCount());
+        } else if (memoryBudget <= 0) {
+            // Without statistics or a budget we've only really calculated an upper bound. It's conceivable that the
+            // software is running in an environment where it would be preferable not to just use all memory, just
+            // because it's there.
+            chunkSize = Math.min(chunkSize, DEFAULT_CHUNK_SIZE_CAP);
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(MessageFormat.format(
+                    "Chunk memory model: available={0,number,#} bytes, work units={1,number,#}, "
+                            + "non-zeros per vector={2,number,#} ({3}), bytes per vector={4,number,#}",
+                    availableMemory, nWorkUnits, nonZerosPerVector,
+                    measured ? "measured" : "assumed", bytesPerVector));
+        }
 
-        return (int) Math.floor(chunkSize);
+        return (int) Math.min(Integer.MAX_VALUE, Math.floor(chunkSize));
     }
 
     public String getName() {
@@ -368,6 +1002,18 @@ public final class ThreadedApssTask<S> extends NaiveApssTask<S> {
         return super.toStringHelper().
                 add("innerAlgorithm", innerAlgorithm).
                 add("nThreads", nThreads).
+                add("triangularScheduling", triangularScheduling).
+                add("maxChunkSize", maxChunkSize).
+                add("minSplitWork", minSplitWork).
+                add("memoryBudget", memoryBudget).
+                add("vectorStats", vectorStats).
+                add("lshBands", lshBands).
+                add("lshRows", lshRows).
+                add("lshSeed", lshSeed).
+                add("shardIndex", shardIndex).
+                add("shardCount", shardCount).
+                add("checkpointDirectory", checkpointDirectory).
+                add("resume", resume).
                 add("executor", executor).
                 add("futureQueue", futureQueue).
                 add("throttle", throttle);
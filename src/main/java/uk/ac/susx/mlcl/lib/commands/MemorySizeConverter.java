@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.commands;
+
+import com.beust.jcommander.IStringConverter;
+import com.beust.jcommander.ParameterException;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An IStringConverter implementation for extending JCommander. Takes a memory
+ * size, in bytes, with an optional binary unit suffix in the style of the JVM
+ * -Xmx option (e.g "512m", "2G", "1024k"), and produces the number of bytes.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class MemorySizeConverter implements IStringConverter<Long> {
+
+    private static final Pattern sizeRegex = Pattern.compile(
+            "^\\s*(\\d+)\\s*([kKmMgGtT]?)[bB]?\\s*$");
+
+    @Override
+    public Long convert(String value) {
+        final Matcher m = sizeRegex.matcher(value);
+        if (!m.matches())
+            throw new ParameterException(
+                    "Unable to parse memory size \"" + value + "\"");
+
+        final int shift;
+        switch (m.group(2).isEmpty() ? ' ' : Character.toLowerCase(m.group(2).charAt(0))) {
+            case 'k':
+                shift = 10;
+                break;
+            case 'm':
+                shift = 20;
+                break;
+            case 'g':
+                shift = 30;
+                break;
+            case 't':
+                shift = 40;
+                break;
+            default:
+                shift = 0;
+        }
+
+        try {
+            final long size = Long.parseLong(m.group(1));
+            if (size > (Long.MAX_VALUE >> shift))
+                throw new ParameterException(
+                        "Memory size \"" + value + "\" is too large");
+            return size << shift;
+        } catch (NumberFormatException ex) {
+            throw new ParameterException(
+                    "Memory size \"" + value + "\" is too large");
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.commands;
+
+import com.beust.jcommander.IStringConverter;
+import com.beust.jcommander.ParameterException;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An IStringConverter implementation for extending JCommander. Takes a shard
+ * of some work in the form "i/N", where N is the number of shards the work is
+ * divided into and i is the index of this shard, starting from 0. Produces an
+ * array of two elements: the index and the count.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class ShardConverter implements IStringConverter<int[]> {
+
+    private static final Pattern shardRegex = Pattern.compile(
+            "^\\s*(\\d+)\\s*/\\s*(\\d+)\\s*$");
+
+    @Override
+    public int[] convert(String value) {
+        final Matcher m = shardRegex.matcher(value);
+        if (!m.matches())
+            throw new ParameterException(
+                    "Unable to parse shard \"" + value + "\"; expecting \"i/N\"");
+
+        try {
+            final int index = Integer.parseInt(m.group(1));
+            final int count = Integer.parseInt(m.group(2));
+            if (count < 1 || index >= count)
+                throw new ParameterException(
+                        "Shard \"" + value + "\" is out of range; expecting 0 <= i < N");
+            return new int[]{index, count};
+        } catch (NumberFormatException ex) {
+            throw new ParameterException(
+                    "Shard \"" + value + "\" is too large");
+        }
+    }
+}
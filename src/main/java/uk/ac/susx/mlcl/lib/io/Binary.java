@@ -0,0 +1,395 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.io;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import uk.ac.susx.mlcl.lib.Checks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Compact binary record files, for data that is written and read back by
+ * the same process, such as the temporary runs of an external sort. Nothing
+ * is formatted or parsed, so it is much cheaper than {@link TSV}, but the
+ * files are neither human readable nor portable between enumerations.
+ * <p/>
+ * Each record is the number of bytes it holds, as a variable length integer,
+ * followed by its values. Integral values are zig-zag encoded variable length
+ * integers, so small magnitudes (such as the deltas between sorted ids) take
+ * a single byte. Floating point values are stored raw, and strings as their
+ * UTF-8 length and bytes. Values carry no type, so they must be read back
+ * with the same types they were written with.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public abstract class Binary {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    protected final File file;
+
+    protected Binary(File file) {
+        Checks.checkNotNull("file", file);
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes records to a binary file.
+     */
+    public static final class Sink extends Binary implements Closeable, Flushable, DataSink {
+
+        private static final Log LOG = LogFactory.getLog(Sink.class);
+
+        private final OutputStream out;
+
+        /**
+         * Values of the current record, written out when it ends.
+         */
+        private byte[] record = new byte[64];
+
+        private int length = 0;
+
+        public Sink(File file) throws FileNotFoundException {
+            super(file);
+            if (LOG.isDebugEnabled())
+                LOG.debug("Opening file \"" + file + "\" for writing.");
+            out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+        }
+
+        @Override
+        public void endOfRecord() throws IOException {
+            int n = length;
+            while ((n & ~0x7F) != 0) {
+                out.write((n & 0x7F) | 0x80);
+                n >>>= 7;
+            }
+            out.write(n);
+            out.write(record, 0, length);
+            length = 0;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > record.length) {
+                final byte[] tmp = new byte[Math.max(record.length * 2, length + extra)];
+                System.arraycopy(record, 0, tmp, 0, length);
+                record = tmp;
+            }
+        }
+
+        private void writeVarLong(long val) {
+            ensureCapacity(10);
+            long v = (val << 1) ^ (val >> 63);
+            while ((v & ~0x7FL) != 0) {
+                record[length++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            record[length++] = (byte) v;
+        }
+
+        private void writeRawLong(long val, int bytes) {
+            ensureCapacity(bytes);
+            for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8)
+                record[length++] = (byte) (val >>> shift);
+        }
+
+        @Override
+        public void writeByte(byte val) throws IOException {
+            ensureCapacity(1);
+            record[length++] = val;
+        }
+
+        @Override
+        public void writeChar(char val) throws IOException {
+            writeVarLong(val);
+        }
+
+        @Override
+        public void writeShort(short val) throws IOException {
+            writeVarLong(val);
+        }
+
+        @Override
+        public void writeInt(int val) throws IOException {
+            writeVarLong(val);
+        }
+
+        @Override
+        public void writeLong(long val) throws IOException {
+            writeVarLong(val);
+        }
+
+        @Override
+        public void writeFloat(float val) throws IOException {
+            writeRawLong(Float.floatToRawIntBits(val), 4);
+        }
+
+        @Override
+        public void writeDouble(double val) throws IOException {
+            writeRawLong(Double.doubleToRawLongBits(val), 8);
+        }
+
+        @Override
+        public void writeString(String str) throws IOException {
+            Checks.checkNotNull("str", str);
+            final byte[] bytes = str.getBytes(UTF8);
+            writeVarLong(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, record, length, bytes.length);
+            length += bytes.length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+    }
+
+    /**
+     * Reads records from a binary file.
+     */
+    public static final class Source extends Binary implements Closeable, SeekableDataSource {
+
+        private final FileInputStream fileIn;
+
+        private InputStream in;
+
+        private final long fileLength;
+
+        /**
+         * Offset into the file of the next byte to be read.
+         */
+        private long offset;
+
+        /**
+         * Offset into the file of the current record, or -1 when between
+         * records.
+         */
+        private long recordStart = -1;
+
+        /**
+         * Bytes of the current record yet to be read.
+         */
+        private int remaining = 0;
+
+        public Source(File file) throws FileNotFoundException, IOException {
+            super(file);
+            if (!file.exists())
+                throw new FileNotFoundException(
+                        "Path " + file + " does not exist.");
+            if (!file.isFile())
+                throw new IllegalArgumentException(
+                        "Path " + file + " is not a normal file.");
+            if (!file.canRead())
+                throw new IllegalArgumentException(
+                        "File " + file + " is not readable.");
+            fileIn = new FileInputStream(file);
+            in = new BufferedInputStream(fileIn, BUFFER_SIZE);
+            fileLength = file.length();
+            offset = 0;
+        }
+
+        private int next() throws IOException {
+            final int b = in.read();
+            if (b < 0)
+                throw new EOFException("Unexpected end of file " + getFile()
+                        + " at byte offset " + offset + ".");
+            ++offset;
+            return b;
+        }
+
+        private void startRecord() throws IOException {
+            if (recordStart != -1)
+                return;
+            recordStart = offset;
+            int n = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = next();
+                n |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            remaining = n;
+        }
+
+        private int nextInRecord() throws IOException {
+            startRecord();
+            if (remaining == 0)
+                throw new IOException("Read past the end of the record starting at byte offset "
+                        + recordStart + " of " + getFile() + ".");
+            --remaining;
+            return next();
+        }
+
+        private long readVarLong() throws IOException {
+            long v = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = nextInRecord();
+                v |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        private long readRawLong(int bytes) throws IOException {
+            long v = 0;
+            for (int i = 0; i < bytes; i++)
+                v = (v << 8) | nextInRecord();
+            return v;
+        }
+
+        @Override
+        public boolean canRead() throws IOException {
+            return (recordStart != -1 && remaining > 0) || offset < fileLength;
+        }
+
+        @Override
+        public boolean isEndOfRecordNext() throws IOException {
+            startRecord();
+            return remaining == 0;
+        }
+
+        @Override
+        public void endOfRecord() throws IOException {
+            startRecord();
+            while (remaining > 0) {
+                next();
+                --remaining;
+            }
+            recordStart = -1;
+        }
+
+        @Override
+        public byte readByte() throws IOException {
+            return (byte) nextInRecord();
+        }
+
+        @Override
+        public char readChar() throws IOException {
+            return (char) readVarLong();
+        }
+
+        @Override
+        public short readShort() throws IOException {
+            return (short) readVarLong();
+        }
+
+        @Override
+        public int readInt() throws IOException {
+            return (int) readVarLong();
+        }
+
+        @Override
+        public long readLong() throws IOException {
+            return readVarLong();
+        }
+
+        @Override
+        public float readFloat() throws IOException {
+            return Float.intBitsToFloat((int) readRawLong(4));
+        }
+
+        @Override
+        public double readDouble() throws IOException {
+            return Double.longBitsToDouble(readRawLong(8));
+        }
+
+        @Override
+        public String readString() throws IOException {
+            final int n = (int) readVarLong();
+            final byte[] bytes = new byte[n];
+            for (int i = 0; i < n; i++)
+                bytes[i] = (byte) nextInRecord();
+            return new String(bytes, UTF8);
+        }
+
+        @Override
+        public Tell position() throws IOException {
+            return recordStart == -1
+                    ? new Tell(Long.class, offset).push(Long.class, 0L)
+                    : new Tell(Long.class, recordStart).push(Long.class, offset - recordStart);
+        }
+
+        @Override
+        public void position(Tell offset) throws IOException {
+            final long intoRecord = offset.value(Long.class);
+            final long start = offset.next().value(Long.class);
+            fileIn.getChannel().position(start);
+            in = new BufferedInputStream(fileIn, BUFFER_SIZE);
+            this.offset = start;
+            recordStart = -1;
+            remaining = 0;
+            if (intoRecord > 0) {
+                startRecord();
+                while (this.offset - recordStart < intoRecord)
+                    nextInRecord();
+            }
+        }
+
+        public double percentRead() {
+            return fileLength == 0 ? 100 : 100.0 * offset / fileLength;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.tasks;
+
+import com.google.common.base.Objects;
+import uk.ac.susx.mlcl.lib.Checks;
+import uk.ac.susx.mlcl.lib.Comparators;
+import uk.ac.susx.mlcl.lib.events.ProgressDelegate;
+import uk.ac.susx.mlcl.lib.events.ProgressListener;
+import uk.ac.susx.mlcl.lib.events.ProgressReporting;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
+import uk.ac.susx.mlcl.lib.io.ObjectSource;
+
+import java.io.Flushable;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Merge any number of sorted sources into a single sorted sink, in one pass.
+ * <p/>
+ * The head of each source is held in a tournament tree of losers, so each
+ * item written costs about log2(k) comparisons for k sources, and every item
+ * is read and written exactly once; merging the same sources pairwise with
+ * {@link ObjectMergeTask} would read and write it log2(k) times.
+ * <p/>
+ * Items that compare equal are written in the order of their sources, so the
+ * merge is stable. Equal items are not combined here; wrap the sink in a
+ * reducer (such as a weight summing one) to do that.
+ *
+ * @param <T>
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public final class ObjectKWayMergeTask<T> extends AbstractTask implements ProgressReporting {
+
+    private final ProgressDelegate progress = new ProgressDelegate(this, false);
+
+    private List<ObjectSource<T>> sources;
+
+    private ObjectSink<T> sink;
+
+    private Comparator<T> comparator;
+
+    public ObjectKWayMergeTask(List<? extends ObjectSource<T>> sources, ObjectSink<T> sink,
+                               Comparator<T> comparator) {
+        setSources(sources);
+        setSink(sink);
+        setComparator(comparator);
+    }
+
+    public ObjectKWayMergeTask(List<? extends ObjectSource<T>> sources, ObjectSink<T> sink) {
+        this(sources, sink, Comparators.<T>naturalOrderIfPossible());
+    }
+
+    public final Comparator<T> getComparator() {
+        return comparator;
+    }
+
+    public final void setComparator(Comparator<T> comparator) {
+        Checks.checkNotNull(comparator);
+        this.comparator = comparator;
+    }
+
+    public final ObjectSink<T> getSink() {
+        return sink;
+    }
+
+    public final void setSink(ObjectSink<T> sink) {
+        Checks.checkNotNull(sink);
+        this.sink = sink;
+    }
+
+    public final List<ObjectSource<T>> getSources() {
+        return Collections.unmodifiableList(sources);
+    }
+
+    public final void setSources(List<? extends ObjectSource<T>> sources) {
+        Checks.checkNotNull(sources);
+        this.sources = new ArrayList<ObjectSource<T>>(sources);
+    }
+
+    @Override
+    protected void initialiseTask() throws Exception {
+        Checks.checkNotNull(getSources());
+        Checks.checkNotNull(getSink());
+        Checks.checkNotNull(getComparator());
+        if (sources.isEmpty())
+            throw new IllegalStateException("There are no sources to merge.");
+        for (int i = 0; i < sources.size(); i++) {
+            Checks.checkNotNull(sources.get(i));
+            if (sources.get(i).equals(getSink()))
+                throw new IllegalStateException("Source " + i + " is the same as the sink.");
+            for (int j = 0; j < i; j++) {
+                if (sources.get(i).equals(sources.get(j)))
+                    throw new IllegalStateException("Sources " + j + " and " + i + " are the same.");
+            }
+        }
+    }
+
+    @Override
+    protected void runTask() throws Exception {
+
+        progress.setState(State.RUNNING);
+
+        final int k = sources.size();
+        final List<T> heads = new ArrayList<T>(k);
+        for (ObjectSource<T> source : sources)
+            heads.add(source.hasNext() ? source.read() : null);
+
+        // Node i of the tree has children 2i and 2i+1, with source j as the
+        // leaf k+j. Each internal node holds the loser of the match played
+        // there; the overall winner is kept apart.
+        final int[] losers = new int[k];
+        int winner = play(1, k, heads, losers);
+
+        long mergeCount = 0;
+        while (heads.get(winner) != null) {
+            sink.write(heads.get(winner));
+            final ObjectSource<T> source = sources.get(winner);
+            heads.set(winner, source.hasNext() ? source.read() : null);
+
+            // Replay the matches on the path from the winner's leaf
+            for (int node = (winner + k) >>> 1; node >= 1; node >>>= 1) {
+                if (beats(losers[node], winner, heads)) {
+                    final int tmp = losers[node];
+                    losers[node] = winner;
+                    winner = tmp;
+                }
+            }
+
+            ++mergeCount;
+            if (mergeCount % 1000000 == 0) {
+                progress.setMessage(MessageFormat.format(
+                        "Merged {0} items from {1} sources.", mergeCount, k));
+            }
+        }
+
+        progress.startAdjusting();
+        progress.setMessage(MessageFormat.format(
+                "Merged {0} items from {1} sources.", mergeCount, k));
+        progress.setState(State.COMPLETED);
+        progress.endAdjusting();
+
+        if (sink instanceof Flushable)
+            ((Flushable) sink).flush();
+    }
+
+    /**
+     * Play the matches in the subtree below the given node, recording the
+     * losers, and return the winner.
+     */
+    private int play(int node, int k, List<T> heads, int[] losers) {
+        if (node >= k)
+            return node - k;
+        final int a = play(2 * node, k, heads, losers);
+        final int b = play(2 * node + 1, k, heads, losers);
+        if (beats(a, b, heads)) {
+            losers[node] = b;
+            return a;
+        } else {
+            losers[node] = a;
+            return b;
+        }
+    }
+
+    /**
+     * Whether the head of source a is written before the head of source b.
+     * Exhausted sources lose to everything, and ties go to the lower source.
+     */
+    private boolean beats(int a, int b, List<T> heads) {
+        final T x = heads.get(a);
+        final T y = heads.get(b);
+        if (x == null || y == null)
+            return y == null && (x != null || a < b);
+        final int c = comparator.compare(x, y);
+        return c < 0 || (c == 0 && a < b);
+    }
+
+    @Override
+    protected void finaliseTask() throws Exception {
+    }
+
+    @Override
+    public String getName() {
+        return "k-way merge";
+    }
+
+    @Override
+    public void removeProgressListener(ProgressListener progressListener) {
+        progress.removeProgressListener(progressListener);
+    }
+
+    @Override
+    public boolean isProgressPercentageSupported() {
+        return progress.isProgressPercentageSupported();
+    }
+
+    @Override
+    public State getState() {
+        return progress.getState();
+    }
+
+    @Override
+    public String getProgressReport() {
+        return progress.getProgressReport();
+    }
+
+    @Override
+    public int getProgressPercent() {
+        return progress.getProgressPercent();
+    }
+
+    @Override
+    public ProgressListener[] getProgressListeners() {
+        return progress.getProgressListeners();
+    }
+
+    @Override
+    public void addProgressListener(ProgressListener progressListener) {
+        progress.addProgressListener(progressListener);
+    }
+
+    @Override
+    protected Objects.ToStringHelper toStringHelper() {
+        return super.toStringHelper().
+                add("sources", getSources()).
+                add("sink", getSink()).
+                add("comparator", getComparator());
+    }
+
+}
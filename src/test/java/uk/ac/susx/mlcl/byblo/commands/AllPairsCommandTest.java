@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.commands;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
+import uk.ac.susx.mlcl.byblo.io.BybloIO;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSink;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static uk.ac.susx.mlcl.TestConstants.*;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class AllPairsCommandTest {
+
+    /**
+     * Offset of the ids of entries that exist only in the previous events.
+     */
+    private static final int REMOVED_ID_OFFSET = 100000;
+
+    private static DoubleEnumeratingDelegate newIndexDelegate() {
+        return new DoubleEnumeratingDelegate(
+                Enumerating.DEFAULT_TYPE, true, true, null, null);
+    }
+
+    private static AllPairsCommand newAllPairs(File events, File output, String measure) {
+        output.delete();
+        final AllPairsCommand allpairs = new AllPairsCommand();
+        allpairs.setCharset(DEFAULT_CHARSET);
+        allpairs.setEntriesFile(TEST_FRUIT_SKIP_INDEXED_ENTRIES);
+        allpairs.setFeaturesFile(TEST_FRUIT_SKIP_INDEXED_FEATURES);
+        allpairs.setEventsFile(events);
+        allpairs.setEnumeratedEntries(true);
+        allpairs.setEnumeratedFeatures(true);
+        allpairs.setOutputFile(output);
+        allpairs.setMeasureName(measure);
+        return allpairs;
+    }
+
+    /**
+     * Write an older version of the fruit events: some entries are missing
+     * (so appear to have been added since), some have different weights (so
+     * appear modified), and some exist only in the older version (so appear
+     * removed).
+     */
+    private static File writePreviousEvents() throws Exception {
+        final File previous = new File(TEST_OUTPUT_DIR, FRUIT_NAME + ".skipindexed.events.previous");
+        final DoubleEnumeratingDelegate idx = newIndexDelegate();
+        final WeightedTokenPairSource src = BybloIO.openEventsSource(
+                TEST_FRUIT_SKIP_INDEXED_EVENTS, DEFAULT_CHARSET, idx);
+        final List<Weighted<TokenPair>> removed = new ArrayList<Weighted<TokenPair>>();
+        final WeightedTokenPairSink sink = BybloIO.openEventsSink(previous, DEFAULT_CHARSET, idx);
+        while (src.hasNext()) {
+            final Weighted<TokenPair> event = src.read();
+            final int entry = event.record().id1();
+            if (entry % 7 == 0)
+                continue;
+            if (entry % 5 == 0)
+                sink.write(new Weighted<TokenPair>(event.record(), event.weight() * 2));
+            else
+                sink.write(event);
+            if (entry % 11 == 0)
+                removed.add(new Weighted<TokenPair>(new TokenPair(
+                        entry + REMOVED_ID_OFFSET, event.record().id2()), event.weight()));
+        }
+        ObjectIO.copy(removed, sink);
+        src.close();
+        sink.flush();
+        sink.close();
+        return previous;
+    }
+
+    private static List<String> readSortedPairs(File file, boolean neighbours) throws Exception {
+        final WeightedTokenPairSource src = neighbours
+                ? BybloIO.openNeighboursSource(file, DEFAULT_CHARSET, newIndexDelegate())
+                : BybloIO.openSimsSource(file, DEFAULT_CHARSET, newIndexDelegate());
+        final List<String> pairs = new ArrayList<String>();
+        while (src.hasNext())
+            pairs.add(src.read().toString());
+        src.close();
+        Collections.sort(pairs);
+        return pairs;
+    }
+
+    /**
+     * Patching the output of the previous events must give exactly the
+     * pairs of a full run over the current events, for symmetric and
+     * asymmetric measures alike.
+     */
+    @Test
+    public void testIncrementalSameAsFull() throws Exception {
+        final File previousEvents = writePreviousEvents();
+        for (String measure : new String[]{"Jaccard", "Lp", "Lee"}) {
+            final File expectedFile = new File(TEST_OUTPUT_DIR,
+                    FRUIT_NAME + ".sims." + measure + ".full");
+            newAllPairs(TEST_FRUIT_SKIP_INDEXED_EVENTS, expectedFile, measure).runCommand();
+            final List<String> expected = readSortedPairs(expectedFile, false);
+            assertFalse(expected.isEmpty());
+
+            final File previousFile = new File(TEST_OUTPUT_DIR,
+                    FRUIT_NAME + ".sims." + measure + ".previous");
+            newAllPairs(previousEvents, previousFile, measure).runCommand();
+            assertFalse(expected.equals(readSortedPairs(previousFile, false)));
+
+            final File patchedFile = new File(TEST_OUTPUT_DIR,
+                    FRUIT_NAME + ".sims." + measure + ".incremental");
+            final AllPairsCommand incremental = newAllPairs(
+                    TEST_FRUIT_SKIP_INDEXED_EVENTS, patchedFile, measure);
+            incremental.setPreviousEventsFile(previousEvents);
+            incremental.setPreviousSimsFile(previousFile);
+            incremental.runCommand();
+
+            assertEquals(measure, expected, readSortedPairs(patchedFile, false));
+
+            // Likewise when the changed vectors are scored in small chunks
+            // across several threads
+            final AllPairsCommand chunked = newAllPairs(
+                    TEST_FRUIT_SKIP_INDEXED_EVENTS, patchedFile, measure);
+            chunked.setPreviousEventsFile(previousEvents);
+            chunked.setPreviousSimsFile(previousFile);
+            chunked.setNumThreads(2);
+            chunked.setChunkSize(7);
+            chunked.runCommand();
+
+            assertEquals(measure, expected, readSortedPairs(patchedFile, false));
+        }
+    }
+
+    /**
+     * With no changes the previous output is reproduced exactly, and nothing
+     * needs to be scored.
+     */
+    @Test
+    public void testIncrementalUnchanged() throws Exception {
+        final File previousFile = new File(TEST_OUTPUT_DIR, FRUIT_NAME + ".neighs.Jaccard.previous");
+        final AllPairsCommand full = newAllPairs(
+                TEST_FRUIT_SKIP_INDEXED_EVENTS, previousFile, "Jaccard");
+        full.setK(5);
+        full.runCommand();
+
+        final File patchedFile = new File(TEST_OUTPUT_DIR, FRUIT_NAME + ".neighs.Jaccard.incremental");
+        final AllPairsCommand incremental = newAllPairs(
+                TEST_FRUIT_SKIP_INDEXED_EVENTS, patchedFile, "Jaccard");
+        incremental.setK(5);
+        incremental.setPreviousEventsFile(TEST_FRUIT_SKIP_INDEXED_EVENTS);
+        incremental.setPreviousSimsFile(previousFile);
+        incremental.runCommand();
+
+        final List<String> expected = readSortedPairs(previousFile, true);
+        assertTrue(!expected.isEmpty());
+        assertEquals(expected, readSortedPairs(patchedFile, true));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testIncrementalWithoutPreviousSims() throws Exception {
+        final AllPairsCommand incremental = newAllPairs(TEST_FRUIT_SKIP_INDEXED_EVENTS,
+                new File(TEST_OUTPUT_DIR, FRUIT_NAME + ".sims.Jaccard.no-previous"), "Jaccard");
+        incremental.setPreviousEventsFile(TEST_FRUIT_SKIP_INDEXED_EVENTS);
+        incremental.runCommand();
+    }
+
+}
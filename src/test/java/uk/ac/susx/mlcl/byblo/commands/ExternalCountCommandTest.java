@@ -49,6 +49,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.ParameterException;
+import com.google.common.io.Files;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Ignore;
@@ -91,6 +94,13 @@ public class ExternalCountCommandTest extends
 	private void runWithAPI(File inInst, File outE, File outF, File outEF,
 			Charset charset, boolean preindexedEntries,
 			boolean preindexedFeatures) throws Exception {
+		runWithAPI(inInst, outE, outF, outEF, charset, preindexedEntries,
+				preindexedFeatures, false);
+	}
+
+	private void runWithAPI(File inInst, File outE, File outF, File outEF,
+			Charset charset, boolean preindexedEntries,
+			boolean preindexedFeatures, boolean inMemory) throws Exception {
 		final ExternalCountCommand countCmd = new ExternalCountCommand();
 		countCmd.setInstancesFile(inInst);
 		countCmd.setEntriesFile(outE);
@@ -101,6 +111,7 @@ public class ExternalCountCommandTest extends
                 Enumerating.DEFAULT_TYPE, preindexedEntries,
                 preindexedFeatures, null, null));
 		countCmd.setTempFileFactory(new TempFileFactory(TEST_TMP_DIR));
+		countCmd.setInMemory(inMemory);
 
 		countCmd.runCommand();
 
@@ -213,6 +224,40 @@ public class ExternalCountCommandTest extends
 
 	}
 
+	@Test
+	public void testRunOnFruitAPIInMemory() throws Exception {
+		System.out.println("Testing " + subject + " in memory on "
+				+ TEST_FRUIT_INPUT);
+
+		final String fruitPrefix = TEST_FRUIT_INPUT.getName();
+		final File eExternal = new File(TEST_OUTPUT_DIR, fruitPrefix
+				+ ".entries.ext");
+		final File fExternal = new File(TEST_OUTPUT_DIR, fruitPrefix
+				+ ".features.ext");
+		final File efExternal = new File(TEST_OUTPUT_DIR, fruitPrefix
+				+ ".events.ext");
+		final File eActual = new File(TEST_OUTPUT_DIR, fruitPrefix
+				+ ".entries.mem");
+		final File fActual = new File(TEST_OUTPUT_DIR, fruitPrefix
+				+ ".features.mem");
+		final File efActual = new File(TEST_OUTPUT_DIR, fruitPrefix
+				+ ".events.mem");
+		deleteIfExist(eExternal, fExternal, efExternal, eActual, fActual,
+				efActual);
+
+		runWithAPI(TEST_FRUIT_INPUT, eExternal, fExternal, efExternal,
+				DEFAULT_CHARSET, false, false, false);
+		runWithAPI(TEST_FRUIT_INPUT, eActual, fActual, efActual,
+				DEFAULT_CHARSET, false, false, true);
+
+		assertTrue("In-memory entries differ from external count.",
+				Files.equal(eExternal, eActual));
+		assertTrue("In-memory features differ from external count.",
+				Files.equal(fExternal, fActual));
+		assertTrue("In-memory events differ from external count.",
+				Files.equal(efExternal, efActual));
+	}
+
 	@Test
 	public void testRunOnFruitAPITinyChunk() throws Exception {
 		System.out.println("Testing " + subject + " on " + TEST_FRUIT_INPUT);
@@ -328,6 +373,22 @@ public class ExternalCountCommandTest extends
 				false, false);
 	}
 
+	@Test
+	public void testMergeFanInTooSmall() throws Exception {
+		System.out.println("Testing " + subject
+				+ " rejects a merge fan-in below 2 from the command line.");
+		for (String fanIn : new String[] { "1", "0", "-3" }) {
+			final JCommander jc = new JCommander(new ExternalCountCommand());
+			try {
+				jc.parse("--merge-fan-in", fanIn);
+				fail("Expecting ParameterException for fan-in " + fanIn);
+			} catch (ParameterException ex) {
+				assertTrue(ex.getMessage(),
+						ex.getMessage().contains("--merge-fan-in"));
+			}
+		}
+	}
+
 	@Test
 	public void testExitStatus() throws Exception {
 		try {
@@ -32,6 +32,7 @@ package uk.ac.susx.mlcl.byblo.commands;
 
 import static java.text.MessageFormat.format;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static uk.ac.susx.mlcl.TestConstants.DEFAULT_CHARSET;
 import static uk.ac.susx.mlcl.TestConstants.FRUIT_NAME;
 import static uk.ac.susx.mlcl.TestConstants.TEST_FRUIT_INDEXED_SIMS;
@@ -47,6 +48,8 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
 
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.ParameterException;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Ignore;
@@ -87,6 +90,22 @@ public class ExternalSortEventsCommandTest extends
 		super.tearDown();
 	}
 
+	@Test
+	public void testMergeFanInTooSmall() throws Exception {
+		System.out.println("Testing " + "ExternalSortEventsCommand"
+				+ " rejects a merge fan-in below 2 from the command line.");
+		for (String fanIn : new String[] { "1", "0", "-3" }) {
+			final JCommander jc = new JCommander(new ExternalSortEventsCommand());
+			try {
+				jc.parse("--merge-fan-in", fanIn);
+				fail("Expecting ParameterException for fan-in " + fanIn);
+			} catch (ParameterException ex) {
+				assertTrue(ex.getMessage(),
+						ex.getMessage().contains("--merge-fan-in"));
+			}
+		}
+	}
+
 	@Test
 	public void testSortWeightedTokenPairCommand() throws IOException,
 			Exception {
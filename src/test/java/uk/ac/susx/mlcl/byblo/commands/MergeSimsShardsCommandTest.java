@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.commands;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
+import uk.ac.susx.mlcl.byblo.io.BybloIO;
+import uk.ac.susx.mlcl.byblo.io.ShardManifest;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static uk.ac.susx.mlcl.TestConstants.*;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class MergeSimsShardsCommandTest {
+
+    private static final int CHUNK_SIZE = 7;
+
+    private static AllPairsCommand newAllPairs(File output, String measure) {
+        output.delete();
+        final AllPairsCommand allpairs = new AllPairsCommand();
+        allpairs.setCharset(DEFAULT_CHARSET);
+        allpairs.setEntriesFile(TEST_FRUIT_SKIP_INDEXED_ENTRIES);
+        allpairs.setFeaturesFile(TEST_FRUIT_SKIP_INDEXED_FEATURES);
+        allpairs.setEventsFile(TEST_FRUIT_SKIP_INDEXED_EVENTS);
+        allpairs.setEnumeratedEntries(true);
+        allpairs.setEnumeratedFeatures(true);
+        allpairs.setOutputFile(output);
+        allpairs.setMeasureName(measure);
+        allpairs.setChunkSize(CHUNK_SIZE);
+        return allpairs;
+    }
+
+    private static List<File> runShards(String measure, int nShards, int k) throws Exception {
+        final List<File> outputs = new ArrayList<File>();
+        for (int i = 0; i < nShards; i++) {
+            final File output = new File(TEST_OUTPUT_DIR,
+                    FRUIT_NAME + ".sims." + measure + ".shard-" + i + "-of-" + nShards);
+            final AllPairsCommand allpairs = newAllPairs(output, measure);
+            allpairs.setShard(i, nShards);
+            allpairs.setNumThreads(2);
+            allpairs.setK(k);
+            allpairs.runCommand();
+            assertTrue(ShardManifest.sidecarFile(output).exists());
+            outputs.add(output);
+        }
+        return outputs;
+    }
+
+    private static List<Weighted<TokenPair>> readPairs(File file) throws Exception {
+        final WeightedTokenPairSource src = BybloIO.openSimsSource(
+                file, DEFAULT_CHARSET, newIndexDelegate());
+        final List<Weighted<TokenPair>> pairs = ObjectIO.readAll(src);
+        src.close();
+        return pairs;
+    }
+
+    private static List<String> readSortedPairs(File file) throws Exception {
+        final List<String> pairs = new ArrayList<String>();
+        for (Weighted<TokenPair> pair : readPairs(file))
+            pairs.add(pair.toString());
+        Collections.sort(pairs);
+        return pairs;
+    }
+
+    private static DoubleEnumeratingDelegate newIndexDelegate() {
+        return new DoubleEnumeratingDelegate(
+                Enumerating.DEFAULT_TYPE, true, true, null, null);
+    }
+
+    /**
+     * Merging the shards must produce exactly the pairs of an unsharded run,
+     * however many shards there are.
+     */
+    @Test
+    public void testSameAsUnsharded() throws Exception {
+        for (String measure : new String[]{"Lin", "Jaccard", "Lp"}) {
+            final File expectedFile = new File(TEST_OUTPUT_DIR,
+                    FRUIT_NAME + ".sims." + measure + ".unsharded");
+            final AllPairsCommand allpairs = newAllPairs(expectedFile, measure);
+            allpairs.setNumThreads(1);
+            allpairs.runCommand();
+            final List<String> expected = readSortedPairs(expectedFile);
+            assertFalse(expected.isEmpty());
+
+            for (int nShards : new int[]{2, 3, 5}) {
+                final File merged = new File(TEST_OUTPUT_DIR,
+                        FRUIT_NAME + ".sims." + measure + ".merged-" + nShards);
+                final MergeSimsShardsCommand mergeCmd = new MergeSimsShardsCommand(
+                        runShards(measure, nShards, 0), merged, DEFAULT_CHARSET,
+                        newIndexDelegate());
+                mergeCmd.runCommand();
+                assertEquals(measure + " " + nShards, expected, readSortedPairs(merged));
+            }
+        }
+    }
+
+    /**
+     * The merged output must be in entry order, with the most similar
+     * neighbours first, and at most k of them when k is given.
+     */
+    @Test
+    public void testMergeNearestNeighbours() throws Exception {
+        final int k = 5;
+        final File merged = new File(TEST_OUTPUT_DIR, FRUIT_NAME + ".neighs.Lin.merged");
+        merged.delete();
+        final List<String> args = new ArrayList<String>();
+        for (File shard : runShards("Lin", 3, k)) {
+            args.add("-i");
+            args.add(shard.toString());
+        }
+        args.add("-o");
+        args.add(merged.toString());
+        args.add("--enumerated-entries");
+        args.add("-k");
+        args.add(Integer.toString(k));
+        new MergeSimsShardsCommand().runCommand(args.toArray(new String[args.size()]));
+
+        final List<Weighted<TokenPair>> pairs = readPairs(merged);
+        assertFalse(pairs.isEmpty());
+        final Set<Integer> entries = new HashSet<Integer>();
+        int entry = -1;
+        double previous = Double.POSITIVE_INFINITY;
+        int count = 0;
+        for (Weighted<TokenPair> pair : pairs) {
+            if (pair.record().id1() != entry) {
+                entry = pair.record().id1();
+                assertTrue("Entry not contiguous: " + entry, entries.add(entry));
+                previous = Double.POSITIVE_INFINITY;
+                count = 0;
+            }
+            assertTrue(pair.toString(), pair.weight() <= previous);
+            previous = pair.weight();
+            assertTrue(pair.toString(), ++count <= k);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingShard() throws Exception {
+        final List<File> shards = runShards("Lin", 3, 0);
+        shards.remove(2);
+        new MergeSimsShardsCommand(shards,
+                new File(TEST_OUTPUT_DIR, FRUIT_NAME + ".sims.Lin.incomplete"),
+                DEFAULT_CHARSET, newIndexDelegate()).runCommand();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testShardWithoutChunkSize() throws Exception {
+        final AllPairsCommand allpairs = newAllPairs(new File(TEST_OUTPUT_DIR,
+                FRUIT_NAME + ".sims.Lin.no-chunk-size"), "Lin");
+        allpairs.setChunkSize(0);
+        allpairs.setShard(0, 2);
+        allpairs.runCommand();
+    }
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.commands.AllPairsCommand;
+import uk.ac.susx.mlcl.byblo.commands.ExternalKnnSimsCommand;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
+import uk.ac.susx.mlcl.byblo.enumerators.EnumeratingDelegates;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+import uk.ac.susx.mlcl.lib.io.TempFileFactory;
+
+import static org.junit.Assert.*;
+import static uk.ac.susx.mlcl.TestConstants.*;
+import static uk.ac.susx.mlcl.byblo.tasks.AbstractAllPairsTaskTest.newFruitAllPairs;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class KNearestNeighboursObjectSinkTest {
+
+    /**
+     * Order by first token, then descending weight, then second token.
+     */
+    private static final Comparator<Weighted<TokenPair>> NEIGHBOURS_ORDER =
+            new Comparator<Weighted<TokenPair>>() {
+
+                @Override
+                public int compare(Weighted<TokenPair> a, Weighted<TokenPair> b) {
+                    if (a.record().id1() != b.record().id1())
+                        return a.record().id1() < b.record().id1() ? -1 : 1;
+                    if (a.weight() != b.weight())
+                        return a.weight() > b.weight() ? -1 : 1;
+                    if (a.record().id2() != b.record().id2())
+                        return a.record().id2() < b.record().id2() ? -1 : 1;
+                    return 0;
+                }
+
+            };
+
+    private static List<Weighted<TokenPair>> randomPairs(
+            Random rand, int nEntries, int nPairs) {
+        final List<Weighted<TokenPair>> pairs = new ArrayList<Weighted<TokenPair>>();
+        for (int i = 0; i < nPairs; i++) {
+            // Coarse weights so there are plenty of ties
+            pairs.add(new Weighted<TokenPair>(
+                    new TokenPair(rand.nextInt(nEntries), i),
+                    rand.nextInt(20) / 20d));
+        }
+        return pairs;
+    }
+
+    /**
+     * Sort all the pairs and keep the first k of each entry.
+     */
+    private static List<Weighted<TokenPair>> expectedNeighbours(
+            List<Weighted<TokenPair>> pairs, int k) {
+        final List<Weighted<TokenPair>> sorted =
+                new ArrayList<Weighted<TokenPair>>(pairs);
+        Collections.sort(sorted, NEIGHBOURS_ORDER);
+        final List<Weighted<TokenPair>> expected = new ArrayList<Weighted<TokenPair>>();
+        int count = 0;
+        for (int i = 0; i < sorted.size(); i++) {
+            if (i == 0 || sorted.get(i).record().id1() != sorted.get(i - 1).record().id1())
+                count = 0;
+            if (count++ < k)
+                expected.add(sorted.get(i));
+        }
+        return expected;
+    }
+
+    @Test
+    public void testSameAsSortAndTruncate() throws Exception {
+        final Random rand = new Random(0);
+        for (int k : new int[]{1, 5, 100}) {
+            final List<Weighted<TokenPair>> pairs = randomPairs(rand, 50, 5000);
+
+            final List<Weighted<TokenPair>> actual = new ArrayList<Weighted<TokenPair>>();
+            final KNearestNeighboursObjectSink sink =
+                    new KNearestNeighboursObjectSink(ObjectIO.asSink(actual), k);
+            ObjectIO.copy(pairs, sink);
+            sink.close();
+
+            assertEquals(expectedNeighbours(pairs, k), actual);
+        }
+    }
+
+    @Test
+    public void testConcurrentWrites() throws Exception {
+        final int k = 10;
+        final int nThreads = 4;
+        final List<Weighted<TokenPair>> pairs = randomPairs(new Random(1), 200, 40000);
+
+        final List<Weighted<TokenPair>> actual = new ArrayList<Weighted<TokenPair>>();
+        final KNearestNeighboursObjectSink sink =
+                new KNearestNeighboursObjectSink(ObjectIO.asSink(actual), k, 3);
+
+        final List<Thread> threads = new ArrayList<Thread>();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        for (int t = 0; t < nThreads; t++) {
+            final List<Weighted<TokenPair>> part = pairs.subList(
+                    t * pairs.size() / nThreads, (t + 1) * pairs.size() / nThreads);
+            threads.add(new Thread() {
+
+                @Override
+                public void run() {
+                    try {
+                        ObjectIO.copy(part, sink);
+                    } catch (Throwable ex) {
+                        errors.add(ex);
+                    }
+                }
+
+            });
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        sink.close();
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(expectedNeighbours(pairs, k), actual);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidK() {
+        new KNearestNeighboursObjectSink(
+                ObjectIO.asSink(new ArrayList<Weighted<TokenPair>>()), 0);
+    }
+
+    private static Map<String, List<Double>> readNeighbourWeights(
+            File file, DoubleEnumeratingDelegate del) throws Exception {
+        final WeightedTokenPairSource src = BybloIO.openNeighboursSource(
+                file, DEFAULT_CHARSET, EnumeratingDelegates.toSingleEntries(del));
+        final Map<String, List<Double>> result = new HashMap<String, List<Double>>();
+        while (src.hasNext()) {
+            final Weighted<TokenPair> pair = src.read();
+            final String entry = del.getEntryEnumerator().valueOf(pair.record().id1());
+            if (!result.containsKey(entry))
+                result.put(entry, new ArrayList<Double>());
+            result.get(entry).add(pair.weight());
+        }
+        src.close();
+        return result;
+    }
+
+    /**
+     * Selecting neighbours during all-pairs should give the same neighbour
+     * weights as writing all the sims and running the external k-NN sort.
+     */
+    @Test
+    public void testSameAsExternalKnn() throws Exception {
+        final int k = 5;
+        final File neighs = new File(TEST_OUTPUT_DIR, FRUIT_NAME + ".knntest.neighs");
+        neighs.delete();
+
+        final AllPairsCommand simsAllPairs = newFruitAllPairs("knntest");
+        simsAllPairs.setMeasureName("Lin");
+        simsAllPairs.runCommand();
+        final File sims = simsAllPairs.getOutputFile();
+
+        final AllPairsCommand fusedAllPairs = newFruitAllPairs("knntest.fused");
+        fusedAllPairs.setMeasureName("Lin");
+        fusedAllPairs.setK(k);
+        fusedAllPairs.runCommand();
+        final File fused = fusedAllPairs.getOutputFile();
+
+        final ExternalKnnSimsCommand knnCmd = new ExternalKnnSimsCommand();
+        knnCmd.getFileDelegate().setSourceFile(sims);
+        knnCmd.getFileDelegate().setDestinationFile(neighs);
+        knnCmd.getFileDelegate().setCharset(DEFAULT_CHARSET);
+        knnCmd.setIndexDelegate(new DoubleEnumeratingDelegate(
+                Enumerating.DEFAULT_TYPE, false, false, null, null));
+        knnCmd.setK(k);
+        knnCmd.setTempFileFactory(new TempFileFactory(TEST_TMP_DIR));
+        knnCmd.runCommand();
+
+        final DoubleEnumeratingDelegate del = new DoubleEnumeratingDelegate(
+                Enumerating.DEFAULT_TYPE, false, false, null, null);
+        final Map<String, List<Double>> expected = readNeighbourWeights(neighs, del);
+        final Map<String, List<Double>> actual = readNeighbourWeights(fused, del);
+
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, actual);
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.commands.AllPairsCommand;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
+import uk.ac.susx.mlcl.byblo.tasks.AbstractAllPairsTaskTest;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+import uk.ac.susx.mlcl.lib.io.SeekableObjectSource;
+
+import static org.junit.Assert.*;
+import static uk.ac.susx.mlcl.TestConstants.*;
+import static uk.ac.susx.mlcl.byblo.tasks.AbstractAllPairsTaskTest.newFruitAllPairs;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class MappedVectorStoreTest {
+
+    private static List<Indexed<SparseDoubleVector>> readFruitEvents()
+            throws IOException {
+        DoubleEnumeratingDelegate del = new DoubleEnumeratingDelegate(
+                Enumerating.DEFAULT_TYPE, false, false, null, null);
+        FastWeightedTokenPairVectorSource src = BybloIO.openEventsVectorSource(
+                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del);
+        final List<Indexed<SparseDoubleVector>> vectors =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        while (src.hasNext())
+            vectors.add(src.read());
+        return vectors;
+    }
+
+    private static void assertVectorEquals(Indexed<SparseDoubleVector> expected,
+                                           Indexed<SparseDoubleVector> actual) {
+        assertEquals(expected.key(), actual.key());
+        assertEquals(expected.value(), actual.value());
+        assertEquals(expected.value().cardinality, actual.value().cardinality);
+        assertEquals(expected.value().sum, actual.value().sum, 0.0);
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        final List<Indexed<SparseDoubleVector>> expected = readFruitEvents();
+        final File file = new File(TEST_OUTPUT_DIR, FRUIT_NAME + ".vectors");
+
+        assertEquals(expected.size(), MappedVectorStore.write(
+                ObjectIO.asSource((Iterable<Indexed<SparseDoubleVector>>) expected), file));
+
+        final MappedVectorStore store = MappedVectorStore.open(file);
+        try {
+            assertEquals(expected.size(), store.size());
+            long nonZeros = 0;
+            for (Indexed<SparseDoubleVector> v : expected)
+                nonZeros += v.value().size;
+            assertEquals(nonZeros, store.getNonZeroCount());
+
+            final SeekableObjectSource<Indexed<SparseDoubleVector>, Integer> src =
+                    store.openSource();
+            for (Indexed<SparseDoubleVector> v : expected) {
+                assertTrue(src.hasNext());
+                assertVectorEquals(v, src.read());
+            }
+            assertFalse(src.hasNext());
+
+            // Seek back part way and read the rest again
+            final int middle = expected.size() / 2;
+            src.position(middle);
+            for (int i = middle; i < expected.size(); i++)
+                assertVectorEquals(expected.get(i), src.read());
+            assertFalse(src.hasNext());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testEmptyStore() throws IOException {
+        final File file = new File(TEST_OUTPUT_DIR, "empty.vectors");
+        assertEquals(0, MappedVectorStore.write(ObjectIO.asSource(
+                (Iterable<Indexed<SparseDoubleVector>>) Collections.<Indexed<SparseDoubleVector>>emptyList()), file));
+
+        final MappedVectorStore store = MappedVectorStore.open(file);
+        try {
+            assertEquals(0, store.size());
+            assertFalse(store.openSource().hasNext());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAStore() throws IOException {
+        final File file = new File(TEST_OUTPUT_DIR, "not-a-store.vectors");
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[64]);
+        } finally {
+            out.close();
+        }
+        MappedVectorStore.open(file);
+    }
+
+    private static List<String> runAllPairs(boolean textVectors)
+            throws Exception {
+        final AllPairsCommand allpairs = newFruitAllPairs(
+                textVectors ? "text" : "mapped");
+        allpairs.setNumThreads(4);
+        allpairs.setTextVectors(textVectors);
+        return AbstractAllPairsTaskTest.runAllPairs(allpairs);
+    }
+
+    @Test
+    public void testAllPairsSameAsText() throws Exception {
+        final List<String> text = runAllPairs(true);
+        assertFalse(text.isEmpty());
+        assertEquals(text, runAllPairs(false));
+    }
+
+}
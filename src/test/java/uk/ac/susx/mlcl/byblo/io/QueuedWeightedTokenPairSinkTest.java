@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+import uk.ac.susx.mlcl.lib.io.ObjectSink;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class QueuedWeightedTokenPairSinkTest {
+
+    @Test
+    public void testConcurrentBatches() throws Exception {
+        final int nThreads = 8;
+        final int nBatches = 50;
+        final int batchSize = 1000;
+
+        final List<Weighted<TokenPair>> actual = new ArrayList<Weighted<TokenPair>>();
+        final QueuedWeightedTokenPairSink sink = new QueuedWeightedTokenPairSink(
+                new ObjectSink<Weighted<TokenPair>>() {
+
+                    // Deliberately not thread-safe
+                    @Override
+                    public void write(Weighted<TokenPair> o) {
+                        actual.add(o);
+                    }
+
+                }, 2);
+
+        final ExecutorService exec = Executors.newFixedThreadPool(nThreads);
+        final List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < nThreads; t++) {
+            final int thread = t;
+            futures.add(exec.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws IOException {
+                    final WeightedTokenPairBuffer buffer = new WeightedTokenPairBuffer();
+                    for (int b = 0; b < nBatches; b++) {
+                        for (int i = 0; i < batchSize; i++)
+                            buffer.add(thread, b * batchSize + i, i);
+                        sink.write(buffer);
+                        buffer.clear();
+                    }
+                    sink.write(new Weighted<TokenPair>(new TokenPair(thread, -1), -1));
+                    return null;
+                }
+
+            }));
+        }
+        for (Future<?> f : futures)
+            f.get();
+        exec.shutdown();
+        assertTrue(exec.awaitTermination(1, TimeUnit.MINUTES));
+
+        sink.close();
+
+        assertEquals(nThreads * (nBatches * batchSize + 1), actual.size());
+
+        // Pairs from each batch must arrive intact and in order
+        final List<List<Integer>> perThread = new ArrayList<List<Integer>>();
+        for (int t = 0; t < nThreads; t++)
+            perThread.add(new ArrayList<Integer>());
+        for (Weighted<TokenPair> p : actual)
+            perThread.get(p.record().id1()).add(p.record().id2());
+        for (int t = 0; t < nThreads; t++) {
+            final List<Integer> ids = perThread.get(t);
+            assertEquals(nBatches * batchSize + 1, ids.size());
+            Collections.sort(ids);
+            for (int i = 0; i < ids.size(); i++)
+                assertEquals(i - 1, (int) ids.get(i));
+        }
+    }
+
+    @Test
+    public void testFlushWritesEverything() throws Exception {
+        final List<Weighted<TokenPair>> actual =
+                Collections.synchronizedList(new ArrayList<Weighted<TokenPair>>());
+        final QueuedWeightedTokenPairSink sink =
+                new QueuedWeightedTokenPairSink(ObjectIO.asSink(actual));
+
+        final WeightedTokenPairBuffer buffer = new WeightedTokenPairBuffer();
+        buffer.add(1, 2, 3);
+        buffer.add(4, 5, 6);
+        sink.write(buffer);
+        sink.write(new Weighted<TokenPair>(new TokenPair(7, 8), 9));
+        sink.flush();
+
+        assertEquals(3, actual.size());
+        assertEquals(new TokenPair(7, 8), actual.get(2).record());
+        sink.close();
+    }
+
+    @Test
+    public void testInnerFailureIsReported() throws Exception {
+        final QueuedWeightedTokenPairSink sink = new QueuedWeightedTokenPairSink(
+                new ObjectSink<Weighted<TokenPair>>() {
+
+                    @Override
+                    public void write(Weighted<TokenPair> o) throws IOException {
+                        throw new IOException("disk full");
+                    }
+
+                });
+
+        final WeightedTokenPairBuffer buffer = new WeightedTokenPairBuffer();
+        buffer.add(1, 2, 3);
+        sink.write(buffer);
+        try {
+            sink.close();
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("disk full"));
+        }
+    }
+
+    /**
+     * An Error in the inner sink must be reported to producers, rather than
+     * leaving them blocked on a queue that is no longer drained.
+     */
+    @Test(timeout = 10000)
+    public void testInnerErrorIsReported() throws Exception {
+        final QueuedWeightedTokenPairSink sink = new QueuedWeightedTokenPairSink(
+                new ObjectSink<Weighted<TokenPair>>() {
+
+                    @Override
+                    public void write(Weighted<TokenPair> o) {
+                        throw new OutOfMemoryError("simulated");
+                    }
+
+                }, 1);
+
+        final WeightedTokenPairBuffer buffer = new WeightedTokenPairBuffer();
+        buffer.add(1, 2, 3);
+        try {
+            // More batches than the queue holds, so a dead writer would block
+            for (int i = 0; i < 100; i++)
+                sink.write(buffer);
+            sink.flush();
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            assertTrue(rootCause(ex) instanceof OutOfMemoryError);
+        }
+        try {
+            sink.write(buffer);
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            assertTrue(rootCause(ex) instanceof OutOfMemoryError);
+        }
+        try {
+            sink.close();
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            assertTrue(rootCause(ex) instanceof OutOfMemoryError);
+        }
+    }
+
+    private static Throwable rootCause(Throwable ex) {
+        while (ex.getCause() != null)
+            ex = ex.getCause();
+        return ex;
+    }
+}
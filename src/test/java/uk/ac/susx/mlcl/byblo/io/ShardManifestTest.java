@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static uk.ac.susx.mlcl.TestConstants.*;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ShardManifestTest {
+
+    /**
+     * Divide a chunk grid between shards in the same way as ThreadedApssTask:
+     * row by row, giving each chunk pair to the next shard in turn.
+     */
+    private static List<ShardManifest> shards(int nShards, int nChunks, boolean triangular) {
+        final List<LongArrayList> pairs = new ArrayList<LongArrayList>();
+        for (int s = 0; s < nShards; s++)
+            pairs.add(new LongArrayList());
+        int ordinal = 0;
+        for (int a = 0; a < nChunks; a++) {
+            for (int b = triangular ? a : 0; b < nChunks; b++) {
+                pairs.get(ordinal++ % nShards).add(ShardManifest.pairKey(a, b));
+            }
+        }
+
+        final List<ShardManifest> manifests = new ArrayList<ShardManifest>();
+        for (int s = 0; s < nShards; s++) {
+            manifests.add(new ShardManifest(s, nShards, 100, nChunks, nChunks,
+                    triangular, pairs.get(s).toLongArray()));
+        }
+        return manifests;
+    }
+
+    @Test
+    public void testPairKey() {
+        for (int a : new int[]{0, 1, 7, Integer.MAX_VALUE}) {
+            for (int b : new int[]{0, 3, Integer.MAX_VALUE}) {
+                final long key = ShardManifest.pairKey(a, b);
+                assertEquals(a, ShardManifest.pairA(key));
+                assertEquals(b, ShardManifest.pairB(key));
+            }
+        }
+    }
+
+    @Test
+    public void testGridSize() {
+        assertEquals(15, shards(1, 5, true).get(0).getGridSize());
+        assertEquals(25, shards(1, 5, false).get(0).getGridSize());
+        assertEquals(0, shards(1, 0, true).get(0).getGridSize());
+    }
+
+    @Test
+    public void testComplete() {
+        for (int nShards : new int[]{1, 2, 3, 7, 20}) {
+            ShardManifest.checkComplete(shards(nShards, 6, true));
+            ShardManifest.checkComplete(shards(nShards, 6, false));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingShard() {
+        final List<ShardManifest> manifests = shards(3, 6, true);
+        manifests.remove(1);
+        ShardManifest.checkComplete(manifests);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDuplicateShard() {
+        final List<ShardManifest> manifests = shards(3, 6, true);
+        manifests.set(1, manifests.get(0));
+        ShardManifest.checkComplete(manifests);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDifferentGrids() {
+        final List<ShardManifest> manifests = shards(2, 6, true);
+        manifests.set(1, shards(2, 7, true).get(1));
+        ShardManifest.checkComplete(manifests);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingChunkPair() {
+        final List<ShardManifest> manifests = shards(2, 6, false);
+        final long[] pairs = manifests.get(1).getChunkPairs();
+        manifests.set(1, new ShardManifest(1, 2, 100, 6, 6, false,
+                Arrays.copyOf(pairs, pairs.length - 1)));
+        ShardManifest.checkComplete(manifests);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOutsideGrid() {
+        new ShardManifest(0, 1, 100, 6, 6, true,
+                new long[]{ShardManifest.pairKey(3, 2)});
+    }
+
+    @Test
+    public void testStoreLoad() throws IOException {
+        for (ShardManifest expected : shards(3, 5, true)) {
+            final File file = ShardManifest.sidecarFile(new File(TEST_OUTPUT_DIR,
+                    "shard-manifest-test-" + expected.getShardIndex() + ".sims"));
+            expected.store(file);
+            assertEquals(expected, ShardManifest.load(file));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testLoadMalformed() throws IOException {
+        final File file = new File(TEST_OUTPUT_DIR, "shard-manifest-malformed.manifest");
+        com.google.common.io.Files.write(
+                "shard=0\nshards=2\nchunkSize=10\nchunksA=2\nchunksB=2\ntriangular=true\nchunkPairs=0:0,1\n",
+                file, DEFAULT_CHARSET);
+        ShardManifest.load(file);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static uk.ac.susx.mlcl.TestConstants.*;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class VectorCardinalityStatsTest {
+
+    private static VectorCardinalityStats compute(int... cardinalities) throws IOException {
+        final List<Weighted<TokenPair>> events = new ArrayList<Weighted<TokenPair>>();
+        for (int entry = 0; entry < cardinalities.length; entry++) {
+            for (int feature = 0; feature < cardinalities[entry]; feature++) {
+                events.add(new Weighted<TokenPair>(new TokenPair(entry, feature), 1));
+            }
+        }
+        return VectorCardinalityStats.compute(ObjectIO.asSource((Iterable<Weighted<TokenPair>>) events));
+    }
+
+    @Test
+    public void testCompute() throws IOException {
+        final VectorCardinalityStats stats = compute(3, 1, 2);
+        assertEquals(3, stats.getVectorCount());
+        assertEquals(6, stats.getNonZeroCount());
+        assertEquals(3, stats.getMaxNonZeros());
+        assertEquals(3, stats.getP99NonZeros());
+        assertEquals(2.0, stats.getMeanNonZeros(), 0);
+    }
+
+    @Test
+    public void testComputeEmpty() throws IOException {
+        final VectorCardinalityStats stats = compute();
+        assertEquals(0, stats.getVectorCount());
+        assertEquals(0, stats.getNonZeroCount());
+        assertEquals(0, stats.getMaxNonZeros());
+        assertEquals(0, stats.getP99NonZeros());
+        assertEquals(0.0, stats.getMeanNonZeros(), 0);
+    }
+
+    @Test
+    public void testPercentileIgnoresOutliers() throws IOException {
+        final int[] cardinalities = new int[200];
+        for (int i = 0; i < cardinalities.length; i++)
+            cardinalities[i] = 1 + (i % 4);
+        cardinalities[17] = 1000;
+        cardinalities[101] = 500;
+
+        final VectorCardinalityStats stats = compute(cardinalities);
+        assertEquals(200, stats.getVectorCount());
+        assertEquals(1000, stats.getMaxNonZeros());
+        assertEquals(4, stats.getP99NonZeros());
+    }
+
+    @Test
+    public void testFruit() throws IOException {
+        final DoubleEnumeratingDelegate del = new DoubleEnumeratingDelegate(
+                Enumerating.DEFAULT_TYPE, false, false, null, null);
+
+        final WeightedTokenPairSource events = WeightedTokenPairSource.open(
+                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false);
+        final VectorCardinalityStats stats = VectorCardinalityStats.compute(events);
+        events.close();
+
+        final WeightedTokenPairVectorSource vectors = new WeightedTokenPairVectorSource(
+                WeightedTokenPairSource.open(TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false));
+        long vectorCount = 0;
+        long nonZeroCount = 0;
+        int maxNonZeros = 0;
+        while (vectors.hasNext()) {
+            final Indexed<SparseDoubleVector> v = vectors.read();
+            ++vectorCount;
+            nonZeroCount += v.value().size;
+            maxNonZeros = Math.max(maxNonZeros, v.value().size);
+        }
+
+        assertEquals(vectorCount, stats.getVectorCount());
+        assertEquals(nonZeroCount, stats.getNonZeroCount());
+        assertEquals(maxNonZeros, stats.getMaxNonZeros());
+    }
+
+    @Test
+    public void testStoreLoad() throws IOException {
+        final VectorCardinalityStats expected = new VectorCardinalityStats(1234, 56789, 321, 87);
+        final File file = VectorCardinalityStats.sidecarFile(
+                new File(TEST_OUTPUT_DIR, "vector-stats-test.events"));
+        expected.store(file);
+        assertEquals(expected, VectorCardinalityStats.load(file));
+    }
+
+    @Test(expected = IOException.class)
+    public void testLoadMalformed() throws IOException {
+        final File file = new File(TEST_OUTPUT_DIR, "vector-stats-malformed.stats");
+        com.google.common.io.Files.write("vectors=12\nnonZeros=lots\n", file, DEFAULT_CHARSET);
+        VectorCardinalityStats.load(file);
+    }
+}
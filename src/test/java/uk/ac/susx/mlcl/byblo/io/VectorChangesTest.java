@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class VectorChangesTest {
+
+    private static Indexed<SparseDoubleVector> vector(int key, double weight, int... features) {
+        final double[] values = new double[features.length];
+        Arrays.fill(values, weight);
+        return new Indexed<SparseDoubleVector>(key, new SparseDoubleVector(
+                features, values, features.length == 0 ? 0
+                                  : features[features.length - 1] + 1,
+                features.length));
+    }
+
+    private static VectorChanges compare(List<Indexed<SparseDoubleVector>> previous,
+                                         List<Indexed<SparseDoubleVector>> current)
+            throws IOException {
+        return VectorChanges.compare(
+                ObjectIO.asSource((Iterable<Indexed<SparseDoubleVector>>) previous),
+                ObjectIO.asSource((Iterable<Indexed<SparseDoubleVector>>) current));
+    }
+
+    @Test
+    public void testCompare() throws IOException {
+        final VectorChanges changes = compare(
+                Arrays.asList(
+                        vector(0, 1, 1, 2, 3),
+                        vector(1, 1, 1, 2),
+                        vector(2, 1, 4),
+                        vector(3, 1, 5, 6)),
+                Arrays.asList(
+                        // Unchanged, but in a different order
+                        vector(3, 1, 5, 6),
+                        vector(0, 1, 1, 2, 3),
+                        // A weight changed
+                        vector(1, 2, 1, 2),
+                        // Added
+                        vector(4, 1, 1)));
+
+        assertEquals(1, changes.getAddedCount());
+        assertEquals(1, changes.getModifiedCount());
+        assertEquals(1, changes.getRemovedCount());
+        assertEquals(2, changes.getUnchangedCount());
+
+        assertTrue(changes.getChangedIds().contains(1));
+        assertTrue(changes.getChangedIds().contains(4));
+        assertTrue(changes.getRemovedIds().contains(2));
+        assertEquals(2, changes.getChangedVectors().size());
+
+        assertFalse(changes.isStale(0));
+        assertTrue(changes.isStale(1));
+        assertTrue(changes.isStale(2));
+        assertFalse(changes.isStale(3));
+        assertTrue(changes.isStale(4));
+    }
+
+    @Test
+    public void testCompareFeaturesChanged() throws IOException {
+        final VectorChanges changes = compare(
+                Arrays.asList(vector(0, 1, 1, 2)),
+                Arrays.asList(vector(0, 1, 1, 3)));
+        assertEquals(1, changes.getModifiedCount());
+        assertEquals(0, changes.getUnchangedCount());
+    }
+
+    @Test
+    public void testCompareIdentical() throws IOException {
+        final List<Indexed<SparseDoubleVector>> vectors = Arrays.asList(
+                vector(0, 1, 1, 2), vector(1, 0.5, 3), vector(2, 1));
+        final VectorChanges changes = compare(vectors, vectors);
+        assertTrue(changes.getChangedIds().isEmpty());
+        assertTrue(changes.getRemovedIds().isEmpty());
+        assertEquals(3, changes.getUnchangedCount());
+    }
+
+}
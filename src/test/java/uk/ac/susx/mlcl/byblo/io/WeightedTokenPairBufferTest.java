@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.io;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class WeightedTokenPairBufferTest {
+
+    @Test
+    public void testAddAndGet() {
+        final WeightedTokenPairBuffer buffer = new WeightedTokenPairBuffer(1);
+        assertTrue(buffer.isEmpty());
+        for (int i = 0; i < 100; i++)
+            buffer.add(i, 100 - i, i / 10.0);
+        assertEquals(100, buffer.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, buffer.id1(i));
+            assertEquals(100 - i, buffer.id2(i));
+            assertEquals(i / 10.0, buffer.weight(i), 0);
+        }
+        buffer.clear();
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testOutOfBounds() {
+        final WeightedTokenPairBuffer buffer = new WeightedTokenPairBuffer();
+        buffer.add(1, 2, 3);
+        buffer.id1(1);
+    }
+
+    @Test
+    public void testSortSameAsObjects() throws Exception {
+        final Random rand = new Random(0);
+        final WeightedTokenPairBuffer buffer = new WeightedTokenPairBuffer();
+        final List<Weighted<TokenPair>> expected = new ArrayList<Weighted<TokenPair>>();
+        for (int i = 0; i < 10000; i++) {
+            final Weighted<TokenPair> pair = new Weighted<TokenPair>(
+                    new TokenPair(rand.nextInt(100), rand.nextInt(100000)), rand.nextDouble());
+            buffer.add(pair);
+            expected.add(pair);
+        }
+        Collections.sort(expected, Weighted.recordOrder(TokenPair.indexOrder()));
+        buffer.sort();
+
+        final List<Weighted<TokenPair>> actual = new ArrayList<Weighted<TokenPair>>();
+        assertEquals(expected.size(), buffer.copyTo(ObjectIO.asSink(actual)));
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).record(), actual.get(i).record());
+        }
+    }
+
+    @Test
+    public void testReflect() {
+        final WeightedTokenPairBuffer buffer = new WeightedTokenPairBuffer(2);
+        buffer.add(1, 2, 0.5);
+        buffer.add(3, 4, 0.25);
+        buffer.reflect();
+        assertEquals(4, buffer.size());
+        assertEquals(2, buffer.id1(2));
+        assertEquals(1, buffer.id2(2));
+        assertEquals(0.5, buffer.weight(2), 0);
+        assertEquals(4, buffer.id1(3));
+        assertEquals(3, buffer.id2(3));
+        assertEquals(0.25, buffer.weight(3), 0);
+    }
+
+    @Test
+    public void testAddAll() {
+        final WeightedTokenPairBuffer a = new WeightedTokenPairBuffer(1);
+        final WeightedTokenPairBuffer b = new WeightedTokenPairBuffer(1);
+        a.add(1, 2, 3);
+        for (int i = 0; i < 10; i++)
+            b.add(i, i, i);
+        a.addAll(b);
+        assertEquals(11, a.size());
+        assertEquals(9, a.id2(10));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import java.util.Random;
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class AbstractMIProximityTest {
+
+    private static final double EPSILON = 1E-12;
+
+    @Test
+    public void testPriorTables() {
+        final Random rand = new Random(0);
+        final int numFeatures = 100;
+        final double[] frequencies = new double[numFeatures];
+        double frequencySum = 0;
+        for (int k = 0; k < numFeatures; k++) {
+            frequencies[k] = rand.nextInt(50);
+            frequencySum += frequencies[k];
+        }
+
+        final Lin measure = new Lin();
+        measure.setFeatureFrequencies(frequencies);
+        measure.setFeatureFrequencySum(frequencySum);
+
+        for (int k = 0; k < numFeatures; k++) {
+            assertEquals(frequencies[k] / frequencySum, measure.featurePrior(k), 0);
+        }
+
+        for (int v = 0; v < 50; v++) {
+            final SparseDoubleVector vec = new SparseDoubleVector(numFeatures);
+            for (int k = 0; k < 20; k++) {
+                vec.set(rand.nextInt(numFeatures), 1 + rand.nextInt(10));
+            }
+            for (int i = 0; i < vec.size; i++) {
+                final double ratio = (vec.values[i] / vec.sum)
+                        / (frequencies[vec.keys[i]] / frequencySum);
+                final double expected = ratio > 1 ? Math.log(ratio) / Math.log(2) : 0;
+                assertEquals(expected, measure.posInf(vec, i), EPSILON);
+                assertTrue(measure.posInf(vec, i) >= 0);
+            }
+        }
+    }
+
+    @Test
+    public void testPriorTablesRebuilt() {
+        final Lin measure = new Lin();
+        measure.setFeatureFrequencies(new double[]{1, 3});
+        measure.setFeatureFrequencySum(4);
+        assertEquals(0.25, measure.featurePrior(0), 0);
+
+        measure.setFeatureFrequencySum(8);
+        assertEquals(0.125, measure.featurePrior(0), 0);
+
+        measure.setFeatureFrequencies(new double[]{2, 2, 4});
+        assertEquals(0.5, measure.featurePrior(2), 0);
+    }
+}
@@ -31,6 +31,7 @@
 package uk.ac.susx.mlcl.byblo.measures;
 
 import java.io.File;
+import java.util.Random;
 import static org.junit.Assert.*;
 import org.junit.Test;
 import static uk.ac.susx.mlcl.TestConstants.*;
@@ -42,6 +43,7 @@ import uk.ac.susx.mlcl.byblo.enumerators.MemoryBasedStringEnumerator;
 import uk.ac.susx.mlcl.byblo.io.TokenPair;
 import uk.ac.susx.mlcl.byblo.io.Weighted;
 import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 import static uk.ac.susx.mlcl.lib.test.ExitTrapper.*;
 
 /**
@@ -275,4 +277,57 @@ public class CrMiTest {
         assertEquals(expected.hasNext(), actual.hasNext());
     }
 
+
+    /**
+     * CrMi calculates recall and precision in a single pass. Check it against
+     * the definition in terms of RecallMi.
+     */
+    @Test
+    public void testSameAsRecallMi() {
+        final Random rand = new Random(0);
+        final int numFeatures = 50;
+        final double[] frequencies = new double[numFeatures];
+        double frequencySum = 0;
+        for (int k = 0; k < numFeatures; k++) {
+            frequencies[k] = 1 + rand.nextInt(100);
+            frequencySum += frequencies[k];
+        }
+        final SparseDoubleVector[] vectors = new SparseDoubleVector[30];
+        for (int v = 0; v < vectors.length; v++) {
+            vectors[v] = new SparseDoubleVector(numFeatures);
+            final int size = 1 + rand.nextInt(numFeatures);
+            for (int k = 0; k < size; k++) {
+                vectors[v].set(rand.nextInt(numFeatures), 1 + rand.nextInt(20));
+            }
+        }
+
+        final RecallMi recallMi = new RecallMi();
+        recallMi.setFeatureFrequencies(frequencies);
+        recallMi.setFeatureFrequencySum(frequencySum);
+        recallMi.setFilteredFeatureId(7);
+
+        for (double[] params : new double[][]{{0, 0}, {1, 0}, {0.5, 0.5}, {0.3, 1}}) {
+            final CrMi crmi = new CrMi();
+            crmi.setBeta(params[0]);
+            crmi.setGamma(params[1]);
+            crmi.setFeatureFrequencies(frequencies);
+            crmi.setFeatureFrequencySum(frequencySum);
+            crmi.setFilteredFeatureId(7);
+
+            for (SparseDoubleVector a : vectors) {
+                for (SparseDoubleVector b : vectors) {
+                    final double recall = recallMi.shared(a, b) / recallMi.left(a);
+                    final double precision = recallMi.shared(b, a) / recallMi.left(b);
+                    final double am = (params[0] * precision) + ((1 - params[0]) * recall);
+                    final double hm = (precision + recall) != 0
+                            ? (2 * precision * recall) / (precision + recall)
+                            : 0;
+                    final double expected = params[1] * hm + (1 - params[1]) * am;
+                    assertEquals(crmi.toString(),
+                                 Double.doubleToLongBits(expected),
+                                 Double.doubleToLongBits(crmi.shared(a, b)));
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+import uk.ac.susx.mlcl.testing.SlowTestCategory;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class IntersectionTest {
+
+    private static int[] randomKeys(Random rand, int size, int cardinality) {
+        final int[] keys = new int[size];
+        int n = 0;
+        while (n < size) {
+            keys[n++] = rand.nextInt(cardinality);
+            if (n == size) {
+                // Remove duplicates, and top up until there are enough
+                Arrays.sort(keys);
+                int unique = 0;
+                for (int i = 0; i < size; i++) {
+                    if (unique == 0 || keys[unique - 1] != keys[i]) {
+                        keys[unique++] = keys[i];
+                    }
+                }
+                n = unique;
+            }
+        }
+        return keys;
+    }
+
+    private static SparseDoubleVector randomVector(Random rand, int size, int cardinality) {
+        final int[] keys = randomKeys(rand, size, cardinality);
+        final double[] values = new double[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = 1 + rand.nextInt(10);
+        }
+        return new SparseDoubleVector(keys, values, cardinality, size);
+    }
+
+    @Test
+    public void testSkipTo() {
+        final Random rand = new Random(0);
+        for (int trial = 0; trial < 1000; trial++) {
+            final int[] keys = randomKeys(rand, 1 + rand.nextInt(200), 1000);
+            final int to = 1 + rand.nextInt(keys.length);
+            final int from = rand.nextInt(to);
+            final int key = keys[from] + 1 + rand.nextInt(1000);
+
+            int expected = from + 1;
+            while (expected < to && keys[expected] < key) {
+                expected++;
+            }
+            assertEquals(expected, Intersection.skipTo(keys, from, to, key));
+        }
+    }
+
+    @Test
+    public void testIsSkewed() {
+        assertFalse(Intersection.isSkewed(10, 10, 1));
+        assertTrue(Intersection.isSkewed(11, 10, 1));
+        assertTrue(Intersection.isSkewed(10, 11, 1));
+        assertFalse(Intersection.isSkewed(80, 10, 8));
+        assertTrue(Intersection.isSkewed(81, 10, 8));
+        assertTrue(Intersection.isSkewed(0, 1, 8));
+        assertFalse(Intersection.isSkewed(0, 0, 8));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidGallopRatio() {
+        new Jaccard().setGallopRatio(0.5);
+    }
+
+    /**
+     * Galloping must not change the result of any measure, only the time
+     * taken to calculate it.
+     */
+    @Test
+    public void testSkewedPairs() {
+        final Random rand = new Random(1);
+        final AbstractProximity[] measures = {
+            new Cosine(), new Jaccard(), new Lp(), new Lee()
+        };
+        for (int trial = 0; trial < 100; trial++) {
+            final SparseDoubleVector hub = randomVector(rand, 5000, 20000);
+            final SparseDoubleVector rare = randomVector(rand, 1 + rand.nextInt(50), 20000);
+            for (AbstractProximity measure : measures) {
+                measure.setGallopRatio(Double.POSITIVE_INFINITY);
+                final double mergeAB = measure.shared(hub, rare);
+                final double mergeBA = measure.shared(rare, hub);
+                measure.setGallopRatio(1);
+                assertEquals(measure.toString(),
+                             Double.doubleToLongBits(mergeAB),
+                             Double.doubleToLongBits(measure.shared(hub, rare)));
+                assertEquals(measure.toString(),
+                             Double.doubleToLongBits(mergeBA),
+                             Double.doubleToLongBits(measure.shared(rare, hub)));
+            }
+        }
+    }
+
+    /**
+     * Time the linear merge against galloping intersection, for a large hub
+     * vector paired with increasingly small vectors, to find the size ratio at
+     * which galloping becomes worthwhile.
+     */
+    @Test
+    @Category(SlowTestCategory.class)
+    public void testCrossover() {
+        final Random rand = new Random(2);
+        final int hubSize = 200000;
+        final int cardinality = 1000000;
+        final int pairs = 50;
+        final SparseDoubleVector hub = randomVector(rand, hubSize, cardinality);
+        final Jaccard measure = new Jaccard();
+
+        // Vectors of equal size are never galloped, whatever the gallop
+        // ratio, so the rows start at a size ratio of 2.
+        System.out.println("ratio\tmerge-ns\tgallop-ns");
+        for (int pass = 0; pass < 2; pass++) {
+            for (int ratio = 2; ratio <= 4096; ratio <<= 1) {
+                final SparseDoubleVector[] others = new SparseDoubleVector[pairs];
+                for (int k = 0; k < pairs; k++) {
+                    others[k] = randomVector(rand, hubSize / ratio, cardinality);
+                }
+
+                measure.setGallopRatio(Double.POSITIVE_INFINITY);
+                double merge = 0;
+                long start = System.nanoTime();
+                for (int k = 0; k < pairs; k++) {
+                    merge += measure.shared(hub, others[k]);
+                }
+                final long mergeTime = (System.nanoTime() - start) / pairs;
+
+                // A gallop ratio of 1 forces galloping for any unequal sizes
+                assertTrue(Intersection.isSkewed(hub.size, others[0].size, 1));
+                measure.setGallopRatio(1);
+                double gallop = 0;
+                start = System.nanoTime();
+                for (int k = 0; k < pairs; k++) {
+                    gallop += measure.shared(hub, others[k]);
+                }
+                final long gallopTime = (System.nanoTime() - start) / pairs;
+
+                assertEquals(merge, gallop, 0);
+                // The first pass only warms up the JIT
+                if (pass == 1) {
+                    System.out.println(ratio + "\t" + mergeTime + "\t" + gallopTime);
+                }
+            }
+        }
+    }
+}
@@ -31,11 +31,20 @@
 package uk.ac.susx.mlcl.byblo.measures;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 import static org.junit.Assert.*;
 import org.junit.Ignore;
 import org.junit.Test;
 import static uk.ac.susx.mlcl.TestConstants.*;
 import uk.ac.susx.mlcl.byblo.Tools;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
+import uk.ac.susx.mlcl.byblo.io.BybloIO;
+import uk.ac.susx.mlcl.byblo.io.FastWeightedTokenPairVectorSource;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
 import static uk.ac.susx.mlcl.lib.test.ExitTrapper.*;
 
 /**
@@ -107,4 +116,210 @@ public class KendallTauTest {
 //        assertTrue(WeightedTokenPairSource.equal(output1, output2,
 //                                                 DEFAULT_CHARSET, false, false));
     }
+
+    /**
+     * The original quadratic implementation, which compares every pair of
+     * features directly. Used as a reference for the current one.
+     */
+    private static double quadraticShared(int numFeatures,
+                                          SparseDoubleVector A, SparseDoubleVector B) {
+        int sum = 0;
+        int intersectionSize = 0;
+        int unionSize = 0;
+        int ai = 0;
+        int bi = 0;
+
+        while (ai < A.size && bi < B.size) {
+            ++unionSize;
+            if (A.keys[ai] < B.keys[bi]) {
+                int aj = ai + 1;
+                int bj = bi;
+                while (aj < A.size && bj < B.size) {
+                    if (A.keys[aj] < B.keys[bj]) {
+                        ++aj;
+                    } else if (A.keys[aj] > B.keys[bj]) {
+                        --sum;
+                        ++bj;
+                    } else {
+                        if (A.values[ai] < A.values[aj])
+                            ++sum;
+                        else if (A.values[ai] > A.values[aj])
+                            --sum;
+                        ++aj;
+                        ++bj;
+                    }
+                }
+                sum -= B.size - bj;
+                ++ai;
+            } else if (A.keys[ai] > B.keys[bi]) {
+                int aj = ai;
+                int bj = bi + 1;
+                while (aj < A.size && bj < B.size) {
+                    if (A.keys[aj] < B.keys[bj]) {
+                        --sum;
+                        ++aj;
+                    } else if (A.keys[aj] > B.keys[bj]) {
+                        ++bj;
+                    } else {
+                        if (B.values[bi] < B.values[bj])
+                            ++sum;
+                        else if (B.values[bi] > B.values[bj])
+                            --sum;
+                        ++aj;
+                        ++bj;
+                    }
+                }
+                sum -= A.size - aj;
+                ++bi;
+            } else {
+                ++intersectionSize;
+                int aj = ai + 1;
+                int bj = bi + 1;
+                while (aj < A.size && bj < B.size) {
+                    if (A.keys[aj] < B.keys[bj]) {
+                        if (A.values[ai] < A.values[aj])
+                            --sum;
+                        else if (A.values[ai] > A.values[aj])
+                            ++sum;
+                        ++aj;
+                    } else if (A.keys[aj] > B.keys[bj]) {
+                        if (B.values[bi] < B.values[bj])
+                            --sum;
+                        else if (B.values[bi] > B.values[bj])
+                            ++sum;
+                        ++bj;
+                    } else {
+                        final double diff = (A.values[ai] - A.values[aj])
+                                * (B.values[bi] - B.values[bj]);
+                        if (diff < 0)
+                            --sum;
+                        else if (diff > 0)
+                            ++sum;
+                        ++aj;
+                        ++bj;
+                    }
+                }
+                while (aj < A.size) {
+                    if (A.values[ai] < A.values[aj])
+                        --sum;
+                    else if (A.values[ai] > A.values[aj])
+                        ++sum;
+                    ++aj;
+                }
+                while (bj < B.size) {
+                    if (B.values[bi] < B.values[bj])
+                        --sum;
+                    else if (B.values[bi] > B.values[bj])
+                        ++sum;
+                    ++bj;
+                }
+                ++ai;
+                ++bi;
+            }
+        }
+        while (ai < A.size) {
+            ++unionSize;
+            int aj = ai + 1;
+            int bj = bi;
+            while (aj < A.size && bj < B.size) {
+                if (A.keys[aj] < B.keys[bj]) {
+                    ++aj;
+                } else if (A.keys[aj] > B.keys[bj]) {
+                    --sum;
+                    ++bj;
+                } else {
+                    if (A.values[ai] < A.values[aj])
+                        ++sum;
+                    else if (A.values[ai] > A.values[aj])
+                        --sum;
+                    ++aj;
+                    ++bj;
+                }
+            }
+            sum -= B.size - bj;
+            ++ai;
+        }
+        while (bi < B.size) {
+            ++unionSize;
+            int aj = ai;
+            int bj = bi + 1;
+            while (aj < A.size && bj < B.size) {
+                if (A.keys[aj] < B.keys[bj]) {
+                    --sum;
+                    ++aj;
+                } else if (A.keys[aj] > B.keys[bj]) {
+                    ++bj;
+                } else {
+                    if (B.values[bi] < B.values[bj])
+                        ++sum;
+                    else if (B.values[bi] > B.values[bj])
+                        --sum;
+                    ++aj;
+                    ++bj;
+                }
+            }
+            sum -= A.size - aj;
+            ++bi;
+        }
+
+        // Comparisons are only done in one direction so double the result
+        sum <<= 1;
+
+        // Features that don't occur in either vector are a similarity
+        // between the two sets. For each feature that they both have there
+        // should be an addition +2 to the sum.
+        // The relationship between these and disjoint features
+        sum += 2 * ((numFeatures - unionSize) * intersectionSize);
+        //
+        return (double) (sum) / (double) (numFeatures * (numFeatures - 1));
+    }
+
+    private static void assertSameAsQuadratic(int numFeatures,
+                                              List<SparseDoubleVector> vectors) {
+        final KendallTau measure = new KendallTau();
+        measure.setNumFeatures(numFeatures);
+        for (int a = 0; a < vectors.size(); a++) {
+            for (int b = 0; b < vectors.size(); b++) {
+                final double expected = quadraticShared(
+                        numFeatures, vectors.get(a), vectors.get(b));
+                final double actual = measure.shared(vectors.get(a), vectors.get(b));
+                assertEquals(a + " " + b,
+                             Double.doubleToLongBits(expected),
+                             Double.doubleToLongBits(actual));
+            }
+        }
+    }
+
+    @Test
+    public void testSameAsQuadratic_Fruit() throws Exception {
+        DoubleEnumeratingDelegate del = new DoubleEnumeratingDelegate(
+                Enumerating.DEFAULT_TYPE, false, false, null, null);
+        FastWeightedTokenPairVectorSource src = BybloIO.openEventsVectorSource(
+                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del);
+        final List<SparseDoubleVector> vectors = new ArrayList<SparseDoubleVector>();
+        int numFeatures = 0;
+        while (src.hasNext()) {
+            final Indexed<SparseDoubleVector> v = src.read();
+            vectors.add(v.value());
+            numFeatures = Math.max(numFeatures, v.value().cardinality);
+        }
+        assertSameAsQuadratic(numFeatures, vectors);
+    }
+
+    @Test
+    public void testSameAsQuadratic_Ties() {
+        // Small integer values over few features, so there are many ties
+        final Random rand = new Random(0);
+        final int numFeatures = 40;
+        final List<SparseDoubleVector> vectors = new ArrayList<SparseDoubleVector>();
+        for (int v = 0; v < 50; v++) {
+            final SparseDoubleVector vec = new SparseDoubleVector(numFeatures);
+            final int size = rand.nextInt(numFeatures);
+            for (int k = 0; k < size; k++) {
+                vec.set(rand.nextInt(numFeatures), 1 + rand.nextInt(3));
+            }
+            vectors.add(vec);
+        }
+        assertSameAsQuadratic(numFeatures, vectors);
+    }
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.measures;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
+import uk.ac.susx.mlcl.byblo.io.BybloIO;
+import uk.ac.susx.mlcl.byblo.io.FastWeightedTokenPairVectorSource;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+import static org.junit.Assert.*;
+import static uk.ac.susx.mlcl.TestConstants.*;
+
+/**
+ * Check that the shared component calculated from prepared vectors is
+ * exactly the same as that calculated from the originals, for every pair of
+ * fruit vectors.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class PreparedProximityTest {
+
+    private static List<SparseDoubleVector> vectors;
+
+    private static double[] featureFrequencies;
+
+    private static double featureFrequencySum;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        DoubleEnumeratingDelegate del = new DoubleEnumeratingDelegate(
+                Enumerating.DEFAULT_TYPE, false, false, null, null);
+        FastWeightedTokenPairVectorSource src = BybloIO.openEventsVectorSource(
+                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del);
+        vectors = new ArrayList<SparseDoubleVector>();
+        int cardinality = 0;
+        while (src.hasNext()) {
+            final Indexed<SparseDoubleVector> v = src.read();
+            vectors.add(v.value());
+            cardinality = Math.max(cardinality, v.value().cardinality);
+        }
+
+        // The feature marginals are taken from the vectors themselves
+        featureFrequencies = new double[cardinality];
+        featureFrequencySum = 0;
+        for (SparseDoubleVector v : vectors) {
+            for (int i = 0; i < v.size; i++) {
+                featureFrequencies[v.keys[i]] += v.values[i];
+                featureFrequencySum += v.values[i];
+            }
+        }
+    }
+
+    private static void testPrepared(PreparedProximity measure) {
+        if (measure instanceof AbstractMIProximity) {
+            final AbstractMIProximity mi = (AbstractMIProximity) measure;
+            mi.setFeatureFrequencies(featureFrequencies);
+            mi.setFeatureFrequencySum(featureFrequencySum);
+            mi.setOccurringFeatureCount(featureFrequencies.length);
+        }
+        // Filter a feature that occurs, so the filtered branch is exercised
+        measure.setFilteredFeatureId(vectors.get(0).keys[0]);
+
+        final List<PreparedVector> prepared = new ArrayList<PreparedVector>();
+        for (SparseDoubleVector v : vectors)
+            prepared.add(measure.prepare(v));
+
+        for (int a = 0; a < vectors.size(); a++) {
+            for (int b = 0; b < vectors.size(); b++) {
+                final double expected = measure.shared(vectors.get(a), vectors.get(b));
+                final double actual = measure.sharedPrepared(prepared.get(a), prepared.get(b));
+                assertEquals(measure + " " + a + " " + b,
+                             Double.doubleToLongBits(expected),
+                             Double.doubleToLongBits(actual));
+            }
+        }
+    }
+
+    @Test
+    public void testCosine() {
+        testPrepared(new Cosine());
+    }
+
+    @Test
+    public void testLp() {
+        for (double p : new double[]{0, 1, 2, 3.5, Double.POSITIVE_INFINITY}) {
+            final Lp lp = new Lp();
+            lp.setP(p);
+            testPrepared(lp);
+        }
+    }
+
+    @Test
+    public void testJensen() {
+        testPrepared(new Jensen());
+    }
+
+    @Test
+    public void testLee() {
+        testPrepared(new Lee());
+    }
+
+    @Test
+    public void testLin() {
+        testPrepared(new Lin());
+    }
+
+    @Test
+    public void testCosineMi() {
+        testPrepared(new CosineMi());
+    }
+
+    @Test
+    public void testHindle() {
+        testPrepared(new Hindle());
+    }
+
+    @Test
+    public void testDiceMi() {
+        testPrepared(new DiceMi());
+    }
+
+    @Test
+    public void testJaccardMi() {
+        testPrepared(new JaccardMi());
+    }
+
+    @Test
+    public void testRecallMi() {
+        testPrepared(new RecallMi());
+    }
+
+    @Test
+    public void testCrMi() {
+        for (double[] params : new double[][]{{0, 0}, {1, 0}, {0.5, 0.5}, {0.3, 1}}) {
+            final CrMi crmi = new CrMi();
+            crmi.setBeta(params[0]);
+            crmi.setGamma(params[1]);
+            testPrepared(crmi);
+        }
+    }
+
+}
@@ -32,11 +32,13 @@
 package uk.ac.susx.mlcl.byblo.tasks;
 
 import com.google.common.base.Predicate;
+import com.google.common.io.Files;
 import it.unimi.dsi.fastutil.ints.IntIterator;
 import junit.framework.Assert;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
 import uk.ac.susx.mlcl.TestConstants;
+import uk.ac.susx.mlcl.byblo.commands.AllPairsCommand;
 import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
 import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
 import uk.ac.susx.mlcl.byblo.io.*;
@@ -50,6 +52,9 @@ import uk.ac.susx.mlcl.testing.SlowTestCategory;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import static uk.ac.susx.mlcl.TestConstants.DEFAULT_CHARSET;
 import static uk.ac.susx.mlcl.TestConstants.TEST_FRUIT_EVENTS;
@@ -67,6 +72,61 @@ public abstract class AbstractAllPairsTaskTest<T extends NaiveApssTask> extends
     private static final Predicate<Weighted<TokenPair>> PAIR_FILTER =
             Weighted.greaterThanOrEqualTo(1E-10);
 
+    /**
+     * Create an all-pairs command over the fruit test data, writing to a
+     * fresh output file with the given name suffix.
+     *
+     * @param name       distinguishes the output file from those of other runs
+     * @param enumerated read the pre-enumerated fruit files
+     * @return command ready to be configured further and run
+     */
+    public static AllPairsCommand newFruitAllPairs(String name, boolean enumerated) {
+        final File output = new File(TestConstants.TEST_OUTPUT_DIR,
+                TestConstants.FRUIT_NAME + ".sims." + name);
+        output.delete();
+
+        final AllPairsCommand allpairs = new AllPairsCommand();
+        allpairs.setCharset(DEFAULT_CHARSET);
+        if (enumerated) {
+            allpairs.setEntriesFile(TestConstants.TEST_FRUIT_SKIP_INDEXED_ENTRIES);
+            allpairs.setFeaturesFile(TestConstants.TEST_FRUIT_SKIP_INDEXED_FEATURES);
+            allpairs.setEventsFile(TestConstants.TEST_FRUIT_SKIP_INDEXED_EVENTS);
+            allpairs.setEnumeratedEntries(true);
+            allpairs.setEnumeratedFeatures(true);
+        } else {
+            allpairs.setEntriesFile(TestConstants.TEST_FRUIT_ENTRIES);
+            allpairs.setFeaturesFile(TestConstants.TEST_FRUIT_FEATURES);
+            allpairs.setEventsFile(TEST_FRUIT_EVENTS);
+        }
+        allpairs.setOutputFile(output);
+        return allpairs;
+    }
+
+    public static AllPairsCommand newFruitAllPairs(String name) {
+        return newFruitAllPairs(name, false);
+    }
+
+    /**
+     * Run the given all-pairs command, and read back every pair it wrote.
+     * Chunked runs may split the neighbours of an entry over several lines,
+     * so the lines are broken into individual pairs before sorting.
+     *
+     * @return sorted pairs, each as a tab separated line
+     */
+    public static List<String> runAllPairs(AllPairsCommand allpairs)
+            throws Exception {
+        allpairs.runCommand();
+
+        final List<String> pairs = new ArrayList<String>();
+        for (String line : Files.readLines(allpairs.getOutputFile(), DEFAULT_CHARSET)) {
+            final String[] fields = line.split("\t");
+            for (int i = 1; i + 1 < fields.length; i += 2)
+                pairs.add(fields[0] + "\t" + fields[i] + "\t" + fields[i + 1]);
+        }
+        Collections.sort(pairs);
+        return pairs;
+    }
+
 
     @Test
     public void testRun() throws Exception {
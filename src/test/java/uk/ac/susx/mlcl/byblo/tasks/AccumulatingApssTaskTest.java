@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.util.List;
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.commands.AllPairsCommand;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static uk.ac.susx.mlcl.TestConstants.*;
+
+/**
+ * Some tests are inherited from the abstract-super class.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class AccumulatingApssTaskTest extends AbstractAllPairsTaskTest<AccumulatingApssTask> {
+
+    @Override
+    public Class<? extends AccumulatingApssTask> getImplementation() {
+        return AccumulatingApssTask.class;
+    }
+
+    private static List<String> runAllPairs(
+            String measure, AllPairsCommand.Algorithm algorithm)
+            throws Exception {
+        final AllPairsCommand allpairs = newFruitAllPairs(measure + "." + algorithm);
+        allpairs.setMeasureName(measure);
+        allpairs.setAlgorithm(algorithm);
+        allpairs.setNumThreads(1);
+        return runAllPairs(allpairs);
+    }
+
+    /**
+     * Accumulating the shared component feature by feature must produce
+     * exactly the same similarities as merge-joining each candidate pair.
+     */
+    @Test
+    public void testSameAsInverted() throws Exception {
+        for (String measure : new String[]{
+                "Jaccard", "Dice", "Overlap", "Cosine", "Tanimoto",
+                "Lin", "JaccardMi", "DiceMi", "CosineMi", "Hindle",
+                "RecallMi"}) {
+            System.out.println("Testing " + measure + " accumulating vs inverted");
+            final List<String> inverted = runAllPairs(
+                    measure, AllPairsCommand.Algorithm.Inverted);
+            final List<String> accumulating = runAllPairs(
+                    measure, AllPairsCommand.Algorithm.Accumulating);
+            assertFalse(inverted.isEmpty());
+            assertEquals(measure, inverted, accumulating);
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ApssStatsTest {
+
+    @SuppressWarnings("unchecked")
+    private static <T> T cloneBySerialization(T obj)
+            throws IOException, ClassNotFoundException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(obj);
+        out.close();
+        final ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+        try {
+            return (T) in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentCounting() throws InterruptedException {
+        final ApssStats stats = new ApssStats();
+        final int threads = 8;
+        final int perThread = 100000;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        stats.incrementComparisonCount();
+                        stats.recordQueryCandidates(2);
+                        stats.recordChunkPairMillis(i % 100);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        final long n = (long) threads * perThread;
+        assertEquals(n, stats.getComparisonCount());
+        assertEquals(2 * n, stats.getCandidatesCount());
+        assertEquals(n, stats.getQueryCandidates().getCount());
+        assertEquals(2 * n, stats.getQueryCandidates().getSum());
+        assertEquals(n, stats.getChunkPairMillis().getCount());
+        assertEquals(99, stats.getChunkPairMillis().getMax());
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        final Log2Histogram hist = new Log2Histogram();
+        assertEquals(0, hist.getCount());
+        assertEquals(0, hist.getPercentile(0.5));
+        assertEquals(0.0, hist.getMean(), 0.0);
+
+        for (long v = 0; v < 1000; v++)
+            hist.record(v);
+
+        assertEquals(1000, hist.getCount());
+        assertEquals(999 * 1000 / 2, hist.getSum());
+        assertEquals(999, hist.getMax());
+        assertEquals(499.5, hist.getMean(), 1e-9);
+
+        long total = 0;
+        for (long c : hist.getBucketCounts())
+            total += c;
+        assertEquals(1000, total);
+
+        // Percentiles are upper bounds, at most a factor of two loose.
+        final long p50 = hist.getPercentile(0.5);
+        assertTrue(p50 >= 500 && p50 <= 1000);
+        final long p99 = hist.getPercentile(0.99);
+        assertTrue(p99 >= 990 && p99 <= 999);
+        assertTrue(hist.getPercentile(0.1) <= p50);
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        final ApssStats stats = new ApssStats();
+        stats.addSourceReads(7);
+        stats.addProductionCount(3);
+        stats.recordChunkSize(4000);
+        stats.recordQueryCandidates(12);
+        stats.recordChunkPairMillis(250);
+
+        final ApssStats copy = cloneBySerialization(stats);
+        assertEquals(7, copy.getSourceReads());
+        assertEquals(3, copy.getProductionCount());
+        assertEquals(12, copy.getCandidatesCount());
+        assertEquals(4000, copy.getChunkSizes().getMax());
+        assertEquals(1, copy.getQueryCandidates().getCount());
+        assertEquals(250, copy.getChunkPairMillis().getSum());
+
+        copy.incrementSourceReads();
+        assertEquals(8, copy.getSourceReads());
+        assertEquals(7, stats.getSourceReads());
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class CandidateSetTest {
+
+    @Test
+    public void testAddInFirstSeenOrder() {
+        final CandidateSet set = new CandidateSet(10);
+        set.reset();
+        assertTrue(set.add(7));
+        assertTrue(set.add(2));
+        assertFalse(set.add(7));
+        assertTrue(set.add(0));
+        assertFalse(set.add(2));
+
+        assertEquals(3, set.size());
+        assertEquals(7, set.get(0));
+        assertEquals(2, set.get(1));
+        assertEquals(0, set.get(2));
+        assertTrue(set.contains(2));
+        assertFalse(set.contains(3));
+    }
+
+    @Test
+    public void testReset() {
+        final CandidateSet set = new CandidateSet(10);
+        set.reset();
+        set.add(4);
+        set.add(5);
+        set.reset();
+
+        assertEquals(0, set.size());
+        assertFalse(set.contains(4));
+        assertTrue(set.add(5));
+        assertEquals(1, set.size());
+        assertEquals(5, set.get(0));
+    }
+
+    @Test
+    public void testRemoveLast() {
+        final CandidateSet set = new CandidateSet(10);
+        set.reset();
+        set.add(3);
+        set.add(8);
+        set.removeLast();
+
+        assertEquals(1, set.size());
+        assertEquals(3, set.get(0));
+        assertTrue(set.contains(8));
+        assertFalse(set.add(8));
+    }
+
+    @Test
+    public void testGenerationWrapAround() {
+        final CandidateSet set = new CandidateSet(10);
+        set.reset();
+        set.add(3);
+
+        // Skip to the last generation, so the next reset wraps around to
+        // the generation that still marks 3, and to zero which marks the
+        // rest; all of them must be cleared rather than trusted.
+        set.setGeneration(-1);
+        set.reset();
+        assertEquals(0, set.size());
+        for (int ordinal = 0; ordinal < 10; ordinal++)
+            assertFalse(set.contains(ordinal));
+        assertTrue(set.add(3));
+        assertTrue(set.add(9));
+        assertEquals(2, set.size());
+
+        set.reset();
+        assertFalse(set.contains(3));
+        assertTrue(set.add(9));
+    }
+}
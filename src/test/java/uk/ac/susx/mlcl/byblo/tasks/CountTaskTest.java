@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.io.Token;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.lib.Comparators;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class CountTaskTest {
+
+    @Test
+    public void testPackEvent() {
+        final int[] ids = {0, 1, 7, 65535, 65536, Integer.MAX_VALUE};
+        for (int entry : ids) {
+            for (int feature : ids) {
+                final long event = CountTask.packEvent(entry, feature);
+                assertEquals(entry, CountTask.unpackEntry(event));
+                assertEquals(feature, CountTask.unpackFeature(event));
+            }
+        }
+        // Packed keys order as the entry, then the feature
+        assertTrue(CountTask.packEvent(1, 0) > CountTask.packEvent(0, Integer.MAX_VALUE));
+        assertTrue(CountTask.packEvent(1, 2) > CountTask.packEvent(1, 1));
+    }
+
+    private static List<Weighted<TokenPair>> count(
+            List<TokenPair> instances, boolean eventIndexOrder,
+            Comparator<Weighted<TokenPair>> eventOrder) throws Exception {
+        final List<Weighted<TokenPair>> events = new ArrayList<Weighted<TokenPair>>();
+        final List<Weighted<Token>> entries = new ArrayList<Weighted<Token>>();
+        final List<Weighted<Token>> features = new ArrayList<Weighted<Token>>();
+        final CountTask task = new CountTask(
+                ObjectIO.asSource((Iterable<TokenPair>) instances),
+                ObjectIO.asSink(events), ObjectIO.asSink(entries), ObjectIO.asSink(features),
+                eventOrder,
+                Weighted.recordOrder(Token.indexOrder()),
+                Weighted.recordOrder(Token.indexOrder()));
+        task.setEventIndexOrder(eventIndexOrder);
+        task.run();
+        while (task.isExceptionTrapped())
+            task.throwTrappedException();
+        return events;
+    }
+
+    @Test
+    public void testCountEvents() throws Exception {
+        final Random rand = new Random(0);
+        final List<TokenPair> instances = new ArrayList<TokenPair>();
+        for (int i = 0; i < 10000; i++)
+            instances.add(new TokenPair(rand.nextInt(50), rand.nextInt(200)));
+
+        final List<Weighted<TokenPair>> indexOrdered = count(instances, true,
+                Weighted.recordOrder(TokenPair.indexOrder()));
+
+        // Sorting the packed keys must agree with the comparator
+        final List<Weighted<TokenPair>> expected =
+                new ArrayList<Weighted<TokenPair>>(indexOrdered);
+        Collections.sort(expected, Weighted.recordOrder(TokenPair.indexOrder()));
+        assertEquals(expected, indexOrdered);
+
+        double total = 0;
+        for (Weighted<TokenPair> event : indexOrdered)
+            total += event.weight();
+        assertEquals(instances.size(), total, 0);
+
+        // Any other order is applied through the comparator
+        final Comparator<Weighted<TokenPair>> reversed =
+                Comparators.reverse(Weighted.recordOrder(TokenPair.indexOrder()));
+        final List<Weighted<TokenPair>> reverseOrdered = count(instances, false, reversed);
+        Collections.reverse(expected);
+        assertEquals(expected, reverseOrdered);
+    }
+
+    @Test
+    public void testSortByRank() {
+        // Entries descending, then features ascending by their last digit
+        final Comparator<Weighted<TokenPair>> order = new Comparator<Weighted<TokenPair>>() {
+
+            @Override
+            public int compare(Weighted<TokenPair> a, Weighted<TokenPair> b) {
+                final int c = Integer.valueOf(b.record().id1()).compareTo(a.record().id1());
+                return c != 0 ? c : Integer.valueOf(a.record().id2() % 10)
+                        .compareTo(b.record().id2() % 10);
+            }
+
+        };
+        final Random rand = new Random(1);
+        final long[] events = new long[1000];
+        final List<Weighted<TokenPair>> expected = new ArrayList<Weighted<TokenPair>>();
+        for (int i = 0; i < events.length; i++) {
+            final int entry = rand.nextBoolean() ? Integer.MAX_VALUE - rand.nextInt(20)
+                              : rand.nextInt(20);
+            final int feature = rand.nextInt(10) + 10 * i;
+            events[i] = CountTask.packEvent(entry, feature);
+            expected.add(new Weighted<TokenPair>(new TokenPair(entry, feature), 0));
+        }
+        Collections.sort(expected, order);
+
+        CountTask.sortByRank(events, order);
+        for (int i = 0; i < events.length; i++) {
+            assertEquals(0, order.compare(expected.get(i), new Weighted<TokenPair>(
+                    new TokenPair(CountTask.unpackEntry(events[i]),
+                                  CountTask.unpackFeature(events[i])), 0)));
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.collect.Indexed;
+import uk.ac.susx.mlcl.lib.collect.SparseDoubleVector;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class InvertedIndexTest {
+
+    private static Indexed<SparseDoubleVector> vector(int key, int... features) {
+        final double[] values = new double[features.length];
+        Arrays.fill(values, 1);
+        return new Indexed<SparseDoubleVector>(key, new SparseDoubleVector(
+                features, values, features.length == 0 ? 0
+                                  : features[features.length - 1] + 1,
+                features.length));
+    }
+
+    private static List<Integer> postings(InvertedIndex index, int featureId) {
+        final List<Integer> result = new ArrayList<Integer>();
+        final int slot = index.featureSlot(featureId);
+        if (slot < 0)
+            return result;
+        for (int p = index.postingsStart(slot);
+             p < index.postingsEnd(slot); p++) {
+            result.add(index.posting(p));
+        }
+        return result;
+    }
+
+    @Test
+    public void testBuild() {
+        final List<Indexed<SparseDoubleVector>> vectors =
+                new ArrayList<Indexed<SparseDoubleVector>>();
+        vectors.add(vector(10, 0, 2, 5));
+        vectors.add(vector(11, 2, 3));
+        vectors.add(vector(12));
+        vectors.add(vector(13, 0, 5));
+
+        final InvertedIndex index = InvertedIndex.build(vectors);
+
+        assertEquals(4, index.size());
+        assertEquals(7, index.postingsCount());
+        for (int i = 0; i < vectors.size(); i++)
+            assertSame(vectors.get(i), index.get(i));
+
+        assertEquals(Arrays.asList(0, 3), postings(index, 0));
+        assertEquals(Collections.<Integer>emptyList(), postings(index, 1));
+        assertEquals(Arrays.asList(0, 1), postings(index, 2));
+        assertEquals(Arrays.asList(1), postings(index, 3));
+        assertEquals(Collections.<Integer>emptyList(), postings(index, 4));
+        assertEquals(Arrays.asList(0, 3), postings(index, 5));
+
+        // Only the features that occur are given slots, in id order
+        assertEquals(4, index.featureCount());
+        assertEquals(0, index.featureId(0));
+        assertEquals(2, index.featureId(1));
+        assertEquals(3, index.featureId(2));
+        assertEquals(5, index.featureId(3));
+
+        // Positions point back at the feature within each vector
+        for (int k = 0; k < index.featureCount(); k++) {
+            for (int p = index.postingsStart(k); p < index.postingsEnd(k); p++) {
+                final SparseDoubleVector vec = index.get(index.posting(p)).value();
+                assertEquals(index.featureId(k), vec.keys[index.position(p)]);
+            }
+        }
+
+        // Features outside the indexed range have no postings
+        assertEquals(Collections.<Integer>emptyList(), postings(index, 6));
+        assertEquals(Collections.<Integer>emptyList(), postings(index, -1));
+    }
+
+    @Test
+    public void testBuildEmpty() {
+        final InvertedIndex index = InvertedIndex.build(
+                Collections.<Indexed<SparseDoubleVector>>emptyList());
+        assertEquals(0, index.size());
+        assertEquals(0, index.postingsCount());
+        assertEquals(Collections.<Integer>emptyList(), postings(index, 0));
+    }
+
+    @Test
+    public void testSparseFeatureIds() {
+        final InvertedIndex index = InvertedIndex.build(
+                Collections.singletonList(vector(1, 7, Integer.MAX_VALUE - 1)));
+        assertEquals(2, index.featureCount());
+        assertEquals(Arrays.asList(0), postings(index, 7));
+        assertEquals(Arrays.asList(0), postings(index, Integer.MAX_VALUE - 1));
+        assertEquals(Collections.<Integer>emptyList(), postings(index, 8));
+        assertTrue(index.sizeInBytes() < 1024);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeFeatureId() {
+        InvertedIndex.build(Collections.singletonList(vector(1, -1, 2)));
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import com.google.common.io.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.commands.AllPairsCommand;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairVectorSource;
+import uk.ac.susx.mlcl.byblo.measures.Cosine;
+import uk.ac.susx.mlcl.byblo.measures.Jaccard;
+import uk.ac.susx.mlcl.byblo.measures.Proximity;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+import uk.ac.susx.mlcl.lib.io.Tell;
+
+import static org.junit.Assert.*;
+import static uk.ac.susx.mlcl.TestConstants.*;
+
+/**
+ * Some tests are inherited from the abstract-super class.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class LshApssTaskTest extends AbstractAllPairsTaskTest<LshApssTask> {
+
+    @Override
+    public Class<? extends LshApssTask> getImplementation() {
+        return LshApssTask.class;
+    }
+
+    private static List<Weighted<TokenPair>> runOnFruit(
+            NaiveApssTask<Tell> instance, Proximity measure,
+            double minSimilarity, ApssStats stats) throws Exception {
+        DoubleEnumeratingDelegate del = new DoubleEnumeratingDelegate(
+                Enumerating.DEFAULT_TYPE, false, false, null, null);
+
+        WeightedTokenPairVectorSource vsa =
+                new WeightedTokenPairVectorSource(
+                        WeightedTokenPairSource.open(
+                                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false));
+
+        WeightedTokenPairVectorSource vsb =
+                new WeightedTokenPairVectorSource(
+                        WeightedTokenPairSource.open(
+                                TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false));
+
+        final List<Weighted<TokenPair>> results = new ArrayList<Weighted<TokenPair>>();
+        instance.setSourceA(vsa);
+        instance.setSourceB(vsb);
+        instance.setSink(ObjectIO.asSink(results));
+        instance.setStats(stats);
+        instance.setMeasure(measure);
+        instance.setProducatePair(Weighted.<TokenPair>greaterThanOrEqualTo(minSimilarity));
+        instance.setMinSimilarity(minSimilarity);
+
+        instance.run();
+
+        while (instance.isExceptionTrapped()) {
+            instance.throwTrappedException();
+        }
+        Collections.sort(results);
+        return results;
+    }
+
+    /**
+     * Every pair found must be exact, and with enough bands almost all of
+     * the exact pairs above the threshold should be found, while fewer
+     * candidates are compared.
+     */
+    private static void testRecall(Proximity measure, double minSimilarity,
+                                   int bands, int rows, double minRecall)
+            throws Exception {
+        final ApssStats exactStats = new ApssStats();
+        final ApssStats lshStats = new ApssStats();
+        final List<Weighted<TokenPair>> exact = runOnFruit(
+                new InvertedApssTask<Tell>(), measure, minSimilarity, exactStats);
+
+        final LshApssTask<Tell> lsh = new LshApssTask<Tell>();
+        lsh.setBands(bands);
+        lsh.setRows(rows);
+        final List<Weighted<TokenPair>> approx = runOnFruit(
+                lsh, measure, minSimilarity, lshStats);
+
+        assertFalse(exact.isEmpty());
+        final Set<Weighted<TokenPair>> exactSet = new HashSet<Weighted<TokenPair>>(exact);
+        for (Weighted<TokenPair> pair : approx)
+            assertTrue("not an exact pair: " + pair, exactSet.contains(pair));
+
+        final double recall = (double) approx.size() / exact.size();
+        System.out.println(measure.getClass().getSimpleName()
+                + " LSH recall at " + minSimilarity + ": " + recall
+                + " (" + lshStats.getCandidatesCount() + " vs "
+                + exactStats.getCandidatesCount() + " candidates)");
+        assertTrue("recall " + recall, recall >= minRecall);
+        assertTrue(lshStats.getCandidatesCount() < exactStats.getCandidatesCount());
+    }
+
+    @Test
+    public void testJaccardRecall() throws Exception {
+        testRecall(new Jaccard(), 0.2, 32, 2, 0.9);
+    }
+
+    @Test
+    public void testCosineRecall() throws Exception {
+        testRecall(new Cosine(), 0.5, 32, 8, 0.9);
+    }
+
+    @Test
+    public void testCosineRecallDefaults() throws Exception {
+        testRecall(new Cosine(), 0.8, LshApssTask.DEFAULT_BANDS,
+                LshApssTask.DEFAULT_ROWS, 0.8);
+    }
+
+    /**
+     * With the default parameters only a small fraction of the distinct
+     * pairs should become candidates, whatever the signature. Each query
+     * counts its own vector and both orders of every other pair.
+     */
+    private static void testDefaultCandidates(Proximity measure,
+                                              double maxFraction)
+            throws Exception {
+        final int n = Files.readLines(TEST_FRUIT_ENTRIES, DEFAULT_CHARSET).size();
+        final ApssStats stats = new ApssStats();
+        runOnFruit(new LshApssTask<Tell>(), measure, 0, stats);
+
+        final double fraction = (stats.getCandidatesCount() - n) / 2.0
+                / (n * (n - 1) / 2.0);
+        System.out.println(measure.getClass().getSimpleName()
+                + " LSH candidate fraction with defaults: " + fraction);
+        assertTrue("candidate fraction " + fraction, fraction <= maxFraction);
+    }
+
+    @Test
+    public void testJaccardDefaultCandidates() throws Exception {
+        testDefaultCandidates(new Jaccard(), 0.25);
+    }
+
+    @Test
+    public void testCosineDefaultCandidates() throws Exception {
+        // The fruit vectors are much alike; a third of the pairs have a
+        // cosine above 0.5, so many pairs are rightly candidates.
+        testDefaultCandidates(new Cosine(), 0.35);
+    }
+
+    @Test
+    public void testDeterministic() throws Exception {
+        final List<Weighted<TokenPair>> first = runOnFruit(
+                new LshApssTask<Tell>(), new Jaccard(), 0.1, new ApssStats());
+        final List<Weighted<TokenPair>> second = runOnFruit(
+                new LshApssTask<Tell>(), new Jaccard(), 0.1, new ApssStats());
+        assertEquals(first, second);
+    }
+
+    private static List<String> runCommand(int nThreads) throws Exception {
+        final AllPairsCommand allpairs = newFruitAllPairs("lsh." + nThreads);
+        allpairs.setMeasureName("Jaccard");
+        allpairs.setMinSimilarity(0.1);
+        allpairs.setAlgorithm(AllPairsCommand.Algorithm.Lsh);
+        allpairs.setLshBands(16);
+        allpairs.setLshRows(2);
+        allpairs.setNumThreads(nThreads);
+        return runAllPairs(allpairs);
+    }
+
+    @Test
+    public void testCommandThreadedSameAsSingle() throws Exception {
+        final List<String> single = runCommand(1);
+        assertFalse(single.isEmpty());
+        assertEquals(single, runCommand(4));
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.io.Token;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.lib.Comparators;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class ParallelCountTaskTest {
+
+    private static List<TokenPair> randomInstances(long seed, int n) {
+        final Random rand = new Random(seed);
+        final List<TokenPair> instances = new ArrayList<TokenPair>();
+        for (int i = 0; i < n; i++)
+            instances.add(new TokenPair(rand.nextInt(300), rand.nextInt(500)));
+        return instances;
+    }
+
+    private static void assertSameCounts(
+            List<TokenPair> instances, int numThreads, boolean eventIndexOrder,
+            Comparator<Weighted<TokenPair>> eventOrder) throws Exception {
+        final Comparator<Weighted<Token>> tokenOrder =
+                Weighted.recordOrder(Token.indexOrder());
+
+        final List<Weighted<TokenPair>> expectedEvents = new ArrayList<Weighted<TokenPair>>();
+        final List<Weighted<Token>> expectedEntries = new ArrayList<Weighted<Token>>();
+        final List<Weighted<Token>> expectedFeatures = new ArrayList<Weighted<Token>>();
+        final CountTask serial = new CountTask(
+                ObjectIO.asSource((Iterable<TokenPair>) instances),
+                ObjectIO.asSink(expectedEvents), ObjectIO.asSink(expectedEntries),
+                ObjectIO.asSink(expectedFeatures),
+                eventOrder, tokenOrder, tokenOrder);
+        serial.setEventIndexOrder(eventIndexOrder);
+        serial.run();
+        while (serial.isExceptionTrapped())
+            serial.throwTrappedException();
+
+        final List<Weighted<TokenPair>> events = new ArrayList<Weighted<TokenPair>>();
+        final List<Weighted<Token>> entries = new ArrayList<Weighted<Token>>();
+        final List<Weighted<Token>> features = new ArrayList<Weighted<Token>>();
+        final ParallelCountTask parallel = new ParallelCountTask(
+                ObjectIO.asSource((Iterable<TokenPair>) instances),
+                ObjectIO.asSink(events), ObjectIO.asSink(entries),
+                ObjectIO.asSink(features),
+                eventOrder, tokenOrder, tokenOrder);
+        parallel.setEventIndexOrder(eventIndexOrder);
+        parallel.setNumThreads(numThreads);
+        // Small batches, so that the partition queues fill up and block
+        parallel.setBatchSize(64);
+        parallel.run();
+        while (parallel.isExceptionTrapped())
+            parallel.throwTrappedException();
+
+        assertEquals(expectedEntries, entries);
+        assertEquals(expectedFeatures, features);
+        assertEquals(expectedEvents, events);
+    }
+
+    @Test
+    public void testIndexOrder() throws Exception {
+        final List<TokenPair> instances = randomInstances(0, 50000);
+        for (int numThreads : new int[]{1, 2, 3, 8}) {
+            assertSameCounts(instances, numThreads, true,
+                    Weighted.recordOrder(TokenPair.indexOrder()));
+        }
+    }
+
+    @Test
+    public void testComparatorOrder() throws Exception {
+        final List<TokenPair> instances = randomInstances(1, 50000);
+        final Comparator<Weighted<TokenPair>> reversed =
+                Comparators.reverse(Weighted.recordOrder(TokenPair.indexOrder()));
+        for (int numThreads : new int[]{1, 4}) {
+            assertSameCounts(instances, numThreads, false, reversed);
+        }
+    }
+
+    @Test
+    public void testEmptyInput() throws Exception {
+        final List<Weighted<TokenPair>> events = new ArrayList<Weighted<TokenPair>>();
+        final List<Weighted<Token>> entries = new ArrayList<Weighted<Token>>();
+        final List<Weighted<Token>> features = new ArrayList<Weighted<Token>>();
+        final ParallelCountTask task = new ParallelCountTask(
+                ObjectIO.asSource((Iterable<TokenPair>) new ArrayList<TokenPair>()),
+                ObjectIO.asSink(events), ObjectIO.asSink(entries),
+                ObjectIO.asSink(features),
+                Weighted.recordOrder(TokenPair.indexOrder()),
+                Weighted.recordOrder(Token.indexOrder()),
+                Weighted.recordOrder(Token.indexOrder()));
+        task.setNumThreads(4);
+        task.run();
+        while (task.isExceptionTrapped())
+            task.throwTrappedException();
+        assertTrue(events.isEmpty());
+        assertTrue(entries.isEmpty());
+        assertTrue(features.isEmpty());
+    }
+
+    @Test
+    public void testPartitionOf() {
+        final int numPartitions = 7;
+        final int[] sizes = new int[numPartitions];
+        for (int id = 0; id < 70000; id++) {
+            final int p = ParallelCountTask.partitionOf(id, numPartitions);
+            assertTrue(p >= 0 && p < numPartitions);
+            ++sizes[p];
+        }
+        // Dense ids should spread roughly evenly
+        for (int size : sizes)
+            assertTrue(size > 9000 && size < 11000);
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.util.List;
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.commands.AllPairsCommand;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static uk.ac.susx.mlcl.TestConstants.*;
+
+/**
+ * Some tests are inherited from the abstract-super class.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class PartitionedApssTaskTest extends AbstractAllPairsTaskTest<PartitionedApssTask> {
+
+    @Override
+    public Class<? extends PartitionedApssTask> getImplementation() {
+        return PartitionedApssTask.class;
+    }
+
+    private static List<String> runAllPairs(
+            String measure, AllPairsCommand.Algorithm algorithm, int nThreads)
+            throws Exception {
+        return runAllPairs(measure, algorithm, nThreads, false, false);
+    }
+
+    private static List<String> runAllPairs(
+            String measure, AllPairsCommand.Algorithm algorithm, int nThreads,
+            boolean enumerated, boolean checkpoint) throws Exception {
+        final AllPairsCommand allpairs = newFruitAllPairs(
+                measure + "." + algorithm + "-" + nThreads
+                + (enumerated ? "-enumerated" : "") + (checkpoint ? "-checkpoint" : ""),
+                enumerated);
+        allpairs.setMeasureName(measure);
+        allpairs.setAlgorithm(algorithm);
+        allpairs.setNumThreads(nThreads);
+        if (checkpoint) {
+            allpairs.setCheckpoint(true);
+            allpairs.setChunkSize(7);
+        }
+        return runAllPairs(allpairs);
+    }
+
+    /**
+     * Summing the partial shared components of every feature partition must
+     * produce the same similarities as accumulating over all features at
+     * once, whether there is one partition or several.
+     */
+    @Test
+    public void testSameAsAccumulating() throws Exception {
+        for (String measure : new String[]{
+                "Jaccard", "Cosine", "Lin", "DiceMi", "RecallMi"}) {
+            System.out.println("Testing " + measure + " partitioned vs accumulating");
+            final List<String> accumulating = runAllPairs(
+                    measure, AllPairsCommand.Algorithm.Accumulating, 1);
+            assertFalse(accumulating.isEmpty());
+            for (int nThreads : new int[]{1, 4}) {
+                final List<String> partitioned = runAllPairs(
+                        measure, AllPairsCommand.Algorithm.Partitioned, nThreads);
+                assertEquals(measure + " " + nThreads, accumulating, partitioned);
+            }
+        }
+    }
+
+    /**
+     * Checkpointing runs the partitioned algorithm on each chunk pair of the
+     * threaded task, with a single partition each.
+     */
+    @Test
+    public void testCheckpointedSameAsAccumulating() throws Exception {
+        final List<String> accumulating = runAllPairs(
+                "Jaccard", AllPairsCommand.Algorithm.Accumulating, 1, true, false);
+        assertFalse(accumulating.isEmpty());
+        assertEquals(accumulating, runAllPairs(
+                "Jaccard", AllPairsCommand.Algorithm.Partitioned, 4, true, true));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNotDecomposable() throws Exception {
+        runAllPairs("Lp", AllPairsCommand.Algorithm.Partitioned, 1);
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.byblo.tasks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import uk.ac.susx.mlcl.byblo.commands.AllPairsCommand;
+import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
+import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
+import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.Weighted;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
+import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairVectorSource;
+import uk.ac.susx.mlcl.byblo.measures.Jaccard;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+import uk.ac.susx.mlcl.lib.io.Tell;
+
+import static org.junit.Assert.*;
+import static uk.ac.susx.mlcl.TestConstants.*;
+
+/**
+ * Some tests are inherited from the abstract-super class.
+ *
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class PrefixFilteringApssTaskTest extends AbstractAllPairsTaskTest<PrefixFilteringApssTask> {
+
+    @Override
+    public Class<? extends PrefixFilteringApssTask> getImplementation() {
+        return PrefixFilteringApssTask.class;
+    }
+
+    private static List<String> runAllPairs(
+            String measure, double minSimilarity,
+            AllPairsCommand.Algorithm algorithm)
+            throws Exception {
+        final AllPairsCommand allpairs = newFruitAllPairs(
+                measure + "." + minSimilarity + "." + algorithm);
+        allpairs.setMeasureName(measure);
+        allpairs.setMinSimilarity(minSimilarity);
+        allpairs.setAlgorithm(algorithm);
+        allpairs.setNumThreads(1);
+        return runAllPairs(allpairs);
+    }
+
+    /**
+     * Prefix and size filtering must never lose a pair that reaches the
+     * minimum similarity.
+     */
+    @Test
+    public void testSameAsInverted() throws Exception {
+        for (String measure : new String[]{
+                "Jaccard", "Dice", "Overlap", "Cosine", "Tanimoto", "Lin"}) {
+            for (double minSimilarity : new double[]{0.01, 0.05, 0.2}) {
+                System.out.println("Testing " + measure + " prefix filtering "
+                        + "vs inverted with minimum similarity " + minSimilarity);
+                final List<String> inverted = runAllPairs(
+                        measure, minSimilarity, AllPairsCommand.Algorithm.Inverted);
+                final List<String> prefix = runAllPairs(
+                        measure, minSimilarity, AllPairsCommand.Algorithm.Prefix);
+                assertEquals(measure + " " + minSimilarity, inverted, prefix);
+            }
+        }
+    }
+
+    @Test
+    public void testFewerCandidates() throws Exception {
+        final double minSimilarity = 0.1;
+
+        final ApssStats invertedStats = new ApssStats();
+        final ApssStats prefixStats = new ApssStats();
+        final List<Weighted<TokenPair>> invertedResults = new ArrayList<Weighted<TokenPair>>();
+        final List<Weighted<TokenPair>> prefixResults = new ArrayList<Weighted<TokenPair>>();
+
+        for (boolean prefix : new boolean[]{true, false}) {
+            DoubleEnumeratingDelegate del = new DoubleEnumeratingDelegate(
+                    Enumerating.DEFAULT_TYPE, false, false, null, null);
+
+            WeightedTokenPairVectorSource vsa =
+                    new WeightedTokenPairVectorSource(
+                            WeightedTokenPairSource.open(
+                                    TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false));
+
+            WeightedTokenPairVectorSource vsb =
+                    new WeightedTokenPairVectorSource(
+                            WeightedTokenPairSource.open(
+                                    TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false));
+
+            final NaiveApssTask<Tell> instance = prefix
+                    ? new PrefixFilteringApssTask<Tell>()
+                    : new InvertedApssTask<Tell>();
+            instance.setSourceA(vsa);
+            instance.setSourceB(vsb);
+            instance.setSink(ObjectIO.asSink(prefix ? prefixResults : invertedResults));
+            instance.setStats(prefix ? prefixStats : invertedStats);
+            instance.setMeasure(new Jaccard());
+            instance.setProducatePair(Weighted.<TokenPair>greaterThanOrEqualTo(minSimilarity));
+            instance.setMinSimilarity(minSimilarity);
+
+            instance.run();
+
+            while (instance.isExceptionTrapped()) {
+                instance.throwTrappedException();
+            }
+        }
+
+        Collections.sort(invertedResults);
+        Collections.sort(prefixResults);
+
+        assertFalse(invertedResults.isEmpty());
+        assertEquals(invertedResults, prefixResults);
+        assertTrue(prefixStats.getCandidatesCount() < invertedStats.getCandidatesCount());
+    }
+
+}
@@ -30,12 +30,15 @@
  */
 package uk.ac.susx.mlcl.byblo.tasks;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Predicate;
+import com.google.common.io.Files;
 import org.junit.Test;
 import uk.ac.susx.mlcl.byblo.Tools;
 import uk.ac.susx.mlcl.byblo.enumerators.DoubleEnumeratingDelegate;
 import uk.ac.susx.mlcl.byblo.enumerators.Enumerating;
 import uk.ac.susx.mlcl.byblo.io.TokenPair;
+import uk.ac.susx.mlcl.byblo.io.VectorCardinalityStats;
 import uk.ac.susx.mlcl.byblo.io.Weighted;
 import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairSource;
 import uk.ac.susx.mlcl.byblo.io.WeightedTokenPairVectorSource;
@@ -394,4 +397,212 @@ public class ThreadedApssTaskTest extends AbstractAllPairsTaskTest<ThreadedApssT
         assertEquals(threadedResults, nonThreadedResults);
     }
 
+
+    @Test
+    public void compareTriangular_vs_FullScheduling() throws Exception {
+        System.out.println(
+                "Testing " + subject + " compare triangular vs full chunk-pair scheduling");
+
+        List<Weighted<TokenPair>> triangularResults = new ArrayList<Weighted<TokenPair>>();
+        List<Weighted<TokenPair>> fullResults = new ArrayList<Weighted<TokenPair>>();
+
+        for (boolean triangular : new boolean[]{true, false}) {
+            DoubleEnumeratingDelegate del = new DoubleEnumeratingDelegate(
+                    Enumerating.DEFAULT_TYPE, false, false, null, null);
+
+            WeightedTokenPairVectorSource vsa =
+                    new WeightedTokenPairVectorSource(
+                            WeightedTokenPairSource.open(
+                                    TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false));
+
+            WeightedTokenPairVectorSource vsb =
+                    new WeightedTokenPairVectorSource(
+                            WeightedTokenPairSource.open(
+                                    TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false));
+
+            ObjectSink<Weighted<TokenPair>> sink = ObjectIO.asSink(
+                    triangular ? triangularResults : fullResults);
+            ThreadedApssTask<Tell> instance = new ThreadedApssTask<Tell>(
+                    vsa, vsb, sink);
+
+            instance.setInnerAlgorithm(InvertedApssTask.class);
+            instance.setMeasure(MEASURE);
+            instance.setProducatePair(PAIR_FILTER);
+            // Small chunks so there are plenty of off-diagonal chunk pairs
+            instance.setMaxChunkSize(7);
+            instance.setTriangularScheduling(triangular);
+
+            instance.run();
+
+            while (instance.isExceptionTrapped()) {
+                instance.throwTrappedException();
+            }
+        }
+
+        Collections.sort(triangularResults);
+        Collections.sort(fullResults);
+
+        assertTrue(!fullResults.isEmpty());
+        assertEquals(fullResults, triangularResults);
+    }
+
+    @Test
+    public void compareSplitting_vs_NoSplitting() throws Exception {
+        System.out.println(
+                "Testing " + subject + " compare split vs unsplit chunk pairs");
+
+        List<Weighted<TokenPair>> splitResults = new ArrayList<Weighted<TokenPair>>();
+        List<Weighted<TokenPair>> unsplitResults = new ArrayList<Weighted<TokenPair>>();
+
+        for (boolean split : new boolean[]{true, false}) {
+            DoubleEnumeratingDelegate del = new DoubleEnumeratingDelegate(
+                    Enumerating.DEFAULT_TYPE, false, false, null, null);
+
+            WeightedTokenPairVectorSource vsa =
+                    new WeightedTokenPairVectorSource(
+                            WeightedTokenPairSource.open(
+                                    TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false));
+
+            WeightedTokenPairVectorSource vsb =
+                    new WeightedTokenPairVectorSource(
+                            WeightedTokenPairSource.open(
+                                    TEST_FRUIT_EVENTS, DEFAULT_CHARSET, del, false, false));
+
+            ObjectSink<Weighted<TokenPair>> sink = ObjectIO.asSink(
+                    split ? splitResults : unsplitResults);
+            ThreadedApssTask<Tell> instance = new ThreadedApssTask<Tell>(
+                    vsa, vsb, sink);
+
+            instance.setInnerAlgorithm(InvertedApssTask.class);
+            instance.setMeasure(MEASURE);
+            instance.setProducatePair(PAIR_FILTER);
+            instance.setMaxChunkSize(13);
+            instance.setTriangularScheduling(true);
+            instance.setNumThreads(4);
+            instance.setMinSplitWork(split ? 0 : Long.MAX_VALUE);
+
+            instance.run();
+
+            while (instance.isExceptionTrapped()) {
+                instance.throwTrappedException();
+            }
+
+            assertTrue(instance.getCompletedWorkUnits() > 0);
+            assertTrue(instance.getMaxWorkUnitMillis() <= instance.getTotalWorkUnitMillis());
+        }
+
+        Collections.sort(splitResults);
+        Collections.sort(unsplitResults);
+
+        assertTrue(!unsplitResults.isEmpty());
+        assertEquals(unsplitResults, splitResults);
+    }
+
+    private static List<Weighted<TokenPair>> runCheckpointed(
+            File checkpoint, boolean resume, long expectedWorkUnits) throws Exception {
+        // Checkpointed pairs are stored by id, so the ids must be the same in
+        // every run.
+        DoubleEnumeratingDelegate del = new DoubleEnumeratingDelegate(
+                Enumerating.DEFAULT_TYPE, true, true, null, null);
+
+        WeightedTokenPairVectorSource vsa =
+                new WeightedTokenPairVectorSource(
+                        WeightedTokenPairSource.open(
+                                TEST_FRUIT_SKIP_INDEXED_EVENTS, DEFAULT_CHARSET, del, true, true));
+
+        WeightedTokenPairVectorSource vsb =
+                new WeightedTokenPairVectorSource(
+                        WeightedTokenPairSource.open(
+                                TEST_FRUIT_SKIP_INDEXED_EVENTS, DEFAULT_CHARSET, del, true, true));
+
+        List<Weighted<TokenPair>> result = new ArrayList<Weighted<TokenPair>>();
+        ThreadedApssTask<Tell> instance = new ThreadedApssTask<Tell>(
+                vsa, vsb, ObjectIO.asSink(result));
+
+        instance.setInnerAlgorithm(InvertedApssTask.class);
+        instance.setMeasure(MEASURE);
+        instance.setProducatePair(PAIR_FILTER);
+        instance.setMaxChunkSize(7);
+        instance.setTriangularScheduling(true);
+        instance.setNumThreads(2);
+        instance.setCheckpointDirectory(checkpoint);
+        instance.setResume(resume);
+
+        instance.run();
+
+        while (instance.isExceptionTrapped()) {
+            instance.throwTrappedException();
+        }
+
+        if (expectedWorkUnits >= 0)
+            assertEquals(expectedWorkUnits, instance.getCompletedWorkUnits());
+
+        Collections.sort(result);
+        return result;
+    }
+
+    @Test
+    public void compareCheckpointResumed_vs_Uncheckpointed() throws Exception {
+        System.out.println(
+                "Testing " + subject + " compare resumed checkpoint vs uncheckpointed");
+
+        final File checkpoint = new File(TEST_OUTPUT_DIR, FRUIT_NAME + ".checkpoint");
+
+        final List<Weighted<TokenPair>> expected = runCheckpointed(null, false, -1);
+        assertTrue(!expected.isEmpty());
+
+        assertEquals(expected, runCheckpointed(checkpoint, false, -1));
+
+        // Every chunk pair is in the journal, so none are computed again
+        assertEquals(expected, runCheckpointed(checkpoint, true, 0));
+
+        // Forget the later half of the journal, as though the run had been
+        // interrupted, along with a torn final line.
+        final File journalFile = new File(checkpoint, "journal");
+        final List<String> lines = Files.readLines(journalFile, DEFAULT_CHARSET);
+        assertTrue(lines.size() > 2);
+        final int kept = lines.size() / 2;
+        Files.write(Joiner.on('\n').join(lines.subList(0, kept)) + "\n3:",
+                journalFile, DEFAULT_CHARSET);
+
+        assertEquals(expected, runCheckpointed(checkpoint, true, -1));
+
+        // Resuming a journal that doesn't exist starts from scratch
+        final File missing = new File(TEST_OUTPUT_DIR, FRUIT_NAME + ".checkpoint-missing");
+        ChunkPairJournal.open(missing, false).delete();
+        assertEquals(expected, runCheckpointed(missing, true, -1));
+    }
+
+    @Test
+    public void testEstimateChunkSize() {
+        ThreadedApssTask<Tell> instance = new ThreadedApssTask<Tell>();
+        instance.setNumThreads(4);
+
+        // Without statistics or a budget the legacy cap applies
+        assertTrue(instance.estimateChunkSize() <= 4000);
+
+        // A generous budget with measured vectors fits the whole input
+        instance.setVectorStats(new VectorCardinalityStats(100000, 1000000, 5000, 40));
+        instance.setMemoryBudget(1L << 32);
+        assertEquals(100000, instance.estimateChunkSize());
+
+        // A smaller budget gives proportionally smaller chunks
+        instance.setMemoryBudget(1L << 28);
+        final int smaller = instance.estimateChunkSize();
+        assertTrue(smaller > 4000);
+        assertTrue(smaller < 100000);
+
+        // Denser vectors give smaller chunks for the same budget
+        instance.setVectorStats(new VectorCardinalityStats(100000, 100000000, 50000, 4000));
+        assertTrue(instance.estimateChunkSize() < smaller);
+
+        // But always at least one vector
+        instance.setMemoryBudget(1);
+        assertEquals(1, instance.estimateChunkSize());
+
+        // An explicit chunk size overrides the model
+        instance.setMaxChunkSize(7);
+        assertEquals(7, instance.estimateChunkSize());
+    }
+
 }
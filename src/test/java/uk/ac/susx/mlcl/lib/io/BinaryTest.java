@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.io;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.TestConstants;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class BinaryTest {
+
+    private static File newFile(String name) {
+        TestConstants.TEST_OUTPUT_DIR.mkdirs();
+        final File file = new File(TestConstants.TEST_OUTPUT_DIR, name);
+        file.delete();
+        return file;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final File file = newFile("binary-roundtrip");
+        final Random rand = new Random(0);
+        final int[] ints = {0, 1, -1, 63, 64, -65, 127, 128, 16384,
+            Integer.MAX_VALUE, Integer.MIN_VALUE};
+
+        final Binary.Sink sink = new Binary.Sink(file);
+        for (int i = 0; i < ints.length; i++) {
+            sink.writeInt(ints[i]);
+            sink.writeLong(ints[i] * (long) Integer.MAX_VALUE);
+            sink.writeDouble(rand.nextGaussian());
+            sink.writeFloat((float) ints[i] / 3);
+            sink.writeByte((byte) i);
+            sink.writeShort((short) ints[i]);
+            sink.writeChar((char) ints[i]);
+            sink.writeString("v\u00e4lue\t" + i);
+            sink.endOfRecord();
+        }
+        sink.writeLong(Long.MIN_VALUE);
+        sink.writeLong(Long.MAX_VALUE);
+        sink.writeDouble(Double.NaN);
+        sink.writeDouble(Double.NEGATIVE_INFINITY);
+        sink.endOfRecord();
+        sink.close();
+
+        rand.setSeed(0);
+        final Binary.Source src = new Binary.Source(file);
+        for (int i = 0; i < ints.length; i++) {
+            assertTrue(src.canRead());
+            assertFalse(src.isEndOfRecordNext());
+            assertEquals(ints[i], src.readInt());
+            assertEquals(ints[i] * (long) Integer.MAX_VALUE, src.readLong());
+            assertEquals(rand.nextGaussian(), src.readDouble(), 0);
+            assertEquals((float) ints[i] / 3, src.readFloat(), 0);
+            assertEquals((byte) i, src.readByte());
+            assertEquals((short) ints[i], src.readShort());
+            assertEquals((char) ints[i], src.readChar());
+            assertEquals("v\u00e4lue\t" + i, src.readString());
+            assertTrue(src.isEndOfRecordNext());
+            src.endOfRecord();
+        }
+        assertEquals(Long.MIN_VALUE, src.readLong());
+        assertEquals(Long.MAX_VALUE, src.readLong());
+        assertTrue(Double.isNaN(src.readDouble()));
+        assertEquals(Double.NEGATIVE_INFINITY, src.readDouble(), 0);
+        src.endOfRecord();
+        assertFalse(src.canRead());
+        src.close();
+    }
+
+    @Test
+    public void testVariableLengthRecords() throws IOException {
+        final File file = newFile("binary-records");
+        final Binary.Sink sink = new Binary.Sink(file);
+        for (int i = 0; i < 1000; i++) {
+            for (int j = 0; j < i % 7; j++)
+                sink.writeInt(i * j);
+            sink.endOfRecord();
+        }
+        sink.close();
+
+        final Binary.Source src = new Binary.Source(file);
+        for (int i = 0; i < 1000; i++) {
+            int j = 0;
+            while (!src.isEndOfRecordNext()) {
+                assertEquals(i * j, src.readInt());
+                ++j;
+            }
+            assertEquals(i % 7, j);
+            src.endOfRecord();
+        }
+        assertFalse(src.canRead());
+        src.close();
+    }
+
+    @Test
+    public void testEndOfRecordSkipsUnreadValues() throws IOException {
+        final File file = newFile("binary-skip");
+        final Binary.Sink sink = new Binary.Sink(file);
+        for (int i = 0; i < 10; i++) {
+            sink.writeInt(i);
+            sink.writeString("ignored");
+            sink.writeDouble(i);
+            sink.endOfRecord();
+        }
+        sink.close();
+
+        final Binary.Source src = new Binary.Source(file);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, src.readInt());
+            src.endOfRecord();
+        }
+        assertFalse(src.canRead());
+        src.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadPastEndOfRecord() throws IOException {
+        final File file = newFile("binary-past-end");
+        final Binary.Sink sink = new Binary.Sink(file);
+        sink.writeInt(1);
+        sink.endOfRecord();
+        sink.writeInt(2);
+        sink.endOfRecord();
+        sink.close();
+
+        final Binary.Source src = new Binary.Source(file);
+        try {
+            src.readInt();
+            src.readInt();
+        } finally {
+            src.close();
+        }
+    }
+
+    @Test
+    public void testSeek() throws IOException {
+        final File file = newFile("binary-seek");
+        final Binary.Sink sink = new Binary.Sink(file);
+        for (int i = 0; i < 10000; i++) {
+            sink.writeInt(i);
+            sink.writeInt(-i);
+            sink.endOfRecord();
+        }
+        sink.close();
+
+        final Binary.Source src = new Binary.Source(file);
+        final List<Tell> tells = new ArrayList<Tell>();
+        for (int i = 0; i < 10000; i++) {
+            tells.add(src.position());
+            assertEquals(i, src.readInt());
+            if (i % 3 == 0)
+                tells.set(i, src.position());
+            assertEquals(-i, src.readInt());
+            src.endOfRecord();
+        }
+
+        final Random rand = new Random(1);
+        for (int n = 0; n < 100; n++) {
+            final int i = rand.nextInt(10000);
+            src.position(tells.get(i));
+            if (i % 3 != 0)
+                assertEquals(i, src.readInt());
+            assertEquals(-i, src.readInt());
+            src.endOfRecord();
+        }
+        src.close();
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2010-2012, University of Sussex
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *  * Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ *  * Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ *  * Neither the name of the University of Sussex nor the names of its
+ *    contributors may be used to endorse or promote products derived from this
+ *    software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package uk.ac.susx.mlcl.lib.tasks;
+
+import org.junit.Test;
+import uk.ac.susx.mlcl.lib.io.ObjectIO;
+import uk.ac.susx.mlcl.lib.io.ObjectSource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Hamish I A Morgan &lt;hamish.morgan@sussex.ac.uk&gt;
+ */
+public class KWayMergeTaskTest {
+
+    private static final Comparator<int[]> KEY_ORDER = new Comparator<int[]>() {
+
+        @Override
+        public int compare(int[] a, int[] b) {
+            return a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : 0;
+        }
+
+    };
+
+    /**
+     * Merge k random sorted runs of {key, source} pairs, some of them empty,
+     * and check the output against a stable sort of their concatenation.
+     */
+    private static void testMerge(int k, Random rand) throws Exception {
+        final List<List<int[]>> runs = new ArrayList<List<int[]>>();
+        final List<int[]> expected = new ArrayList<int[]>();
+        for (int i = 0; i < k; i++) {
+            final List<int[]> run = new ArrayList<int[]>();
+            final int n = rand.nextInt(4) == 0 ? 0 : rand.nextInt(500);
+            for (int j = 0; j < n; j++)
+                run.add(new int[]{rand.nextInt(100), i});
+            Collections.sort(run, KEY_ORDER);
+            runs.add(run);
+            expected.addAll(run);
+        }
+        Collections.sort(expected, KEY_ORDER);
+
+        final List<ObjectSource<int[]>> sources = new ArrayList<ObjectSource<int[]>>();
+        for (List<int[]> run : runs)
+            sources.add(ObjectIO.asSource((Iterable<int[]>) run));
+        final List<int[]> out = new ArrayList<int[]>();
+
+        final ObjectKWayMergeTask<int[]> instance =
+                new ObjectKWayMergeTask<int[]>(sources, ObjectIO.asSink(out), KEY_ORDER);
+        instance.run();
+        while (instance.isExceptionTrapped())
+            instance.throwTrappedException();
+
+        assertEquals(expected.size(), out.size());
+        for (int i = 0; i < out.size(); i++) {
+            // Equal keys must keep the order of their sources
+            assertEquals(expected.get(i)[0], out.get(i)[0]);
+            assertEquals(expected.get(i)[1], out.get(i)[1]);
+        }
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        final Random rand = new Random(0);
+        for (int k : new int[]{1, 2, 3, 5, 8, 13, 16, 64}) {
+            for (int repeat = 0; repeat < 5; repeat++)
+                testMerge(k, rand);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoSources() throws Exception {
+        final ObjectKWayMergeTask<Integer> instance = new ObjectKWayMergeTask<Integer>(
+                new ArrayList<ObjectSource<Integer>>(),
+                ObjectIO.asSink(new ArrayList<Integer>()));
+        instance.run();
+        while (instance.isExceptionTrapped())
+            instance.throwTrappedException();
+    }
+
+}